@@ -83,7 +83,7 @@ typedef std::unordered_set<StateIndex, HashIndex, EqualIndex> Lookup;
  */
 class Chart {
   public:
-    Chart(long* ngramBuffer) : 
+    Chart(jlong* ngramBuffer) : 
     ngramBuffer_(ngramBuffer),
     lookup_(1000, HashIndex(vec_), EqualIndex(vec_)) {}
 
@@ -100,7 +100,7 @@ class Chart {
     const lm::ngram::ChartState &InterpretState(StateIndex index) const {
       return vec_[index - 1];
     }
-    long* ngramBuffer_;
+    jlong* ngramBuffer_;
 
   private:
     StateVector vec_;
@@ -142,7 +142,9 @@ public:
 
   virtual bool IsKnownWordIndex(const lm::WordIndex& id) const = 0;
 
-  virtual float ProbRule(lm::ngram::ChartState& state, const Chart &chart) const = 0;
+  // Scores the rule [begin, end) of word ids and (negated) state ids of the chart
+  virtual float ProbRule(const jlong *begin, const jlong *end,
+      lm::ngram::ChartState& state, const Chart &chart) const = 0;
 
   virtual float ProbString(jint * const begin, jint * const end,
       jint start) const = 0;
@@ -199,12 +201,8 @@ public:
       return id != m_.GetVocabulary().NotFound();
   }
 
-  float ProbRule(lm::ngram::ChartState& state, const Chart &chart) const {
-
-    // By convention the first long in the ngramBuffer denotes the size of the buffer
-    long* begin = chart.ngramBuffer_ + 1;
-    long* end = begin + *chart.ngramBuffer_;
-
+  float ProbRule(const jlong * const begin, const jlong * const end,
+      lm::ngram::ChartState& state, const Chart &chart) const {
     if (begin == end) return 0.0;
     lm::ngram::RuleScore<Model> ruleScore(m_, state);
 
@@ -218,8 +216,8 @@ public:
         ruleScore.Terminal(word);
       }
     }
-    for (jlong* i = begin + 1; i != end; i++) {
-      long word = *i;
+    for (const jlong* i = begin + 1; i != end; i++) {
+      jlong word = *i;
       if (word < 0)
         ruleScore.NonTerminal(chart.InterpretState(-word));
       else
@@ -403,6 +401,22 @@ JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_prob(
       values + length);
 }
 
+// Scores count n-grams of the given order with a single JNI transition. The direct buffer
+// holds count float slots for the results, followed by the n-grams stored back to back.
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probBatch(
+    JNIEnv *env, jclass, jlong pointer, jobject batch, jint order, jint count) {
+  if (order <= 0 || count <= 0)
+    return;
+  jfloat *probs = (jfloat*)env->GetDirectBufferAddress(batch);
+  jint *ngrams = reinterpret_cast<jint*>(probs + count);
+
+  const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
+  for (jint i = 0; i < count; ++i) {
+    jint *begin = ngrams + i * order;
+    probs[i] = base->Prob(begin, begin + order);
+  }
+}
+
 JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probForString(
     JNIEnv *env, jclass, jlong pointer, jobjectArray arr) {
   jint length = env->GetArrayLength(arr);
@@ -465,11 +479,34 @@ JNIEXPORT jlong JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probRule(
   const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
   Chart* chart = reinterpret_cast<Chart*>(chartPtr);
   FloatConverter prob;
-  prob.f = base->ProbRule(outState, *chart);
+  // By convention the first long in the ngramBuffer denotes the number of ids that follow
+  const jlong *begin = chart->ngramBuffer_ + 1;
+  prob.f = base->ProbRule(begin, begin + *chart->ngramBuffer_, outState, *chart);
   StateIndex index = chart->Intern(outState);
   return static_cast<uint64_t>(index) << 32 | static_cast<uint64_t>(prob.i);
 }
 
+// Scores count rules of one span with a single JNI transition. The direct buffer holds count
+// slots for the packed results, followed by each rule as its number of ids and then the ids.
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probRules(
+  JNIEnv *env, jclass, jlong pointer, jlong chartPtr, jobject batch, jint count) {
+
+  jlong *results = (jlong*)env->GetDirectBufferAddress(batch);
+  const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
+  Chart* chart = reinterpret_cast<Chart*>(chartPtr);
+  const jlong *rule = results + count;
+  for (jint k = 0; k < count; ++k) {
+    const jlong *begin = rule + 1;
+    const jlong *end = begin + *rule;
+    lm::ngram::ChartState outState;
+    FloatConverter prob;
+    prob.f = base->ProbRule(begin, end, outState, *chart);
+    StateIndex index = chart->Intern(outState);
+    results[k] = static_cast<uint64_t>(index) << 32 | static_cast<uint64_t>(prob.i);
+    rule = end;
+  }
+}
+
 JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_estimateRule(
   JNIEnv *env, jclass, jlong pointer, jlongArray arr) {
   jint length = env->GetArrayLength(arr);
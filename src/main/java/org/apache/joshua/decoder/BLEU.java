@@ -28,6 +28,8 @@ import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HyperEdge;
+import org.apache.joshua.metrics.BLEUStatsEngine;
+import org.apache.joshua.util.LongIntHashMap;
 import org.apache.joshua.util.Ngram;
 import org.apache.joshua.util.Regex;
 
@@ -456,38 +458,30 @@ public class BLEU {
     
 //    System.err.print(String.format("      BOUNDARY(%s, %d)", Vocabulary.getWords(ngram), boundary));
 
-    HashMap<String, Integer> boundaryNgrams = new HashMap<>();
-    for (int width = 1; width <= Math.min(maxOrder, ngram.size()); width++) {
-      for (int i = 0; i < ngram.size() - width + 1; i++) {
-        int j = i + width;
-
-        final List<Integer> piece = ngram.subList(i, j);
+    /*
+     * Each distinct eligible ngram that is found in the references is counted once. The ngrams are
+     * identified by their hashed Vocabulary ids, so no strings are built.
+     */
+    BLEU.Stats result = new BLEU.Stats();
+    long[] codes = BLEUStatsEngine.tokenCodes(ngram);
+    LongIntHashMap seen = new LongIntHashMap(codes.length * maxOrder);
+    for (int i = 0; i < codes.length; i++) {
+      long key = 0;
+      for (int j = i + 1; j <= Math.min(i + maxOrder, codes.length); j++) {
+        key = BLEUStatsEngine.extend(key, codes[j - 1]);
         if (boundary == -1 || (boundary > i && boundary < j)) {
-          String ngramStr = Vocabulary.getWords(piece);
-          if (!boundaryNgrams.containsKey(ngramStr))
-            boundaryNgrams.put(ngramStr, 1);
-          else
-            boundaryNgrams.put(ngramStr, boundaryNgrams.get(ngramStr));
+          if (seen.addTo(key, 1) == 1 && references.ngramCounts.containsKey(key))
+            result.counts[j - i - 1]++;
         }
       }
     }
-    
-    /*
-    System.err.print(" FOUND");
-    for (String phr: boundaryNgrams.keySet())
-      System.err.print(" | " + phr);
-    System.err.println();
-    */
-
-    BLEU.Stats result = new BLEU.Stats();
-    int[] stats = BLEU.computeNgramMatches(0, boundaryNgrams, references.ngramCounts, maxOrder);
-    System.arraycopy(stats, 1, result.counts, 0, maxOrder);
 
     return result;
   }
 
   public static class References {
-    HashMap<String, Integer> ngramCounts;
+    // Hashed ngrams over Vocabulary ids (see BLEUStatsEngine)
+    LongIntHashMap ngramCounts;
     float reflen;
 
     public References(String reference) {
@@ -501,13 +495,19 @@ public class BLEU {
     }
 
     private void fill(String[] references) {
-      ngramCounts = new HashMap<>();
+      BLEUStatsEngine engine = new BLEUStatsEngine(maxOrder);
+      long[][] codes = new long[references.length][];
       reflen = 0.0f;
-      for (String reference : references) {
-        String[] ref = reference.split(" ");
-        Ngram.getNgrams(ngramCounts, 1, maxOrder, ref);
+      for (int r = 0; r < references.length; r++) {
+        String[] ref = references[r].split(" ");
+        codes[r] = new long[ref.length];
+        for (int i = 0; i < ref.length; i++) {
+          // empty tokens (from repeated spaces) can never be matched
+          codes[r][i] = ref[i].isEmpty() ? Long.MIN_VALUE : Vocabulary.id(ref[i]);
+        }
         reflen += ref.length;
       }
+      ngramCounts = engine.referenceCounts(codes);
       reflen /= references.length;
     }
   }
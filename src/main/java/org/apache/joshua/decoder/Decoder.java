@@ -29,19 +29,27 @@ import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.PhraseModel;
 import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.lm.CachingLanguageModel;
 import org.apache.joshua.decoder.ff.lm.LanguageModelFF;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.ff.tm.OwnerId;
 import org.apache.joshua.decoder.ff.tm.OwnerMap;
@@ -49,9 +57,12 @@ import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
 import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar;
+import org.apache.joshua.decoder.ff.tm.suffix_array.SuffixArrayGrammar;
+import org.apache.joshua.decoder.hypergraph.HyperGraphWriter;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
 import org.apache.joshua.decoder.phrase.PhraseTable;
 import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.tools.TestSetFilter;
 import org.apache.joshua.util.FileUtility;
 import org.apache.joshua.util.FormatUtils;
 import org.apache.joshua.util.Regex;
@@ -77,6 +88,9 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * but also ensures that round-robin parallelization occurs, since RequestParallelizer uses the
  * thread pool before translating each request.
  *
+ * A list of sentences that is known up front can instead be decoded with decodeBatch(List), which
+ * uses the same thread pool and builds the OOV rules once for the whole batch.
+ *
  * A decoding thread is handled by DecoderTask and launched from DecoderThreadRunner. The purpose
  * of the runner is to record where to place the translated sentence when it is done (i.e., which
  * TranslationResponseStream object). TranslationResponseStream itself is an iterator whose next() call blocks until the next
@@ -108,8 +122,31 @@ public class Decoder {
   private ArrayList<FeatureFunction> featureFunctions;
   private Grammar customPhraseTable;
 
-  /* The feature weights. */
-  public static FeatureVector weights;
+  /* Caches translations when translation-cache-size is set; null otherwise */
+  private TranslationCache translationCache = null;
+
+  /* Receives the hypergraph of every sentence when hypergraph-file is set; null otherwise */
+  private HyperGraphWriter hypergraphWriter = null;
+
+  /* Decodes the sentences of all requests and batches; created on first use */
+  private ExecutorService threadPool = null;
+
+  /* Scores the seeds of phrase-based stacks for all sentences when stack-threads > 1; null otherwise */
+  private ForkJoinPool stackPool = null;
+
+  /* Extracts the k-best lists of all sentences when kbest-threads > 1; null otherwise */
+  private ForkJoinPool kbestPool = null;
+
+  /* Bumped whenever the grammars are modified, which invalidates cached translations */
+  private final AtomicLong grammarVersion = new AtomicLong();
+
+  /*
+   * The feature weights. Once the decoder is initialized, this vector is an immutable snapshot:
+   * updates build a new vector and publish it with updateWeights(), and each DecoderTask decodes
+   * with the snapshot that was current when it was created. The version counts the updates.
+   */
+  public static volatile FeatureVector weights;
+  private static final AtomicLong weightsVersion = new AtomicLong();
 
   public static int VERBOSE = 1;
 
@@ -176,42 +213,63 @@ public class Decoder {
    * @return an iterable, asynchronously-filled list of TranslationResponseStream
    */
   public TranslationResponseStream decodeAll(TranslationRequestStream request) {
+    return decodeAll(request, null);
+  }
+
+  /**
+   * Translates all the sentences in a request with the given weights instead of the decoder's
+   * current ones. This lets a single loaded model serve several weight sets at once.
+   *
+   * @param request the populated {@link TranslationRequestStream}
+   * @param weights the weights for this request, or null to use the snapshot current at the time
+   *          each sentence starts decoding. The vector must not be modified afterwards.
+   * @throws RuntimeException if any fatal errors occur during translation
+   * @return an iterable, asynchronously-filled list of TranslationResponseStream
+   */
+  public TranslationResponseStream decodeAll(TranslationRequestStream request,
+      FeatureVector weights) {
     TranslationResponseStream results = new TranslationResponseStream(request);
-    CompletableFuture.runAsync(() -> decodeAllAsync(request, results));
+    CompletableFuture.runAsync(() -> decodeAllAsync(request, weights, results));
     return results;
   }
 
-  private void decodeAllAsync(TranslationRequestStream request,
+  private void decodeAllAsync(TranslationRequestStream request, FeatureVector weights,
                               TranslationResponseStream responseStream) {
+    ExecutorService executor = getThreadPool();
+    for (; ; ) {
+      Sentence sentence = request.next();
 
-    // Give the threadpool a friendly name to help debuggers
-    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
-            .setNameFormat("TranslationWorker-%d")
-            .setDaemon(true)
-            .build();
-    ExecutorService executor = Executors.newFixedThreadPool(this.joshuaConfiguration.num_parallel_decoders,
-            threadFactory);
-    try {
-      for (; ; ) {
-        Sentence sentence = request.next();
+      if (sentence == null) {
+        break;
+      }
 
-        if (sentence == null) {
-          break;
+      executor.execute(() -> {
+        try {
+          Translation result = decode(sentence, weights);
+          responseStream.record(result);
+        } catch (Throwable ex) {
+          responseStream.propagate(ex);
         }
+      });
+    }
+    responseStream.finish();
+  }
 
-        executor.execute(() -> {
-          try {
-            Translation result = decode(sentence);
-            responseStream.record(result);
-          } catch (Throwable ex) {
-            responseStream.propagate(ex);
-          }
-        });
-      }
-      responseStream.finish();
-    } finally {
-      executor.shutdown();
+  /**
+   * Returns the fixed-size pool of num_parallel_decoders threads that decodes the sentences of
+   * all requests and batches, creating it on first use.
+   */
+  private synchronized ExecutorService getThreadPool() {
+    if (threadPool == null) {
+      // Give the threadpool a friendly name to help debuggers
+      final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+              .setNameFormat("TranslationWorker-%d")
+              .setDaemon(true)
+              .build();
+      threadPool = Executors.newFixedThreadPool(this.joshuaConfiguration.num_parallel_decoders,
+              threadFactory);
     }
+    return threadPool;
   }
 
 
@@ -223,8 +281,32 @@ public class Decoder {
    * @return the sentence {@link org.apache.joshua.decoder.Translation}
    */
   public Translation decode(Sentence sentence) {
+    return decode(sentence, null);
+  }
+
+  /**
+   * Decodes a single sentence in the same thread with the given weights.
+   *
+   * @param sentence {@link org.apache.joshua.lattice.Lattice} input
+   * @param weights the weights to decode with, or null for the current snapshot
+   * @throws RuntimeException if any fatal errors occur during translation
+   * @return the sentence {@link org.apache.joshua.decoder.Translation}
+   */
+  public Translation decode(Sentence sentence, FeatureVector weights) {
+    /* Read the version first, so that a concurrent update can only make the key too old */
+    final long version = (weights == null) ? weightsVersion.get() : -1;
+    final FeatureVector taskWeights = (weights != null) ? weights : Decoder.weights;
+
+    if (translationCache != null)
+      return translationCache.get(sentence, taskWeights, version, grammarVersion.get(),
+          joshuaConfiguration, s -> decodeUncached(s, taskWeights));
+    return decodeUncached(sentence, taskWeights);
+  }
+
+  private Translation decodeUncached(Sentence sentence, FeatureVector weights) {
     try {
-      DecoderTask decoderTask = new DecoderTask(this.grammars, Decoder.weights, this.featureFunctions, joshuaConfiguration);
+      DecoderTask decoderTask = new DecoderTask(this.grammars, weights, this.featureFunctions,
+          joshuaConfiguration, hypergraphWriter, stackPool, kbestPool);
       return decoderTask.translate(sentence);
     } catch (IOException e) {
       throw new RuntimeException(String.format(
@@ -232,12 +314,150 @@ public class Decoder {
     }
   }
 
+  /**
+   * Decodes a batch of sentences on the decoder's threads, returning once all of them are
+   * translated. The OOV rules, which each sentence would otherwise build for itself, are built
+   * once for all the batch's words beforehand (see {@link DecodingBatch}).
+   *
+   * @param sentences the sentences to decode
+   * @throws RuntimeException if any fatal errors occur during translation
+   * @return the translations, in the order of the sentences
+   */
+  public List<Translation> decodeBatch(List<Sentence> sentences) {
+    return decodeBatch(sentences, null);
+  }
+
+  /**
+   * Decodes a batch of sentences with the given weights, see {@link #decodeBatch(List)}.
+   *
+   * @param sentences the sentences to decode
+   * @param weights the weights to decode with, or null for the snapshot current at the time each
+   *          sentence starts decoding
+   * @throws RuntimeException if any fatal errors occur during translation
+   * @return the translations, in the order of the sentences
+   */
+  public List<Translation> decodeBatch(List<Sentence> sentences, FeatureVector weights) {
+    ExecutorService executor = getThreadPool();
+    try {
+      new DecodingBatch(sentences, grammars, featureFunctions, joshuaConfiguration);
+
+      List<Future<Translation>> pending = new ArrayList<>(sentences.size());
+      for (Sentence sentence : sentences)
+        pending.add(executor.submit(() -> decode(sentence, weights)));
+
+      List<Translation> translations = new ArrayList<>(sentences.size());
+      for (Future<Translation> translation : pending)
+        translations.add(translation.get());
+      return translations;
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * @return the current weight snapshot, which must not be modified
+   */
+  public static FeatureVector getWeights() {
+    return weights;
+  }
+
+  /**
+   * @return the number of weight updates published with {@link #updateWeights(Map)}
+   */
+  public static long getWeightsVersion() {
+    return weightsVersion.get();
+  }
+
+  /**
+   * Returns a private copy of the current weights with some values changed. The copy can be
+   * passed to {@link #decodeAll(TranslationRequestStream, FeatureVector)} to decode a request
+   * with its own weights, without affecting any other request.
+   *
+   * @param changes new values for some features
+   * @return the modified copy
+   */
+  public static FeatureVector copyWeights(Map<String, Float> changes) {
+    FeatureVector copy = weights.clone();
+    for (Map.Entry<String, Float> change : changes.entrySet())
+      copy.set(change.getKey(), change.getValue());
+    return copy;
+  }
+
+  /**
+   * Changes some decoder weights. The current snapshot is never modified in place, since decoder
+   * threads may be reading it; instead, a modified copy is published as the new snapshot, which
+   * sentences pick up when they start decoding.
+   *
+   * @param changes new values for some features
+   * @return the new snapshot
+   */
+  public static synchronized FeatureVector updateWeights(Map<String, Float> changes) {
+    FeatureVector newWeights = copyWeights(changes);
+    weights = newWeights;
+    weightsVersion.incrementAndGet();
+    return newWeights;
+  }
+
+  /**
+   * @return the translation cache, or null if translation-cache-size was not set
+   */
+  public TranslationCache getTranslationCache() {
+    return translationCache;
+  }
+
+  /**
+   * @return the n-gram caches of the language models, by feature name; empty unless
+   *         lm-cache-size was set
+   */
+  public Map<String, CachingLanguageModel> getLanguageModelCaches() {
+    Map<String, CachingLanguageModel> caches = new LinkedHashMap<>();
+    if (featureFunctions == null)
+      return caches;
+    for (FeatureFunction feature : featureFunctions)
+      if (feature instanceof LanguageModelFF
+          && ((LanguageModelFF) feature).getLM() instanceof CachingLanguageModel)
+        caches.put(feature.getName(), (CachingLanguageModel) ((LanguageModelFF) feature).getLM());
+    return caches;
+  }
+
   /**
    * Clean shutdown of Decoder, resetting all
    * static variables, such that any other instance of Decoder
    * afterwards gets a fresh start.
    */
   public void cleanUp() {
+    for (Map.Entry<String, CachingLanguageModel> cache : getLanguageModelCaches().entrySet())
+      LOG.info("{} n-gram cache: {}", cache.getKey(), cache.getValue());
+    if (hypergraphWriter != null) {
+      try {
+        hypergraphWriter.close();
+      } catch (IOException e) {
+        LOG.error("Can't close hypergraph file '{}'", joshuaConfiguration.hypergraph_file);
+        LOG.error(e.getMessage(), e);
+      }
+      hypergraphWriter = null;
+    }
+    synchronized (this) {
+      if (threadPool != null) {
+        threadPool.shutdown();
+        threadPool = null;
+      }
+    }
+    if (stackPool != null) {
+      stackPool.shutdown();
+      stackPool = null;
+    }
+    if (kbestPool != null) {
+      kbestPool.shutdown();
+      kbestPool = null;
+    }
+    for (Grammar grammar : grammars)
+      if (grammar instanceof SuffixArrayGrammar)
+        ((SuffixArrayGrammar) grammar).close();
     resetGlobalState();
   }
 
@@ -384,14 +604,35 @@ public class Decoder {
       // Do this before loading the grammars and the LM.
       this.featureFunctions = new ArrayList<>();
 
-      // Initialize and load grammars. This must happen first, since the vocab gets defined by
-      // the packed grammar (if any)
-      this.initializeTranslationGrammars();
-      LOG.info("Grammar loading took: {} seconds.",
-          (System.currentTimeMillis() - pre_load_time) / 1000);
+      /*
+       * Read the language models in the background while the grammars are loaded. Only the model
+       * files are read concurrently; grammars and features are still created one at a time and in
+       * order, so that Vocabulary ids and dense feature indices do not change.
+       */
+      ExecutorService loader = null;
+      if (joshuaConfiguration.loading_threads > 1) {
+        loader = Executors.newFixedThreadPool(joshuaConfiguration.loading_threads,
+            new ThreadFactoryBuilder().setNameFormat("ModelLoader-%d").setDaemon(true).build());
+        preloadLanguageModels(loader);
+      }
 
-      // Initialize the features: requires that LM model has been initialized.
-      this.initializeFeatureFunctions();
+      try {
+        // Initialize and load grammars. This must happen first, since the vocab gets defined by
+        // the packed grammar (if any)
+        this.initializeTranslationGrammars();
+        LOG.info("Grammar loading took: {} seconds.",
+            (System.currentTimeMillis() - pre_load_time) / 1000);
+
+        // Initialize the features: requires that LM model has been initialized.
+        this.initializeFeatureFunctions();
+      } finally {
+        if (loader != null) {
+          loader.shutdownNow();
+          LanguageModelFF.clearPreloadedLanguageModels();
+        }
+      }
+      LOG.info("Model loading took {} seconds, memory used {} MB",
+          (System.currentTimeMillis() - pre_load_time) / 1000.0, usedMemoryMB());
 
       // This is mostly for compatibility with the Moses tuning script
       if (joshuaConfiguration.show_weights_and_quit) {
@@ -417,6 +658,36 @@ public class Decoder {
             (System.currentTimeMillis() - pre_sort_time) / 1000);
       }
 
+      // Index the grammars' source terminals now rather than during the first translation
+      if (joshuaConfiguration.segment_oovs || joshuaConfiguration.true_oovs_only) {
+        long pre_index_time = System.currentTimeMillis();
+        for (Grammar grammar : this.grammars)
+          grammar.getTerminalIndex();
+        LOG.info("Indexing grammar terminals took {} seconds.",
+            (System.currentTimeMillis() - pre_index_time) / 1000);
+      }
+
+      if (joshuaConfiguration.translation_cache_size > 0) {
+        translationCache = new TranslationCache(joshuaConfiguration.translation_cache_size,
+            joshuaConfiguration.translation_cache_ttl);
+        LOG.info("Caching up to {} translations", joshuaConfiguration.translation_cache_size);
+      }
+
+      if (joshuaConfiguration.hypergraph_file != null) {
+        hypergraphWriter = new HyperGraphWriter(joshuaConfiguration.hypergraph_file);
+        LOG.info("Writing hypergraphs to {}", joshuaConfiguration.hypergraph_file);
+      }
+
+      if (joshuaConfiguration.stack_threads > 1) {
+        stackPool = new ForkJoinPool(joshuaConfiguration.stack_threads);
+        LOG.info("Scoring stack seeds on {} threads", joshuaConfiguration.stack_threads);
+      }
+
+      if (joshuaConfiguration.kbest_threads > 1) {
+        kbestPool = new ForkJoinPool(joshuaConfiguration.kbest_threads);
+        LOG.info("Extracting k-best lists on {} threads", joshuaConfiguration.kbest_threads);
+      }
+
       // Create the threads
       //TODO: (kellens) see if we need to wait until initialized before decoding
     } catch (IOException e) {
@@ -441,7 +712,16 @@ public class Decoder {
     // record the glue grammar so we can make sure there is one
     Grammar glueGrammar = null;
 
-    // tm = {thrax/hiero,packed,samt,moses} OWNER LIMIT FILE
+    // filter text grammars to the test set while loading them, as the TestSetFilter tool does
+    TestSetFilter testSetFilter = null;
+    if (joshuaConfiguration.filter_test_set != null) {
+      testSetFilter = new TestSetFilter();
+      testSetFilter.setFilter("fast");
+      testSetFilter.loadTestSentences(
+          joshuaConfiguration.getFilePath(joshuaConfiguration.filter_test_set));
+    }
+
+    // tm = {thrax/hiero,packed,samt,moses,suffix-array} OWNER LIMIT FILE
     for (String tmLine : joshuaConfiguration.tms) {
 
       String type = tmLine.substring(0,  tmLine.indexOf(' '));
@@ -451,12 +731,17 @@ public class Decoder {
       String owner = parsedArgs.get("owner");
       int span_limit = Integer.parseInt(parsedArgs.get("maxspan"));
       String path = joshuaConfiguration.getFilePath(parsedArgs.get("path"));
+      long startTime = System.currentTimeMillis();
       
       Grammar grammar;
       if (type.equals("moses") || type.equals("phrase")) {
         joshuaConfiguration.search_algorithm = "stack";
         grammar = new PhraseTable(path, owner, type, joshuaConfiguration);
 
+      } else if (type.equals("suffix-array")) {
+        // rules are extracted from an indexed parallel corpus for each sentence
+        grammar = new SuffixArrayGrammar(path, owner, span_limit, joshuaConfiguration);
+
       } else {
         if (new File(path).isDirectory()) {
           /* Bug check. It is a problem if you load the glue grammar before a packed grammar, due to vocabulary
@@ -481,11 +766,14 @@ public class Decoder {
         } else {
           // thrax, hiero, samt
           grammar = new MemoryBasedBatchGrammar(type, path, owner,
-              joshuaConfiguration.default_non_terminal, span_limit, joshuaConfiguration);
+              joshuaConfiguration.default_non_terminal, span_limit, joshuaConfiguration,
+              "glue".equals(owner) ? null : testSetFilter);
         }
       }
 
       this.grammars.add(grammar);
+      LOG.info("Loaded {} grammar '{}' ({} rules) in {} seconds, memory used {} MB", type, path,
+          grammar.getNumRules(), (System.currentTimeMillis() - startTime) / 1000.0, usedMemoryMB());
 
       /* Record whether we saw a custom grammar for adding phrase entries */
       if (getOwner(grammar.getOwner()).equals("custom")) {
@@ -538,8 +826,11 @@ public class Decoder {
       }
     }
 
-    LOG.info("Memory used {} MB",
-        ((Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0));
+    LOG.info("Memory used {} MB", usedMemoryMB());
+  }
+
+  private static double usedMemoryMB() {
+    return (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0;
   }
 
   /**
@@ -570,6 +861,7 @@ public class Decoder {
    */
   private void readWeights(String fileName) {
     Decoder.weights = new FeatureVector();
+    weightsVersion.incrementAndGet();
 
     if (fileName.equals(""))
       return;
@@ -632,11 +924,14 @@ public class Decoder {
 
       try {
 
+        long startTime = System.currentTimeMillis();
         Class<?> clas = getFeatureFunctionClass(featureName);
         Constructor<?> constructor = clas.getConstructor(FeatureVector.class,
             String[].class, JoshuaConfiguration.class);
         FeatureFunction feature = (FeatureFunction) constructor.newInstance(weights, fields, joshuaConfiguration);
         this.featureFunctions.add(feature);
+        LOG.info("Initialized feature {} in {} seconds, memory used {} MB", featureName,
+            (System.currentTimeMillis() - startTime) / 1000.0, usedMemoryMB());
 
       } catch (Exception e) {
         throw new RuntimeException(String.format("Unable to instantiate feature function '%s'!", featureLine), e);
@@ -650,6 +945,29 @@ public class Decoder {
     weights.registerDenseFeatures(featureFunctions);
   }
 
+  /**
+   * Starts reading the model files of the configured language model features on the loader
+   * threads. The features pick the models up when {@link #initializeFeatureFunctions()} creates
+   * them.
+   */
+  private void preloadLanguageModels(ExecutorService loader) {
+    for (String featureLine : joshuaConfiguration.features) {
+      String fields[] = featureLine.split("\\s+");
+      Class<?> clas = getFeatureFunctionClass(fields[0]);
+      if (clas == null || !LanguageModelFF.class.isAssignableFrom(clas))
+        continue;
+
+      HashMap<String, String> args = FeatureFunction.parseArgs(fields);
+      if (!args.containsKey("lm_order") || !args.containsKey("lm_file"))
+        continue;
+      // Only KenLM supports left-state minimization, see StateMinimizingLanguageModel
+      String type = StateMinimizingLanguageModel.class.isAssignableFrom(clas)
+          ? "kenlm" : args.get("lm_type");
+      LanguageModelFF.preloadLanguageModel(type, Integer.parseInt(args.get("lm_order")),
+          joshuaConfiguration.getFilePath(args.get("lm_file")), loader);
+    }
+  }
+
   /**
    * Searches a list of predefined paths for classes, and returns the first one found. Meant for
    * instantiating feature functions.
@@ -688,6 +1006,7 @@ public class Decoder {
       getCustomPhraseTable().addRule(rule);
       rule.estimateRuleCost(featureFunctions);
       getCustomPhraseTable().save();
+      grammarChanged();
     }
   }
 
@@ -703,7 +1022,19 @@ public class Decoder {
   }
   
   public void saveCustomPhraseTable() {
-    if (getCustomPhraseTable() != null)
+    if (getCustomPhraseTable() != null) {
       getCustomPhraseTable().save();
+      grammarChanged();
+    }
+  }
+
+  /*
+   * Records that the rules changed. Bumping the version keeps translations that are being computed
+   * right now from being cached under the new grammar.
+   */
+  private void grammarChanged() {
+    grammarVersion.incrementAndGet();
+    if (translationCache != null)
+      translationCache.invalidateAll();
   }
 }
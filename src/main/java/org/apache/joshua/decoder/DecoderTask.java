@@ -21,15 +21,19 @@ package org.apache.joshua.decoder;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.chart_parser.Chart;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.SourceDependentFF;
 import org.apache.joshua.decoder.ff.tm.Grammar;
+import org.apache.joshua.decoder.ff.tm.SentenceFilteredGrammar;
+import org.apache.joshua.decoder.ff.tm.suffix_array.SuffixArrayGrammar;
 import org.apache.joshua.decoder.hypergraph.ForestWalker;
 import org.apache.joshua.decoder.hypergraph.GrammarBuilderWalkerFunction;
 import org.apache.joshua.decoder.hypergraph.HyperGraph;
+import org.apache.joshua.decoder.hypergraph.HyperGraphWriter;
 import org.apache.joshua.decoder.phrase.Stacks;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.apache.joshua.corpus.Vocabulary;
@@ -60,16 +64,50 @@ public class DecoderTask {
   private final List<Grammar> allGrammars;
   private final List<FeatureFunction> featureFunctions;
 
+  /* The weight snapshot this task decodes with */
+  private final FeatureVector weights;
+
+  /* Receives the hypergraph of each translated sentence, if not null */
+  private final HyperGraphWriter hypergraphWriter;
+
+  /* The decoder's threads for scoring phrase-based stack seeds; null for one thread */
+  private final ForkJoinPool stackPool;
+
+  /* The decoder's threads for extracting k-best lists bottom-up; null to extract them lazily */
+  private final ForkJoinPool kbestPool;
+
 
   // ===============================================================
   // Constructor
   // ===============================================================
-  //TODO: (kellens) why is weights unused?
   public DecoderTask(List<Grammar> grammars, FeatureVector weights,
                      List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) throws IOException {
+    this(grammars, weights, featureFunctions, joshuaConfiguration, null);
+  }
+
+  public DecoderTask(List<Grammar> grammars, FeatureVector weights,
+                     List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+                     HyperGraphWriter hypergraphWriter) throws IOException {
+    this(grammars, weights, featureFunctions, joshuaConfiguration, hypergraphWriter, null);
+  }
+
+  public DecoderTask(List<Grammar> grammars, FeatureVector weights,
+                     List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+                     HyperGraphWriter hypergraphWriter, ForkJoinPool stackPool) throws IOException {
+    this(grammars, weights, featureFunctions, joshuaConfiguration, hypergraphWriter, stackPool, null);
+  }
+
+  public DecoderTask(List<Grammar> grammars, FeatureVector weights,
+                     List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+                     HyperGraphWriter hypergraphWriter, ForkJoinPool stackPool, ForkJoinPool kbestPool)
+                         throws IOException {
 
     this.joshuaConfiguration = joshuaConfiguration;
     this.allGrammars = grammars;
+    this.weights = weights;
+    this.hypergraphWriter = hypergraphWriter;
+    this.stackPool = stackPool;
+    this.kbestPool = kbestPool;
 
     this.featureFunctions = new ArrayList<>();
     for (FeatureFunction ff : featureFunctions) {
@@ -95,6 +133,9 @@ public class DecoderTask {
 
     LOG.info("Input {}: {}", sentence.id(), sentence.fullSource());
 
+    sentence.setWeights(weights);
+    sentence.setSearchBudget(SearchBudget.start(sentence.getDeadline(), joshuaConfiguration));
+
     if (sentence.target() != null)
       LOG.info("Input {}: Constraining to target sentence '{}'",
           sentence.id(), sentence.target());
@@ -102,7 +143,8 @@ public class DecoderTask {
     // skip blank sentences
     if (sentence.isEmpty()) {
       LOG.info("Translation {}: Translation took 0 seconds", sentence.id());
-      return new Translation(sentence, null, featureFunctions, joshuaConfiguration);
+      return new Translation(sentence, null, featureFunctions, joshuaConfiguration,
+          kbestPool);
     }
 
     long startTime = System.currentTimeMillis();
@@ -116,6 +158,12 @@ public class DecoderTask {
     if (joshuaConfiguration.segment_oovs)
       sentence.segmentOOVs(grammars);
 
+    /* Replace grammars that extract their rules on the fly by the sentence's rules */
+    for (int i = 0; i < grammars.length; i++)
+      if (grammars[i] instanceof SuffixArrayGrammar)
+        grammars[i] = ((SuffixArrayGrammar) grammars[i]).getSentenceGrammar(sentence,
+            featureFunctions);
+
     /**
      * Joshua supports (as of September 2014) both phrase-based and hierarchical decoding. Here
      * we build the appropriate chart. The output of both systems is a hypergraph, which is then
@@ -125,10 +173,16 @@ public class DecoderTask {
     try {
 
       if (joshuaConfiguration.search_algorithm.equals("stack")) {
-        Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, joshuaConfiguration);
+        Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, joshuaConfiguration,
+            stackPool);
 
         hypergraph = stacks.search();
       } else {
+        /* Restrict the grammars to rules whose source terminals all occur in the sentence */
+        if (joshuaConfiguration.filter_grammar)
+          for (int i = 0; i < grammars.length; i++)
+            grammars[i] = new SentenceFilteredGrammar(grammars[i], sentence);
+
         /* Seeding: the chart only sees the grammars, not the factories */
         Chart chart = new Chart(sentence, this.featureFunctions, grammars,
             joshuaConfiguration.goal_symbol, joshuaConfiguration);
@@ -143,14 +197,18 @@ public class DecoderTask {
       hypergraph = null;
     }
 
+    sentence.getSearchBudget().finish();
     float seconds = (System.currentTimeMillis() - startTime) / 1000.0f;
     LOG.info("Input {}: Translation took {} seconds", sentence.id(), seconds);
+    LOG.info("Input {}: Search effort: {}", sentence.id(), sentence.getSearchBudget());
     LOG.info("Input {}: Memory used is {} MB", sentence.id(), (Runtime
         .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0);
 
     /* Return the translation unless we're doing synchronous parsing. */
     if (!joshuaConfiguration.parse || hypergraph == null) {
-      return new Translation(sentence, hypergraph, featureFunctions, joshuaConfiguration);
+      writeHyperGraph(sentence, hypergraph);
+      return new Translation(sentence, hypergraph, featureFunctions, joshuaConfiguration,
+          kbestPool);
     }
 
     /*****************************************************************************************/
@@ -169,6 +227,7 @@ public class DecoderTask {
     /* Step 2. Create a new chart and parse with the instantiated grammar. */
     Grammar[] newGrammarArray = new Grammar[] { newGrammar };
     Sentence targetSentence = new Sentence(sentence.target(), sentence.id(), joshuaConfiguration);
+    targetSentence.setWeights(weights);
     Chart chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL",joshuaConfiguration);
     int goalSymbol = GrammarBuilderWalkerFunction.goalSymbol(hypergraph);
     String goalSymbolString = Vocabulary.word(goalSymbol);
@@ -185,7 +244,19 @@ public class DecoderTask {
         (secondParseTime - startTime) / 1000);
     LOG.info("Memory used after sentence {} is {} MB", sentence.id(), (Runtime
         .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0);
-    return new Translation(sentence, englishParse, featureFunctions, joshuaConfiguration); // or do something else
+    writeHyperGraph(sentence, englishParse);
+    return new Translation(sentence, englishParse, featureFunctions, joshuaConfiguration, kbestPool); // or do something else
+  }
+
+  private void writeHyperGraph(Sentence sentence, HyperGraph hypergraph) {
+    if (hypergraphWriter == null || hypergraph == null)
+      return;
+    try {
+      hypergraphWriter.write(hypergraph, sentence.id(),
+          joshuaConfiguration.hypergraph_features ? featureFunctions : null);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Input %d: can't write hypergraph", sentence.id()), e);
+    }
   }
 
   private Grammar getGrammarFromHyperGraph(String goal, HyperGraph hg) {
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
+import org.apache.joshua.decoder.ff.tm.Grammar;
+import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
+import org.apache.joshua.decoder.ff.tm.suffix_array.SuffixArrayGrammar;
+import org.apache.joshua.decoder.phrase.PhraseTable;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.decoder.segment_file.Token;
+import org.apache.joshua.lattice.Lattice;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The work shared by the sentences of a batch, see {@link Decoder#decodeBatch(List)}. Before the
+ * sentences are decoded, the batch builds a single OOV grammar for all the words of the batch,
+ * which every sentence's chart uses instead of building its own.
+ * 
+ * The OOV grammar is not shared if OOVs are segmented or rules are extracted per sentence, since
+ * then the OOV rules depend on the sentence.
+ */
+public class DecodingBatch {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DecodingBatch.class);
+
+  private final List<Sentence> sentences;
+
+  /* The OOV rules for all words in the batch, or null if they can't be shared */
+  private final Grammar oovGrammar;
+
+  /**
+   * Prepares the shared work of a batch.
+   * 
+   * @param sentences the sentences of the batch
+   * @param grammars the decoder's grammars
+   * @param featureFunctions the decoder's feature functions, used to score the OOV rules
+   * @param config the decoder configuration
+   */
+  public DecodingBatch(List<Sentence> sentences, List<Grammar> grammars,
+      List<FeatureFunction> featureFunctions, JoshuaConfiguration config) {
+    long startTime = System.currentTimeMillis();
+
+    this.sentences = sentences;
+    this.oovGrammar = buildOOVGrammar(grammars, featureFunctions, config);
+
+    for (Sentence sentence : sentences)
+      sentence.setOOVGrammar(oovGrammar);
+
+    if (oovGrammar != null)
+      LOG.info("Batch of {} sentences: built {} OOV rules in {} seconds", sentences.size(),
+          oovGrammar.getNumRules(), (System.currentTimeMillis() - startTime) / 1000.0f);
+  }
+
+  /**
+   * @return the OOV grammar shared by the sentences, or null if each sentence builds its own
+   */
+  public Grammar getOOVGrammar() {
+    return oovGrammar;
+  }
+
+  private Grammar buildOOVGrammar(List<Grammar> grammars, List<FeatureFunction> featureFunctions,
+      JoshuaConfiguration config) {
+    if (config.segment_oovs)
+      return null;
+    for (Grammar grammar : grammars)
+      if (grammar instanceof SuffixArrayGrammar)
+        return null;
+
+    List<Lattice<Token>> lattices = new ArrayList<>(sentences.size());
+    for (Sentence sentence : sentences)
+      if (!sentence.isEmpty())
+        lattices.add(sentence.getLattice());
+
+    Grammar grammar = config.search_algorithm.equals("stack") ? new PhraseTable("oov", config)
+        : new MemoryBasedBatchGrammar("oov", config, 20);
+    AbstractGrammar.addOOVRules(grammar, lattices, featureFunctions,
+        grammars.toArray(new Grammar[grammars.size()]), config.true_oovs_only);
+    return grammar;
+  }
+}
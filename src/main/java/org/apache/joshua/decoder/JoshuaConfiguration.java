@@ -146,9 +146,28 @@ public class JoshuaConfiguration {
   /* Dynamic sentence-level filtering. */
   public boolean filter_grammar = false;
 
+  /* A test set that text grammars are filtered to while they are loaded (null to keep all rules) */
+  public String filter_test_set = null;
+
+  /*
+   * On-the-fly grammars ("tm = suffix-array ..."): the number of occurrences of each source pattern
+   * that rules are extracted from, the maximum number of terminals on the source side of a rule, the
+   * number of source patterns whose rules are cached, and the number of threads extracting rules.
+   */
+  public int suffix_array_sample_size = 100;
+  public int suffix_array_max_phrase_length = 5;
+  public int suffix_array_cache_size = 10000;
+  public int suffix_array_threads = 1;
+
   /* The cube pruning pop limit. Set to 0 for exhaustive pruning. */
   public int pop_limit = 100;
 
+  /*
+   * Chart decoding: cube pruning candidates enter the queue with a cheap estimate derived from the
+   * state they extend, and are only scored with the feature functions when they reach the top
+   */
+  public boolean lazy_cube_pruning = false;
+
   /* Maximum sentence length. Sentences longer than this are truncated. */
   public int maxlen = 200;
 
@@ -254,6 +273,13 @@ public class JoshuaConfiguration {
   /* The number of target sides considered for each source side (after sorting by model weight) */
   public int num_translation_options = 20;
 
+  /* The number of threads that score stack seed candidates, shared by all decoding threads */
+  public int stack_threads = 1;
+
+  /* The number of threads that extract the k-best lists of a hypergraph's nodes bottom-up, shared
+   * by all decoding threads; with 1, the k-best lists are extracted lazily from the goal node */
+  public int kbest_threads = 1;
+
   /* If true, decode using a dot chart (standard CKY+); if false, use the much more efficient
    * version of Sennrich (SSST 2014)
    */
@@ -271,14 +297,53 @@ public class JoshuaConfiguration {
   /* Write n-best output to this file */
   public String n_best_file = null;
 
+  /* Write the hypergraph of every sentence to this file, in binary (see HyperGraphWriter) */
+  public String hypergraph_file = null;
+
+  /* Whether to store the feature delta of every hyperedge in the hypergraph file */
+  public boolean hypergraph_features = true;
+
+  /*
+   * If positive, the 1-best output (top-n = 0) is the minimum Bayes risk hypothesis among this many
+   * k-best hypotheses, rather than the Viterbi one
+   */
+  public int mbr_size = 0;
+
+  /* Scales the model scores before they are normalized into the MBR posteriors */
+  public float mbr_scale = 1.0f;
+
+  /* Use the linear corpus gain approximation of BLEU for MBR */
+  public boolean mbr_linear = false;
+
   /* Whether to look at source side for special annotations */
   public boolean source_annotations = false;
 
   /* Weights overridden from the command line */
   public String weight_overwrite = "";
 
-  /* Timeout in seconds for threads */
-  public long translation_thread_timeout = 30_000;
+  /*
+   * Time in milliseconds a sentence may take to decode (0 means no limit). The pop limit is lowered
+   * as needed to meet it, and past it the search completes greedily; see SearchBudget.
+   */
+  public long translation_thread_timeout = 0;
+
+  /* The maximum number of translations to cache (0 disables the cache) */
+  public int translation_cache_size = 0;
+
+  /* Time in seconds after which cached translations expire (0 means never) */
+  public long translation_cache_ttl = 0;
+
+  /* The number of n-gram probabilities each decoding thread caches per LM (0 disables the cache) */
+  public int lm_cache_size = 0;
+
+  /* Whether to empty the n-gram probability caches when a thread starts a new sentence */
+  public boolean lm_cache_reset = false;
+
+  /* Whether equal DP states of a sentence share one object (see DPStatePool) */
+  public boolean intern_dp_states = false;
+
+  /* The number of threads that load models at startup (1 loads everything sequentially) */
+  public int loading_threads = 1;
 
   /**
    * This method resets the state of JoshuaConfiguration back to the state after initialization.
@@ -307,7 +372,13 @@ public class JoshuaConfiguration {
     use_pos_labels = false;
     true_oovs_only = false;
     filter_grammar = false;
+    filter_test_set = null;
+    suffix_array_sample_size = 100;
+    suffix_array_max_phrase_length = 5;
+    suffix_array_cache_size = 10000;
+    suffix_array_threads = 1;
     pop_limit = 100;
+    lazy_cube_pruning = false;
     maxlen = 200;
     use_unique_nbest = false;
     include_align_index = false;
@@ -323,6 +394,20 @@ public class JoshuaConfiguration {
 
     reordering_limit = 8;
     num_translation_options = 20;
+    stack_threads = 1;
+    kbest_threads = 1;
+    translation_cache_size = 0;
+    translation_cache_ttl = 0;
+    lm_cache_size = 0;
+    lm_cache_reset = false;
+    intern_dp_states = false;
+    translation_thread_timeout = 0;
+    loading_threads = 1;
+    hypergraph_file = null;
+    hypergraph_features = true;
+    mbr_size = 0;
+    mbr_scale = 1.0f;
+    mbr_linear = false;
     LOG.info("...done");
   }
 
@@ -538,6 +623,33 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("filter-grammar"))) {
             filter_grammar = Boolean.parseBoolean(fds[1]);
 
+          } else if (parameter.equals(normalize_key("filter-test-set"))) {
+            filter_test_set = fds[1];
+
+          } else if (parameter.equals(normalize_key("suffix-array-sample-size"))) {
+            suffix_array_sample_size = Integer.parseInt(fds[1]);
+            if (suffix_array_sample_size <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for suffix-array-sample-size");
+            }
+
+          } else if (parameter.equals(normalize_key("suffix-array-max-phrase-length"))) {
+            suffix_array_max_phrase_length = Integer.parseInt(fds[1]);
+            if (suffix_array_max_phrase_length <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for suffix-array-max-phrase-length");
+            }
+
+          } else if (parameter.equals(normalize_key("suffix-array-cache-size"))) {
+            suffix_array_cache_size = Integer.parseInt(fds[1]);
+
+          } else if (parameter.equals(normalize_key("suffix-array-threads"))) {
+            suffix_array_threads = Integer.parseInt(fds[1]);
+            if (suffix_array_threads <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for suffix-array-threads");
+            }
+
           } else if (parameter.equals(normalize_key("amortize"))) {
             amortized_sorting = Boolean.parseBoolean(fds[1]);
 
@@ -577,6 +689,10 @@ public class JoshuaConfiguration {
             pop_limit = Integer.parseInt(fds[1]);
             LOG.info("pop-limit: {}", pop_limit);
 
+          } else if (parameter.equals(normalize_key("lazy-cube-pruning"))) {
+            lazy_cube_pruning = Boolean.parseBoolean(fds[1]);
+            LOG.info("lazy-cube-pruning: {}", lazy_cube_pruning);
+
           } else if (parameter.equals(normalize_key("input-type"))) {
             switch (fds[1]) {
             case "json":
@@ -656,6 +772,20 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("num-translation-options"))) {
             num_translation_options = Integer.parseInt(fds[1]);
 
+          } else if (parameter.equals(normalize_key("stack-threads"))) {
+            stack_threads = Integer.parseInt(fds[1]);
+            if (stack_threads <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for stack-threads");
+            }
+
+          } else if (parameter.equals(normalize_key("kbest-threads"))) {
+            kbest_threads = Integer.parseInt(fds[1]);
+            if (kbest_threads <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for kbest-threads");
+            }
+
           } else if (parameter.equals(normalize_key("no-dot-chart"))) {
             use_dot_chart = false;
 
@@ -672,6 +802,23 @@ public class JoshuaConfiguration {
             if (tokens.length > 1)
               topN = Integer.parseInt(tokens[1]);
 
+          } else if (parameter.equals(normalize_key("hypergraph-file"))) {
+            hypergraph_file = fds[1];
+            LOG.info("    hypergraph-file: {}", hypergraph_file);
+
+          } else if (parameter.equals(normalize_key("hypergraph-features"))) {
+            hypergraph_features = Boolean.parseBoolean(fds[1]);
+
+          } else if (parameter.equals(normalize_key("mbr-size"))) {
+            mbr_size = Integer.parseInt(fds[1]);
+            LOG.info("    mbr-size: {}", mbr_size);
+
+          } else if (parameter.equals(normalize_key("mbr-scale"))) {
+            mbr_scale = Float.parseFloat(fds[1]);
+
+          } else if (parameter.equals(normalize_key("mbr-linear"))) {
+            mbr_linear = Boolean.parseBoolean(fds[1]);
+
           } else if (parameter.equals(normalize_key("input-file"))) {
             // for Moses compatibility
             input_file = fds[1];
@@ -689,6 +836,31 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("cached-rules-size"))) {
             // Check source sentence
             cachedRuleSize = Integer.parseInt(fds[1]);
+          } else if (parameter.equals(normalize_key("translation-cache-size"))) {
+            translation_cache_size = Integer.parseInt(fds[1]);
+
+          } else if (parameter.equals(normalize_key("translation-cache-ttl"))) {
+            translation_cache_ttl = Long.parseLong(fds[1]);
+
+          } else if (parameter.equals(normalize_key("lm-cache-size"))) {
+            lm_cache_size = Integer.parseInt(fds[1]);
+
+          } else if (parameter.equals(normalize_key("lm-cache-reset"))) {
+            lm_cache_reset = Boolean.parseBoolean(fds[1]);
+
+          } else if (parameter.equals(normalize_key("intern-dp-states"))) {
+            intern_dp_states = Boolean.parseBoolean(fds[1]);
+
+          } else if (parameter.equals(normalize_key("translation-thread-timeout"))) {
+            translation_thread_timeout = Long.parseLong(fds[1]);
+
+          } else if (parameter.equals(normalize_key("loading-threads"))) {
+            loading_threads = Integer.parseInt(fds[1]);
+            if (loading_threads <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for loading-threads");
+            }
+
           } else if (parameter.equals(normalize_key("lowercase"))) {
             lowercase = true;
 
@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 
 import org.apache.joshua.decoder.JoshuaConfiguration.SERVER_TYPE;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.server.ReadinessHandler;
 import org.apache.joshua.server.ServerThread;
 import org.apache.joshua.server.TcpServer;
 import org.apache.log4j.Level;
@@ -49,6 +50,26 @@ public class JoshuaDecoder {
 
   private static final Logger LOG = LoggerFactory.getLogger(JoshuaDecoder.class);
 
+  /**
+   * Loads the decoder. If loading fails, the HTTP server opened to report readiness is stopped
+   * first, since its threads would otherwise keep the process alive, answering "loading" forever.
+   * 
+   * @param joshuaConfiguration a populated {@link JoshuaConfiguration}
+   * @param configFile the name of the configuration file
+   * @param httpServer the server listening while the models load, or null
+   * @return the loaded decoder
+   */
+  static Decoder loadDecoder(JoshuaConfiguration joshuaConfiguration, String configFile,
+      HttpServer httpServer) {
+    try {
+      return new Decoder(joshuaConfiguration, configFile);
+    } catch (RuntimeException | Error e) {
+      if (httpServer != null)
+        httpServer.stop(0);
+      throw e;
+    }
+  }
+
   // ===============================================================
   // Main
   // ===============================================================
@@ -65,8 +86,30 @@ public class JoshuaDecoder {
     /* Step-0: some sanity checking */
     joshuaConfiguration.sanityCheck();
 
+    /*
+     * An HTTP server listens while the models load, answering "/ready" (and translation requests)
+     * with a 503 until loading finishes
+     */
+    HttpServer httpServer = null;
+    ReadinessHandler readiness = null;
+    if (joshuaConfiguration.server_port > 0 && joshuaConfiguration.server_type == SERVER_TYPE.HTTP) {
+      readiness = new ReadinessHandler();
+      httpServer = HttpServer.create(new InetSocketAddress(joshuaConfiguration.server_port), 0);
+      httpServer.createContext("/", readiness);
+      httpServer.setExecutor(null); // creates a default executor
+      httpServer.start();
+      LOG.info("HTTP Server listening on port {}, loading the models.",
+          joshuaConfiguration.server_port);
+    }
+
     /* Step-1: initialize the decoder, test-set independent */
-    Decoder decoder = new Decoder(joshuaConfiguration, userArgs.getConfigFile());
+    Decoder decoder = null;
+    try {
+      decoder = loadDecoder(joshuaConfiguration, userArgs.getConfigFile(), httpServer);
+    } catch (RuntimeException | Error e) {
+      LOG.error("Model loading failed: {}", e.getMessage(), e);
+      System.exit(1);
+    }
 
     LOG.info("Model loading took {} seconds", (System.currentTimeMillis() - startTime) / 1000);
     LOG.info("Memory used {} MB", ((Runtime.getRuntime().totalMemory()
@@ -82,11 +125,8 @@ public class JoshuaDecoder {
       } else if (joshuaConfiguration.server_type == SERVER_TYPE.HTTP) {
         joshuaConfiguration.use_structured_output = true;
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        readiness.setReady(new ServerThread(null, decoder, joshuaConfiguration));
         LOG.info("HTTP Server running and listening on port {}.", port);
-        server.createContext("/", new ServerThread(null, decoder, joshuaConfiguration));
-        server.setExecutor(null); // creates a default executor
-        server.start();
       } else {
         LOG.error("Unknown server type");
         System.exit(1);
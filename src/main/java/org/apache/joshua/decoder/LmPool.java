@@ -21,6 +21,9 @@ package org.apache.joshua.decoder;
 import org.apache.joshua.decoder.ff.lm.KenLM;
 
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
 
@@ -38,12 +41,23 @@ public abstract class LmPool implements AutoCloseable {
   private final long pool;
   private final KenLM languageModel;
   private final ByteBuffer ngramBuffer;
+  private final LongBuffer ngramLongs;
   private boolean released = false;
 
+  // Shared with KenLM to score several rules with one call; grown as needed
+  private ByteBuffer batchBuffer = null;
+  private LongBuffer batchLongs = null;
+
+  // Rules scored ahead of time, their packed results, and the first of them not yet taken
+  private List<long[]> prefetchedRules = null;
+  private long[] prefetchedResults = null;
+  private int nextPrefetched = 0;
+
   public LmPool(long pool, KenLM languageModel, ByteBuffer ngramBuffer) {
     this.pool = pool;
     this.languageModel = languageModel;
     this.ngramBuffer = ngramBuffer;
+    this.ngramLongs = ngramBuffer.asLongBuffer();
   }
 
   public long getPool() {
@@ -85,4 +99,90 @@ public abstract class LmPool implements AutoCloseable {
   public void setBufferLength(long length) {
     ngramBuffer.putLong(0, length);
   }
+
+  /**
+   * Writes the length and all the ids of a rule to the KenLM shared buffer with a single bulk
+   * copy. This replaces calls to setBufferLength and writeIdToBuffer.
+   *
+   * @param ids the ids to write
+   */
+  public void writeIdsToBuffer(long[] ids) {
+    ngramLongs.put(0, ids.length);
+    ngramLongs.position(1);
+    ngramLongs.put(ids);
+  }
+
+  /**
+   * Writes rules to the KenLM batch buffer for KenLM.probRules: first a slot per rule for its
+   * result, then each rule as its number of ids followed by the ids.
+   *
+   * @param rules the ids of each rule
+   * @return the batch buffer, a direct buffer
+   */
+  public ByteBuffer writeRulesToBatchBuffer(List<long[]> rules) {
+    int size = rules.size();
+    for (long[] ids : rules)
+      size += 1 + ids.length;
+    if (batchLongs == null || batchLongs.capacity() < size) {
+      int capacity = Math.max(size, batchLongs == null ? 0 : 2 * batchLongs.capacity());
+      batchBuffer = ByteBuffer.allocateDirect(capacity * LONG_SIZE_IN_BYTES).order(ngramBuffer.order());
+      batchLongs = batchBuffer.asLongBuffer();
+    }
+    batchLongs.position(rules.size());
+    for (long[] ids : rules) {
+      batchLongs.put(ids.length);
+      batchLongs.put(ids);
+    }
+    return batchBuffer;
+  }
+
+  /**
+   * Reads the results KenLM.probRules wrote to the batch buffer.
+   *
+   * @param results filled with one packed result per rule
+   */
+  public void readResultsFromBatchBuffer(long[] results) {
+    batchLongs.position(0);
+    batchLongs.get(results);
+  }
+
+  /**
+   * Keeps rules scored ahead of time so that they are not scored again, until
+   * {@link #clearPrefetched()} is called.
+   *
+   * @param rules   the ids of each rule
+   * @param results the packed result of each rule
+   */
+  public void setPrefetched(List<long[]> rules, long[] results) {
+    prefetchedRules = rules;
+    prefetchedResults = results;
+    nextPrefetched = 0;
+  }
+
+  public void clearPrefetched() {
+    setPrefetched(null, null);
+  }
+
+  /**
+   * Finds a rule among the prefetched ones. Rules are looked up in the order they were
+   * prefetched, possibly skipping some, so the search starts after the last rule found.
+   *
+   * @param ids the ids of the rule
+   * @return the index of the rule's result, or -1 if the rule was not prefetched
+   */
+  public int findPrefetched(long[] ids) {
+    if (prefetchedRules == null)
+      return -1;
+    for (int k = nextPrefetched; k < prefetchedRules.size(); k++) {
+      if (Arrays.equals(prefetchedRules.get(k), ids)) {
+        nextPrefetched = k + 1;
+        return k;
+      }
+    }
+    return -1;
+  }
+
+  public long getPrefetchedResult(int index) {
+    return prefetchedResults[index];
+  }
 }
@@ -20,16 +20,17 @@ package org.apache.joshua.decoder;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
-import org.apache.joshua.util.Ngram;
+import org.apache.joshua.metrics.BLEUStatsEngine;
+import org.apache.joshua.util.LongIntHashMap;
 import org.apache.joshua.util.Regex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,13 +59,29 @@ public class NbestMinRiskReranker {
   static final int bleuOrder = 4;
   static final boolean doNgramClip = true;
 
-  static final boolean useGoogleLinearCorpusGain = false;
+  /*
+   * If true, approximate the expected BLEU gain with the linear corpus gain over posterior n-gram
+   * counts (Tromble et al., 2008), which is linear rather than quadratic in the size of the n-best
+   */
+  boolean useGoogleLinearCorpusGain = false;
+  double[] linearCorpusGainThetas = { -1, 1, 1, 1, 1 };
+
+  /* Below this many pairs of hypotheses, the gains are not worth computing in parallel */
+  private static final int MIN_PARALLEL_PAIRS = 4096;
+
+  private static final BLEUStatsEngine ENGINE = new BLEUStatsEngine(bleuOrder);
 
   final PriorityBlockingQueue<RankerResult> resultsQueue = new PriorityBlockingQueue<>();
 
   public NbestMinRiskReranker(boolean produceRerankedNbest, double scalingFactor) {
+    this(produceRerankedNbest, scalingFactor, false);
+  }
+
+  public NbestMinRiskReranker(boolean produceRerankedNbest, double scalingFactor,
+      boolean useLinearCorpusGain) {
     this.produceRerankedNbest = produceRerankedNbest;
     this.scalingFactor = scalingFactor;
+    this.useGoogleLinearCorpusGain = useLinearCorpusGain;
   }
 
 
@@ -88,8 +105,6 @@ public class NbestMinRiskReranker {
     // ArrayList<String> l_feat_scores = new ArrayList<String>();
     List<Double> baselineScores = new ArrayList<>(); // linear combination of all baseline
                                                            // features
-    List<HashMap<String, Integer>> ngramTbls = new ArrayList<>();
-    List<Integer> sentLens = new ArrayList<>();
 
     for (String hyp : nbest) {
       String[] fds = Regex.threeBarsWithSpace.split(hyp);
@@ -100,13 +115,6 @@ public class NbestMinRiskReranker {
       String hypothesis = (fds.length >= 4) ? fds[1] : "";
       hypsItself.add(hypothesis);
 
-      String[] words = Regex.spaces.split(hypothesis);
-      sentLens.add(words.length);
-
-      HashMap<String, Integer> ngramTbl = new HashMap<>();
-      Ngram.getNgrams(ngramTbl, 1, bleuOrder, words);
-      ngramTbls.add(ngramTbl);
-
       // l_feat_scores.add(fds[2]);
 
       // The value of finalIndex is expected to be 3,
@@ -117,49 +125,7 @@ public class NbestMinRiskReranker {
 
     }
 
-    // step-1: get normalized distribution
-
-    /**
-     * value in baselineScores will be changed to normalized probability
-     * */
-    computeNormalizedProbs(baselineScores, scalingFactor);
-
-    // === required by google linear corpus gain
-    HashMap<String, Double> posteriorCountsTbl = null;
-    if (useGoogleLinearCorpusGain) {
-      posteriorCountsTbl = new HashMap<>();
-      getGooglePosteriorCounts(ngramTbls, baselineScores, posteriorCountsTbl);
-    }
-
-
-    // step-2: rerank the nbest
-    /**
-     * TODO: zhifei: now the re-ranking takes O(n^2) where n is the size of the nbest. But, we can
-     * significantly speed up this (leadding to O(n)) by first estimating a model on nbest, and then
-     * rerank the nbest using the estimated model.
-     * */
-    double bestGain = -1000000000;// set as worst gain
-    String bestHyp = null;
-    List<Double> gains = new ArrayList<>();
-    for (int i = 0; i < hypsItself.size(); i++) {
-      String curHyp = hypsItself.get(i);
-      int curHypLen = sentLens.get(i);
-      HashMap<String, Integer> curHypNgramTbl = ngramTbls.get(i);
-      // double cur_gain = computeGain(cur_hyp, l_hyp_itself, l_normalized_probs);
-      double curGain = 0;
-      if (useGoogleLinearCorpusGain) {
-        curGain = computeExpectedLinearCorpusGain(curHypLen, curHypNgramTbl, posteriorCountsTbl);
-      } else {
-        curGain =
-            computeExpectedGain(curHypLen, curHypNgramTbl, ngramTbls, sentLens, baselineScores);
-      }
-
-      gains.add(curGain);
-      if (i == 0 || curGain > bestGain) { // maximize
-        bestGain = curGain;
-        bestHyp = curHyp;
-      }
-    }
+    int best = rerank(hypsItself, baselineScores);
 
     // step-3: output the 1best or nbest
     if (this.produceRerankedNbest) {
@@ -171,13 +137,66 @@ public class NbestMinRiskReranker {
        */
     }
 
-    LOG.info("best gain: {}", bestGain);
-    if (null == bestHyp) {
+    return hypsItself.get(best);
+  }
+
+  /**
+   * Finds the minimum Bayes risk hypothesis of an n-best list: the one with the highest expected
+   * BLEU against all the others, weighted by their (scaled) posterior probabilities.
+   * 
+   * Each hypothesis is tokenized once into hashed token codes (see {@link BLEUStatsEngine}), so
+   * the pairwise BLEU computations count primitive n-gram keys instead of building n-gram strings.
+   * For long lists, the gains of the hypotheses are computed in parallel.
+   * 
+   * @param hyps the hypotheses, which are assumed to be unique
+   * @param logProbs the model score (log probability) of each hypothesis
+   * @return the index of the hypothesis with the highest expected gain
+   */
+  public int rerank(List<String> hyps, List<Double> logProbs) {
+    if (hyps.isEmpty()) {
       throw new RuntimeException("mbr reranked one best is null, must be wrong");
     }
-    return bestHyp;
-  }
 
+    final int n = hyps.size();
+    final long[][] codes = new long[n][];
+    for (int i = 0; i < n; i++)
+      codes[i] = BLEUStatsEngine.tokenCodes(hyps.get(i));
+
+    // step-1: get normalized distribution
+
+    /**
+     * value in baselineScores will be changed to normalized probability
+     * */
+    List<Double> normalizedProbs = new ArrayList<>(logProbs);
+    computeNormalizedProbs(normalizedProbs, scalingFactor);
+    final double[] probs = new double[n];
+    for (int i = 0; i < n; i++)
+      probs[i] = normalizedProbs.get(i);
+
+    // step-2: rerank the nbest
+    final double[] gains;
+    if (useGoogleLinearCorpusGain) {
+      gains = computeExpectedLinearCorpusGains(codes, probs);
+    } else {
+      final LongIntHashMap[] ngramTbls = new LongIntHashMap[n];
+      for (int i = 0; i < n; i++)
+        ngramTbls[i] = ENGINE.ngramCounts(codes[i]);
+
+      gains = new double[n];
+      IntStream rows = IntStream.range(0, n);
+      if ((long) n * n >= MIN_PARALLEL_PAIRS)
+        rows = rows.parallel();
+      rows.forEach(i -> gains[i] = computeExpectedGain(codes[i], ngramTbls, codes, probs));
+    }
+
+    int best = 0;
+    for (int i = 1; i < n; i++)
+      if (gains[i] > gains[best]) // maximize
+        best = i;
+
+    LOG.info("best gain: {}", gains[best]);
+    return best;
+  }
 
   /**
    * based on a list of log-probabilities in nbestLogProbs, obtain a normalized distribution, and
@@ -225,22 +244,20 @@ public class NbestMinRiskReranker {
   // Gain(e) = negative risk = \sum_{e'} G(e, e')P(e')
   // curHyp: e
   // trueHyp: e'
-  public double computeExpectedGain(int curHypLen, HashMap<String, Integer> curHypNgramTbl,
-      List<HashMap<String, Integer>> ngramTbls, List<Integer> sentLens, List<Double> nbestProbs) {
+  private static double computeExpectedGain(long[] curHyp, LongIntHashMap[] ngramTbls,
+      long[][] nbestHyps, double[] nbestProbs) {
+    int[] stats = new int[2 * bleuOrder];
+    int[] numNgramMatch = new int[bleuOrder];
 
-    // ### get noralization constant, remember features, remember the combined linear score
     double gain = 0;
-
-    for (int i = 0; i < nbestProbs.size(); i++) {
-      HashMap<String, Integer> trueHypNgramTbl = ngramTbls.get(i);
-      double trueProb = nbestProbs.get(i);
-      int trueLen = sentLens.get(i);
-      gain +=
-          trueProb
-              * BLEU.computeSentenceBleu(trueLen, trueHypNgramTbl, curHypLen, curHypNgramTbl,
-                  doNgramClip, bleuOrder);
+    for (int i = 0; i < nbestProbs.length; i++) {
+      // the clipped matches of the current hyp against the true hyp
+      ENGINE.precisionStats(curHyp, ngramTbls[i], stats, 0);
+      for (int order = 0; order < bleuOrder; order++)
+        numNgramMatch[order] = stats[2 * order];
+      gain += nbestProbs[i]
+          * BLEU.computeBleu(curHyp.length, nbestHyps[i].length, numNgramMatch, bleuOrder);
     }
-    // System.out.println("Gain is " + gain);
     return gain;
   }
 
@@ -261,26 +278,53 @@ public class NbestMinRiskReranker {
     return gain;
   }
 
-  void getGooglePosteriorCounts(List<HashMap<String, Integer>> ngramTbls,
-      List<Double> normalizedProbs, HashMap<String, Double> posteriorCountsTbl) {
-    // TODO
-  }
-
-  double computeExpectedLinearCorpusGain(int curHypLen, HashMap<String, Integer> curHypNgramTbl,
-      HashMap<String, Double> posteriorCountsTbl) {
-    // TODO
-    double[] thetas = {-1, 1, 1, 1, 1};
-
-    double res = 0;
-    res += thetas[0] * curHypLen;
-    for (Entry<String, Integer> entry : curHypNgramTbl.entrySet()) {
-      String key = entry.getKey();
-      String[] tem = Regex.spaces.split(key);
+  /*
+   * The linear corpus gain of each hypothesis: theta_0 times its length, plus theta_n times the
+   * posterior probability of each of its n-grams, where the posterior of an n-gram is the total
+   * probability of the hypotheses that contain it.
+   */
+  private double[] computeExpectedLinearCorpusGains(long[][] nbestHyps, double[] nbestProbs) {
+    final double[] thetas = linearCorpusGainThetas;
+
+    // ### posterior counts, indexed by n-gram
+    LongIntHashMap ngramIds = new LongIntHashMap();
+    double[] posteriors = new double[64];
+    LongIntHashMap seen = new LongIntHashMap();
+    for (int i = 0; i < nbestHyps.length; i++) {
+      long[] hyp = nbestHyps[i];
+      seen.clear();
+      for (int start = 0; start < hyp.length; start++) {
+        long key = 0;
+        for (int end = start; end < hyp.length && end - start < bleuOrder; end++) {
+          key = BLEUStatsEngine.extend(key, hyp[end]);
+          if (seen.addTo(key, 1) > 1)
+            continue; // each hypothesis counts once
+          int id = ngramIds.get(key, -1);
+          if (id == -1) {
+            id = ngramIds.size();
+            ngramIds.put(key, id);
+            if (id == posteriors.length)
+              posteriors = Arrays.copyOf(posteriors, 2 * id);
+          }
+          posteriors[id] += nbestProbs[i];
+        }
+      }
+    }
 
-      double post_prob = posteriorCountsTbl.get(key);
-      res += entry.getValue() * post_prob * thetas[tem.length];
+    double[] gains = new double[nbestHyps.length];
+    for (int i = 0; i < nbestHyps.length; i++) {
+      long[] hyp = nbestHyps[i];
+      double res = thetas[0] * hyp.length;
+      for (int start = 0; start < hyp.length; start++) {
+        long key = 0;
+        for (int end = start; end < hyp.length && end - start < bleuOrder; end++) {
+          key = BLEUStatsEngine.extend(key, hyp[end]);
+          res += thetas[end - start + 1] * posteriors[ngramIds.get(key, -1)];
+        }
+      }
+      gains[i] = res;
     }
-    return res;
+    return gains;
   }
 
   // OR: return Math.log(Math.exp(x) + Math.exp(y));
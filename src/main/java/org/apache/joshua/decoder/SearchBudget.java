@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+/**
+ * Tracks the search effort spent on one sentence and, if the sentence has a deadline, adapts the
+ * cube-pruning pop limit to it.
+ * 
+ * Search proceeds in steps (spans for {@link org.apache.joshua.decoder.chart_parser.Chart},
+ * stacks for {@link org.apache.joshua.decoder.phrase.Stacks}), each of which asks for a pop limit
+ * before it starts and reports how many candidates it popped when it is done. Without a deadline,
+ * the limit is always the configured pop-limit. With one, the time spent so far per pop is used
+ * to estimate how many pops the remaining steps can afford, and the limit is lowered (never
+ * raised) accordingly. Once the deadline has passed, every remaining step gets a limit of one, so
+ * that the search still completes with the best hypothesis it can find quickly instead of failing.
+ * 
+ * A budget is used by a single decoding thread.
+ */
+public class SearchBudget {
+
+  /* The number of pops after which the time per pop is trusted to extrapolate */
+  private static final int MIN_POPS_TO_EXTRAPOLATE = 50;
+
+  /* The configured pop limit; 0 means unlimited */
+  private final int popLimit;
+
+  /* When decoding started, and the deadline, in ms since the epoch (0 means none) */
+  private final long startTime;
+  private final long deadline;
+
+  /* The expected number of steps, see setSteps() */
+  private int totalSteps = 1;
+
+  /* Statistics */
+  private int steps = 0;
+  private long pops = 0;
+  private int lowestPopLimit;
+  private int reducedSteps = 0;
+  private int overdueSteps = 0;
+  private long endTime = 0;
+
+  /**
+   * @param popLimit the configured pop limit, 0 for unlimited
+   * @param startTime when decoding of the sentence started, in ms since the epoch
+   * @param deadline when the search has to be done, in ms since the epoch, or 0 for no deadline
+   */
+  public SearchBudget(int popLimit, long startTime, long deadline) {
+    this.popLimit = popLimit;
+    this.startTime = startTime;
+    this.deadline = deadline;
+    this.lowestPopLimit = popLimit;
+  }
+
+  /**
+   * Creates the budget of a sentence that starts decoding now. Its deadline is the earlier of the
+   * sentence's own deadline and translation-thread-timeout milliseconds from now.
+   * 
+   * @param deadline the sentence's deadline in ms since the epoch, or 0 for none
+   * @param config the configuration
+   * @return a new budget
+   */
+  public static SearchBudget start(long deadline, JoshuaConfiguration config) {
+    long now = System.currentTimeMillis();
+    if (config.translation_thread_timeout > 0) {
+      long timeout = now + config.translation_thread_timeout;
+      deadline = (deadline > 0) ? Math.min(deadline, timeout) : timeout;
+    }
+    return new SearchBudget(config.pop_limit, now, deadline);
+  }
+
+  /**
+   * Sets the number of steps the search will take, which spreads the remaining time over them.
+   * 
+   * @param totalSteps the number of spans or stacks
+   */
+  public void setSteps(int totalSteps) {
+    this.totalSteps = Math.max(totalSteps, 1);
+  }
+
+  /**
+   * Starts a step of the search.
+   * 
+   * @return the pop limit for the step, 0 meaning unlimited if the configured limit is
+   */
+  public int nextPopLimit() {
+    steps++;
+    if (deadline == 0)
+      return popLimit;
+
+    int limit = popLimit;
+    long now = System.currentTimeMillis();
+    if (now >= deadline) {
+      limit = 1;
+      overdueSteps++;
+    } else if (pops >= MIN_POPS_TO_EXTRAPOLATE) {
+      double millisPerPop = (double) (now - startTime) / pops;
+      int remainingSteps = Math.max(totalSteps - steps + 1, 1);
+      double affordable = (deadline - now) / millisPerPop / remainingSteps;
+      if (popLimit == 0 || affordable < popLimit)
+        limit = (int) Math.max(1, Math.min(affordable, Integer.MAX_VALUE));
+    }
+
+    if (limit != popLimit) {
+      reducedSteps++;
+      if (lowestPopLimit == 0 || limit < lowestPopLimit)
+        lowestPopLimit = limit;
+    }
+    return limit;
+  }
+
+  /**
+   * Ends a step of the search.
+   * 
+   * @param popped the number of candidates the step popped
+   */
+  public void popped(int popped) {
+    pops += popped;
+  }
+
+  /**
+   * Marks the end of the search.
+   */
+  public void finish() {
+    endTime = System.currentTimeMillis();
+  }
+
+  /**
+   * @return the deadline in ms since the epoch, or 0 if there is none
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return the number of search steps (spans or stacks) taken so far
+   */
+  public int getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return the number of candidates popped so far
+   */
+  public long getPops() {
+    return pops;
+  }
+
+  /**
+   * @return the lowest pop limit given to any step, 0 if it was unlimited throughout
+   */
+  public int getLowestPopLimit() {
+    return lowestPopLimit;
+  }
+
+  /**
+   * @return the number of steps that got less than the configured pop limit
+   */
+  public int getReducedSteps() {
+    return reducedSteps;
+  }
+
+  /**
+   * @return whether the deadline passed during the search, so that the rest of it was greedy
+   */
+  public boolean isOverdue() {
+    return overdueSteps > 0;
+  }
+
+  /**
+   * @return the time in ms from the start of decoding to the end of the search (or to now, if
+   *         the search has not finished)
+   */
+  public long getElapsedMillis() {
+    return ((endTime > 0) ? endTime : System.currentTimeMillis()) - startTime;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d pops in %d steps, %d ms, %d steps with reduced pop limit (lowest %d)%s",
+        pops, steps, getElapsedMillis(), reducedSteps, lowestPopLimit,
+        isOverdue() ? String.format(", %d steps after the deadline", overdueSteps) : "");
+  }
+}
@@ -24,17 +24,19 @@ import static org.apache.joshua.decoder.hypergraph.ViterbiExtractor.getViterbiSt
 import static org.apache.joshua.decoder.hypergraph.ViterbiExtractor.getViterbiWordAlignments;
 import static org.apache.joshua.util.FormatUtils.removeSentenceMarkers;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.hypergraph.HyperGraph;
 import org.apache.joshua.decoder.hypergraph.KBestExtractor;
+import org.apache.joshua.decoder.hypergraph.KBestExtractor.DerivationState;
 import org.apache.joshua.decoder.io.DeNormalize;
+import org.apache.joshua.decoder.io.OutputFormat;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -65,9 +67,32 @@ public class Translation {
    */
   private List<StructuredTranslation> structuredTranslations = null;
 
+  /* The search effort spent on the translation; null for translations reused from the cache */
+  private SearchBudget searchBudget = null;
+
   public Translation(Sentence source, HyperGraph hypergraph,
       List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) {
+    this(source, hypergraph, featureFunctions, joshuaConfiguration, null);
+  }
+
+  /**
+   * Assembles the output of a decoded sentence.
+   * 
+   * @param source the input sentence
+   * @param hypergraph the sentence's hypergraph, or null if it could not be decoded
+   * @param featureFunctions the feature functions
+   * @param joshuaConfiguration the decoder configuration
+   * @param kbestPool threads that extract the k-best lists bottom-up, or null to extract them
+   *          lazily on the calling thread
+   */
+  public Translation(Sentence source, HyperGraph hypergraph,
+      List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration,
+      ForkJoinPool kbestPool) {
     this.source = source;
+    this.searchBudget = source.getSearchBudget();
+
+    /* The weights the sentence was decoded with */
+    final FeatureVector weights = (source.getWeights() != null) ? source.getWeights() : Decoder.weights;
 
     /**
      * Structured output from Joshua provides a way to programmatically access translation results
@@ -87,7 +112,8 @@ public class Translation {
         /*
          * Get K-Best list of StructuredTranslations
          */
-        final KBestExtractor kBestExtractor = new KBestExtractor(source, featureFunctions, Decoder.weights, false, joshuaConfiguration);
+        final KBestExtractor kBestExtractor = new KBestExtractor(source, featureFunctions, weights, false, joshuaConfiguration);
+        kBestExtractor.setPool(kbestPool);
         structuredTranslations = kBestExtractor.KbestExtractOnHG(hypergraph, joshuaConfiguration.topN);
         if (structuredTranslations.isEmpty()) {
             structuredTranslations = Collections
@@ -101,8 +127,8 @@ public class Translation {
 
     } else {
 
-      StringWriter sw = new StringWriter();
-      BufferedWriter out = new BufferedWriter(sw);
+      final OutputFormat outputFormat = new OutputFormat(joshuaConfiguration.outputFormat);
+      final StringBuilder out = new StringBuilder();
 
       try {
 
@@ -110,11 +136,21 @@ public class Translation {
 
           long startTime = System.currentTimeMillis();
 
-          // We must put this weight as zero, otherwise we get an error when we try to retrieve it
-          // without checking
-          Decoder.weights.increment("BLEU", 0);
+          if (joshuaConfiguration.topN == 0 && joshuaConfiguration.mbr_size > 0
+              && hypergraph.goalNode != null) {
 
-          if (joshuaConfiguration.topN == 0) {
+            /*
+             * Output the minimum Bayes risk hypothesis among the k-best ones, in the output format.
+             * The list must be unique, since the reranker counts every entry as a hypothesis.
+             */
+            final KBestExtractor kBestExtractor = new KBestExtractor(
+                source, featureFunctions, weights, false, true, joshuaConfiguration);
+            kBestExtractor.setPool(kbestPool);
+            final int k = getMBRHypothesis(kBestExtractor, hypergraph, joshuaConfiguration);
+            kBestExtractor.writeKthHyp(hypergraph.goalNode, k, out);
+            out.append('\n');
+
+          } else if (joshuaConfiguration.topN == 0) {
 
             /* construct Viterbi output */
             final String best = removeSentenceMarkers(getViterbiString(hypergraph));
@@ -126,36 +162,57 @@ public class Translation {
              * the output-string, with the understanding that we can only substitute variables for the
              * output string, sentence number, and model score.
              */
-            String translation = joshuaConfiguration.outputFormat
-                .replace("%s", removeSentenceMarkers(best))
-                .replace("%S", DeNormalize.processSingleLine(best))
-                .replace("%c", String.format("%.3f", hypergraph.goalNode.getScore()))
-                .replace("%i", String.format("%d", source.id()));
-
-            if (joshuaConfiguration.outputFormat.contains("%a")) {
-              translation = translation.replace("%a", getViterbiWordAlignments(hypergraph));
-            }
-
-            if (joshuaConfiguration.outputFormat.contains("%f")) {
-              final FeatureVector features = getViterbiFeatures(hypergraph, featureFunctions, source);
-              translation = translation.replace("%f", joshuaConfiguration.moses ? features.mosesString() : features.toString());
-            }
-
-            out.write(translation);
-            out.newLine();
+            outputFormat.write(out, (field, o) -> {
+              switch (field) {
+              case 's':
+                o.append(removeSentenceMarkers(best));
+                break;
+              case 'S':
+                o.append(DeNormalize.processSingleLine(best));
+                break;
+              case 'c':
+                o.append(String.format("%.3f", hypergraph.goalNode.getScore()));
+                break;
+              case 'i':
+                o.append(String.format("%d", source.id()));
+                break;
+              case 'a':
+                o.append(getViterbiWordAlignments(hypergraph));
+                break;
+              case 'f':
+                final FeatureVector features = getViterbiFeatures(hypergraph, featureFunctions, source);
+                o.append(joshuaConfiguration.moses ? features.mosesString() : features.toString());
+                break;
+              default:
+                return false;
+              }
+              return true;
+            });
+            out.append('\n');
 
           } else {
 
             final KBestExtractor kBestExtractor = new KBestExtractor(
-                source, featureFunctions, Decoder.weights, false, joshuaConfiguration);
+                source, featureFunctions, weights, false, joshuaConfiguration);
+            kBestExtractor.setPool(kbestPool);
             kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
 
             if (joshuaConfiguration.rescoreForest) {
-              Decoder.weights.increment("BLEU", joshuaConfiguration.rescoreForestWeight);
-              kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
-
-              Decoder.weights.increment("BLEU", -joshuaConfiguration.rescoreForestWeight);
-              kBestExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+              final int kBestLength = out.length();
+
+              /*
+               * Rescore with a private copy of the weights that includes BLEU, since other threads
+               * may be decoding with the shared snapshot.
+               */
+              FeatureVector bleuWeights = weights.clone();
+              bleuWeights.increment("BLEU", joshuaConfiguration.rescoreForestWeight);
+              final KBestExtractor bleuExtractor = new KBestExtractor(source, featureFunctions,
+                  bleuWeights, false, joshuaConfiguration);
+              bleuExtractor.setPool(kbestPool);
+              bleuExtractor.lazyKBestExtractOnHG(hypergraph, joshuaConfiguration.topN, out);
+
+              // The model-score k-best list again; it is the same as the first one
+              out.append(out, 0, kBestLength);
             }
           }
 
@@ -166,26 +223,46 @@ public class Translation {
         } else {
 
           // Failed translations and blank lines get empty formatted outputs
-          out.write(getFailedTranslationOutput(source, joshuaConfiguration));
-          out.newLine();
+          out.append(getFailedTranslationOutput(source, outputFormat));
+          out.append('\n');
 
         }
 
-        out.flush();
-
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
 
-      this.output = sw.toString();
+      this.output = out.toString();
 
     }
 
     // Force any StateMinimizingLanguageModel pool mappings to be cleaned
     source.getStateManager().clearStatePool();
+    if (source.getDPStatePool() != null)
+      source.getDPStatePool().clear();
 
   }
 
+  /**
+   * Reuses a translation computed for an identical input, e.g., from the {@link TranslationCache}.
+   * The copy refers to the new source sentence, so that it carries the right sentence number.
+   *
+   * @param source the new source sentence
+   * @param other the translation of an identical input
+   */
+  Translation(Sentence source, Translation other) {
+    this.source = source;
+    this.output = other.output;
+    if (other.structuredTranslations != null) {
+      this.structuredTranslations = new ArrayList<>(other.structuredTranslations.size());
+      for (StructuredTranslation translation : other.structuredTranslations)
+        this.structuredTranslations.add(new StructuredTranslation(source,
+            translation.getTranslationString(), translation.getTranslationTokens(),
+            translation.getTranslationScore(), translation.getTranslationWordAlignments(),
+            translation.getTranslationFeatures(), translation.getExtractionTime()));
+    }
+  }
+
   public Sentence getSourceSentence() {
     return this.source;
   }
@@ -194,20 +271,68 @@ public class Translation {
     return source.id();
   }
 
+  /**
+   * Returns the search effort statistics of this translation: how many candidates were popped,
+   * whether the pop limit had to be lowered to meet the deadline, and so on.
+   * 
+   * @return the search budget, or null if the translation was reused from the
+   *         {@link TranslationCache} or not decoded by a {@link DecoderTask}
+   */
+  public SearchBudget getSearchBudget() {
+    return searchBudget;
+  }
+
   @Override
   public String toString() {
     return output;
   }
 
-  private String getFailedTranslationOutput(final Sentence source, final JoshuaConfiguration joshuaConfiguration) {
-    return joshuaConfiguration.outputFormat
-        .replace("%s", source.source())
-        .replace("%e", "")
-        .replace("%S", "")
-        .replace("%t", "()")
-        .replace("%i", Integer.toString(source.id()))
-        .replace("%f", "")
-        .replace("%c", "0.000");
+  /**
+   * Reranks the k-best list of a hypergraph with {@link NbestMinRiskReranker}.
+   *
+   * @return the (1-indexed) rank of the minimum Bayes risk hypothesis
+   */
+  private static int getMBRHypothesis(KBestExtractor kBestExtractor, HyperGraph hypergraph,
+      JoshuaConfiguration joshuaConfiguration) {
+    List<String> hyps = new ArrayList<>(joshuaConfiguration.mbr_size);
+    List<Double> scores = new ArrayList<>(joshuaConfiguration.mbr_size);
+    kBestExtractor.precomputeKBest(hypergraph, joshuaConfiguration.mbr_size);
+    for (int k = 1; k <= joshuaConfiguration.mbr_size; k++) {
+      DerivationState derivation = kBestExtractor.getKthDerivation(hypergraph.goalNode, k);
+      if (derivation == null)
+        break;
+      hyps.add(removeSentenceMarkers(derivation.getHypothesis()));
+      scores.add((double) derivation.getModelCost());
+    }
+    NbestMinRiskReranker reranker = new NbestMinRiskReranker(false,
+        joshuaConfiguration.mbr_scale, joshuaConfiguration.mbr_linear);
+    return reranker.rerank(hyps, scores) + 1;
+  }
+
+  private String getFailedTranslationOutput(final Sentence source, final OutputFormat outputFormat) {
+    return outputFormat.format((field, o) -> {
+      switch (field) {
+      case 's':
+        o.append(source.source());
+        break;
+      case 'i':
+        o.append(Integer.toString(source.id()));
+        break;
+      case 't':
+        o.append("()");
+        break;
+      case 'c':
+        o.append("0.000");
+        break;
+      case 'e':
+      case 'S':
+      case 'f':
+        break;
+      default:
+        return false;
+      }
+      return true;
+    });
   }
 
   /**
@@ -0,0 +1,194 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * A bounded cache of translation results, consulted by {@link Decoder#decode(Sentence,
+ * FeatureVector)} before a sentence is decoded. It is enabled with the parameter
+ * translation-cache-size (the maximum number of entries); translation-cache-ttl additionally
+ * expires entries the given number of seconds after they were computed.
+ * 
+ * Entries are keyed by the normalized input (source, plus target side and references, if any), the
+ * weights the sentence is decoded with, a version number that the {@link Decoder} bumps when its
+ * grammars change, and the configuration options that determine the output. Since the weight
+ * snapshot is part of the key, publishing new weights makes older entries unreachable, and they
+ * are evicted in time. When rules are added or removed, the decoder empties the cache at once.
+ * 
+ * When the text output contains the sentence number (%i), the number is part of the key as well,
+ * so such output is only reused for retried sentences with the same id. Structured output is
+ * always shared.
+ * 
+ * The key includes every option that is read while a sentence is decoded and changes its output.
+ * Deliberately left out are
+ * <ul>
+ * <li>options read only when the models are loaded (grammars, feature functions, the test-set
+ * filter, the suffix array settings), which are fixed for the lifetime of the decoder and its
+ * cache;</li>
+ * <li>options that change how fast, but not what, the decoder translates (num-parallel-decoders,
+ * stack-threads, kbest-threads, lm-cache-size, intern-dp-states, loading-threads). Searches cut short by the
+ * translation-thread-timeout are not cached at all; and</li>
+ * <li>side outputs (hypergraph-file, n-best-file), which are not written again for cached
+ * translations.</li>
+ * </ul>
+ */
+public class TranslationCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TranslationCache.class);
+
+  private final Cache<List<Object>, Translation> cache;
+
+  /**
+   * @param maxSize the maximum number of entries
+   * @param ttlSeconds the time in seconds after which an entry expires, or 0 for no expiry
+   */
+  public TranslationCache(int maxSize, long ttlSeconds) {
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .maximumSize(maxSize)
+        .recordStats();
+    if (ttlSeconds > 0)
+      builder.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS);
+    this.cache = builder.build();
+  }
+
+  /**
+   * Returns the translation of a sentence, calling the decoder only on a cache miss. Concurrent
+   * requests for the same uncached sentence are decoded once.
+   * 
+   * @param sentence the input
+   * @param weights the weights the sentence is decoded with
+   * @param weightsVersion the version of weights, or -1 if they are not a published snapshot
+   * @param grammarVersion the version of the decoder's grammars
+   * @param config the configuration that determines the output
+   * @param decoder computes the translation on a miss
+   * @return the translation, with sentence-specific fields referring to sentence
+   */
+  public Translation get(Sentence sentence, FeatureVector weights, long weightsVersion,
+      long grammarVersion, JoshuaConfiguration config, Decoding decoder) {
+    List<Object> key = key(sentence, weights, weightsVersion, grammarVersion, config);
+    try {
+      Translation translation = cache.get(key, () -> decoder.decode(sentence));
+      if (translation.getSourceSentence() == sentence) {
+        // A search that was cut short to meet a deadline is not reused for later requests
+        SearchBudget budget = translation.getSearchBudget();
+        if (budget != null && budget.getReducedSteps() > 0)
+          cache.invalidate(key);
+        return translation;
+      }
+      return new Translation(sentence, translation);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static List<Object> key(Sentence sentence, FeatureVector weights, long weightsVersion,
+      long grammarVersion, JoshuaConfiguration config) {
+    boolean idInOutput = ! config.use_structured_output && config.outputFormat.contains("%i");
+    return Arrays.asList(
+        sentence.rawSource(),
+        sentence.target(),
+        sentence.references() == null ? null : Arrays.asList(sentence.references()),
+        idInOutput ? sentence.id() : null,
+        // Unpublished weights (per-request overrides) are compared by value
+        weightsVersion >= 0 ? weightsVersion : weights.getMap(),
+        grammarVersion,
+        config.use_structured_output,
+        config.outputFormat,
+        config.topN,
+        config.use_unique_nbest,
+        config.include_align_index,
+        config.moses,
+        config.project_case,
+        config.rescoreForest,
+        config.rescoreForestWeight,
+        config.mbr_size,
+        config.mbr_scale,
+        config.mbr_linear,
+        // input processing
+        config.lowercase,
+        config.lattice_decoding,
+        config.maxlen,
+        config.source_annotations,
+        // OOV handling
+        config.mark_oovs,
+        config.oovList,
+        config.segment_oovs,
+        config.true_oovs_only,
+        // search
+        config.default_non_terminal,
+        config.goal_symbol,
+        config.filter_grammar,
+        config.use_dot_chart,
+        config.pop_limit,
+        config.lazy_cube_pruning,
+        config.search_algorithm,
+        config.reordering_limit,
+        config.num_translation_options);
+  }
+
+  /**
+   * Removes all entries, e.g., because the model changed.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+    LOG.info("Translation cache cleared");
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /**
+   * @return the hit and miss counts since the cache was created
+   */
+  public CacheStats getStats() {
+    return cache.stats();
+  }
+
+  @Override
+  public String toString() {
+    CacheStats stats = cache.stats();
+    return String.format("size=%d requests=%d hits=%d hit_rate=%.3f evictions=%d",
+        cache.size(), stats.requestCount(), stats.hitCount(), stats.hitRate(),
+        stats.evictionCount());
+  }
+
+  /**
+   * Computes the translation of a sentence on a cache miss.
+   */
+  public interface Decoding {
+    Translation decode(Sentence sentence);
+  }
+}
@@ -21,19 +21,16 @@ package org.apache.joshua.decoder.chart_parser;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.Map.Entry;
 
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HGNode;
 import org.apache.joshua.decoder.hypergraph.HyperEdge;
+import org.apache.joshua.util.LongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -59,11 +56,18 @@ class Cell {
   // The top-level (goal) symbol
   private final int goalSymbol;
 
-  // to maintain uniqueness of nodes
-  private final HashMap<HGNode.Signature, HGNode> nodesSigTbl = new LinkedHashMap<>();
+  /*
+   * To maintain uniqueness of nodes: the nodes in the order their signatures were first seen (a
+   * better node replaces an old one in place), indexed by signature hash. Nodes whose signature
+   * hashes collide are chained through nextWithSameHash.
+   */
+  private final List<HGNode> nodes = new ArrayList<>();
+  private final LongIntHashMap nodesBySignature = new LongIntHashMap();
+  private int[] nextWithSameHash = new int[16];
 
-  // signature by lhs
-  private final Map<Integer, SuperNode> superNodesTbl = new HashMap<>();
+  // signature by lhs, in the order they were first seen
+  private final List<SuperNode> superNodes = new ArrayList<>();
+  private final LongIntHashMap superNodesByLHS = new LongIntHashMap();
 
   /**
    * sort values in nodesSigTbl, we need this list when necessary
@@ -88,12 +92,16 @@ class Cell {
   // Package-protected methods
   // ===============================================================
   
-  public Set<Integer> getKeySet() {
-    return superNodesTbl.keySet();
+  /**
+   * @return the super nodes of the cell, which may not be sorted; see {@link #getSortedSuperItems()}
+   */
+  List<SuperNode> getSuperNodes() {
+    return Collections.unmodifiableList(superNodes);
   }
-  
+
   public SuperNode getSuperNode(int lhs) {
-    return superNodesTbl.get(lhs);
+    int index = superNodesByLHS.get(lhs, -1);
+    return (index == -1) ? null : superNodes.get(index);
   }
 
   /**
@@ -156,7 +164,7 @@ class Cell {
    * graph, it gets added automatically. Otherwise, we add the hyperedge to the existing HGNode,
    * possibly updating the HGNode's cache of the best incoming hyperedge.
    * 
-   * @return the new hypernode, or null if the cell was pruned.
+   * @return the node the edge now leads to: a new node, or the existing one it was merged into
    */
   HGNode addHyperEdgeInCell(ComputeNodeResult result, Rule rule, int i, int j, List<HGNode> ants,
       SourcePath srcPath, boolean noPrune) {
@@ -185,36 +193,42 @@ class Cell {
      */
 
     HyperEdge hyperEdge = new HyperEdge(rule, finalizedTotalLogP, transitionLogP, ants, srcPath);
-    HGNode newNode = new HGNode(i, j, rule.getLHS(), dpStates, hyperEdge, pruningEstimate);
 
     /**
      * each node has a list of hyperedges, need to check whether the node is already exist, if
-     * yes, just add the hyperedges, this may change the best logP of the node
+     * yes, just add the hyperedges, this may change the best logP of the node. The lookup is done
+     * on the signature alone, so no node is created for edges that are merged into an old one.
      * */
-    HGNode oldNode = this.nodesSigTbl.get(newNode.signature());
-    if (null != oldNode) { // have an item with same states, combine items
+    final int lhs = rule.getLHS();
+    final long signatureHash = HGNode.signatureHash(i, j, lhs, dpStates);
+    int oldIndex = findNode(i, j, lhs, dpStates, signatureHash);
+    if (-1 != oldIndex) { // have an item with same states, combine items
+      HGNode oldNode = this.nodes.get(oldIndex);
       this.chart.nMerged++;
 
       /**
        * the position of oldItem in this.heapItems may change, basically, we should remove the
        * oldItem, and re-insert it (linear time), this is too expense)
        **/
-      if (newNode.getScore() > oldNode.getScore()) { // merge old to new: semiring plus
+      if (pruningEstimate > oldNode.getScore()) { // merge old to new: semiring plus
 
+        HGNode newNode = new HGNode(i, j, lhs, dpStates, hyperEdge, pruningEstimate);
         newNode.addHyperedgesInNode(oldNode.hyperedges);
-        // This will update the HashMap, so that the oldNode is destroyed.
-        addNewNode(newNode);
+        // This will update the table, so that the oldNode is destroyed.
+        replaceNode(oldIndex, newNode);
+        return newNode;
       } else {// merge new to old, does not trigger pruningItems
-        oldNode.addHyperedgesInNode(newNode.hyperedges);
+        oldNode.addHyperedgeInNode(hyperEdge);
+        return oldNode;
       }
 
     } else { // first time item
       this.chart.nAdded++; // however, this item may not be used in the future due to pruning in
       // the hyper-graph
+      HGNode newNode = new HGNode(i, j, lhs, dpStates, hyperEdge, pruningEstimate);
       addNewNode(newNode);
+      return newNode;
     }
-
-    return newNode;
   }
 
   List<HGNode> getSortedNodes() {
@@ -222,72 +236,110 @@ class Cell {
     return this.sortedNodes;
   }
   
-  Map<Integer, SuperNode> getSortedSuperItems() {
+  /**
+   * @return the super nodes of the cell, each with its nodes sorted by decreasing score. The list
+   *         must not be modified.
+   */
+  List<SuperNode> getSortedSuperItems() {
     ensureSorted();
-    return this.superNodesTbl;
+    return getSuperNodes();
   }
   
   // ===============================================================
   // Private Methods
   // ===============================================================
 
+  /**
+   * @return the position of the node with the given signature, or -1 if there is none
+   */
+  private int findNode(int i, int j, int lhs, List<DPState> dpStates, long signatureHash) {
+    int index = this.nodesBySignature.get(signatureHash, -1);
+    while (index != -1 && !this.nodes.get(index).hasSignature(i, j, lhs, dpStates, signatureHash))
+      index = this.nextWithSameHash[index];
+    return index;
+  }
+
   /**
    * two cases this function gets called (1) a new hyperedge leads to a non-existing node signature
    * (2) a new hyperedge's signature matches an old node's signature, but the best-logp of old node
-   * is worse than the new hyperedge's logP
+   * is worse than the new hyperedge's logP (see {@link #replaceNode(int, HGNode)})
    * */
   private void addNewNode(HGNode node) {
-    this.nodesSigTbl.put(node.signature(), node); // add/replace the item
+    int index = this.nodes.size();
+    this.nodes.add(node);
+    if (index == this.nextWithSameHash.length)
+      this.nextWithSameHash = Arrays.copyOf(this.nextWithSameHash, 2 * index);
+    this.nextWithSameHash[index] = this.nodesBySignature.get(node.signatureHash(), -1);
+    this.nodesBySignature.put(node.signatureHash(), index);
+
+    addToSuperNode(node);
+  }
+
+  private void replaceNode(int index, HGNode node) {
+    this.nodes.set(index, node); // the signature, and thus the chaining, is unchanged
+    addToSuperNode(node);
+  }
+
+  private void addToSuperNode(HGNode node) {
     this.sortedNodes = null; // reset the list
     
 //    System.err.println(String.format("** NEW NODE %s %d %d", Vocabulary.word(node.lhs), node.i, node.j));
 
-    // since this.sortedItems == null, this is not necessary because we will always call
-    // ensure_sorted to reconstruct the this.tableSuperItems
     // add a super-items if necessary
-    SuperNode si = this.superNodesTbl.get(node.lhs);
-    if (null == si) {
+    int index = this.superNodesByLHS.get(node.lhs, -1);
+    SuperNode si;
+    if (-1 == index) {
       si = new SuperNode(node.lhs);
-      this.superNodesTbl.put(node.lhs, si);
+      this.superNodesByLHS.put(node.lhs, this.superNodes.size());
+      this.superNodes.add(si);
+    } else {
+      si = this.superNodes.get(index);
     }
-    si.nodes.add(node);// TODO what about the dead items?
+    // replaced nodes are removed when the super node is re-sorted
+    si.nodes.add(node);
+    si.sorted = false;
   }
 
   /**
    * get a sorted list of Nodes in the cell, and also make sure the list of node in any SuperItem is
    * sorted, this will be called only necessary, which means that the list is not always sorted,
-   * mainly needed for goal_bin and cube-pruning
+   * mainly needed for goal_bin and cube-pruning. Only the super nodes that received nodes since
+   * the last sort are rebuilt.
    */
   private void ensureSorted() {
     if (null == this.sortedNodes) {
       
       // get sortedNodes.
-      this.sortedNodes = new ArrayList<>(this.nodesSigTbl.size());
-      for (HGNode node : this.nodesSigTbl.values()) {
-        this.sortedNodes.add(node);
-      }
+      this.sortedNodes = new ArrayList<>(this.nodes);
 
       // sort the node in an decreasing-LogP order 
       this.sortedNodes.sort(HGNode.inverseLogPComparator);
 
       // TODO: we cannot create new SuperItem here because the DotItem link to them.
       // Thus, we clear nodes from existing SuperNodes
-      for (SuperNode superNode : this.superNodesTbl.values()) {
-        superNode.nodes.clear();
+      for (SuperNode superNode : this.superNodes) {
+        if (!superNode.sorted)
+          superNode.nodes.clear();
       }
 
       for (HGNode node : this.sortedNodes) {
-        SuperNode superNode = this.superNodesTbl.get(node.lhs);
+        SuperNode superNode = getSuperNode(node.lhs);
         checkNotNull(superNode, "Does not have super Item, have to exist");
-        superNode.nodes.add(node);
+        if (!superNode.sorted)
+          superNode.nodes.add(node);
       }
 
       // Remove SuperNodes who may not contain any nodes anymore due to pruning
-      for (Iterator<Entry<Integer, SuperNode>> it = this.superNodesTbl.entrySet().iterator(); it.hasNext(); ) {
-        Entry<Integer, SuperNode> entry = it.next();
-        if (entry.getValue().nodes.isEmpty()) {
-          it.remove();
-        }
+      boolean removed = false;
+      for (SuperNode superNode : this.superNodes) {
+        superNode.sorted = true;
+        removed |= superNode.nodes.isEmpty();
+      }
+      if (removed) {
+        this.superNodes.removeIf(superNode -> superNode.nodes.isEmpty());
+        this.superNodesByLHS.clear();
+        for (int i = 0; i < this.superNodes.size(); i++)
+          this.superNodesByLHS.put(this.superNodes.get(i).lhs, i);
       }
     }
   }
@@ -20,15 +20,19 @@ package org.apache.joshua.decoder.chart_parser;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.stream.Collectors;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.SearchBudget;
 import org.apache.joshua.decoder.chart_parser.DotChart.DotNode;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.SourceDependentFF;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -77,6 +81,7 @@ public class Chart {
   int nMerged = 0;
   int nAdded = 0;
   int nDotitemAdded = 0; // note: there is no pruning in dot-item
+  int nScored = 0; // cube-pruning states scored with the feature functions
 
   public Sentence getSentence() {
     return this.sentence;
@@ -88,6 +93,8 @@ public class Chart {
   private final ChartSpan<Cell> cells; // note that in some cell, it might be null
   private final int sourceLength;
   private final List<FeatureFunction> featureFunctions;
+  /* Language models that score the seeds of a span with one call, see prefetch() */
+  private final List<StateMinimizingLanguageModel> batchingLMs;
   private final Grammar[] grammars;
   private final DotChart[] dotcharts; // each grammar should have a dotchart associated with it
   private Cell goalBin;
@@ -98,6 +105,9 @@ public class Chart {
 //  private SyntaxTree parseTree;
   private StateConstraint stateConstraint;
 
+  /* Sets the pop limit of each span, see SearchBudget */
+  private final SearchBudget budget;
+
 
   // ===============================================================
   // Constructors
@@ -120,9 +130,17 @@ public class Chart {
     this.inputLattice = sentence.getLattice();
     this.sourceLength = inputLattice.size() - 1;
     this.featureFunctions = featureFunctions;
+    this.batchingLMs = featureFunctions.stream()
+        .filter(ff -> ff instanceof StateMinimizingLanguageModel)
+        .map(ff -> (StateMinimizingLanguageModel) ff).collect(Collectors.toList());
 
     this.sentence = sentence;
 
+    /* Every span is a step of the search */
+    this.budget = (sentence.getSearchBudget() != null) ? sentence.getSearchBudget()
+        : SearchBudget.start(sentence.getDeadline(), config);
+    this.budget.setSteps(sourceLength * (sourceLength + 1) / 2);
+
     // TODO: OOV handling no longer handles parse tree input (removed after
     // commit 748eb69714b26dd67cba8e7c25a294347603bede)
 //    this.parseTree = null;
@@ -138,9 +156,13 @@ public class Chart {
     this.grammars = new Grammar[grammars.length + 1];
     System.arraycopy(grammars, 0, this.grammars, 1, grammars.length);
 
-    MemoryBasedBatchGrammar oovGrammar = new MemoryBasedBatchGrammar("oov", this.config, 20);
-    AbstractGrammar.addOOVRules(oovGrammar, sentence.getLattice(), featureFunctions,
-        this.config.true_oovs_only);
+    /* Sentences decoded in a batch share the OOV rules of all the batch's words */
+    Grammar oovGrammar = sentence.getOOVGrammar();
+    if (oovGrammar == null) {
+      oovGrammar = new MemoryBasedBatchGrammar("oov", this.config, 20);
+      AbstractGrammar.addOOVRules(oovGrammar, sentence.getLattice(), featureFunctions, grammars,
+          this.config.true_oovs_only);
+    }
     this.grammars[0] = oovGrammar;
 
     // each grammar will have a dot chart
@@ -197,11 +219,15 @@ public class Chart {
    * rule, the 1-best tail node for that nonterminal and subspan. If the maximum
    * arity of a rule is R, then the dimension of the hypercube is R + 1, since
    * the first dimension is used to record the rule.
+   * 
+   * The terminal productions and the seeds are collected before they are
+   * scored, so that language models can score all of them with one call.
    */
   private void completeSpan(int i, int j) {
 
-    /* STEP 1: create the heap, and seed it with all of the candidate states */
-    PriorityQueue<CubePruneState> candidates = new PriorityQueue<>();
+    /* STEP 1: collect the terminal productions and the seed of each cube */
+    List<DotNode> terminalNodes = new ArrayList<>();
+    List<CubePruneState> seeds = new ArrayList<>();
 
     /*
      * Look at all the grammars, seeding the chart with completed rules from the
@@ -219,67 +245,107 @@ public class Chart {
           continue;
 
         List<Rule> rules = ruleCollection.getSortedRules(this.featureFunctions);
-        SourcePath sourcePath = dotNode.getSourcePath();
 
         if (null == rules || rules.size() == 0)
           continue;
 
         if (ruleCollection.getArity() == 0) {
-          /*
-           * The total number of arity-0 items (pre-terminal rules) that we add
-           * is controlled by num_translation_options in the configuration.
-           * 
-           * We limit the translation options per DotNode; that is, per LHS.
-           */
-          int numTranslationsAdded = 0;
-
           /* Terminal productions are added directly to the chart */
-          for (Rule rule : rules) {
+          terminalNodes.add(dotNode);
+        } else {
+          /* Productions with rank > 0 are subject to cube pruning */
+          seeds.add(newSeedState(dotNode));
+        }
+      }
+    }
 
-            if (config.num_translation_options > 0
-                && numTranslationsAdded >= config.num_translation_options) {
-              break;
-            }
+    /* STEP 2: score them, and seed the heap with the seeds */
+    boolean prefetched = prefetch(terminalNodes, seeds, i, j);
 
-            ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, rule, null, i,
-                j, sourcePath, this.sentence);
+    for (DotNode dotNode : terminalNodes)
+      addTerminalProductions(dotNode, i, j);
 
-            if (stateConstraint == null || stateConstraint.isLegal(result.getDPStates())) {
-              getCell(i, j).addHyperEdgeInCell(result, rule, i, j, null, sourcePath, true);
-              numTranslationsAdded++;
-            }
-          }
-        } else {
-          /* Productions with rank > 0 are subject to cube pruning */
+    PriorityQueue<CubePruneState> candidates = new PriorityQueue<>();
+    for (CubePruneState seed : seeds) {
+      score(seed, i, j);
+      candidates.add(seed);
+    }
 
-          Rule bestRule = rules.get(0);
+    if (prefetched)
+      clearPrefetched();
 
-          List<HGNode> currentTailNodes = new ArrayList<>();
-          List<SuperNode> superNodes = dotNode.getAntSuperNodes();
-          for (SuperNode si : superNodes) {
-            currentTailNodes.add(si.nodes.get(0));
-          }
+    applyCubePruning(i, j, candidates);
+  }
 
-          /*
-           * `ranks` records the current position in the cube. the 0th index is
-           * the rule, and the remaining indices 1..N correspond to the tail
-           * nodes (= nonterminals in the rule). These tail nodes are
-           * represented by SuperNodes, which group together items with the same
-           * nonterminal but different DP state (e.g., language model state)
-           */
-          int[] ranks = new int[1 + superNodes.size()];
-          Arrays.fill(ranks, 1);
-
-          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, bestRule,
-              currentTailNodes, i, j, sourcePath, sentence);
-          CubePruneState bestState = new CubePruneState(result, ranks, rules, currentTailNodes,
-              dotNode);
-          candidates.add(bestState);
-        }
+  /**
+   * Adds the terminal productions of a dot node directly to the chart.
+   */
+  private void addTerminalProductions(DotNode dotNode, int i, int j) {
+    List<Rule> rules = dotNode.getRuleCollection().getSortedRules(this.featureFunctions);
+    SourcePath sourcePath = dotNode.getSourcePath();
+
+    /*
+     * The total number of arity-0 items (pre-terminal rules) that we add
+     * is controlled by num_translation_options in the configuration.
+     * 
+     * We limit the translation options per DotNode; that is, per LHS.
+     */
+    int numTranslationsAdded = 0;
+
+    for (Rule rule : rules) {
+
+      if (config.num_translation_options > 0
+          && numTranslationsAdded >= config.num_translation_options) {
+        break;
+      }
+
+      ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, rule, null, i,
+          j, sourcePath, this.sentence);
+
+      if (stateConstraint == null || stateConstraint.isLegal(result.getDPStates())) {
+        getCell(i, j).addHyperEdgeInCell(result, rule, i, j, null, sourcePath, true);
+        numTranslationsAdded++;
       }
     }
+  }
 
-    applyCubePruning(i, j, candidates);
+  /**
+   * Has the batching language models score the edges of a span that are about to be scored (the
+   * terminal productions, as many as can be added, and the seeds, in this order) with one call
+   * each, instead of one call per edge.
+   * 
+   * @return whether the edges were scored, so clearPrefetched() must be called once they are
+   */
+  private boolean prefetch(List<DotNode> terminalNodes, List<CubePruneState> seeds, int i, int j) {
+    if (batchingLMs.isEmpty())
+      return false;
+
+    List<Rule> rules = new ArrayList<>();
+    List<List<HGNode>> tailNodes = new ArrayList<>();
+    for (DotNode dotNode : terminalNodes) {
+      List<Rule> terminalRules = dotNode.getRuleCollection().getSortedRules(this.featureFunctions);
+      int count = (config.num_translation_options > 0)
+          ? Math.min(terminalRules.size(), config.num_translation_options) : terminalRules.size();
+      for (Rule rule : terminalRules.subList(0, count)) {
+        rules.add(rule);
+        tailNodes.add(null);
+      }
+    }
+    for (CubePruneState seed : seeds) {
+      rules.add(seed.getRule());
+      tailNodes.add(seed.antNodes);
+    }
+
+    if (rules.size() < 2)
+      return false;
+    for (StateMinimizingLanguageModel lm : batchingLMs)
+      lm.prefetch(rules, tailNodes, i, j, this.sentence);
+    return true;
+  }
+
+  private void clearPrefetched() {
+    for (StateMinimizingLanguageModel lm : batchingLMs)
+      lm.clearPrefetched(this.sentence);
   }
 
   /**
@@ -302,11 +368,11 @@ public class Chart {
      * There are multiple ways to reach each point in the cube, so short-circuit
      * that.
      */
-    HashSet<CubePruneState> visitedStates = new HashSet<>();
+    HashSet<CubePosition> visitedStates = new HashSet<>();
 
-    int popLimit = config.pop_limit;
-    int popCount = 0;
-    while (candidates.size() > 0 && ((++popCount <= popLimit) || popLimit == 0)) {
+    int popLimit = budget.nextPopLimit();
+    int popped = 0;
+    while (candidates.size() > 0 && (popped < popLimit || popLimit == 0)) {
       CubePruneState state = candidates.poll();
 
       DotNode dotNode = state.getDotNode();
@@ -314,6 +380,20 @@ public class Chart {
       SourcePath sourcePath = dotNode.getSourcePath();
       List<SuperNode> superNodes = dotNode.getAntSuperNodes();
 
+      /*
+       * With lazy cube pruning, a state that reaches the top on its estimate is only scored now.
+       * If its real score is worse than the next candidate's, it goes back into the queue to
+       * compete with that score, which does not count as a pop.
+       */
+      if (!state.isScored()) {
+        score(state, i, j);
+        if (!candidates.isEmpty() && state.compareTo(candidates.peek()) > 0) {
+          candidates.add(state);
+          continue;
+        }
+      }
+      popped++;
+
       /*
        * Add the hypothesis to the chart. This can only happen if (a) we're not
        * doing constrained decoding or (b) we are and the state is legal.
@@ -331,45 +411,125 @@ public class Chart {
 
       for (int k = 0; k < state.ranks.length; k++) {
 
-        /* Copy the current ranks, then extend the one we're looking at. */
-        int[] nextRanks = new int[state.ranks.length];
-        System.arraycopy(state.ranks, 0, nextRanks, 0, state.ranks.length);
-        nextRanks[k]++;
-
         /*
          * We might have reached the end of something (list of rules or tail
          * nodes)
          */
+        int nextRank = state.ranks[k] + 1;
         if (k == 0
-            && (nextRanks[k] > rules.size() || (config.num_translation_options > 0 && nextRanks[k] > config.num_translation_options)))
+            && (nextRank > rules.size() || (config.num_translation_options > 0 && nextRank > config.num_translation_options)))
+          continue;
+        else if ((k != 0 && nextRank > superNodes.get(k - 1).nodes.size()))
           continue;
-        else if ((k != 0 && nextRanks[k] > superNodes.get(k - 1).nodes.size()))
+
+        /* Copy the current ranks, then extend the one we're looking at. */
+        int[] nextRanks = new int[state.ranks.length];
+        System.arraycopy(state.ranks, 0, nextRanks, 0, state.ranks.length);
+        nextRanks[k] = nextRank;
+
+        /*
+         * Skip states that have been explored before. States are identified by their position in
+         * the cube alone, so this is checked before paying for the features of the new edge.
+         */
+        if (!visitedStates.add(new CubePosition(dotNode, nextRanks)))
           continue;
 
-        /* Use the updated ranks to assign the next rule and tail node. */
-        Rule nextRule = rules.get(nextRanks[0] - 1);
+        /* Use the updated ranks to assign the next tail node. */
         // HGNode[] nextAntNodes = new HGNode[state.antNodes.size()];
         List<HGNode> nextAntNodes = new ArrayList<>(state.antNodes.size());
         for (int x = 0; x < state.ranks.length - 1; x++)
           nextAntNodes.add(superNodes.get(x).nodes.get(nextRanks[x + 1] - 1));
 
-        /* Create the next state. */
-        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions,
-            nextRule, nextAntNodes, i, j, sourcePath, this.sentence), nextRanks, rules,
-            nextAntNodes, dotNode);
-
-        /* Skip states that have been explored before. */
-        if (visitedStates.contains(nextState))
-          continue;
-
-        visitedStates.add(nextState);
+        /*
+         * Create the next state. With lazy-cube-pruning, it is only estimated from this state for
+         * now, see CubePruneState.estimateNeighbor().
+         */
+        CubePruneState nextState = config.lazy_cube_pruning
+            ? new CubePruneState(state.estimateNeighbor(k, nextRanks, nextAntNodes), nextRanks,
+                rules, nextAntNodes, dotNode)
+            : newCubePruneState(nextRanks, rules, nextAntNodes, dotNode, i, j);
         candidates.add(nextState);
       }
     }
+    budget.popped(popped);
+  }
+
+  /**
+   * Creates the unscored seed of the cube of a dot node, the state with the best rule and the
+   * best tail nodes.
+   */
+  private CubePruneState newSeedState(DotNode dotNode) {
+    List<Rule> rules = dotNode.getRuleCollection().getSortedRules(featureFunctions);
+    List<SuperNode> superNodes = dotNode.getAntSuperNodes();
+
+    List<HGNode> tailNodes = new ArrayList<>();
+    for (SuperNode superNode : superNodes)
+      tailNodes.add(superNode.nodes.get(0));
+
+    /*
+     * `ranks` records the current position in the cube. the 0th index is
+     * the rule, and the remaining indices 1..N correspond to the tail
+     * nodes (= nonterminals in the rule). These tail nodes are
+     * represented by SuperNodes, which group together items with the same
+     * nonterminal but different DP state (e.g., language model state)
+     */
+    int[] ranks = new int[1 + superNodes.size()];
+    Arrays.fill(ranks, 1);
+
+    return new CubePruneState(0.0f, ranks, rules, tailNodes, dotNode);
+  }
+
+  /**
+   * Scores a cube-pruning state with all feature functions.
+   */
+  private void score(CubePruneState state, int i, int j) {
+    nScored++;
+    state.setResult(new ComputeNodeResult(featureFunctions, state.getRule(), state.antNodes, i, j,
+        state.getDotNode().getSourcePath(), this.sentence));
+  }
+
+  /**
+   * Creates the cube-pruning state for a point in a cube, scored with all feature functions.
+   */
+  private CubePruneState newCubePruneState(int[] ranks, List<Rule> rules, List<HGNode> tailNodes,
+      DotNode dotNode, int i, int j) {
+    nScored++;
+    return new CubePruneState(new ComputeNodeResult(featureFunctions, rules.get(ranks[0] - 1),
+        tailNodes, i, j, dotNode.getSourcePath(), this.sentence), ranks, rules, tailNodes, dotNode);
+  }
+
+
+  /**
+   * A point in a cube: the dot node the cube was built from, and the ranks along each of its
+   * dimensions. This is what identifies a {@link CubePruneState}, without its scores.
+   */
+  private static class CubePosition {
+    private final DotNode dotNode;
+    private final int[] ranks;
+
+    CubePosition(DotNode dotNode, int[] ranks) {
+      this.dotNode = dotNode;
+      this.ranks = ranks;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(dotNode) + Arrays.hashCode(ranks);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof CubePosition))
+        return false;
+      CubePosition that = (CubePosition) obj;
+      return dotNode == that.dotNode && Arrays.equals(ranks, that.ranks);
+    }
   }
 
   /* Create a priority queue of candidates for each span under consideration */
   private PriorityQueue<CubePruneState>[] allCandidates;
+  /* The seeds of each span, scored together just before the span's cube pruning */
+  private List<List<CubePruneState>> allSeeds;
 
   private ArrayList<SuperNode> nodeStack;
 
@@ -385,6 +545,9 @@ public class Chart {
       allCandidates = new PriorityQueue[sourceLength - i + 2];
       for (int id = 0; id < allCandidates.length; id++)
         allCandidates[id] = new PriorityQueue<>();
+      allSeeds = new ArrayList<>();
+      for (int id = 0; id < allCandidates.length; id++)
+        allSeeds.add(new ArrayList<>());
 
       nodeStack = new ArrayList<>();
 
@@ -412,6 +575,16 @@ public class Chart {
           }
         }
 
+        // Score the seeds of the span together
+        List<CubePruneState> seeds = allSeeds.get(j - i);
+        boolean prefetched = prefetch(Collections.emptyList(), seeds, i, j);
+        for (CubePruneState seed : seeds) {
+          score(seed, i, j);
+          allCandidates[j - i].add(seed);
+        }
+        if (prefetched)
+          clearPrefetched();
+
         // Now that we've accumulated all the candidates, apply cube pruning
         applyCubePruning(i, j, allCandidates[j - i]);
 
@@ -476,11 +649,10 @@ public class Chart {
     // Now try to match nonterminals
     Cell cell = cells.get(j, l);
     if (cell != null) {
-      for (int id : cell.getKeySet()) { // for each supernode (lhs), see if you
-                                        // can match a trie
-        Trie nextTrie = trie.match(id);
+      for (SuperNode superNode : cell.getSuperNodes()) { // for each supernode (lhs), see if you
+                                                         // can match a trie
+        Trie nextTrie = trie.match(superNode.lhs);
         if (nextTrie != null) {
-          SuperNode superNode = cell.getSuperNode(id);
           nodeStack.add(superNode);
           addToChart(nextTrie, superNode.end(), i == j);
           nodeStack.remove(nodeStack.size() - 1);
@@ -527,22 +699,7 @@ public class Chart {
 
     // TODO: one entry per rule, or per rule instantiation (rule together with
     // unique matching of input)?
-    List<Rule> rules = dotNode.getRuleCollection().getSortedRules(featureFunctions);
-    Rule bestRule = rules.get(0);
-    List<SuperNode> superNodes = dotNode.getAntSuperNodes();
-
-    List<HGNode> tailNodes = new ArrayList<>();
-    for (SuperNode superNode : superNodes)
-      tailNodes.add(superNode.nodes.get(0));
-
-    int[] ranks = new int[1 + superNodes.size()];
-    Arrays.fill(ranks, 1);
-
-    ComputeNodeResult result = new ComputeNodeResult(featureFunctions, bestRule, tailNodes,
-        dotNode.begin(), dotNode.end(), dotNode.getSourcePath(), sentence);
-    CubePruneState seedState = new CubePruneState(result, ranks, rules, tailNodes, dotNode);
-
-    allCandidates[dotNode.end() - dotNode.begin()].add(seedState);
+    allSeeds.get(dotNode.end() - dotNode.begin()).add(newSeedState(dotNode));
   }
 
   /**
@@ -654,8 +811,8 @@ public class Chart {
 
   private void logStatistics() {
     if (LOG.isDebugEnabled())
-      LOG.debug("Input {}: Chart: added {} merged {} dot-items added: {}",
-          this.sentence.id(), this.nAdded, this.nMerged, this.nDotitemAdded);
+      LOG.debug("Input {}: Chart: added {} merged {} dot-items added: {} states scored: {}",
+          this.sentence.id(), this.nAdded, this.nMerged, this.nDotitemAdded, this.nScored);
   }
 
   /**
@@ -27,6 +27,7 @@ import org.apache.joshua.decoder.ff.StatefulFF;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.state_maintenance.DPStatePool;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HGNode;
 import org.apache.joshua.decoder.hypergraph.HyperEdge;
@@ -99,7 +100,7 @@ public class ComputeNodeResult {
       }
     }
 
-    List<DPState> allDPStates = new ArrayList<>();
+    List<DPState> allDPStates = new ArrayList<>(featureFunctions.size());
 
     // The transition cost is the new cost incurred by applying this rule
     this.transitionCost = 0.0f;
@@ -111,20 +112,36 @@ public class ComputeNodeResult {
      * We now iterate over all the feature functions, computing their cost and their expected future
      * cost.
      */
+    final FeatureVector weights = sentence.getWeights();
+    final DPStatePool statePool = sentence.getDPStatePool();
+    /*
+     * With explicit weights the accumulator does not depend on the feature, so a single one is
+     * reset and reused rather than allocating one per feature for every candidate edge.
+     */
+    FeatureFunction.ScoreAccumulator sharedAcc = (weights != null && !featureFunctions.isEmpty())
+        ? featureFunctions.get(0).new ScoreAccumulator(weights) : null;
     for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
+      FeatureFunction.ScoreAccumulator acc;
+      if (sharedAcc != null) {
+        acc = sharedAcc;
+        acc.reset();
+      } else {
+        acc = feature.new ScoreAccumulator(weights);
+      }
 
       DPState newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentence, acc);
       this.transitionCost += acc.getScore();
 
 
       if (LOG.isDebugEnabled()) {
+        float weight = (weights != null ? weights : Decoder.weights).getSparse(feature.getName());
         LOG.debug("FEATURE {} = {} * {} = {}", feature.getName(),
-            acc.getScore() / Decoder.weights.getSparse(feature.getName()),
-            Decoder.weights.getSparse(feature.getName()), acc.getScore());
+            acc.getScore() / weight, weight, acc.getScore());
       }
 
       if (feature.isStateful()) {
+        if (statePool != null)
+          newState = statePool.intern(newState);
         futureCostEstimate += feature.estimateFutureCost(rule, newState, sentence);
         allDPStates.add(((StatefulFF)feature).getStateIndex(), newState);
       }
@@ -31,17 +31,77 @@ import org.apache.joshua.decoder.ff.tm.Rule;
 // ===============================================================
 public class CubePruneState implements Comparable<CubePruneState> {
   final int[] ranks;
-  final ComputeNodeResult computeNodeResult;
+  /* null until the state is scored, for states created with an estimate (lazy cube pruning) */
+  ComputeNodeResult computeNodeResult;
   final List<HGNode> antNodes;
   final List<Rule> rules;
   private DotNode dotNode;
 
+  /* The cheap estimate that orders an unscored state */
+  private final float estimate;
+
   public CubePruneState(ComputeNodeResult score, int[] ranks, List<Rule> rules, List<HGNode> antecedents, DotNode dotNode) {
     this.computeNodeResult = score;
     this.ranks = ranks;
     this.rules = rules;
     this.antNodes = antecedents;
     this.dotNode = dotNode;
+    this.estimate = 0.0f;
+  }
+
+  /**
+   * Creates an unscored state, which is ordered by a cheap estimate (see
+   * {@link #estimateNeighbor(int, int[], List)}) until it reaches the top of the candidates and is
+   * scored with {@link #setResult(ComputeNodeResult)}.
+   * 
+   * @param estimate the estimated pruning score
+   * @param ranks the position in the cube
+   * @param rules the rules of the cube
+   * @param antecedents the tail nodes
+   * @param dotNode the dot node the cube was built from
+   */
+  public CubePruneState(float estimate, int[] ranks, List<Rule> rules, List<HGNode> antecedents, DotNode dotNode) {
+    this.computeNodeResult = null;
+    this.ranks = ranks;
+    this.rules = rules;
+    this.antNodes = antecedents;
+    this.dotNode = dotNode;
+    this.estimate = estimate;
+  }
+
+  /**
+   * Estimates the score of a neighbor of this (scored) state in the cube without calling the
+   * feature functions. The score of this state is adjusted by the difference in the changed
+   * dimension: the estimated cost of the rule, or the Viterbi score of the tail node. This is the
+   * assumption cube pruning itself makes, that scores are roughly monotonic in the ranks; it
+   * ignores how the language model scores the new combination.
+   * 
+   * @param k the dimension that changed (0 for the rule)
+   * @param nextRanks the position of the neighbor
+   * @param nextAntNodes the tail nodes of the neighbor
+   * @return the estimated pruning score of the neighbor
+   */
+  float estimateNeighbor(int k, int[] nextRanks, List<HGNode> nextAntNodes) {
+    if (k == 0)
+      return getPruningEstimate() - rules.get(ranks[0] - 1).getEstimatedCost()
+          + rules.get(nextRanks[0] - 1).getEstimatedCost();
+    return getPruningEstimate() - antNodes.get(k - 1).bestHyperedge.getBestDerivationScore()
+        + nextAntNodes.get(k - 1).bestHyperedge.getBestDerivationScore();
+  }
+
+  boolean isScored() {
+    return computeNodeResult != null;
+  }
+
+  void setResult(ComputeNodeResult result) {
+    this.computeNodeResult = result;
+  }
+
+  /**
+   * @return the pruning estimate of the result if the state is scored, its cheap estimate if not
+   */
+  float getPruningEstimate() {
+    return (computeNodeResult != null) ? computeNodeResult.getPruningEstimate() : estimate;
   }
 
   /**
@@ -58,6 +118,8 @@ public class CubePruneState implements Comparable<CubePruneState> {
   }
 
   public String toString() {
+    if (computeNodeResult == null)
+      return "STATE ||| rule=" + getRule() + " unscored, estimate = " + estimate;
     String sb = "STATE ||| rule=" + getRule() + " inside cost = " +
         computeNodeResult.getViterbiCost() + " estimate = " +
         computeNodeResult.getPruningEstimate();
@@ -99,11 +161,9 @@ public class CubePruneState implements Comparable<CubePruneState> {
    * order (high-prob first).
    */
   public int compareTo(CubePruneState another) {
-    if (this.computeNodeResult.getPruningEstimate() < another.computeNodeResult
-        .getPruningEstimate()) {
+    if (this.getPruningEstimate() < another.getPruningEstimate()) {
       return 1;
-    } else if (this.computeNodeResult.getPruningEstimate() == another.computeNodeResult
-        .getPruningEstimate()) {
+    } else if (this.getPruningEstimate() == another.getPruningEstimate()) {
       return 0;
     } else {
       return -1;
@@ -39,6 +39,9 @@ class SuperNode {
    */
   final List<HGNode> nodes;
 
+  /* Whether nodes is sorted by decreasing score; maintained by the cell */
+  boolean sorted = false;
+
   /**
    * All nodes in a SuperNode have the same start and end points, so we pick the first one and
    * return it.
@@ -214,7 +214,7 @@ public abstract class FeatureFunction {
   public final float computeFinalCost(HGNode tailNode, int i, int j, SourcePath sourcePath,
       Sentence sentence) {
 
-    ScoreAccumulator score = new ScoreAccumulator();
+    ScoreAccumulator score = new ScoreAccumulator(sentence.getWeights());
     computeFinal(tailNode, i, j, sourcePath, sentence, score);
     return score.getScore();
   }
@@ -324,9 +324,22 @@ public abstract class FeatureFunction {
 
   public class ScoreAccumulator implements Accumulator {
     private float score;
+    private final FeatureVector weights;
 
     public ScoreAccumulator() {
+      this(null);
+    }
+
+    /**
+     * Creates an accumulator that scores with the given weights instead of the ones the feature
+     * function was loaded with. This is how a sentence is decoded under the weight snapshot that
+     * was current when its decoding began (see {@link Sentence#getWeights()}).
+     * 
+     * @param weights the weights to score with, or null to use the feature function's own
+     */
+    public ScoreAccumulator(FeatureVector weights) {
       this.score = 0.0f;
+      this.weights = (weights != null) ? weights : FeatureFunction.this.weights;
     }
 
     @Override
@@ -342,6 +355,14 @@ public abstract class FeatureFunction {
     public float getScore() {
       return score;
     }
+
+    /**
+     * Zeroes the score, so that one accumulator can be reused for several features. This only
+     * makes sense if it was created with explicit weights.
+     */
+    public void reset() {
+      score = 0.0f;
+    }
   }
 
   public class FeatureAccumulator implements Accumulator {
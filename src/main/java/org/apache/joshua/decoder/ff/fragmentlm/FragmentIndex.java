@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.fragmentlm;
+
+import static org.apache.joshua.util.Bits.mix;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import org.apache.joshua.util.LongIntHashMap;
+
+/**
+ * A compiled set of tree fragments, used by {@link FragmentLMFF} to find all of the fragments that
+ * match a tree at its root.
+ * 
+ * Each fragment is written out in preorder as a sequence of (label, number of children) symbols,
+ * and the fragments are stored in a trie over these sequences. A fragment leaf has no children in
+ * this encoding, and matches a tree node with the same label regardless of what is below it; an
+ * internal fragment node matches only a tree node with the same label and the same number of
+ * children. Matching walks the trie and the tree together, so that fragments sharing a prefix are
+ * matched only once, and fires the integer ids of the fragments that end in the reached states.
+ * 
+ * Labels and states are plain ints, and transitions are kept in a primitive hash table. The index
+ * is built once and can then be matched against from several threads.
+ */
+public class FragmentIndex {
+
+  private static final int NONE = -1;
+
+  /* Interns (label, arity) pairs as symbol ids */
+  private final LongIntHashMap symbols = new LongIntHashMap();
+
+  /* The trie transitions, from (state, symbol) to state. State 0 is the root. */
+  private final LongIntHashMap transitions = new LongIntHashMap();
+  private int numStates = 1;
+
+  /* The first fragment ending in each state, chained through nextFragment */
+  private int[] firstFragment = new int[] { NONE };
+  private int[] nextFragment = new int[16];
+  private String[] names = new String[16];
+  private int numFragments = 0;
+
+  /**
+   * Adds a fragment to the index.
+   * 
+   * @param fragment the fragment
+   * @param name the name of the feature the fragment fires
+   * @return the id of the fragment
+   */
+  public int add(Tree fragment, String name) {
+    int state = 0;
+
+    Deque<Tree> nodes = new ArrayDeque<>();
+    nodes.push(fragment);
+    while (!nodes.isEmpty()) {
+      Tree node = nodes.pop();
+      int symbol = internSymbol(node.getLabel(), arity(node));
+      long key = transitionKey(state, symbol);
+      int next = transitions.get(key, NONE);
+      if (next == NONE) {
+        next = numStates++;
+        transitions.put(key, next);
+        if (next == firstFragment.length) {
+          firstFragment = Arrays.copyOf(firstFragment, 2 * next);
+          Arrays.fill(firstFragment, next, firstFragment.length, NONE);
+        }
+      }
+      state = next;
+
+      if (node.getChildren() != null)
+        for (int i = node.getChildren().size() - 1; i >= 0; i--)
+          nodes.push(node.getChildren().get(i));
+    }
+
+    int id = numFragments++;
+    if (id == names.length) {
+      names = Arrays.copyOf(names, 2 * id);
+      nextFragment = Arrays.copyOf(nextFragment, 2 * id);
+    }
+    names[id] = name;
+    nextFragment[id] = firstFragment[state];
+    firstFragment[state] = id;
+    return id;
+  }
+
+  /**
+   * @return the number of fragments in the index
+   */
+  public int size() {
+    return numFragments;
+  }
+
+  /**
+   * @param id a fragment id
+   * @return the feature name of the fragment
+   */
+  public String getName(int id) {
+    return names[id];
+  }
+
+  /**
+   * Finds the fragments that match a tree at its root. The root of a fragment must have the same
+   * children as the root of the tree, as with the depth-one rules fragments used to be keyed by.
+   * 
+   * @param tree the tree to match against
+   * @param action called with the id of each matching fragment
+   */
+  public void match(Tree tree, IntConsumer action) {
+    int state = next(0, tree.getLabel(), arity(tree));
+    if (state != NONE)
+      new Matcher(action).expand(state, tree, 0);
+  }
+
+  private int next(int state, int label, int arity) {
+    int symbol = symbols.get(symbolKey(label, arity), NONE);
+    return (symbol == NONE) ? NONE : transitions.get(transitionKey(state, symbol), NONE);
+  }
+
+  private int internSymbol(int label, int arity) {
+    long key = symbolKey(label, arity);
+    int symbol = symbols.get(key, NONE);
+    if (symbol == NONE) {
+      symbol = symbols.size();
+      symbols.put(key, symbol);
+    }
+    return symbol;
+  }
+
+  private static int arity(Tree tree) {
+    return (tree.getChildren() == null) ? 0 : tree.getChildren().size();
+  }
+
+  private static long symbolKey(int label, int arity) {
+    return mix(((long) label << 32) | (arity & 0xffffffffL));
+  }
+
+  private static long transitionKey(int state, int symbol) {
+    return mix(((long) state << 32) | (symbol & 0xffffffffL));
+  }
+
+  /**
+   * Walks the trie along the tree. The tree nodes still to be matched are kept on a stack, in
+   * preorder; each step pops a node and follows the trie either by stopping at the node (a fragment
+   * leaf) or by descending into its children.
+   */
+  private final class Matcher {
+    private final IntConsumer action;
+    private Tree[] pending = new Tree[16];
+
+    Matcher(IntConsumer action) {
+      this.action = action;
+    }
+
+    void expand(int state, Tree tree, int top) {
+      List<Tree> children = tree.getChildren();
+      int arity = arity(tree);
+      if (top + arity > pending.length)
+        pending = Arrays.copyOf(pending, 2 * (top + arity));
+      for (int i = arity - 1; i >= 0; i--)
+        pending[top++] = children.get(i);
+      step(state, top);
+    }
+
+    /* Leaves pending[0, top) as it found it */
+    void step(int state, int top) {
+      if (top == 0) {
+        for (int id = firstFragment[state]; id != NONE; id = nextFragment[id])
+          action.accept(id);
+        return;
+      }
+
+      Tree tree = pending[--top];
+
+      int next = next(state, tree.getLabel(), 0);
+      if (next != NONE)
+        step(next, top);
+
+      int arity = arity(tree);
+      if (arity > 0) {
+        next = next(state, tree.getLabel(), arity);
+        if (next != NONE)
+          expand(next, tree, top);
+      }
+
+      pending[top] = tree;
+    }
+  }
+}
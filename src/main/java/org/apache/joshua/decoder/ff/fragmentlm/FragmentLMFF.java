@@ -22,7 +22,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Stack;
 
@@ -95,11 +94,9 @@ public class FragmentLMFF extends StatefulFF {
   private int MIN_LEX_DEPTH = 1;
 
   /*
-   * This contains a list of the language model fragments, indexed by LHS.
+   * This contains the language model fragments, compiled into a trie over their labels.
    */
-  private HashMap<String, ArrayList<Tree>> lmFragments = null;
-
-  private int numFragments = 0;
+  private FragmentIndex lmFragments = null;
 
   /* The location of the file containing the language model fragments */
   private String fragmentLMFile = "";
@@ -112,7 +109,7 @@ public class FragmentLMFF extends StatefulFF {
   public FragmentLMFF(FeatureVector weights, String[] args, JoshuaConfiguration config) {
     super(weights, "FragmentLMFF", args, config);
 
-    lmFragments = new HashMap<>();
+    lmFragments = new FragmentIndex();
 
     fragmentLMFile = parsedArgs.get("lm");
     BUILD_DEPTH = Integer.parseInt(parsedArgs.get("build-depth"));
@@ -129,7 +126,7 @@ public class FragmentLMFF extends StatefulFF {
       throw new RuntimeException(String.format("* WARNING: couldn't read fragment LM file '%s'",
           fragmentLMFile), e);
     }
-    LOG.info("FragmentLMFF: Read {} LM fragments from '{}'", numFragments, fragmentLMFile);
+    LOG.info("FragmentLMFF: Read {} LM fragments from '{}'", lmFragments.size(), fragmentLMFile);
   }
 
   /**
@@ -153,11 +150,7 @@ public class FragmentLMFF extends StatefulFF {
       return;
     }
 
-    if (lmFragments.get(fragment.getRule()) == null) {
-      lmFragments.put(fragment.getRule(), new ArrayList<>());
-    }
-    lmFragments.get(fragment.getRule()).add(fragment);
-    numFragments++;
+    lmFragments.add(fragment, fragment.escapedString());
   }
   
   /**
@@ -195,23 +188,7 @@ public class FragmentLMFF extends StatefulFF {
       if (tree == null)
         continue;
 
-      if (lmFragments.get(tree.getRule()) != null) {
-        //           System.err.println(String.format("Does\n  %s match\n  %s??\n  -> %s", fragment, tree,
-        //           match(fragment, tree)));
-        //             System.err.println(String.format("  FIRING: matched %s against %s", fragment, tree));
-        lmFragments.get(tree.getRule()).stream()
-            .filter(fragment -> fragment.getLabel() == tree.getLabel() && match(fragment, tree))
-            .forEach(fragment -> {
-              //             System.err.println(String.format("  FIRING: matched %s against %s", fragment, tree));
-              acc.add(fragment.escapedString(), 1);
-              boolean OPTS_DEPTH = false;
-              if (OPTS_DEPTH)
-                if (fragment.isLexicalized())
-                  acc.add(String.format("FragmentFF_lexdepth%d", fragment.getDepth()), 1);
-                else
-                  acc.add(String.format("FragmentFF_depth%d", fragment.getDepth()), 1);
-            });
-      }
+      lmFragments.match(tree, fragment -> acc.add(lmFragments.getName(fragment), 1));
 
       // We also need to try matching rules against internal nodes of the fragment corresponding to
       // this
@@ -332,7 +309,7 @@ public class FragmentLMFF extends StatefulFF {
    */
   public class FragmentState extends DPState {
 
-    private Tree tree = null;
+    private final Tree tree;
 
     public FragmentState(Tree tree) {
       this.tree = tree;
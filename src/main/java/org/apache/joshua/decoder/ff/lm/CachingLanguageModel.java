@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.apache.joshua.util.Bits.mix;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wraps any {@link NGramLanguageModel} with a per-thread, direct-mapped cache of n-gram log
+ * probabilities. The decoder asks for the same n-grams over and over (across neighbouring
+ * cube-pruning candidates, across overlapping spans, and in the cost estimates), and most backends
+ * do not cache on their own.
+ * 
+ * Each decoding thread has its own table, so lookups need no synchronization. A slot holds a 64-bit
+ * hash of the n-gram's word ids and its order, together with the probability. A new entry simply
+ * replaces whatever was in its slot. Calls to {@link #sentenceLogProbability(int[], int, int)}
+ * are cached as a whole, in the same table.
+ * 
+ * Hits and misses are added to the totals as they happen, once per call, so that the hit rate
+ * always covers every query made so far. A thread's table can be emptied whenever the thread begins
+ * a new sentence (see {@link #beginSentence(Object)}).
+ */
+public class CachingLanguageModel implements NGramLanguageModel {
+
+  private static final long SEED = 0xcbf29ce484222325L;
+  private static final long PRIME = 0x100000001b3L;
+
+  /* Distinguishes the keys of whole-sentence queries from n-gram keys */
+  private static final long SENTENCE_SALT = 0x9e3779b97f4a7c15L;
+
+  private final NGramLanguageModel languageModel;
+  private final int size;
+  private final boolean resetPerSentence;
+
+  private final ThreadLocal<Table> tables;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param languageModel the backend
+   * @param size the number of entries in each thread's table (rounded up to a power of two)
+   * @param resetPerSentence whether to empty a thread's table when it begins a new sentence
+   */
+  public CachingLanguageModel(NGramLanguageModel languageModel, int size,
+      boolean resetPerSentence) {
+    this.languageModel = languageModel;
+    this.size = Integer.highestOneBit(Math.max(size, 2) - 1) << 1;
+    this.resetPerSentence = resetPerSentence;
+    this.tables = ThreadLocal.withInitial(() -> new Table(this.size));
+  }
+
+  private static final class Table {
+    final long[] keys;
+    final float[] values;
+    final int mask;
+    /* The sentence the table was last used for; weak, so that it can be collected once decoded */
+    WeakReference<Object> sentence = null;
+
+    Table(int size) {
+      keys = new long[size];
+      values = new float[size];
+      mask = size - 1;
+    }
+  }
+
+  /**
+   * @return the wrapped language model
+   */
+  public NGramLanguageModel getLanguageModel() {
+    return languageModel;
+  }
+
+  /**
+   * Tells the cache that the calling thread is working on the given sentence. If it differs from
+   * the previous one and the cache is reset per sentence, the thread's table is emptied.
+   * 
+   * @param sentence the sentence being decoded (compared by identity); null is ignored
+   */
+  public void beginSentence(Object sentence) {
+    if (sentence == null || !resetPerSentence)
+      return;
+    Table table = tables.get();
+    if (table.sentence != null && table.sentence.get() == sentence)
+      return;
+
+    table.sentence = new WeakReference<>(sentence);
+    Arrays.fill(table.keys, 0L);
+  }
+
+  /**
+   * @return the number of cache hits so far
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of cache misses so far
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the fraction of queries answered from the cache so far, or 0 before the first query
+   */
+  public double getHitRate() {
+    long h = getHits();
+    long total = h + getMisses();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("size=%d hits=%d misses=%d hit_rate=%.3f", size, getHits(), getMisses(),
+        getHitRate());
+  }
+
+  private static long key(int[] words, int from, int length, long salt) {
+    long h = SEED ^ salt;
+    for (int i = from; i < from + length; i++) {
+      h ^= words[i];
+      h *= PRIME;
+    }
+    h ^= length;
+    h = mix(h);
+    // 0 marks an empty slot
+    return (h == 0) ? 1 : h;
+  }
+
+  private static int slot(Table table, long key) {
+    return (int) (key ^ (key >>> 32)) & table.mask;
+  }
+
+  @Override
+  public int getOrder() {
+    return languageModel.getOrder();
+  }
+
+  @Override
+  public boolean registerWord(String token, int id) {
+    return languageModel.registerWord(token, id);
+  }
+
+  @Override
+  public boolean isOov(int id) {
+    return languageModel.isOov(id);
+  }
+
+  @Override
+  public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
+    if (sentence == null)
+      return languageModel.sentenceLogProbability(sentence, order, startIndex);
+
+    Table table = tables.get();
+    long key = key(sentence, 0, sentence.length, SENTENCE_SALT + 31L * order + startIndex);
+    int slot = slot(table, key);
+    if (table.keys[slot] == key) {
+      hits.increment();
+      return table.values[slot];
+    }
+    misses.increment();
+    float prob = languageModel.sentenceLogProbability(sentence, order, startIndex);
+    table.keys[slot] = key;
+    table.values[slot] = prob;
+    return prob;
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram, int order) {
+    Table table = tables.get();
+    long key = key(ngram, 0, ngram.length, order);
+    int slot = slot(table, key);
+    if (table.keys[slot] == key) {
+      hits.increment();
+      return table.values[slot];
+    }
+    misses.increment();
+    float prob = languageModel.ngramLogProbability(ngram, order);
+    table.keys[slot] = key;
+    table.values[slot] = prob;
+    return prob;
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram) {
+    return ngramLogProbability(ngram, getOrder());
+  }
+
+  /**
+   * Looks up all the n-grams and passes only the misses on to the backend, in a single batch.
+   */
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    Table table = tables.get();
+    long[] keys = null;
+    int[] positions = null;
+    int[] missing = null;
+    int missCount = 0;
+
+    for (int i = 0; i < count; i++) {
+      long key = key(ngrams, i * order, order, order);
+      int slot = slot(table, key);
+      if (table.keys[slot] == key) {
+        probs[i] = table.values[slot];
+      } else {
+        if (missing == null) {
+          keys = new long[count];
+          positions = new int[count];
+          missing = new int[count * order];
+        }
+        System.arraycopy(ngrams, i * order, missing, missCount * order, order);
+        keys[missCount] = key;
+        positions[missCount++] = i;
+      }
+    }
+    if (missCount < count)
+      hits.add(count - missCount);
+    if (missCount == 0)
+      return;
+    misses.add(missCount);
+
+    float[] missProbs = new float[missCount];
+    languageModel.ngramLogProbabilities(missing, order, missCount, missProbs);
+    for (int m = 0; m < missCount; m++) {
+      int slot = slot(table, keys[m]);
+      table.keys[slot] = keys[m];
+      table.values[slot] = missProbs[m];
+      probs[positions[m]] = missProbs[m];
+    }
+  }
+}
@@ -108,6 +108,15 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
     return this.ngramLogProbability(ngram, this.ngramOrder);
   }
 
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    int[] ngram = new int[order];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(ngrams, i * order, ngram, 0, order);
+      probs[i] = ngramLogProbability(ngram, order);
+    }
+  }
+
   protected abstract float ngramLogProbability_helper(int[] ngram, int order);
   
   @Override
@@ -26,6 +26,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.List;
 
 import static java.nio.ByteOrder.LITTLE_ENDIAN;
 import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
@@ -54,6 +57,9 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
   // inferred from model file (may be larger than ngramOrder)
   private final int N;
 
+  // Direct buffer shared with KenLM by probBatch, per thread
+  private final ThreadLocal<NgramBatch> ngramBatches = ThreadLocal.withInitial(() -> new NgramBatch(1024));
+
   public KenLM(int order, String file_name) {
     pointer = initializeSystemLibrary(file_name);
     ngramOrder = order;
@@ -82,6 +88,8 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private static native float prob(long ptr, int words[]);
 
+  private static native void probBatch(long ptr, ByteBuffer batch, int order, int count);
+
   private static native float probForString(long ptr, String[] words);
 
   private static native boolean isKnownWord(long ptr, String word);
@@ -90,6 +98,8 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private static native long probRule(long ptr, long pool);
 
+  private static native void probRules(long ptr, long pool, ByteBuffer batch, int count);
+
   private static native float estimateRule(long ptr, long words[]);
 
   private static native float probString(long ptr, int words[], int start);
@@ -137,6 +147,27 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return prob(pointer, words);
   }
 
+  /**
+   * Scores count n-grams of the given order with a single call into KenLM. The n-grams and the
+   * probabilities are passed through a direct buffer, so the JNI call copies no arrays.
+   */
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    if (count <= 0)
+      return;
+    int size = count + order * count;
+    NgramBatch batch = ngramBatches.get();
+    if (batch.ints.capacity() < size) {
+      batch = new NgramBatch(Math.max(size, 2 * batch.ints.capacity()));
+      ngramBatches.set(batch);
+    }
+    batch.ints.position(count);
+    batch.ints.put(ngrams, 0, order * count);
+    probBatch(pointer, batch.buffer, order, count);
+    batch.floats.position(0);
+    batch.floats.get(probs, 0, count);
+  }
+
   /**
    * Query for n-gram probability using strings.
    *
@@ -165,17 +196,59 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
    * KenLM state and the LM probability incurred along this rule
    */
   public StateProbPair probRule(long[] words, LmPool poolWrapper) {
+    long packedResult = probRulePacked(words, poolWrapper);
+    return new StateProbPair(unpackState(packedResult), unpackProb(packedResult));
+  }
+
+  /**
+   * Like {@link #probRule(long[], LmPool)}, but returns the state and the probability packed into
+   * a long (see {@link #unpackState(long)} and {@link #unpackProb(long)}), so that no result
+   * object needs to be allocated.
+   *
+   * @param words       array of words
+   * @param poolWrapper an object that wraps a pool reference returned from KenLM createPool
+   * @return the packed KenLM state and LM probability
+   */
+  public long probRulePacked(long[] words, LmPool poolWrapper) {
+    int prefetched = poolWrapper.findPrefetched(words);
+    if (prefetched >= 0)
+      return poolWrapper.getPrefetchedResult(prefetched);
+    poolWrapper.writeIdsToBuffer(words);
+    return probRule(pointer, poolWrapper.getPool());
+  }
 
-    poolWrapper.setBufferLength(words.length);
-    for (int i = 0; i < words.length; i++) {
-      poolWrapper.writeIdToBuffer(i, words[i]);
+  /**
+   * Scores several rules, e.g., the seeds of all cubes of a span, with a single call into KenLM.
+   * The rules are passed through the pool's batch buffer.
+   *
+   * @param rules       the words of each rule, as for {@link #probRulePacked(long[], LmPool)}
+   * @param poolWrapper an object that wraps a pool reference returned from KenLM createPool
+   * @return the packed KenLM state and LM probability of each rule
+   */
+  public long[] probRules(List<long[]> rules, LmPool poolWrapper) {
+    long[] results = new long[rules.size()];
+    if (results.length > 0) {
+      ByteBuffer batch = poolWrapper.writeRulesToBatchBuffer(rules);
+      probRules(pointer, poolWrapper.getPool(), batch, results.length);
+      poolWrapper.readResultsFromBatchBuffer(results);
     }
+    return results;
+  }
 
-    long packedResult = probRule(pointer, poolWrapper.getPool());
-    int state = (int) (packedResult >> 32);
-    float probVal = Float.intBitsToFloat((int) packedResult);
+  /**
+   * @param packedResult a result of {@link #probRulePacked(long[], LmPool)}
+   * @return the KenLM state
+   */
+  public static int unpackState(long packedResult) {
+    return (int) (packedResult >> 32);
+  }
 
-    return new StateProbPair(state, probVal);
+  /**
+   * @param packedResult a result of {@link #probRulePacked(long[], LmPool)}
+   * @return the LM probability
+   */
+  public static float unpackProb(long packedResult) {
+    return Float.intBitsToFloat((int) packedResult);
   }
 
   /**
@@ -271,6 +344,22 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     }
   }
 
+  /**
+   * A direct buffer for probBatch: a float slot per n-gram for its probability, followed by the
+   * n-grams.
+   */
+  private static class NgramBatch {
+    final ByteBuffer buffer;
+    final IntBuffer ints;
+    final FloatBuffer floats;
+
+    NgramBatch(int capacity) {
+      buffer = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(LITTLE_ENDIAN);
+      ints = buffer.asIntBuffer();
+      floats = buffer.asFloatBuffer();
+    }
+  }
+
   private class KenLMPool extends LmPool {
     protected KenLMPool(long pool, ByteBuffer ngramBuffer) {
       super(pool, KenLM.this, ngramBuffer);
@@ -25,6 +25,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -63,6 +68,9 @@ public class LanguageModelFF extends StatefulFF {
   static final Logger LOG = LoggerFactory.getLogger(LanguageModelFF.class);
 
   public static int LM_INDEX = 0;
+
+  /* Backend models being loaded in the background, by type, order and path */
+  private static final Map<String, Future<NGramLanguageModel>> PRELOADED = new ConcurrentHashMap<>();
   private int startSymbolId;
 
   /**
@@ -81,6 +89,9 @@ public class LanguageModelFF extends StatefulFF {
    * </ol>
    */
   protected NGramLanguageModel languageModel;
+
+  /** The n-gram cache wrapping languageModel, if lm-cache-size is set */
+  protected CachingLanguageModel cache = null;
   
   protected final static String NAME_PREFIX = "lm_";
   protected final static String OOV_SUFFIX = "_oov";
@@ -107,6 +118,27 @@ public class LanguageModelFF extends StatefulFF {
   protected boolean withOovFeature;
   protected int oovDenseFeatureIndex = -1;
 
+  /**
+   * Per-thread work buffers for {@link #computeTransition(int[], List, Accumulator)}, which is
+   * called once per candidate edge and would otherwise allocate them every time. Nothing in them
+   * outlives a single call.
+   */
+  private final ThreadLocal<TransitionScratch> scratch;
+
+  private static class TransitionScratch {
+    int[] current;
+    int[] shadow;
+    int[] ngrams;
+    float[] probs;
+
+    TransitionScratch(int order) {
+      this.current = new int[order];
+      this.shadow = new int[order];
+      this.ngrams = new int[order * 16];
+      this.probs = new float[16];
+    }
+  }
+
   public LanguageModelFF(FeatureVector weights, String[] args, JoshuaConfiguration config) {
     super(weights, NAME_PREFIX + LM_INDEX, args, config);
     this.oovFeatureName = NAME_PREFIX + LM_INDEX + OOV_SUFFIX;
@@ -114,6 +146,7 @@ public class LanguageModelFF extends StatefulFF {
 
     this.type = parsedArgs.get("lm_type");
     this.ngramOrder = Integer.parseInt(parsedArgs.get("lm_order"));
+    this.scratch = ThreadLocal.withInitial(() -> new TransitionScratch(ngramOrder));
     this.path = config.getFilePath(parsedArgs.get("lm_file"));
 
     if (parsedArgs.containsKey("class_map")) {
@@ -149,25 +182,101 @@ public class LanguageModelFF extends StatefulFF {
    * Initializes the underlying language model.
    */
   protected void initializeLM() {
+    this.languageModel = loadLanguageModel(type, ngramOrder, path);
+
+    Vocabulary.registerLanguageModel(this.languageModel);
+    Vocabulary.id(config.default_non_terminal);
+
+    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+
+    if (config.lm_cache_size > 0) {
+      this.cache = new CachingLanguageModel(this.languageModel, config.lm_cache_size,
+          config.lm_cache_reset);
+      this.languageModel = this.cache;
+    }
+  }
+
+  /**
+   * Creates the backend language model. This reads the model file and is the expensive part of
+   * constructing the feature, but it does not touch the {@link Vocabulary}, so it can run
+   * concurrently with grammar loading (see {@link #preloadLanguageModel}).
+   * 
+   * @param type the backend, "kenlm" or "berkeleylm"
+   * @param order the n-gram order
+   * @param path the model file
+   * @return the language model
+   */
+  private static NGramLanguageModel createLanguageModel(String type, int order, String path) {
+    long startTime = System.currentTimeMillis();
+    NGramLanguageModel lm;
     switch (type) {
     case "kenlm":
-      this.languageModel = new KenLM(ngramOrder, path);
-
+      lm = new KenLM(order, path);
       break;
     case "berkeleylm":
-      this.languageModel = new LMGrammarBerkeley(ngramOrder, path);
-
+      lm = new LMGrammarBerkeley(order, path);
       break;
     default:
       String msg = String.format("* FATAL: Invalid backend lm_type '%s' for LanguageModel", type)
           + "*        Permissible values for 'lm_type' are 'kenlm' and 'berkeleylm'";
       throw new RuntimeException(msg);
     }
+    LOG.info("Loaded {} model '{}' in {} seconds", type, path,
+        (System.currentTimeMillis() - startTime) / 1000.0);
+    return lm;
+  }
 
-    Vocabulary.registerLanguageModel(this.languageModel);
-    Vocabulary.id(config.default_non_terminal);
+  /**
+   * Starts loading a backend language model in the background. A feature constructed later with
+   * the same type, order and path takes the model instead of loading it again.
+   * 
+   * @param type the backend, "kenlm" or "berkeleylm"
+   * @param order the n-gram order
+   * @param path the model file
+   * @param executor runs the loading
+   */
+  public static void preloadLanguageModel(String type, int order, String path,
+      ExecutorService executor) {
+    String key = preloadKey(type, order, path);
+    if (!PRELOADED.containsKey(key))
+      PRELOADED.put(key, executor.submit(() -> createLanguageModel(type, order, path)));
+  }
 
-    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+  /**
+   * Drops the background-loaded models that no feature took, e.g., after a failed initialization.
+   */
+  public static void clearPreloadedLanguageModels() {
+    PRELOADED.clear();
+  }
+
+  /**
+   * Returns the backend language model, waiting for its background load if one was started.
+   * 
+   * @param type the backend, "kenlm" or "berkeleylm"
+   * @param order the n-gram order
+   * @param path the model file
+   * @return the language model
+   */
+  protected static NGramLanguageModel loadLanguageModel(String type, int order, String path) {
+    Future<NGramLanguageModel> preloaded = PRELOADED.remove(preloadKey(type, order, path));
+    if (preloaded == null)
+      return createLanguageModel(type, order, path);
+
+    try {
+      return preloaded.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(String.format("Unable to load language model '%s'", path),
+          e.getCause());
+    }
+  }
+
+  private static String preloadKey(String type, int order, String path) {
+    return type + " " + order + " " + path;
   }
 
   public NGramLanguageModel getLM() {
@@ -207,6 +316,9 @@ public class LanguageModelFF extends StatefulFF {
       acc.add(oovDenseFeatureIndex, getOovs(words));
     }
 
+    if (cache != null)
+      cache.beginSentence(sentence);
+
     return computeTransition(words, tailNodes, acc);
 
 	}
@@ -393,12 +505,22 @@ public class LanguageModelFF extends StatefulFF {
    */
   private NgramDPState computeTransition(int[] enWords, List<HGNode> tailNodes, Accumulator acc) {
 
-    int[] current = new int[this.ngramOrder];
-    int[] shadow = new int[this.ngramOrder];
+    TransitionScratch scratch = this.scratch.get();
+    int[] current = scratch.current;
+    int[] shadow = scratch.shadow;
     int ccount = 0;
     float transitionLogP = 0.0f;
     int[] left_context = null;
 
+    /*
+     * Complete n-grams are collected back to back and scored with a single call at the end, which
+     * saves a JNI transition per n-gram for native LMs.
+     */
+    int[] ngrams = scratch.ngrams;
+    if (ngrams.length < this.ngramOrder * (enWords.length + 1))
+      ngrams = scratch.ngrams = new int[this.ngramOrder * (enWords.length + 1)];
+    int ngramCount = 0;
+
     for (int curID : enWords) {
       if (FormatUtils.isNonterminal(curID)) {
         int index = -(curID + 1);
@@ -415,10 +537,10 @@ public class LanguageModelFF extends StatefulFF {
             left_context = Arrays.copyOf(current, ccount);
 
           if (ccount == this.ngramOrder) {
-            // Compute the current word probability, and remove it.
-            float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-            //            System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-            transitionLogP += prob;
+            // Queue the current n-gram for scoring, and remove its first word.
+            if ((ngramCount + 1) * this.ngramOrder > ngrams.length)
+              ngrams = scratch.ngrams = Arrays.copyOf(ngrams, ngrams.length * 2);
+            System.arraycopy(current, 0, ngrams, ngramCount++ * this.ngramOrder, this.ngramOrder);
             System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
             int[] tmp = current;
             current = shadow;
@@ -434,10 +556,10 @@ public class LanguageModelFF extends StatefulFF {
           left_context = Arrays.copyOf(current, ccount);
 
         if (ccount == this.ngramOrder) {
-          // Compute the current word probability, and remove it.s
-          float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-          //          System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-          transitionLogP += prob;
+          // Queue the current n-gram for scoring, and remove its first word.
+          if ((ngramCount + 1) * this.ngramOrder > ngrams.length)
+            ngrams = scratch.ngrams = Arrays.copyOf(ngrams, ngrams.length * 2);
+          System.arraycopy(current, 0, ngrams, ngramCount++ * this.ngramOrder, this.ngramOrder);
           System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
           int[] tmp = current;
           current = shadow;
@@ -446,6 +568,15 @@ public class LanguageModelFF extends StatefulFF {
         }
       }
     }
+    if (ngramCount > 0) {
+      if (scratch.probs.length < ngramCount)
+        scratch.probs = new float[Math.max(ngramCount, 2 * scratch.probs.length)];
+      float[] probs = scratch.probs;
+      this.languageModel.ngramLogProbabilities(ngrams, this.ngramOrder, ngramCount, probs);
+      for (int i = 0; i < ngramCount; i++)
+        transitionLogP += probs[i];
+    }
+
     //    acc.add(name, transitionLogP);
     acc.add(denseFeatureIndex, transitionLogP);
 
@@ -70,6 +70,19 @@ public interface NGramLanguageModel {
   float ngramLogProbability(int[] ngram, int order);
 
   float ngramLogProbability(int[] ngram);
+
+  /**
+   * Computes the probabilities of several n-grams of the same order at once. The n-grams are
+   * stored back to back in a single array. Language models that live outside the JVM can use this
+   * to score them with a single call.
+   * 
+   * @param ngrams count n-grams of length order, concatenated
+   * @param order the length of each n-gram
+   * @param count the number of n-grams
+   * @param probs receives the log probability of each n-gram in its first count entries; it may
+   *          be longer, so that callers can reuse it
+   */
+  void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs);
   
   /**
    * Check whether a word corresponding to the given id is OOV to the language model.
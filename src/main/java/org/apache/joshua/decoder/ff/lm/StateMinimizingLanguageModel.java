@@ -20,6 +20,7 @@ package org.apache.joshua.decoder.ff.lm;
 
 import static org.apache.joshua.util.FormatUtils.isNonterminal;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -28,7 +29,6 @@ import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.LmPool;
 import org.apache.joshua.decoder.chart_parser.SourcePath;
 import org.apache.joshua.decoder.ff.FeatureVector;
-import org.apache.joshua.decoder.ff.lm.KenLM.StateProbPair;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.state_maintenance.KenLMState;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -60,7 +60,7 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
   public void initializeLM() {
 
     // Override type (only KenLM supports left-state minimization)
-    this.languageModel = new KenLM(ngramOrder, path);
+    this.languageModel = loadLanguageModel("kenlm", ngramOrder, path);
 
     Vocabulary.registerLanguageModel(this.languageModel);
     Vocabulary.id(config.default_non_terminal);
@@ -99,13 +99,7 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
       return null;
     }
 
-    int[] ruleWords;
-    if (config.source_annotations) {
-      // get source side annotations and project them to the target side
-      ruleWords = getTags(rule, i, j, sentence);
-    } else {
-      ruleWords = getRuleIds(rule);
-    }
+    int[] ruleWords = getRuleWords(rule, i, j, sentence);
     
     // Record the oov count
     if (withOovFeature) {
@@ -115,17 +109,57 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
      // map to ken lm ids
     final long[] words = mapToKenLmIds(ruleWords, tailNodes, false);
 
-    LmPool statePool = sentence.getStateManager().getStatePool(languageModelPoolId, (KenLM)
-            languageModel);
-
     // Get the probability of applying the rule and the new state
-    final StateProbPair pair = ((KenLM) languageModel).probRule(words, statePool);
+    final long packedResult = ((KenLM) languageModel).probRulePacked(words, getStatePool(sentence));
 
     // Record the prob
-    acc.add(denseFeatureIndex, pair.prob);
+    acc.add(denseFeatureIndex, KenLM.unpackProb(packedResult));
 
     // Return the state
-    return pair.state;
+    return new KenLMState(KenLM.unpackState(packedResult));
+  }
+
+  /**
+   * Scores the edges of a span with a single call into KenLM, e.g., the seeds of all its cubes.
+   * Until {@link #clearPrefetched(Sentence)} is called, {@link #compute} takes the results of
+   * these edges instead of calling KenLM for each of them. Edges should then be computed in the
+   * order given here.
+   *
+   * @param rules     the rule of each edge
+   * @param tailNodes the tail nodes of each edge (null for rules without nonterminals)
+   * @param i         the start of the span
+   * @param j         the end of the span
+   * @param sentence  the sentence being decoded
+   */
+  public void prefetch(List<Rule> rules, List<List<HGNode>> tailNodes, int i, int j, Sentence sentence) {
+    List<long[]> words = new ArrayList<>(rules.size());
+    for (int k = 0; k < rules.size(); k++)
+      words.add(mapToKenLmIds(getRuleWords(rules.get(k), i, j, sentence), tailNodes.get(k), false));
+
+    LmPool statePool = getStatePool(sentence);
+    statePool.setPrefetched(words, ((KenLM) languageModel).probRules(words, statePool));
+  }
+
+  /**
+   * Drops the results of {@link #prefetch}.
+   *
+   * @param sentence the sentence being decoded
+   */
+  public void clearPrefetched(Sentence sentence) {
+    getStatePool(sentence).clearPrefetched();
+  }
+
+  private LmPool getStatePool(Sentence sentence) {
+    return sentence.getStateManager().getStatePool(languageModelPoolId, (KenLM) languageModel);
+  }
+
+  private int[] getRuleWords(Rule rule, int i, int j, Sentence sentence) {
+    if (config.source_annotations) {
+      // get source side annotations and project them to the target side
+      return getTags(rule, i, j, sentence);
+    } else {
+      return getRuleIds(rule);
+    }
   }
 
   /**
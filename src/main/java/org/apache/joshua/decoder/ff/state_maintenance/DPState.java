@@ -31,4 +31,14 @@ public abstract class DPState {
   public abstract int hashCode();
 
   public abstract boolean equals(Object other);
+
+  /**
+   * A 64-bit hash of the state, which nodes combine into their signatures. States should compute
+   * it once, when they are created. Equal states must have equal hashes.
+   * 
+   * @return the hash of the state
+   */
+  public long longHash() {
+    return hashCode();
+  }
 }
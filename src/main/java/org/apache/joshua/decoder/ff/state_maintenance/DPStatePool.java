@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.state_maintenance;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns the DP states computed while decoding a sentence, so that equal states (such as the
+ * identical language model contexts of many hypotheses) are represented by a single object. This
+ * saves memory when many hypotheses are kept, and lets state comparisons succeed on identity.
+ * Each {@link org.apache.joshua.decoder.segment_file.Sentence} has its own pool, see the
+ * <code>intern-dp-states</code> parameter.
+ * 
+ * Pools are thread-safe.
+ */
+public class DPStatePool {
+
+  private final ConcurrentHashMap<DPState, DPState> states = new ConcurrentHashMap<>();
+
+  /**
+   * @param state a DP state, or null
+   * @return the pooled state equal to the given one; the given state if there was none
+   */
+  public DPState intern(DPState state) {
+    if (state == null)
+      return null;
+    DPState pooled = states.putIfAbsent(state, state);
+    return (pooled == null) ? state : pooled;
+  }
+
+  public int size() {
+    return states.size();
+  }
+
+  public void clear() {
+    states.clear();
+  }
+}
@@ -26,9 +26,10 @@ package org.apache.joshua.decoder.ff.state_maintenance;
  */
 public class KenLMState extends DPState {
 
-  private long state = 0;
+  private final long state;
 
   public KenLMState() {
+    this(0);
   }
 
   public KenLMState(long stateId) {
@@ -39,6 +40,11 @@ public class KenLMState extends DPState {
     return state;
   }
 
+  @Override
+  public long longHash() {
+    return state;
+  }
+
   @Override
   public int hashCode() {
     return (int) ((getState() >> 32) ^ getState());
@@ -18,41 +18,37 @@
  */
 package org.apache.joshua.decoder.ff.state_maintenance;
 
+import static org.apache.joshua.util.Bits.mix;
+
 import java.util.Arrays;
 
 import org.apache.joshua.corpus.Vocabulary;
 
 /**
+ * The left and right language model contexts of a hypothesis. States are immutable; their 64-bit
+ * hash is computed once, when they are created, and compared before the words.
+ * 
  * @author Zhifei Li, zhifei.work@gmail.com
  * @author Juri Ganitkevitch, juri@cs.jhu.edu
  */
 public class NgramDPState extends DPState {
 
-  private int[] left;
-  private int[] right;
+  private final int[] left;
+  private final int[] right;
 
-  private int hash = 0;
+  private final long hash;
 
   public NgramDPState(int[] l, int[] r) {
     left = l;
     right = r;
     assertLengths();
-  }
-
-  public void setLeftLMStateWords(int[] words) {
-    left = words;
-    assertLengths();
+    hash = computeHash();
   }
 
   public int[] getLeftLMStateWords() {
     return left;
   }
 
-  public void setRightLMStateWords(int[] words) {
-    right = words;
-    assertLengths();
-  }
-
   public int[] getRightLMStateWords() {
     return right;
   }
@@ -63,25 +59,31 @@ public class NgramDPState extends DPState {
           + Vocabulary.getWords(left) + " | " + Vocabulary.getWords(right) + " >");
   }
 
+  private long computeHash() {
+    long h = left.length;
+    for (int i = 0; i < left.length; i++)
+      h = mix(h * 0x9e3779b97f4a7c15L + ((long) left[i] << 32 | (right[i] & 0xffffffffL)));
+    return h;
+  }
+
   @Override
-  public int hashCode() {
-    if (hash == 0) {
-      hash = 31 + Arrays.hashCode(left);
-      hash = hash * 19 + Arrays.hashCode(right);
-    }
+  public long longHash() {
     return hash;
   }
 
+  @Override
+  public int hashCode() {
+    return (int) (hash ^ (hash >>> 32));
+  }
+
   @Override
   public boolean equals(Object other) {
+    if (this == other)
+      return true;
     if (other instanceof NgramDPState) {
       NgramDPState that = (NgramDPState) other;
-      if (this.left.length == that.left.length && this.right.length == that.right.length) {
-        for (int i = 0; i < left.length; ++i)
-          if (this.left[i] != that.left[i] || this.right[i] != that.right[i])
-            return false;
-        return true;
-      }
+      return this.hash == that.hash && Arrays.equals(this.left, that.left)
+          && Arrays.equals(this.right, that.right);
     }
     return false;
   }
@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.decoder.ff.tm;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 
@@ -66,6 +67,12 @@ public abstract class AbstractGrammar implements Grammar {
    * The maximum length of a source-side phrase. Mostly used by the phrase-based decoder.
    */
   protected int maxSourcePhraseLength = -1;
+
+  /*
+   * The terminals the grammar's rules start with, built on first use and dropped whenever a rule
+   * is added.
+   */
+  private volatile TerminalIndex terminalIndex = null;
   
     /**
    * Returns the longest source phrase read.
@@ -77,6 +84,29 @@ public abstract class AbstractGrammar implements Grammar {
     return maxSourcePhraseLength;
   }
   
+  @Override
+  public TerminalIndex getTerminalIndex() {
+    TerminalIndex index = terminalIndex;
+    if (index == null) {
+      synchronized (this) {
+        index = terminalIndex;
+        if (index == null) {
+          index = TerminalIndex.fromTrie(getTrieRoot());
+          terminalIndex = index;
+          LOG.debug("Indexed {} source terminals of grammar {}", index.size(), owner);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Discards the terminal index after the grammar changed; it is rebuilt on its next use.
+   */
+  protected void invalidateTerminalIndex() {
+    terminalIndex = null;
+  }
+
   @Override
   public OwnerId getOwner() {
     return owner;
@@ -197,31 +227,62 @@ public abstract class AbstractGrammar implements Grammar {
    * @param grammar Grammar in the Trie
    * @param inputLattice the lattice representing the input sentence
    * @param featureFunctions a list of feature functions used for scoring
-   * @param onlyTrue determine if word is actual OOV.
+   * @param grammars the decoder's grammars, consulted to find the actual OOVs
+   * @param onlyTrue only add rules for actual OOVs, i.e., words not in any grammar's
+   *          {@link TerminalIndex}
    */
   public static void addOOVRules(Grammar grammar, Lattice<Token> inputLattice, 
-      List<FeatureFunction> featureFunctions, boolean onlyTrue) {
+      List<FeatureFunction> featureFunctions, Grammar[] grammars, boolean onlyTrue) {
+    addOOVRules(grammar, Collections.singletonList(inputLattice), featureFunctions, grammars,
+        onlyTrue);
+  }
+
+  /**
+   * Adds OOV rules for all words in several input lattices, e.g., the sentences of a batch, to the
+   * current grammar. Each word gets its rules once, however many lattices it occurs in.
+   * 
+   * @param grammar Grammar in the Trie
+   * @param inputLattices the lattices representing the input sentences
+   * @param featureFunctions a list of feature functions used for scoring
+   * @param grammars the decoder's grammars, consulted to find the actual OOVs
+   * @param onlyTrue only add rules for actual OOVs, i.e., words not in any grammar's
+   *          {@link TerminalIndex}
+   */
+  public static void addOOVRules(Grammar grammar, List<Lattice<Token>> inputLattices,
+      List<FeatureFunction> featureFunctions, Grammar[] grammars, boolean onlyTrue) {
     /*
      * Add OOV rules; This should be called after the manual constraints have
      * been set up.
      */
-    HashSet<Integer> words = new HashSet<>();
-    for (Node<Token> node : inputLattice) {
-      for (Arc<Token> arc : node.getOutgoingArcs()) {
-        // create a rule, but do not add into the grammar trie
-        // TODO: which grammar should we use to create an OOV rule?
-        int sourceWord = arc.getLabel().getWord();
-        if (sourceWord == Vocabulary.id(Vocabulary.START_SYM)
-            || sourceWord == Vocabulary.id(Vocabulary.STOP_SYM))
-          continue;
-
-        // Determine if word is actual OOV.
-        if (onlyTrue && ! Vocabulary.hasId(sourceWord))
-          continue;
-
-        words.add(sourceWord);
+    final int startSym = Vocabulary.id(Vocabulary.START_SYM);
+    final int stopSym = Vocabulary.id(Vocabulary.STOP_SYM);
+
+    int[] ids = new int[inputLattices.isEmpty() ? 0 : inputLattices.get(0).size()];
+    int numIds = 0;
+    for (Lattice<Token> inputLattice : inputLattices) {
+      for (Node<Token> node : inputLattice) {
+        for (Arc<Token> arc : node.getOutgoingArcs()) {
+          // create a rule, but do not add into the grammar trie
+          // TODO: which grammar should we use to create an OOV rule?
+          int sourceWord = arc.getLabel().getWord();
+          if (sourceWord == startSym || sourceWord == stopSym)
+            continue;
+
+          if (numIds == ids.length)
+            ids = java.util.Arrays.copyOf(ids, numIds * 2 + 1);
+          ids[numIds++] = sourceWord;
+        }
       }
     }
+    ids = java.util.Arrays.copyOf(ids, numIds);
+
+    // Determine which words are actual OOVs, in one pass over each grammar's terminal index
+    boolean[] known = onlyTrue ? TerminalIndex.known(grammars, ids) : new boolean[numIds];
+
+    HashSet<Integer> words = new HashSet<>();
+    for (int i = 0; i < numIds; i++)
+      if (!known[i])
+        words.add(ids[i]);
 
     for (int sourceWord: words) 
       grammar.addOOVRules(sourceWord, featureFunctions);
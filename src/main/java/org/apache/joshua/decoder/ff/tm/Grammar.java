@@ -102,6 +102,14 @@ public interface Grammar {
    * @return the maximum source phrase length
    */
   int getMaxSourcePhraseLength();
+
+  /**
+   * Returns the index of the terminals this grammar's rules can start with, used to determine
+   * which input words are out of vocabulary.
+   * 
+   * @return the grammar's {@link TerminalIndex}
+   */
+  TerminalIndex getTerminalIndex();
   
   /**
    * Add an OOV rule for the requested word for the grammar.
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.decoder.segment_file.Token;
+import org.apache.joshua.lattice.Arc;
+import org.apache.joshua.lattice.Node;
+
+/**
+ * A view of a grammar restricted to a single sentence. The view's trie contains only the paths
+ * whose terminals all occur in the sentence and that lead to at least one rule; every other branch
+ * is pruned as soon as it is reached. Since a trie path is the source side of the rules below it,
+ * the rule collections of the remaining nodes need no further filtering. This keeps the chart
+ * parser from creating dot items for partial rules that can never be completed.
+ * 
+ * The view is built lazily while the sentence is parsed, and remembers which branches it has
+ * pruned. It is meant for the one thread decoding the sentence. Everything other than the trie is
+ * delegated to the underlying grammar.
+ */
+public class SentenceFilteredGrammar implements Grammar {
+
+  private final Grammar grammar;
+
+  /* The distinct terminals of the sentence, as a list and as a set */
+  private final int[] words;
+  private final TerminalIndex terminals;
+
+  private final FilteredTrie root;
+
+  /**
+   * @param grammar the grammar to filter
+   * @param sentence the sentence whose words rules may contain
+   */
+  public SentenceFilteredGrammar(Grammar grammar, Sentence sentence) {
+    this(grammar, getWords(sentence));
+  }
+
+  /**
+   * @param grammar the grammar to filter
+   * @param words the Vocabulary ids of the words rules may contain
+   */
+  public SentenceFilteredGrammar(Grammar grammar, int[] words) {
+    this.grammar = grammar;
+    this.terminals = TerminalIndex.fromIds(words);
+    this.words = distinctTerminals(words);
+    Trie trie = grammar.getTrieRoot();
+    this.root = (trie != null) ? new FilteredTrie(trie) : null;
+  }
+
+  private static int[] getWords(Sentence sentence) {
+    List<Integer> ids = new ArrayList<>();
+    for (Node<Token> node : sentence.getLattice().getNodes())
+      if (node != null)
+        for (Arc<Token> arc : node.getOutgoingArcs())
+          ids.add(arc.getLabel().getWord());
+    int[] words = new int[ids.size()];
+    for (int i = 0; i < words.length; i++)
+      words[i] = ids.get(i);
+    return words;
+  }
+
+  private static int[] distinctTerminals(int[] ids) {
+    return Arrays.stream(ids).filter(id -> id > 0).distinct().toArray();
+  }
+
+  /**
+   * @return the unfiltered grammar
+   */
+  public Grammar getGrammar() {
+    return grammar;
+  }
+
+  @Override
+  public Trie getTrieRoot() {
+    return root;
+  }
+
+  @Override
+  public void sortGrammar(List<FeatureFunction> models) {
+    grammar.sortGrammar(models);
+  }
+
+  @Override
+  public boolean isSorted() {
+    return grammar.isSorted();
+  }
+
+  @Override
+  public boolean hasRuleForSpan(int startIndex, int endIndex, int pathLength) {
+    return grammar.hasRuleForSpan(startIndex, endIndex, pathLength);
+  }
+
+  @Override
+  public int getNumRules() {
+    return grammar.getNumRules();
+  }
+
+  @Override
+  public int getNumDenseFeatures() {
+    return grammar.getNumDenseFeatures();
+  }
+
+  @Override
+  public OwnerId getOwner() {
+    return grammar.getOwner();
+  }
+
+  @Override
+  public int getMaxSourcePhraseLength() {
+    return grammar.getMaxSourcePhraseLength();
+  }
+
+  @Override
+  public TerminalIndex getTerminalIndex() {
+    return grammar.getTerminalIndex();
+  }
+
+  @Override
+  public void addOOVRules(int word, List<FeatureFunction> featureFunctions) {
+    grammar.addOOVRules(word, featureFunctions);
+  }
+
+  @Override
+  public void addRule(Rule rule) {
+    grammar.addRule(rule);
+  }
+
+  @Override
+  public void save() {
+    grammar.save();
+  }
+
+  /**
+   * A node of the filtered trie. Children are looked up in the underlying trie on first use and
+   * kept, including the pruned ones (as null).
+   */
+  private class FilteredTrie implements Trie {
+
+    private final Trie trie;
+
+    private HashMap<Integer, FilteredTrie> children = null;
+
+    /* Whether any rule can be reached from this node: null until computed */
+    private Boolean live = null;
+    private Boolean hasExtensions = null;
+
+    FilteredTrie(Trie trie) {
+      this.trie = trie;
+    }
+
+    @Override
+    public Trie match(int wordID) {
+      return child(wordID);
+    }
+
+    private FilteredTrie child(int id) {
+      if (id > 0 && !terminals.contains(id))
+        return null;
+      if (children == null)
+        children = new HashMap<>();
+      else if (children.containsKey(id))
+        return children.get(id);
+
+      Trie next = trie.match(id);
+      FilteredTrie child = (next != null) ? new FilteredTrie(next) : null;
+      if (child != null && !child.isLive())
+        child = null;
+      children.put(id, child);
+      return child;
+    }
+
+    private boolean isLive() {
+      if (live == null)
+        live = trie.hasRules() || hasExtensions();
+      return live;
+    }
+
+    /* Visits the remaining children, stopping early if the action returns false */
+    private boolean forEachChild(boolean terminal, boolean nonterminal,
+        Predicate<Integer> action) {
+      if (!trie.hasExtensions())
+        return true;
+      if (terminal)
+        for (int word : words)
+          if (child(word) != null && !action.test(word))
+            return false;
+      if (nonterminal) {
+        Iterator<Integer> nonterminals = trie.getNonterminalExtensionIterator();
+        while (nonterminals.hasNext()) {
+          int id = nonterminals.next();
+          if (child(id) != null && !action.test(id))
+            return false;
+        }
+      }
+      return true;
+    }
+
+    private List<Integer> childIds(boolean terminal, boolean nonterminal) {
+      List<Integer> ids = new ArrayList<>();
+      forEachChild(terminal, nonterminal, ids::add);
+      return ids;
+    }
+
+    @Override
+    public boolean hasExtensions() {
+      if (hasExtensions == null)
+        hasExtensions = !forEachChild(true, true, id -> false);
+      return hasExtensions;
+    }
+
+    @Override
+    public Collection<? extends Trie> getExtensions() {
+      return getChildren().values();
+    }
+
+    @Override
+    public HashMap<Integer, ? extends Trie> getChildren() {
+      HashMap<Integer, FilteredTrie> result = new HashMap<>();
+      for (int id : childIds(true, true))
+        result.put(id, children.get(id));
+      return result;
+    }
+
+    @Override
+    public Iterator<Integer> getTerminalExtensionIterator() {
+      return childIds(true, false).iterator();
+    }
+
+    @Override
+    public Iterator<Integer> getNonterminalExtensionIterator() {
+      return childIds(false, true).iterator();
+    }
+
+    @Override
+    public boolean hasRules() {
+      return trie.hasRules();
+    }
+
+    @Override
+    public RuleCollection getRuleCollection() {
+      return trie.getRuleCollection();
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * A bitset over Vocabulary ids recording which terminals a grammar can start a source phrase with.
+ * It is used to decide which input words are out of vocabulary (OOV segmentation, OOV rules, and
+ * <code>true_oovs_only</code>) without walking the grammar trie for every sentence.
+ * 
+ * The index covers the terminal extensions of the trie root and of the root's nonterminal
+ * children, i.e., the first terminal of every rule whose source side begins with at most one
+ * nonterminal. Indexes are immutable; grammars build them once and rebuild them after they change
+ * (see {@link AbstractGrammar#getTerminalIndex()}). The same representation holds the words of a
+ * sentence for {@link SentenceFilteredGrammar}.
+ */
+public class TerminalIndex {
+
+  public static final TerminalIndex EMPTY = new TerminalIndex(new long[0], 0);
+
+  private final long[] bits;
+  private final int size;
+
+  private TerminalIndex(long[] bits, int size) {
+    this.bits = bits;
+    this.size = size;
+  }
+
+  /**
+   * Builds the index of a grammar trie.
+   * 
+   * @param root the root of the grammar's trie, may be null
+   * @return the terminal index
+   */
+  public static TerminalIndex fromTrie(Trie root) {
+    if (root == null || !root.hasExtensions())
+      return EMPTY;
+
+    Builder builder = new Builder();
+    builder.addAll(root.getTerminalExtensionIterator());
+
+    Iterator<Integer> nonterminals = root.getNonterminalExtensionIterator();
+    while (nonterminals.hasNext()) {
+      int nt = nonterminals.next();
+      if (nt >= 0)
+        continue;
+      Trie child = root.match(nt);
+      if (child != null && child.hasExtensions())
+        builder.addAll(child.getTerminalExtensionIterator());
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Builds the index of a set of terminals.
+   * 
+   * @param ids Vocabulary ids; nonterminals are ignored
+   * @return the terminal index
+   */
+  public static TerminalIndex fromIds(int[] ids) {
+    Builder builder = new Builder();
+    for (int id : ids)
+      builder.add(id);
+    return builder.build();
+  }
+
+  /**
+   * @param id a Vocabulary id
+   * @return whether the id is an indexed terminal
+   */
+  public boolean contains(int id) {
+    int word = id >>> 6;
+    return id > 0 && word < bits.length && (bits[word] & (1L << id)) != 0;
+  }
+
+  /**
+   * Bulk membership test: sets <code>known[i]</code> to true for every <code>ids[i]</code> in the
+   * index, leaving the other entries untouched, so that it can be applied to several indexes in
+   * turn.
+   * 
+   * @param ids Vocabulary ids
+   * @param known the result, of the same length as ids
+   */
+  public void mark(int[] ids, boolean[] known) {
+    for (int i = 0; i < ids.length; i++) {
+      final int id = ids[i];
+      final int word = id >>> 6;
+      if (id > 0 && word < bits.length && (bits[word] & (1L << id)) != 0)
+        known[i] = true;
+    }
+  }
+
+  /**
+   * @return the number of indexed terminals
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Determines which of a sentence's words are known to at least one of the grammars.
+   * 
+   * @param grammars the grammars
+   * @param ids Vocabulary ids of the words
+   * @return for each word, whether some grammar's terminal index contains it
+   */
+  public static boolean[] known(Grammar[] grammars, int[] ids) {
+    boolean[] known = new boolean[ids.length];
+    for (Grammar grammar : grammars)
+      grammar.getTerminalIndex().mark(ids, known);
+    return known;
+  }
+
+  /**
+   * @param grammars the grammars
+   * @param id a Vocabulary id
+   * @return whether some grammar's terminal index contains the id
+   */
+  public static boolean known(Grammar[] grammars, int id) {
+    for (Grammar grammar : grammars)
+      if (grammar.getTerminalIndex().contains(id))
+        return true;
+    return false;
+  }
+
+  private static class Builder {
+    private long[] bits = new long[16];
+    private int size = 0;
+
+    void add(int id) {
+      if (id <= 0)
+        return;
+      int word = id >>> 6;
+      if (word >= bits.length)
+        bits = Arrays.copyOf(bits, Math.max(bits.length * 2, word + 1));
+      long bit = 1L << id;
+      if ((bits[word] & bit) == 0) {
+        bits[word] |= bit;
+        size++;
+      }
+    }
+
+    void addAll(Iterator<Integer> ids) {
+      while (ids.hasNext())
+        add(ids.next());
+    }
+
+    TerminalIndex build() {
+      int length = bits.length;
+      while (length > 0 && bits[length - 1] == 0)
+        length--;
+      return new TerminalIndex(Arrays.copyOf(bits, length), size);
+    }
+  }
+}
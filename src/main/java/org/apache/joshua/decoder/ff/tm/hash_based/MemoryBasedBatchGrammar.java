@@ -43,6 +43,7 @@ import org.apache.joshua.decoder.ff.tm.GrammarReader;
 import org.apache.joshua.decoder.ff.tm.Trie;
 import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
 import org.apache.joshua.decoder.ff.tm.format.MosesFormatReader;
+import org.apache.joshua.tools.TestSetFilter;
 import org.apache.joshua.util.FormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -114,6 +115,24 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
   public MemoryBasedBatchGrammar(String formatKeyword, String grammarFile, String owner,
       String defaultLHSSymbol, int spanLimit, JoshuaConfiguration joshuaConfiguration)
       throws IOException {
+    this(formatKeyword, grammarFile, owner, defaultLHSSymbol, spanLimit, joshuaConfiguration, null);
+  }
+
+  /**
+   * Loads a grammar from a file, keeping only the rules that a test set filter accepts.
+   * 
+   * @param formatKeyword the grammar format
+   * @param grammarFile the file to load the grammar from
+   * @param owner the associated decoder-wide {@link org.apache.joshua.decoder.ff.tm.OwnerMap}
+   * @param defaultLHSSymbol the default nonterminal
+   * @param spanLimit the maximum span of the input grammar rule(s) can be applied to.
+   * @param joshuaConfiguration a {@link org.apache.joshua.decoder.JoshuaConfiguration} object
+   * @param filter accepts the source sides of the rules to keep; null keeps all rules
+   * @throws IOException if the grammar cannot be read
+   */
+  public MemoryBasedBatchGrammar(String formatKeyword, String grammarFile, String owner,
+      String defaultLHSSymbol, int spanLimit, JoshuaConfiguration joshuaConfiguration,
+      TestSetFilter filter) throws IOException {
 
     super(owner, joshuaConfiguration, spanLimit);
     Vocabulary.id(defaultLHSSymbol);
@@ -125,11 +144,18 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     } catch (IOException e) {
       LOG.warn("Couldn't load a '{}' type grammar from file '{}'", formatKeyword, grammarFile);
     }
+    int qtyRulesFiltered = 0;
     if (modelReader != null) {
       for (Rule rule : modelReader)
         if (rule != null) {
-          addRule(rule);
+          if (filter != null && !filter.inTestSet(rule.getFrenchWords())) {
+            qtyRulesFiltered++;
+            continue;
+          }
+          insertRule(rule);
         }
+      // Once for the whole load, rather than for each rule
+      invalidateTerminalIndex();
     } else {
       LOG.info("Couldn't create a GrammarReader for file {} with format {}",
           grammarFile, formatKeyword);
@@ -137,6 +163,9 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     
     LOG.info("MemoryBasedBatchGrammar: Read {} rules with {} distinct source sides from '{}'",
         this.qtyRulesRead, this.qtyRuleBins, grammarFile);
+    if (filter != null)
+      LOG.info("MemoryBasedBatchGrammar: Filtered out {} rules that do not match the test set",
+          qtyRulesFiltered);
   }
 
   protected GrammarReader<Rule> createReader(String format, String grammarFile) throws IOException {
@@ -183,6 +212,15 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
    * Adds a rule to the grammar.
    */
   public void addRule(Rule rule) {
+    insertRule(rule);
+    invalidateTerminalIndex();
+  }
+
+  /*
+   * Inserts a rule into the trie, leaving the terminal index alone so that bulk loads can
+   * invalidate it once at the end.
+   */
+  private void insertRule(Rule rule) {
 
     this.qtyRulesRead++;
 
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.suffix_array;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A word-aligned parallel corpus indexed by a suffix array over its source side, as written by
+ * {@link SuffixArrayBuilder}. Only the vocabulary is read into memory; the corpus, the alignments,
+ * the suffix array and the lexical translation table are memory-mapped, so opening an index takes
+ * the same time regardless of the size of the corpus.
+ * 
+ * Words are identified by their position in the index's own vocabulary, not by
+ * {@link org.apache.joshua.corpus.Vocabulary} ids, since the latter are not stable across runs.
+ * Id 0 is {@link #NULL}: it ends every source sentence (so that no suffix runs into the next
+ * sentence), and stands for the empty word in the lexical translation table.
+ * 
+ * The file starts with the magic number <code>JSA1</code>, followed by these big-endian sections:
+ * 
+ * <ul>
+ * <li>the sizes: vocabulary, sentences, source and target words, alignment points and lexical
+ * entries;</li>
+ * <li>the vocabulary, each word as its length and its UTF-8 bytes;</li>
+ * <li>the start of each sentence in the source, target and alignment arrays, plus one past the
+ * end of each array;</li>
+ * <li>the source words, each sentence followed by {@link #NULL};</li>
+ * <li>the target words;</li>
+ * <li>the alignment points of each sentence, <code>(source &lt;&lt; 16) | target</code>, relative
+ * to the start of the sentence;</li>
+ * <li>the suffix array: the start of every nonempty source suffix, in lexicographic order;</li>
+ * <li>the lexical table: sorted <code>(source &lt;&lt; 32) | target</code> keys, then
+ * p(target | source) for each key, then p(source | target) for each key.</li>
+ * </ul>
+ * 
+ * Each section is mapped in chunks of at most {@link Section#CHUNK_BYTES}, since a single mapping
+ * cannot exceed 2 GB, which the source side of a large corpus does.
+ * 
+ * Instances are immutable and may be shared across threads.
+ */
+public class SuffixArray implements Closeable {
+
+  static final byte[] MAGIC = "JSA1".getBytes(StandardCharsets.US_ASCII);
+
+  /** The id of the sentence separator and of the empty word. */
+  public static final int NULL = 0;
+
+  private final RandomAccessFile file;
+
+  private final String[] vocabulary;
+
+  private final int numSentences;
+  private final Section sourceStarts;
+  private final Section targetStarts;
+  private final Section alignmentStarts;
+
+  private final Section source;
+  private final Section target;
+  private final Section alignment;
+  private final Section suffixes;
+  private final int numSuffixes;
+
+  private final int numLexicalEntries;
+  private final Section lexicalKeys;
+  private final Section targetGivenSource;
+  private final Section sourceGivenTarget;
+
+  /**
+   * @param fileName a file written by {@link SuffixArrayBuilder}
+   * @throws IOException if the file cannot be read or is not a suffix array file
+   */
+  public SuffixArray(String fileName) throws IOException {
+    long offset;
+    int sourceLength, targetLength, numAlignmentPoints;
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(fileName)))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC))
+        throw new IOException(String.format("%s is not a suffix array file", fileName));
+
+      vocabulary = new String[in.readInt()];
+      numSentences = in.readInt();
+      sourceLength = in.readInt();
+      targetLength = in.readInt();
+      numAlignmentPoints = in.readInt();
+      numLexicalEntries = in.readInt();
+      offset = MAGIC.length + 6 * 4;
+
+      for (int id = 0; id < vocabulary.length; id++) {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        vocabulary[id] = new String(utf8, StandardCharsets.UTF_8);
+        offset += 4 + utf8.length;
+      }
+    }
+
+    file = new RandomAccessFile(fileName, "r");
+    FileChannel channel = file.getChannel();
+
+    sourceStarts = new Section(channel, offset, 4L * (numSentences + 1));
+    offset += 4L * (numSentences + 1);
+    targetStarts = new Section(channel, offset, 4L * (numSentences + 1));
+    offset += 4L * (numSentences + 1);
+    alignmentStarts = new Section(channel, offset, 4L * (numSentences + 1));
+    offset += 4L * (numSentences + 1);
+    source = new Section(channel, offset, 4L * sourceLength);
+    offset += 4L * sourceLength;
+    target = new Section(channel, offset, 4L * targetLength);
+    offset += 4L * targetLength;
+    alignment = new Section(channel, offset, 4L * numAlignmentPoints);
+    offset += 4L * numAlignmentPoints;
+    numSuffixes = sourceLength - numSentences;
+    suffixes = new Section(channel, offset, 4L * numSuffixes);
+    offset += 4L * numSuffixes;
+    lexicalKeys = new Section(channel, offset, 8L * numLexicalEntries);
+    offset += 8L * numLexicalEntries;
+    targetGivenSource = new Section(channel, offset, 4L * numLexicalEntries);
+    offset += 4L * numLexicalEntries;
+    sourceGivenTarget = new Section(channel, offset, 4L * numLexicalEntries);
+  }
+
+  /**
+   * A section of the file, mapped in chunks of {@link #CHUNK_BYTES}. Values are read with absolute
+   * gets, which leave the buffers unchanged and so may run concurrently.
+   */
+  static final class Section {
+
+    /* A multiple of the widest value, so that no value spans two chunks */
+    static final int CHUNK_BYTES = 1 << 30;
+
+    private final ByteBuffer[] chunks;
+    private final int shift;
+    private final int mask;
+
+    Section(FileChannel channel, long offset, long length) throws IOException {
+      this(channel, offset, length, CHUNK_BYTES);
+    }
+
+    /**
+     * @param chunkBytes the size of a chunk: a power of two, and a multiple of 8
+     */
+    Section(FileChannel channel, long offset, long length, int chunkBytes) throws IOException {
+      shift = Integer.numberOfTrailingZeros(chunkBytes);
+      mask = chunkBytes - 1;
+      chunks = new ByteBuffer[(int) ((length + mask) >>> shift)];
+      for (int i = 0; i < chunks.length; i++) {
+        long start = (long) i << shift;
+        chunks[i] = channel.map(MapMode.READ_ONLY, offset + start,
+            Math.min(chunkBytes, length - start));
+      }
+    }
+
+    int getInt(int index) {
+      long position = 4L * index;
+      return chunks[(int) (position >>> shift)].getInt((int) position & mask);
+    }
+
+    long getLong(int index) {
+      long position = 8L * index;
+      return chunks[(int) (position >>> shift)].getLong((int) position & mask);
+    }
+
+    float getFloat(int index) {
+      long position = 4L * index;
+      return chunks[(int) (position >>> shift)].getFloat((int) position & mask);
+    }
+  }
+
+  /**
+   * @return the number of words in the vocabulary, including {@link #NULL}
+   */
+  public int getVocabularySize() {
+    return vocabulary.length;
+  }
+
+  /**
+   * @param id a word id
+   * @return the word
+   */
+  public String getWord(int id) {
+    return vocabulary[id];
+  }
+
+  /**
+   * @return the number of sentence pairs
+   */
+  public int getNumSentences() {
+    return numSentences;
+  }
+
+  /**
+   * @return the number of source suffixes, i.e., the number of source words
+   */
+  public int size() {
+    return numSuffixes;
+  }
+
+  /**
+   * @param k a rank in the suffix array
+   * @return the position in the source of the k-th smallest suffix
+   */
+  public int getSuffix(int k) {
+    return suffixes.getInt(k);
+  }
+
+  /**
+   * @param position a position in the source
+   * @return the source word at that position, or {@link #NULL} at the end of a sentence
+   */
+  public int getSourceWord(int position) {
+    return source.getInt(position);
+  }
+
+  /**
+   * @param position a position in the target
+   * @return the target word at that position
+   */
+  public int getTargetWord(int position) {
+    return target.getInt(position);
+  }
+
+  /**
+   * @param position a position in the source
+   * @return the sentence that contains it
+   */
+  public int getSentence(int position) {
+    int lo = 0, hi = numSentences - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (sourceStarts.getInt(mid) <= position)
+        lo = mid;
+      else
+        hi = mid - 1;
+    }
+    return lo;
+  }
+
+  /**
+   * @param sentence a sentence number
+   * @return the position of its first source word
+   */
+  public int getSourceStart(int sentence) {
+    return sourceStarts.getInt(sentence);
+  }
+
+  /**
+   * @param sentence a sentence number
+   * @return the number of its source words
+   */
+  public int getSourceLength(int sentence) {
+    return sourceStarts.getInt(sentence + 1) - sourceStarts.getInt(sentence) - 1;
+  }
+
+  /**
+   * @param sentence a sentence number
+   * @return the position of its first target word
+   */
+  public int getTargetStart(int sentence) {
+    return targetStarts.getInt(sentence);
+  }
+
+  /**
+   * @param sentence a sentence number
+   * @return the number of its target words
+   */
+  public int getTargetLength(int sentence) {
+    return targetStarts.getInt(sentence + 1) - targetStarts.getInt(sentence);
+  }
+
+  /**
+   * @param sentence a sentence number
+   * @return its alignment points, as <code>(source &lt;&lt; 16) | target</code> with positions
+   *         relative to the start of the sentence
+   */
+  public int[] getAlignment(int sentence) {
+    int from = alignmentStarts.getInt(sentence);
+    int[] points = new int[alignmentStarts.getInt(sentence + 1) - from];
+    for (int i = 0; i < points.length; i++)
+      points[i] = alignment.getInt(from + i);
+    return points;
+  }
+
+  /**
+   * Restricts a range of the suffix array to the suffixes that continue with a given word. If
+   * [from, to) holds the suffixes that start with some phrase of length <code>depth</code>, the
+   * result holds those that start with the phrase followed by <code>word</code>. The range of the
+   * empty phrase is [0, {@link #size()}).
+   * 
+   * @param from the first rank of the range (inclusive)
+   * @param to the last rank of the range (exclusive)
+   * @param depth the length of the phrase the range was found for
+   * @param word the word to extend the phrase with; must not be {@link #NULL}
+   * @return the narrowed range as <code>(from &lt;&lt; 32) | to</code>; it is empty if from equals
+   *         to
+   */
+  public long narrow(int from, int to, int depth, int word) {
+    /* Within the range, the words at the given depth are sorted; the sentence ends sort first */
+    int lo = from, hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (source.getInt(suffixes.getInt(mid) + depth) < word)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    int start = lo;
+    hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (source.getInt(suffixes.getInt(mid) + depth) <= word)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return ((long) start << 32) | lo;
+  }
+
+  /**
+   * Finds the suffixes that start with a phrase.
+   * 
+   * @param phrase word ids
+   * @return the range of ranks, as <code>(from &lt;&lt; 32) | to</code>
+   */
+  public long find(int[] phrase) {
+    long range = size();
+    for (int depth = 0; depth < phrase.length && from(range) < to(range); depth++)
+      range = narrow(from(range), to(range), depth, phrase[depth]);
+    return range;
+  }
+
+  /**
+   * @param range a range returned by {@link #narrow(int, int, int, int)}
+   * @return its first rank (inclusive)
+   */
+  public static int from(long range) {
+    return (int) (range >>> 32);
+  }
+
+  /**
+   * @param range a range returned by {@link #narrow(int, int, int, int)}
+   * @return its last rank (exclusive)
+   */
+  public static int to(long range) {
+    return (int) range;
+  }
+
+  /**
+   * @param sourceWord a source word, or {@link #NULL}
+   * @param targetWord a target word, or {@link #NULL}
+   * @return p(targetWord | sourceWord) as estimated from the word alignments, or 0 if they were
+   *         never aligned
+   */
+  public float getTargetGivenSource(int sourceWord, int targetWord) {
+    int k = findLexical(sourceWord, targetWord);
+    return k < 0 ? 0.0f : targetGivenSource.getFloat(k);
+  }
+
+  /**
+   * @param sourceWord a source word, or {@link #NULL}
+   * @param targetWord a target word, or {@link #NULL}
+   * @return p(sourceWord | targetWord) as estimated from the word alignments, or 0 if they were
+   *         never aligned
+   */
+  public float getSourceGivenTarget(int sourceWord, int targetWord) {
+    int k = findLexical(sourceWord, targetWord);
+    return k < 0 ? 0.0f : sourceGivenTarget.getFloat(k);
+  }
+
+  private int findLexical(int sourceWord, int targetWord) {
+    final long key = lexicalKey(sourceWord, targetWord);
+    int lo = 0, hi = numLexicalEntries - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long midKey = lexicalKeys.getLong(mid);
+      if (midKey < key)
+        lo = mid + 1;
+      else if (midKey > key)
+        hi = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  static long lexicalKey(int sourceWord, int targetWord) {
+    return ((long) sourceWord << 32) | targetWord;
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
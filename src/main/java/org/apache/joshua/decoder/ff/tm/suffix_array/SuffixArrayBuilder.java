@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.suffix_array;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.util.io.LineReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiles a word-aligned parallel corpus into the file read by {@link SuffixArray}. The inputs
+ * are three line-aligned text files: the tokenized source and target sides, and the word
+ * alignments in the usual <code>i-j</code> format (source position, target position).
+ * 
+ * Compilation holds the corpus in memory; decoding with the result does not.
+ */
+public class SuffixArrayBuilder {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SuffixArrayBuilder.class);
+
+  /* Alignment points pack both positions into 16 bits */
+  private static final int MAX_SENTENCE_LENGTH = 1 << 16;
+
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> vocabulary = new ArrayList<>();
+
+  private int numSentences = 0;
+  private int[] sourceStarts = new int[1024];
+  private int[] targetStarts = new int[1024];
+  private int[] alignmentStarts = new int[1024];
+  private int[] source = new int[1 << 16];
+  private int sourceLength = 0;
+  private int[] target = new int[1 << 16];
+  private int targetLength = 0;
+  private int[] alignment = new int[1 << 16];
+  private int numAlignmentPoints = 0;
+
+  public SuffixArrayBuilder() {
+    vocabulary.add("<null>");
+  }
+
+  /**
+   * Adds a sentence pair to the corpus.
+   * 
+   * @param sourceSentence the tokenized source sentence
+   * @param targetSentence the tokenized target sentence
+   * @param alignmentPoints the word alignment, e.g., <code>0-0 1-2 2-1</code>
+   */
+  public void addSentence(String sourceSentence, String targetSentence, String alignmentPoints) {
+    String[] sourceWords = tokenize(sourceSentence);
+    String[] targetWords = tokenize(targetSentence);
+    if (sourceWords.length >= MAX_SENTENCE_LENGTH || targetWords.length >= MAX_SENTENCE_LENGTH)
+      throw new RuntimeException(String.format("Sentence %d is longer than %d words",
+          numSentences, MAX_SENTENCE_LENGTH - 1));
+
+    if (numSentences + 2 > sourceStarts.length) {
+      sourceStarts = Arrays.copyOf(sourceStarts, sourceStarts.length * 2);
+      targetStarts = Arrays.copyOf(targetStarts, targetStarts.length * 2);
+      alignmentStarts = Arrays.copyOf(alignmentStarts, alignmentStarts.length * 2);
+    }
+    sourceStarts[numSentences] = sourceLength;
+    targetStarts[numSentences] = targetLength;
+    alignmentStarts[numSentences] = numAlignmentPoints;
+
+    for (String word : sourceWords)
+      source = append(source, sourceLength++, id(word));
+    source = append(source, sourceLength++, SuffixArray.NULL);
+    for (String word : targetWords)
+      target = append(target, targetLength++, id(word));
+
+    int[] points = new int[0];
+    int numPoints = 0;
+    for (String point : tokenize(alignmentPoints)) {
+      int dash = point.indexOf('-');
+      int i = Integer.parseInt(point.substring(0, dash));
+      int j = Integer.parseInt(point.substring(dash + 1));
+      if (i < 0 || i >= sourceWords.length || j < 0 || j >= targetWords.length)
+        throw new RuntimeException(String.format("Alignment point '%s' is out of bounds in sentence %d",
+            point, numSentences));
+      points = append(points, numPoints++, (i << 16) | j);
+    }
+    points = Arrays.copyOf(points, numPoints);
+    Arrays.sort(points);
+    for (int point : points)
+      alignment = append(alignment, numAlignmentPoints++, point);
+
+    numSentences++;
+  }
+
+  private static String[] tokenize(String line) {
+    line = line.trim();
+    return line.isEmpty() ? new String[0] : line.split("\\s+");
+  }
+
+  private int id(String word) {
+    Integer id = ids.get(word);
+    if (id == null) {
+      id = vocabulary.size();
+      ids.put(word, id);
+      vocabulary.add(word);
+    }
+    return id;
+  }
+
+  private static int[] append(int[] array, int size, int value) {
+    if (size == array.length)
+      array = Arrays.copyOf(array, array.length * 2 + 1);
+    array[size] = value;
+    return array;
+  }
+
+  /**
+   * Sorts the source suffixes, estimates the lexical translation table, and writes the index.
+   * 
+   * @param fileName the file to create
+   * @throws IOException if the file cannot be written
+   */
+  public void write(String fileName) throws IOException {
+    sourceStarts[numSentences] = sourceLength;
+    targetStarts[numSentences] = targetLength;
+    alignmentStarts[numSentences] = numAlignmentPoints;
+
+    int[] suffixes = new int[sourceLength - numSentences];
+    for (int position = 0, k = 0; position < sourceLength; position++)
+      if (source[position] != SuffixArray.NULL)
+        suffixes[k++] = position;
+    sortSuffixes(suffixes, 0, suffixes.length, 0);
+
+    /* Count how often each pair of words is aligned, pairing unaligned words with NULL */
+    long[] pairs = new long[numAlignmentPoints + sourceLength + targetLength];
+    int numPairs = 0;
+    for (int s = 0; s < numSentences; s++) {
+      int sourceStart = sourceStarts[s], targetStart = targetStarts[s];
+      boolean[] sourceAligned = new boolean[sourceStarts[s + 1] - sourceStart - 1];
+      boolean[] targetAligned = new boolean[targetStarts[s + 1] - targetStart];
+      for (int a = alignmentStarts[s]; a < alignmentStarts[s + 1]; a++) {
+        int i = alignment[a] >>> 16, j = alignment[a] & 0xffff;
+        sourceAligned[i] = targetAligned[j] = true;
+        pairs[numPairs++] = SuffixArray.lexicalKey(source[sourceStart + i], target[targetStart + j]);
+      }
+      for (int i = 0; i < sourceAligned.length; i++)
+        if (!sourceAligned[i])
+          pairs[numPairs++] = SuffixArray.lexicalKey(source[sourceStart + i], SuffixArray.NULL);
+      for (int j = 0; j < targetAligned.length; j++)
+        if (!targetAligned[j])
+          pairs[numPairs++] = SuffixArray.lexicalKey(SuffixArray.NULL, target[targetStart + j]);
+    }
+    Arrays.sort(pairs, 0, numPairs);
+
+    int[] sourceCounts = new int[vocabulary.size()];
+    int[] targetCounts = new int[vocabulary.size()];
+    for (int p = 0; p < numPairs; p++) {
+      sourceCounts[(int) (pairs[p] >>> 32)]++;
+      targetCounts[(int) pairs[p]]++;
+    }
+
+    long[] keys = new long[numPairs];
+    float[] targetGivenSource = new float[numPairs];
+    float[] sourceGivenTarget = new float[numPairs];
+    int numKeys = 0;
+    for (int p = 0; p < numPairs;) {
+      int q = p;
+      while (q < numPairs && pairs[q] == pairs[p])
+        q++;
+      keys[numKeys] = pairs[p];
+      targetGivenSource[numKeys] = (float) (q - p) / sourceCounts[(int) (pairs[p] >>> 32)];
+      sourceGivenTarget[numKeys] = (float) (q - p) / targetCounts[(int) pairs[p]];
+      numKeys++;
+      p = q;
+    }
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16))) {
+      out.write(SuffixArray.MAGIC);
+      out.writeInt(vocabulary.size());
+      out.writeInt(numSentences);
+      out.writeInt(sourceLength);
+      out.writeInt(targetLength);
+      out.writeInt(numAlignmentPoints);
+      out.writeInt(numKeys);
+      for (String word : vocabulary) {
+        byte[] utf8 = word.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+      }
+      writeInts(out, sourceStarts, numSentences + 1);
+      writeInts(out, targetStarts, numSentences + 1);
+      writeInts(out, alignmentStarts, numSentences + 1);
+      writeInts(out, source, sourceLength);
+      writeInts(out, target, targetLength);
+      writeInts(out, alignment, numAlignmentPoints);
+      writeInts(out, suffixes, suffixes.length);
+      for (int k = 0; k < numKeys; k++)
+        out.writeLong(keys[k]);
+      for (int k = 0; k < numKeys; k++)
+        out.writeFloat(targetGivenSource[k]);
+      for (int k = 0; k < numKeys; k++)
+        out.writeFloat(sourceGivenTarget[k]);
+    }
+
+    LOG.info("Wrote {} sentence pairs ({} source words, {} distinct words) to {}", numSentences,
+        suffixes.length, vocabulary.size() - 1, fileName);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] array, int size) throws IOException {
+    for (int i = 0; i < size; i++)
+      out.writeInt(array[i]);
+  }
+
+  /**
+   * Sorts suffixes[from, to), which agree on their first <code>depth</code> words, with a
+   * multikey quicksort. Since every sentence ends with NULL, no comparison crosses a sentence
+   * boundary, and suffixes that end together are left in any order.
+   */
+  private void sortSuffixes(int[] suffixes, int from, int to, int depth) {
+    while (to - from > 1) {
+      int pivot = median(key(suffixes[from], depth), key(suffixes[(from + to) >>> 1], depth),
+          key(suffixes[to - 1], depth));
+
+      /* Partition into [from, lt) < pivot, [lt, gt) == pivot, [gt, to) > pivot */
+      int lt = from, i = from, gt = to;
+      while (i < gt) {
+        int key = key(suffixes[i], depth);
+        if (key < pivot)
+          swap(suffixes, lt++, i++);
+        else if (key > pivot)
+          swap(suffixes, i, --gt);
+        else
+          i++;
+      }
+
+      /* Recurse into the smaller outer partition, and loop on the larger one */
+      if (pivot != SuffixArray.NULL)
+        sortSuffixes(suffixes, lt, gt, depth + 1);
+      if (lt - from < to - gt) {
+        sortSuffixes(suffixes, from, lt, depth);
+        from = gt;
+      } else {
+        sortSuffixes(suffixes, gt, to, depth);
+        to = lt;
+      }
+    }
+  }
+
+  private int key(int suffix, int depth) {
+    return source[suffix + depth];
+  }
+
+  private static int median(int a, int b, int c) {
+    return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+  }
+
+  private static void swap(int[] array, int i, int j) {
+    int t = array[i];
+    array[i] = array[j];
+    array[j] = t;
+  }
+
+  /**
+   * Compiles a parallel corpus into a suffix array index.
+   * 
+   * @param args the source, target and alignment files, and the file to write
+   * @throws IOException if a file cannot be read or written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 4) {
+      System.err.println("usage: SuffixArrayBuilder source target alignment output");
+      System.exit(1);
+    }
+
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    try (LineReader sources = new LineReader(args[0]);
+        LineReader targets = new LineReader(args[1]);
+        LineReader alignments = new LineReader(args[2])) {
+      while (sources.hasNext()) {
+        if (!targets.hasNext() || !alignments.hasNext())
+          throw new RuntimeException("The source, target and alignment files differ in length");
+        builder.addSentence(sources.next(), targets.next(), alignments.next());
+      }
+      if (targets.hasNext() || alignments.hasNext())
+        throw new RuntimeException("The source, target and alignment files differ in length");
+    }
+    builder.write(args[3]);
+  }
+}
@@ -0,0 +1,654 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.suffix_array;
+
+import static org.apache.joshua.decoder.ff.tm.suffix_array.SuffixArray.from;
+import static org.apache.joshua.decoder.ff.tm.suffix_array.SuffixArray.to;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
+import org.apache.joshua.decoder.ff.tm.Grammar;
+import org.apache.joshua.decoder.ff.tm.OwnerMap;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.tm.TerminalIndex;
+import org.apache.joshua.decoder.ff.tm.Trie;
+import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
+import org.apache.joshua.decoder.phrase.PhraseTable;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * A grammar whose rules are extracted from a word-aligned parallel corpus while decoding, rather
+ * than read from a grammar file. The corpus is indexed by a {@link SuffixArray}, so loading the
+ * grammar takes the time and memory needed for the vocabulary only.
+ * <p>
+ * The grammar has no trie of its own. Before a sentence is decoded, it is replaced by the grammar
+ * returned by {@link #getSentenceGrammar(Sentence, List)}, which holds the rules for the source
+ * patterns of the sentence:
+ * <ul>
+ * <li>phrases of up to <code>suffix-array-max-phrase-length</code> words, and</li>
+ * <li>for hierarchical decoding, patterns <code>u [X] v</code> of two such phrases (together no
+ * longer than the maximum) separated by a gap, within a span of <code>maxspan</code> words.</li>
+ * </ul>
+ * For each pattern, up to <code>suffix-array-sample-size</code> of its occurrences in the corpus
+ * are sampled evenly, and a rule is extracted from each occurrence that is consistent with the word
+ * alignment. Rules are tight: unaligned words at the edges of a phrase are never added. Each rule
+ * has {@link #NUM_DENSE_FEATURES} dense features, as costs: -log p(e | f), the relative frequency
+ * of its target side among the sampled occurrences, and -log lex(e | f) and -log lex(f | e), the
+ * lexical weights computed from the word translation table of the index, averaged over the
+ * occurrences.
+ * <p>
+ * The rules of each source pattern are kept in an LRU cache of
+ * <code>suffix-array-cache-size</code> patterns, which is shared by the decoding threads, and the
+ * patterns of a sentence are extracted on <code>suffix-array-threads</code> threads. Since adding a
+ * rule to a grammar and sorting it modify the rule, the cache holds the extracted rules' words and
+ * features only, from which each sentence grammar creates its own {@link Rule} objects.
+ */
+public class SuffixArrayGrammar extends AbstractGrammar {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SuffixArrayGrammar.class);
+
+  /** The rule features: -log p(e | f), -log lex(e | f), -log lex(f | e). */
+  public static final int NUM_DENSE_FEATURES = 3;
+
+  /* The smallest probability a feature is computed from, so that costs remain finite */
+  private static final double MIN_PROBABILITY = 1e-7;
+
+  /* The span of a gapped pattern when the grammar has no span limit */
+  private static final int DEFAULT_MAX_SPAN = 10;
+
+  private final SuffixArray index;
+
+  /* The Vocabulary id of each word of the index, and the index id of each Vocabulary id */
+  private final int[] vocabularyIds;
+  private final int[] indexIds;
+
+  private final TerminalIndex terminals;
+
+  /* The label of the rules' left-hand sides and gaps */
+  private final int nonterminal;
+
+  private final int sampleSize;
+  private final int maxPhraseLength;
+  private final int maxSpan;
+
+  private final LoadingCache<Pattern, List<ExtractedRule>> cachedRules;
+
+  /* The extraction threads, or null to extract on the decoding thread */
+  private final ForkJoinPool pool;
+
+  /**
+   * @param fileName a file written by {@link SuffixArrayBuilder}
+   * @param owner the owner of the rules
+   * @param spanLimit the maximum span of the input the rules may be applied to
+   * @param config a populated {@link org.apache.joshua.decoder.JoshuaConfiguration}
+   * @throws IOException if the index cannot be read
+   */
+  public SuffixArrayGrammar(String fileName, String owner, int spanLimit,
+      JoshuaConfiguration config) throws IOException {
+    super(owner, config, spanLimit);
+
+    this.index = new SuffixArray(fileName);
+
+    vocabularyIds = new int[index.getVocabularySize()];
+    int maxId = 0;
+    for (int id = 1; id < vocabularyIds.length; id++) {
+      vocabularyIds[id] = Vocabulary.id(index.getWord(id));
+      maxId = Math.max(maxId, vocabularyIds[id]);
+    }
+    indexIds = new int[maxId + 1];
+    for (int id = 1; id < vocabularyIds.length; id++)
+      if (vocabularyIds[id] > 0)
+        indexIds[vocabularyIds[id]] = id;
+    terminals = TerminalIndex.fromIds(Arrays.copyOfRange(vocabularyIds, 1, vocabularyIds.length));
+
+    this.nonterminal = Vocabulary.id(config.default_non_terminal);
+    this.sampleSize = config.suffix_array_sample_size;
+    this.maxPhraseLength = config.suffix_array_max_phrase_length;
+    this.maxSpan = spanLimit > 0 ? spanLimit : DEFAULT_MAX_SPAN;
+    this.maxSourcePhraseLength = maxPhraseLength;
+
+    this.cachedRules = CacheBuilder.newBuilder().maximumSize(config.suffix_array_cache_size)
+        .build(CacheLoader.from(this::extractRules));
+    this.pool = config.suffix_array_threads > 1 ? new ForkJoinPool(config.suffix_array_threads)
+        : null;
+
+    LOG.info("Opened suffix array {} with {} sentence pairs and {} source words", fileName,
+        index.getNumSentences(), index.size());
+  }
+
+  /**
+   * Extracts the rules that apply to a sentence.
+   * 
+   * @param sentence the sentence to be decoded
+   * @param featureFunctions the feature functions the rules are sorted with
+   * @return a sorted grammar holding the rules; a {@link PhraseTable} for phrase-based decoding
+   */
+  public Grammar getSentenceGrammar(Sentence sentence, List<FeatureFunction> featureFunctions) {
+    final long startTime = System.currentTimeMillis();
+    final boolean phraseBased = joshuaConfiguration.search_algorithm.equals("stack");
+
+    List<Pattern> patterns = Collections.emptyList();
+    if (sentence.isLinearChain())
+      patterns = findPatterns(sentence.getWordIDs(), !phraseBased);
+    else
+      LOG.warn("Input {}: rules can only be extracted for sentences, not lattices", sentence.id());
+
+    final List<ExtractedRule>[] rules = getRules(patterns);
+
+    final String ownerName = OwnerMap.getOwner(owner);
+    final Grammar grammar = phraseBased
+        ? new PhraseTable(ownerName, joshuaConfiguration)
+        : new MemoryBasedBatchGrammar(ownerName, joshuaConfiguration, spanLimit);
+    for (List<ExtractedRule> patternRules : rules)
+      for (ExtractedRule rule : patternRules)
+        grammar.addRule(rule.toRule());
+    grammar.sortGrammar(featureFunctions);
+
+    LOG.info("Input {}: extracted {} rules for {} source patterns in {} seconds", sentence.id(),
+        grammar.getNumRules(), patterns.size(), (System.currentTimeMillis() - startTime) / 1000.0);
+    return grammar;
+  }
+
+  /**
+   * Finds the source patterns of a sentence that occur in the corpus.
+   * 
+   * @param words the Vocabulary ids of the sentence
+   * @param gaps whether to include patterns with a gap
+   * @return the distinct patterns, in order of their first occurrence
+   */
+  private List<Pattern> findPatterns(int[] words, boolean gaps) {
+    final int n = words.length;
+    int[] ids = new int[n];
+    for (int i = 0; i < n; i++)
+      ids[i] = (words[i] > 0 && words[i] < indexIds.length) ? indexIds[words[i]] : SuffixArray.NULL;
+
+    /* The suffix array range of each phrase words[i, i + m) that occurs in the corpus */
+    long[][] ranges = new long[n][maxPhraseLength + 1];
+    Set<Pattern> patterns = new LinkedHashSet<>();
+    for (int i = 0; i < n; i++) {
+      long range = index.size();
+      for (int m = 1; m <= maxPhraseLength && i + m <= n; m++) {
+        if (ids[i + m - 1] == SuffixArray.NULL)
+          break;
+        range = index.narrow(from(range), to(range), m - 1, ids[i + m - 1]);
+        if (from(range) == to(range))
+          break;
+        ranges[i][m] = range;
+        patterns.add(new Pattern(Arrays.copyOfRange(ids, i, i + m), null, range, 0));
+      }
+    }
+
+    if (gaps) {
+      for (int i = 0; i < n; i++)
+        for (int a = 1; a < maxPhraseLength && isFound(ranges[i][a]); a++)
+          for (int j = i + a + 1; j < n && j + 1 - i <= maxSpan; j++)
+            for (int b = 1; a + b <= maxPhraseLength && j + b - i <= maxSpan
+                && isFound(ranges[j][b]); b++)
+              patterns.add(new Pattern(Arrays.copyOfRange(ids, i, i + a),
+                  Arrays.copyOfRange(ids, j, j + b), ranges[i][a], ranges[j][b]));
+    }
+
+    return new ArrayList<>(patterns);
+  }
+
+  private static boolean isFound(long range) {
+    return from(range) < to(range);
+  }
+
+  /**
+   * Looks up the rules of each pattern, extracting them on the pool if there is one.
+   */
+  @SuppressWarnings("unchecked")
+  private List<ExtractedRule>[] getRules(List<Pattern> patterns) {
+    final List<ExtractedRule>[] rules = new List[patterns.size()];
+    if (pool == null || rules.length < 2) {
+      for (int i = 0; i < rules.length; i++)
+        rules[i] = cachedRules.getUnchecked(patterns.get(i));
+    } else {
+      try {
+        pool.submit(() -> IntStream.range(0, rules.length).parallel()
+            .forEach(i -> rules[i] = cachedRules.getUnchecked(patterns.get(i)))).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * Samples the occurrences of a pattern in the corpus and extracts rules from them.
+   */
+  private List<ExtractedRule> extractRules(Pattern pattern) {
+    final Map<Words, Extraction> extractions = new LinkedHashMap<>();
+    int occurrences = 0;
+
+    if (pattern.suffix == null) {
+      for (int position : sample(pattern.prefixRange)) {
+        int sentence = index.getSentence(position);
+        int start = position - index.getSourceStart(sentence);
+        int end = start + pattern.prefix.length;
+        extract(sentence, start, end, end, end, extractions);
+        occurrences++;
+      }
+
+    } else {
+      /* Sample the rarer of the two phrases, and find the other one in the same sentence */
+      final int prefixLength = pattern.prefix.length, suffixLength = pattern.suffix.length;
+      final boolean samplePrefix = count(pattern.prefixRange) <= count(pattern.suffixRange);
+      for (int position : sample(samplePrefix ? pattern.prefixRange : pattern.suffixRange)) {
+        int sentence = index.getSentence(position);
+        int sentenceStart = index.getSourceStart(sentence);
+        int sentenceEnd = sentenceStart + index.getSourceLength(sentence);
+        if (samplePrefix) {
+          int last = Math.min(sentenceEnd, position + maxSpan) - suffixLength;
+          for (int q = position + prefixLength + 1; q <= last; q++) {
+            if (matches(q, pattern.suffix)) {
+              extract(sentence, position - sentenceStart, position + prefixLength - sentenceStart,
+                  q - sentenceStart, q + suffixLength - sentenceStart, extractions);
+              occurrences++;
+            }
+          }
+        } else {
+          int first = Math.max(sentenceStart, position + suffixLength - maxSpan);
+          for (int p = first; p + prefixLength < position; p++) {
+            if (matches(p, pattern.prefix)) {
+              extract(sentence, p - sentenceStart, p + prefixLength - sentenceStart,
+                  position - sentenceStart, position + suffixLength - sentenceStart, extractions);
+              occurrences++;
+            }
+          }
+        }
+      }
+    }
+
+    final List<ExtractedRule> rules = new ArrayList<>(extractions.size());
+    for (Map.Entry<Words, Extraction> entry : extractions.entrySet())
+      rules.add(createRule(pattern, entry.getKey().words, entry.getValue(), occurrences));
+    return rules;
+  }
+
+  private static int count(long range) {
+    return to(range) - from(range);
+  }
+
+  /* Evenly spaced occurrences of a phrase, at most sampleSize of them */
+  private int[] sample(long range) {
+    final int count = count(range);
+    final int[] positions = new int[Math.min(count, sampleSize)];
+    for (int k = 0; k < positions.length; k++)
+      positions[k] = index.getSuffix(from(range) + (int) ((long) k * count / positions.length));
+    return positions;
+  }
+
+  private boolean matches(int position, int[] phrase) {
+    for (int i = 0; i < phrase.length; i++)
+      if (index.getSourceWord(position + i) != phrase[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Extracts a rule from an occurrence of a pattern, if it is consistent with the word alignment.
+   * Positions are relative to the start of the sentence. The pattern covers [start, end), except
+   * for the gap [gapStart, gapEnd), which is empty for a phrase.
+   */
+  private void extract(int sentence, int start, int gapStart, int gapEnd, int end,
+      Map<Words, Extraction> extractions) {
+    final int[] points = index.getAlignment(sentence);
+    final boolean hasGap = gapStart < gapEnd;
+
+    final int[] span = targetSpan(points, start, end);
+    if (span == null)
+      return;
+    final int[] gapSpan = hasGap ? targetSpan(points, gapStart, gapEnd) : null;
+    if (hasGap && gapSpan == null)
+      return;
+
+    /* The target side, with -1 for the gap */
+    final int length = span[1] - span[0] - (hasGap ? gapSpan[1] - gapSpan[0] - 1 : 0);
+    if (length - (hasGap ? 1 : 0) > 2 * maxPhraseLength)
+      return;
+    final int targetStart = index.getTargetStart(sentence);
+    final int[] target = new int[length];
+    final int[] targetPositions = new int[length];
+    for (int t = span[0], k = 0; t < span[1]; t++) {
+      if (hasGap && t == gapSpan[0]) {
+        target[k] = -1;
+        targetPositions[k++] = -1;
+        t = gapSpan[1] - 1;
+      } else {
+        target[k] = index.getTargetWord(targetStart + t);
+        targetPositions[k++] = t;
+      }
+    }
+
+    /* The source terminals, in the order of the rule */
+    final int sourceStart = index.getSourceStart(sentence);
+    final int numTerminals = (gapStart - start) + (end - gapEnd);
+    final int[] source = new int[numTerminals];
+    final int[] sourcePositions = new int[numTerminals];
+    for (int s = start, k = 0; s < end; s++) {
+      if (s == gapStart)
+        s = gapEnd;
+      source[k] = index.getSourceWord(sourceStart + s);
+      sourcePositions[k++] = s;
+    }
+
+    /* The alignment between the terminals, in rule positions, and the lexical weights */
+    final StringBuilder alignment = new StringBuilder();
+    boolean aligned = false;
+    for (int point : points) {
+      int s = ruleSourcePosition(point >>> 16, start, gapStart, gapEnd, end);
+      int t = ruleTargetPosition(point & 0xffff, span, gapSpan);
+      if (s >= 0 && t >= 0) {
+        if (alignment.length() > 0)
+          alignment.append(' ');
+        alignment.append(s).append('-').append(t);
+        aligned = true;
+      }
+    }
+    if (!aligned)
+      return;
+
+    double targetGivenSource = 0.0;
+    for (int k = 0; k < target.length; k++) {
+      if (target[k] < 0)
+        continue;
+      double sum = 0.0;
+      int links = 0;
+      for (int point : points)
+        if ((point & 0xffff) == targetPositions[k]) {
+          sum += index.getTargetGivenSource(index.getSourceWord(sourceStart + (point >>> 16)),
+              target[k]);
+          links++;
+        }
+      double p = links == 0 ? index.getTargetGivenSource(SuffixArray.NULL, target[k]) : sum / links;
+      targetGivenSource -= Math.log(Math.max(p, MIN_PROBABILITY));
+    }
+
+    double sourceGivenTarget = 0.0;
+    for (int k = 0; k < source.length; k++) {
+      double sum = 0.0;
+      int links = 0;
+      for (int point : points)
+        if ((point >>> 16) == sourcePositions[k]) {
+          sum += index.getSourceGivenTarget(source[k],
+              index.getTargetWord(targetStart + (point & 0xffff)));
+          links++;
+        }
+      double p = links == 0 ? index.getSourceGivenTarget(source[k], SuffixArray.NULL) : sum / links;
+      sourceGivenTarget -= Math.log(Math.max(p, MIN_PROBABILITY));
+    }
+
+    Words key = new Words(target);
+    Extraction extraction = extractions.get(key);
+    if (extraction == null) {
+      extraction = new Extraction(alignment.toString());
+      extractions.put(key, extraction);
+    }
+    extraction.count++;
+    extraction.targetGivenSource += targetGivenSource;
+    extraction.sourceGivenTarget += sourceGivenTarget;
+  }
+
+  /**
+   * Finds the smallest target span of the source span [start, end), and checks that no target word
+   * in it is aligned outside of the source span.
+   * 
+   * @return the target span [from, to), or null if the source span is unaligned or inconsistent
+   */
+  private static int[] targetSpan(int[] points, int start, int end) {
+    int from = Integer.MAX_VALUE, to = -1;
+    for (int point : points) {
+      int s = point >>> 16;
+      if (s >= start && s < end) {
+        from = Math.min(from, point & 0xffff);
+        to = Math.max(to, (point & 0xffff) + 1);
+      }
+    }
+    if (to < 0)
+      return null;
+    for (int point : points) {
+      int s = point >>> 16, t = point & 0xffff;
+      if (t >= from && t < to && (s < start || s >= end))
+        return null;
+    }
+    return new int[] { from, to };
+  }
+
+  private static int ruleSourcePosition(int s, int start, int gapStart, int gapEnd, int end) {
+    if (s < start || s >= end || (s >= gapStart && s < gapEnd))
+      return -1;
+    return s < gapStart ? s - start : (gapStart - start) + 1 + (s - gapEnd);
+  }
+
+  private static int ruleTargetPosition(int t, int[] span, int[] gapSpan) {
+    if (t < span[0] || t >= span[1])
+      return -1;
+    if (gapSpan == null || t < gapSpan[0])
+      return t - span[0];
+    if (t < gapSpan[1])
+      return -1;
+    return (gapSpan[0] - span[0]) + 1 + (t - gapSpan[1]);
+  }
+
+  private ExtractedRule createRule(Pattern pattern, int[] target, Extraction extraction, int occurrences) {
+    final int[] source;
+    if (pattern.suffix == null) {
+      source = toVocabulary(pattern.prefix);
+    } else {
+      source = new int[pattern.prefix.length + 1 + pattern.suffix.length];
+      for (int i = 0; i < pattern.prefix.length; i++)
+        source[i] = vocabularyIds[pattern.prefix[i]];
+      source[pattern.prefix.length] = nonterminal;
+      for (int i = 0; i < pattern.suffix.length; i++)
+        source[pattern.prefix.length + 1 + i] = vocabularyIds[pattern.suffix[i]];
+    }
+
+    final int[] english = new int[target.length];
+    for (int i = 0; i < target.length; i++)
+      english[i] = target[i] < 0 ? -1 : vocabularyIds[target[i]];
+
+    final double p = (double) extraction.count / occurrences;
+    final String features = (float) -Math.log(Math.max(p, MIN_PROBABILITY)) + " "
+        + (float) (extraction.targetGivenSource / extraction.count) + " "
+        + (float) (extraction.sourceGivenTarget / extraction.count);
+
+    return new ExtractedRule(nonterminal, source, english, features,
+        pattern.suffix == null ? 0 : 1, extraction.alignment);
+  }
+
+  private int[] toVocabulary(int[] ids) {
+    final int[] words = new int[ids.length];
+    for (int i = 0; i < ids.length; i++)
+      words[i] = vocabularyIds[ids[i]];
+    return words;
+  }
+
+  /**
+   * A source pattern: a phrase, or two phrases separated by a gap. Patterns are identified by
+   * their words; the suffix array ranges of the phrases are kept for sampling.
+   */
+  private static final class Pattern {
+    final int[] prefix;
+    final int[] suffix;
+    final long prefixRange;
+    final long suffixRange;
+
+    Pattern(int[] prefix, int[] suffix, long prefixRange, long suffixRange) {
+      this.prefix = prefix;
+      this.suffix = suffix;
+      this.prefixRange = prefixRange;
+      this.suffixRange = suffixRange;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(prefix) + Arrays.hashCode(suffix);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Pattern))
+        return false;
+      Pattern other = (Pattern) obj;
+      return Arrays.equals(prefix, other.prefix) && Arrays.equals(suffix, other.suffix);
+    }
+  }
+
+  /* The target side of a rule, in index ids with -1 for the gap */
+  private static final class Words {
+    final int[] words;
+
+    Words(int[] words) {
+      this.words = words;
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(words);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Words && Arrays.equals(words, ((Words) obj).words);
+    }
+  }
+
+  /* An extracted rule, from which a new Rule is created for each sentence grammar */
+  private static final class ExtractedRule {
+    final int lhs;
+    final int[] source;
+    final int[] english;
+    final String features;
+    final int arity;
+    final String alignment;
+
+    ExtractedRule(int lhs, int[] source, int[] english, String features, int arity,
+        String alignment) {
+      this.lhs = lhs;
+      this.source = source;
+      this.english = english;
+      this.features = features;
+      this.arity = arity;
+      this.alignment = alignment;
+    }
+
+    Rule toRule() {
+      return new Rule(lhs, source, english, features, arity, alignment);
+    }
+  }
+
+  /* The statistics of the occurrences a target side was extracted from */
+  private static final class Extraction {
+    final String alignment;
+    int count = 0;
+    double targetGivenSource = 0.0;
+    double sourceGivenTarget = 0.0;
+
+    Extraction(String alignment) {
+      this.alignment = alignment;
+    }
+  }
+
+  /**
+   * Stops the extraction threads, if any. The grammar cannot extract rules afterwards.
+   */
+  public void close() {
+    if (pool != null)
+      pool.shutdown();
+  }
+
+  // ===============================================================
+  // Grammar methods
+  // ===============================================================
+
+  /**
+   * Has no trie; see {@link #getSentenceGrammar(Sentence, List)}.
+   */
+  @Override
+  public Trie getTrieRoot() {
+    return null;
+  }
+
+  /**
+   * @return the source words of the corpus
+   */
+  @Override
+  public TerminalIndex getTerminalIndex() {
+    return terminals;
+  }
+
+  @Override
+  public boolean hasRuleForSpan(int startIndex, int endIndex, int pathLength) {
+    return spanLimit == -1 || pathLength <= spanLimit;
+  }
+
+  /**
+   * @return 0, since rules are only extracted for sentences
+   */
+  @Override
+  public int getNumRules() {
+    return 0;
+  }
+
+  @Override
+  public int getNumDenseFeatures() {
+    return NUM_DENSE_FEATURES;
+  }
+
+  @Override
+  public void addOOVRules(int word, List<FeatureFunction> featureFunctions) {
+    throw new RuntimeException("SuffixArrayGrammar.addOOVRules(): I can't add OOV rules");
+  }
+
+  @Override
+  public void addRule(Rule rule) {
+    throw new RuntimeException("SuffixArrayGrammar.addRule(): I can't add rules");
+  }
+
+  @Override
+  public void save() {
+    throw new RuntimeException("SuffixArrayGrammar.save(): I can't be saved");
+  }
+}
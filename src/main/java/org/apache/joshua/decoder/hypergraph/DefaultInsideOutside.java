@@ -18,13 +18,20 @@
  */
 package org.apache.joshua.decoder.hypergraph;
 
-import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 
 /**
  * to use the functions here, one need to extend the class to provide a way to calculate the
  * transitionLogP based on feature set
  * 
+ * The hypergraph is first indexed into primitive arrays (see {@link HyperGraphIndex}); inside and
+ * outside scores are then computed level by level over <code>double[]</code> arrays. With
+ * {@link #setNumThreads(int)}, the nodes of each level are computed in parallel.
+ * 
  * @author Zhifei Li, zhifei.work@gmail.com
  * @version $LastChangedDate$
  */
@@ -46,24 +53,17 @@ public abstract class DefaultInsideOutside {
   double ONE_IN_SEMIRING = 0;// log-domain
   double scaling_factor; // try to scale the original distribution: smooth or winner-take-all
 
-  private final HashMap<HGNode, Double> tbl_inside_prob = new HashMap<>();// remember inside
-                                                                                  // prob of each
-                                                                                  // item:
-  private final HashMap<HGNode, Double> tbl_outside_prob = new HashMap<>();// remember
-                                                                                   // outside prob
-                                                                                   // of each item
-  double normalizationConstant = ONE_IN_SEMIRING;
+  /* Levels with fewer nodes than this are not worth splitting across threads */
+  private static final int MIN_PARALLEL_LEVEL_SIZE = 256;
 
-  /**
-   * for each item, remember how many deductions pointering to me, this is needed for outside
-   * estimation during outside estimation, an item will recursive call its deductions to do
-   * outside-estimation only after it itself is done with outside estimation, this is necessary
-   * because the outside estimation of the items under its deductions require the item's outside
-   * value
-   */
-  private final HashMap<HGNode, Integer> tbl_num_parent_deductions = new HashMap<>();
+  private int numThreads = 1;
 
-  private HashMap<HGNode, Integer> tbl_for_sanity_check = null;
+  HyperGraphIndex index = null;
+  private double[] inside_prob = null; // inside prob of each node, by node id
+  private double[] outside_prob = null; // outside prob of each node, by node id
+  private double[] edge_log_prob = null; // scaled log prob of each hyperedge, by edge id
+
+  double normalizationConstant = ONE_IN_SEMIRING;
 
   // get feature-set specific **log probability** for each hyperedge
   protected abstract double getHyperedgeLogProb(HyperEdge dt, HGNode parent_it);
@@ -72,7 +72,18 @@ public abstract class DefaultInsideOutside {
     return getHyperedgeLogProb(dt, parent_it) * scaling_factor;
   }
 
-  // the results are stored in tbl_inside_prob and tbl_outside_prob
+  /**
+   * Sets the number of threads used to compute the nodes of a level. The hyperedge log probs are
+   * always computed on the calling thread, so {@link #getHyperedgeLogProb(HyperEdge, HGNode)}
+   * need not be thread-safe.
+   * 
+   * @param numThreads the number of threads (1 computes everything on the calling thread)
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  // the results are stored in inside_prob and outside_prob
   public void runInsideOutside(HyperGraph hg, int add_mode, int semiring, double scaling_factor_) {// add_mode|||
                                                                                                    // 0:
                                                                                                    // sum;
@@ -84,21 +95,35 @@ public abstract class DefaultInsideOutside {
     setup_semiring(semiring, add_mode);
     scaling_factor = scaling_factor_;
 
-    // System.out.println("outside estimation");
-    inside_estimation_hg(hg);
-    // System.out.println("inside estimation");
-    outside_estimation_hg(hg);
-    normalizationConstant = tbl_inside_prob.get(hg.goalNode);
+    index = new HyperGraphIndex(hg);
+    edge_log_prob = new double[index.numEdges()];
+    for (int e = 0; e < index.numEdges(); e++)
+      edge_log_prob[e] = getHyperedgeLogProb(index.edges[e], index.nodes[index.edgeHead[e]],
+          this.scaling_factor);
+
+    ForkJoinPool pool = (numThreads > 1) ? new ForkJoinPool(numThreads) : null;
+    try {
+      // System.out.println("outside estimation");
+      inside_estimation_hg(pool);
+      // System.out.println("inside estimation");
+      outside_estimation_hg(pool);
+    } finally {
+      if (pool != null)
+        pool.shutdown();
+    }
+    normalizationConstant = inside_prob[index.goal()];
     System.out.println("normalization constant is " + normalizationConstant);
-    tbl_num_parent_deductions.clear();
-    sanityCheckHG(hg);
+    // posteriors only add up in the sum semiring; under viterbi the edges of a node exceed it
+    if (ADD_MODE == 0)
+      sanityCheckHG(hg);
   }
 
   // to save memory, external class should call this method
   public void clearState() {
-    tbl_num_parent_deductions.clear();
-    tbl_inside_prob.clear();
-    tbl_outside_prob.clear();
+    index = null;
+    inside_prob = null;
+    outside_prob = null;
+    edge_log_prob = null;
   }
 
   // ######### use of inside-outside probs ##########################
@@ -110,28 +135,34 @@ public abstract class DefaultInsideOutside {
   // this is the log of expected/posterior prob (i.e., LogP, where P is the posterior probability),
   // without normalization
   public double getEdgeUnormalizedPosteriorLogProb(HyperEdge dt, HGNode parent) {
+    return getEdgeUnormalizedPosteriorLogProb(edgeId(dt));
+  }
+
+  double getEdgeUnormalizedPosteriorLogProb(int e) {
     // ### outside of parent
-    double outside = tbl_outside_prob.get(parent);
+    double outside = outside_prob[index.edgeHead[e]];
 
     // ### get inside prob of all my ant-items
     double inside = ONE_IN_SEMIRING;
-    if (dt.getTailNodes() != null) {
-      for (HGNode ant_it : dt.getTailNodes())
-        inside = multi_in_semiring(inside, tbl_inside_prob.get(ant_it));
-    }
+    for (int t = index.tailStart[e]; t < index.tailStart[e + 1]; t++)
+      inside = multi_in_semiring(inside, inside_prob[index.tails[t]]);
 
     // ### add deduction/rule specific prob
     double merit = multi_in_semiring(inside, outside);
-    merit = multi_in_semiring(merit, getHyperedgeLogProb(dt, parent, this.scaling_factor));
+    merit = multi_in_semiring(merit, edge_log_prob[e]);
 
     return merit;
   }
 
   // normalized probabily in [0,1]
   public double getEdgePosteriorProb(HyperEdge dt, HGNode parent) {
+    return getEdgePosteriorProb(edgeId(dt));
+  }
+
+  private double getEdgePosteriorProb(int e) {
     if (SEMIRING == LOG_SEMIRING) {
       double res =
-          Math.exp((getEdgeUnormalizedPosteriorLogProb(dt, parent) - getLogNormalizationConstant()));
+          Math.exp((getEdgeUnormalizedPosteriorLogProb(e) - getLogNormalizationConstant()));
       if (res < 0.0 - 1e-2 || res > 1.0 + 1e-2) {
         throw new RuntimeException("res is not within [0,1], must be wrong value: " + res);
       }
@@ -144,18 +175,24 @@ public abstract class DefaultInsideOutside {
   // this is the log of expected/posterior prob (i.e., LogP, where P is the posterior probability),
   // without normalization
   public double getNodeUnnormalizedPosteriorLogProb(HGNode node) {
+    return getNodeUnnormalizedPosteriorLogProb(nodeId(node));
+  }
+
+  private double getNodeUnnormalizedPosteriorLogProb(int v) {
     // ### outside of parent
-    double inside = tbl_inside_prob.get(node);
-    double outside = tbl_outside_prob.get(node);
-    return multi_in_semiring(inside, outside);
+    return multi_in_semiring(inside_prob[v], outside_prob[v]);
   }
 
 
   // normalized probabily in [0,1]
   public double getNodePosteriorProb(HGNode node) {
+    return getNodePosteriorProb(nodeId(node));
+  }
+
+  private double getNodePosteriorProb(int v) {
     if (SEMIRING == LOG_SEMIRING) {
       double res =
-          Math.exp((getNodeUnnormalizedPosteriorLogProb(node) - getLogNormalizationConstant()));
+          Math.exp((getNodeUnnormalizedPosteriorLogProb(v) - getLogNormalizationConstant()));
       if (res < 0.0 - 1e-2 || res > 1.0 + 1e-2) {
         throw new RuntimeException("res is not within [0,1], must be wrong value: " + res);
       }
@@ -165,27 +202,36 @@ public abstract class DefaultInsideOutside {
     }
   }
 
+  private int nodeId(HGNode node) {
+    int v = index.getId(node);
+    if (v == -1)
+      throw new RuntimeException("node is not part of the hypergraph");
+    return v;
+  }
+
+  private int edgeId(HyperEdge edge) {
+    int e = index.getId(edge);
+    if (e == -1)
+      throw new RuntimeException("hyperedge is not part of the hypergraph");
+    return e;
+  }
+
   /*
    * Originally, to see if the sum of the posterior probabilities of all the hyperedges sum to one
    * However, this won't work! The sum should be greater than 1.
    */
   public void sanityCheckHG(HyperGraph hg) {
-    tbl_for_sanity_check = new HashMap<>();
     // System.out.println("num_dts: " + hg.goal_item.l_deductions.size());
-    sanity_check_item(hg.goalNode);
+    for (int v = 0; v < index.numNodes(); v++)
+      sanity_check_item(v);
     System.out.println("survied sanity check!!!!");
   }
 
-  private void sanity_check_item(HGNode it) {
-    if (tbl_for_sanity_check.containsKey(it)) return;
-    tbl_for_sanity_check.put(it, 1);
+  private void sanity_check_item(int v) {
     double prob_sum = 0;
-    // ### recursive call on each deduction
-    for (HyperEdge dt : it.hyperedges) {
-      prob_sum += getEdgePosteriorProb(dt, it);
-      sanity_check_deduction(dt);// deduction-specifc operation
-    }
-    double supposed_sum = getNodePosteriorProb(it);
+    for (int e = index.edgeStart[v]; e < index.edgeStart[v + 1]; e++)
+      prob_sum += getEdgePosteriorProb(e);
+    double supposed_sum = getNodePosteriorProb(v);
     if (Math.abs(prob_sum - supposed_sum) > 1e-3) {
       throw new RuntimeException("prob_sum=" + prob_sum + "; supposed_sum=" + supposed_sum
           + "; sanity check fail!!!!");
@@ -193,143 +239,95 @@ public abstract class DefaultInsideOutside {
     // ### item-specific operation
   }
 
-  private void sanity_check_deduction(HyperEdge dt) {
-    // ### recursive call on each ant item
-    if (null != dt.getTailNodes()) {
-      dt.getTailNodes().forEach(this::sanity_check_item);
-    }
-
-    // ### deduction-specific operation
-
-  }
-
   // ################## end use of inside-outside probs
 
 
 
   // ############ bottomn-up insdide estimation ##########################
-  private void inside_estimation_hg(HyperGraph hg) {
-    tbl_inside_prob.clear();
-    tbl_num_parent_deductions.clear();
-    inside_estimation_item(hg.goalNode);
+  private void inside_estimation_hg(ForkJoinPool pool) {
+    inside_prob = new double[index.numNodes()];
+    for (int l = 0; l < index.numLevels(); l++)
+      forEachNode(pool, l, this::inside_estimation_item);
   }
 
-  private double inside_estimation_item(HGNode it) {
-    // ### get number of deductions that point to me
-    Integer num_called = tbl_num_parent_deductions.get(it);
-    if (null == num_called) {
-      tbl_num_parent_deductions.put(it, 1);
-    } else {
-      tbl_num_parent_deductions.put(it, num_called + 1);
-    }
+  private void inside_estimation_item(int v) {
+    double inside = ZERO_IN_SEMIRING;
 
-    if (tbl_inside_prob.containsKey(it)) {
-      return tbl_inside_prob.get(it);
-    }
-    double inside_prob = ZERO_IN_SEMIRING;
-
-    // ### recursive call on each deduction
-    for (HyperEdge dt : it.hyperedges) {
-      double v_dt = inside_estimation_deduction(dt, it);// deduction-specifc operation
-      inside_prob = add_in_semiring(inside_prob, v_dt);
+    for (int e = index.edgeStart[v]; e < index.edgeStart[v + 1]; e++) {
+      // ### deduction operation: the tail nodes are all on lower levels, and thus done
+      double v_dt = edge_log_prob[e];
+      for (int t = index.tailStart[e]; t < index.tailStart[e + 1]; t++)
+        v_dt = multi_in_semiring(v_dt, inside_prob[index.tails[t]]);
+      inside = add_in_semiring(inside, v_dt);
     }
     // ### item-specific operation, but all the prob should be factored into each deduction
 
-    tbl_inside_prob.put(it, inside_prob);
-    return inside_prob;
-  }
-
-  private double inside_estimation_deduction(HyperEdge dt, HGNode parent_item) {
-    double inside_prob = ONE_IN_SEMIRING;
-    // ### recursive call on each ant item
-    if (dt.getTailNodes() != null) for (HGNode ant_it : dt.getTailNodes()) {
-      double v_item = inside_estimation_item(ant_it);
-      inside_prob = multi_in_semiring(inside_prob, v_item);
-    }
-
-    // ### deduction operation
-    double deduct_prob = getHyperedgeLogProb(dt, parent_item, this.scaling_factor);// feature-set
-                                                                                   // specific
-    inside_prob = multi_in_semiring(inside_prob, deduct_prob);
-    return inside_prob;
+    inside_prob[v] = inside;
   }
 
   // ########### end inside estimation
 
   // ############ top-downn outside estimation ##########################
 
-  private void outside_estimation_hg(HyperGraph hg) {
-    tbl_outside_prob.clear();
-    tbl_outside_prob.put(hg.goalNode, ONE_IN_SEMIRING);// initialize
-    for (HyperEdge dt : hg.goalNode.hyperedges)
-      outside_estimation_deduction(dt, hg.goalNode);
+  private void outside_estimation_hg(ForkJoinPool pool) {
+    outside_prob = new double[index.numNodes()];
+    if (index.numNodes() == 0)
+      return;
+    outside_prob[index.goal()] = ONE_IN_SEMIRING;// initialize
+    for (int l = index.numLevels() - 2; l >= 0; l--)
+      forEachNode(pool, l, this::outside_estimation_item);
   }
 
-  private void outside_estimation_item(HGNode cur_it, HGNode upper_item, HyperEdge parent_dt,
-      double parent_deduct_prob) {
-    Integer num_called = tbl_num_parent_deductions.get(cur_it);
-    if (null == num_called || 0 == num_called) {
-      throw new RuntimeException("un-expected call, must be wrong");
-    }
-    tbl_num_parent_deductions.put(cur_it, num_called - 1);
-
-    double old_outside_prob = ZERO_IN_SEMIRING;
-    if (tbl_outside_prob.containsKey(cur_it)) {
-      old_outside_prob = tbl_outside_prob.get(cur_it);
-    }
-
-    double additional_outside_prob = ONE_IN_SEMIRING;
-
-    // ### add parent deduction prob
-    additional_outside_prob = multi_in_semiring(additional_outside_prob, parent_deduct_prob);
+  /*
+   * Collects the outside prob of a node from all the hyperedges it is a tail node of. Their
+   * parents are all on higher levels, and thus done.
+   */
+  private void outside_estimation_item(int v) {
+    double outside = ZERO_IN_SEMIRING;
 
-    // ### sibing specifc
-    if (parent_dt.getTailNodes() != null && parent_dt.getTailNodes().size() > 1)
-      for (HGNode ant_it : parent_dt.getTailNodes()) {
-        if (ant_it != cur_it) {
-          double inside_prob_item = tbl_inside_prob.get(ant_it);// inside prob
-          additional_outside_prob = multi_in_semiring(additional_outside_prob, inside_prob_item);
-        }
-      }
+    for (int u = index.useStart[v]; u < index.useStart[v + 1]; u++) {
+      int e = index.uses[u];
 
-    // ### upper item
-    double outside_prob_item = tbl_outside_prob.get(upper_item);// outside prob
-    additional_outside_prob = multi_in_semiring(additional_outside_prob, outside_prob_item);
+      // ### add parent deduction prob
+      double additional_outside_prob = edge_log_prob[e];
 
-    // #### add to old prob
-    additional_outside_prob = add_in_semiring(additional_outside_prob, old_outside_prob);
+      // ### sibing specifc
+      for (int t = index.tailStart[e]; t < index.tailStart[e + 1]; t++)
+        if (index.tails[t] != v)
+          additional_outside_prob = multi_in_semiring(additional_outside_prob,
+              inside_prob[index.tails[t]]);
 
-    tbl_outside_prob.put(cur_it, additional_outside_prob);
+      // ### upper item
+      additional_outside_prob = multi_in_semiring(additional_outside_prob,
+          outside_prob[index.edgeHead[e]]);
 
-    // ### recursive call on each deduction
-    if (num_called - 1 <= 0) {// i am done
-      for (HyperEdge dt : cur_it.hyperedges) {
-        // TODO: potentially, we can collect the feature expection in each hyperedge here, to avoid
-        // another pass of the hypergraph to get the counts
-        outside_estimation_deduction(dt, cur_it);
-      }
+      // #### add to old prob
+      outside = add_in_semiring(additional_outside_prob, outside);
     }
-  }
 
+    outside_prob[v] = outside;
+  }
 
-  private void outside_estimation_deduction(HyperEdge dt, HGNode parent_item) {
-    // we do not need to outside prob if no ant items
-    if (dt.getTailNodes() != null) {
-      // ### deduction specific prob
-      double deduction_prob = getHyperedgeLogProb(dt, parent_item, this.scaling_factor);// feature-set
-                                                                                        // specific
+  // ########### end outside estimation
 
-      // ### recursive call on each ant item
-      for (HGNode ant_it : dt.getTailNodes()) {
-        outside_estimation_item(ant_it, parent_item, dt, deduction_prob);
+  private void forEachNode(ForkJoinPool pool, int level, IntConsumer action) {
+    final int from = index.levelStart[level];
+    final int to = index.levelStart[level + 1];
+    if (pool == null || to - from < MIN_PARALLEL_LEVEL_SIZE) {
+      for (int v = from; v < to; v++)
+        action.accept(v);
+    } else {
+      try {
+        pool.submit(() -> IntStream.range(from, to).parallel().forEach(action)).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
       }
     }
   }
 
-  // ########### end outside estimation
-
-
-
   // ############ common ##########################
   // BUG: replace integer pseudo-enum with a real Java enum
   // BUG: use a Semiring class instead of all this?
@@ -18,6 +18,8 @@
  */
 package org.apache.joshua.decoder.hypergraph;
 
+import static org.apache.joshua.util.Bits.mix;
+
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -53,6 +55,12 @@ public class HGNode {
   protected final List<DPState> dpStates;
 
   private Signature signature = null;
+
+  /*
+   * A 64-bit hash of the dynamic programming signature (lhs, span, and DP states), computed once
+   * when the node is created, since the chart looks every new node up by it
+   */
+  private final long signatureHash;
 //  private int hash = 0;
 
   protected float score = 0.0f;
@@ -68,6 +76,7 @@ public class HGNode {
     this.j = j;
     this.dpStates = dpStates;
     this.score = pruningEstimate;
+    this.signatureHash = computeSignatureHash();
     addHyperedgeInNode(hyperEdge);
   }
 
@@ -80,6 +89,7 @@ public class HGNode {
     this.hyperedges = hyperedges;
     this.bestHyperedge = bestHyperedge;
     this.dpStates = states;
+    this.signatureHash = computeSignatureHash();
   }
 
   // ===============================================================
@@ -188,6 +198,77 @@ public class HGNode {
 //    return false;
 //  }
 
+  private long computeSignatureHash() {
+    return signatureHash(i, j, lhs, dpStates);
+  }
+
+  /**
+   * Computes the {@link #signatureHash()} a node with the given signature would have, so that the
+   * chart can look a node up before deciding whether it needs to create one.
+   * 
+   * @param i start of the span
+   * @param j end of the span
+   * @param lhs the left-hand side
+   * @param dpStates the DP states, or null
+   * @return the signature hash
+   */
+  public static long signatureHash(int i, int j, int lhs, List<DPState> dpStates) {
+    long hash = mix(0x9e3779b97f4a7c15L * lhs + ((long) i << 32 | j));
+    if (null != dpStates)
+      for (DPState dps : dpStates)
+        hash = mix(hash * 31 + dps.longHash());
+    return hash;
+  }
+
+  /**
+   * @return a 64-bit hash of the node's dynamic programming signature, see {@link Signature}
+   */
+  public long signatureHash() {
+    return signatureHash;
+  }
+
+  /**
+   * Tests whether two nodes are equivalent for dynamic programming: they have the same left-hand
+   * side, span, and DP states. This is the equality of their {@link Signature}s, without
+   * creating them.
+   * 
+   * @param that another node
+   * @return true if the nodes can be merged
+   */
+  public boolean sameSignature(HGNode that) {
+    return hasSignature(that.i, that.j, that.lhs, that.dpStates, that.signatureHash);
+  }
+
+  /**
+   * Tests whether this node has the given signature, see {@link #sameSignature(HGNode)}.
+   * 
+   * @param i start of the span
+   * @param j end of the span
+   * @param lhs the left-hand side
+   * @param dpStates the DP states, or null
+   * @param hash the signature hash, see {@link #signatureHash(int, int, int, List)}
+   * @return true if a node with that signature could be merged into this one
+   */
+  public boolean hasSignature(int i, int j, int lhs, List<DPState> dpStates, long hash) {
+    if (signatureHash != hash)
+      return false;
+    if (this.lhs != lhs)
+      return false;
+    if (this.i != i || this.j != j)
+      return false;
+    if (this.dpStates == null)
+      return (dpStates == null);
+    if (dpStates == null)
+      return false;
+    if (this.dpStates.size() != dpStates.size())
+      return false;
+    for (int k = 0; k < dpStates.size(); k++) {
+      if (!this.dpStates.get(k).equals(dpStates.get(k)))
+        return false;
+    }
+    return true;
+  }
+
   /***
    * We have different purposes when hashing HGNodes. For dynamic programming, we want to establish
    * equivalency based on dynamic programming state, but when doing k-best extraction, we need
@@ -195,39 +276,16 @@ public class HGNode {
    * based on the dynamic programming state.
    */
   public class Signature {
-    // Cached hash code.
-    private int hash = 0;
 
     @Override
     public int hashCode() {
-      if (hash == 0) {
-        hash = 31 * lhs;
-        if (null != dpStates && dpStates.size() > 0)
-          for (DPState dps : dpStates)
-            hash = hash * 19 + dps.hashCode();
-      }
-      return hash;
+      return (int) (signatureHash ^ (signatureHash >>> 32));
     }
 
     @Override
     public boolean equals(Object other) {
       if (other instanceof Signature) {
-        HGNode that = ((Signature) other).node();
-        if (lhs != that.lhs)
-          return false;
-        if (i != that.i || j != that.j)
-          return false;
-        if (dpStates == null)
-          return (that.dpStates == null);
-        if (that.dpStates == null)
-          return false;
-        if (dpStates.size() != that.dpStates.size())
-          return false;
-        for (int i = 0; i < dpStates.size(); i++) {
-          if (!dpStates.get(i).equals(that.dpStates.get(i)))
-            return false;
-        }
-        return true;
+        return sameSignature(((Signature) other).node());
       }
       return false;
     }
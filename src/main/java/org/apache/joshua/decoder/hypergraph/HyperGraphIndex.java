@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only index of a hypergraph as primitive arrays, for analyses that visit every node and
+ * hyperedge (inside-outside, posteriors, pruning) without recursion or hash maps keyed by object.
+ * 
+ * Nodes are numbered by level, where leaves (nodes whose hyperedges have no tail nodes) have level
+ * 0 and every other node has a level one higher than the highest of its tail nodes. Numbering by
+ * level is a topological order, and all nodes of a level depend only on nodes of lower levels, so
+ * each level can be processed in parallel. The goal node, which all other nodes descend from, is
+ * alone on the highest level and has the highest number.
+ * 
+ * The hyperedges of node <code>v</code> are <code>edgeStart[v]..edgeStart[v+1]-1</code>, in the
+ * order of <code>v.hyperedges</code>; the tail nodes of hyperedge <code>e</code> are
+ * <code>tails[tailStart[e]..tailStart[e+1]-1]</code>. The index reflects the hypergraph at the time
+ * it was built.
+ */
+public class HyperGraphIndex {
+
+  public final HGNode[] nodes;
+  public final HyperEdge[] edges;
+
+  /* The head (parent) node of each hyperedge */
+  public final int[] edgeHead;
+  public final int[] edgeStart;
+  public final int[] tailStart;
+  public final int[] tails;
+
+  /* The nodes of level l are levelStart[l]..levelStart[l+1]-1 */
+  public final int[] levelStart;
+
+  /* For each node, the hyperedges it is a tail node of: uses[useStart[v]..useStart[v+1]-1] */
+  public final int[] useStart;
+  public final int[] uses;
+
+  private final IdentityHashMap<HGNode, Integer> nodeIds;
+  private final IdentityHashMap<HyperEdge, Integer> edgeIds;
+
+  /**
+   * Indexes the part of the hypergraph reachable from its goal node.
+   * 
+   * @param hg the hypergraph
+   */
+  public HyperGraphIndex(HyperGraph hg) {
+    /* Collect the nodes and compute their levels with an iterative post-order traversal */
+    IdentityHashMap<HGNode, Integer> levels = new IdentityHashMap<>();
+    ArrayDeque<HGNode> stack = new ArrayDeque<>();
+    ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+    int numEdges = 0;
+    int numTails = 0;
+    int maxLevel = 0;
+    if (hg.goalNode != null) {
+      stack.push(hg.goalNode);
+      expanded.push(false);
+    }
+    while (!stack.isEmpty()) {
+      HGNode node = stack.pop();
+      boolean done = expanded.pop();
+      if (levels.containsKey(node))
+        continue;
+      if (!done) {
+        stack.push(node);
+        expanded.push(true);
+        for (HyperEdge edge : hyperedges(node))
+          if (edge.getTailNodes() != null)
+            for (HGNode tail : edge.getTailNodes())
+              if (!levels.containsKey(tail)) {
+                stack.push(tail);
+                expanded.push(false);
+              }
+      } else {
+        int level = 0;
+        for (HyperEdge edge : hyperedges(node)) {
+          numEdges++;
+          if (edge.getTailNodes() != null) {
+            for (HGNode tail : edge.getTailNodes()) {
+              Integer tailLevel = levels.get(tail);
+              if (tailLevel == null)
+                throw new RuntimeException("HyperGraphIndex: the hypergraph has a cycle");
+              level = Math.max(level, tailLevel + 1);
+              numTails++;
+            }
+          }
+        }
+        levels.put(node, level);
+        maxLevel = Math.max(maxLevel, level);
+      }
+    }
+
+    /* Number the nodes by level (a counting sort) */
+    final int numNodes = levels.size();
+    levelStart = new int[numNodes == 0 ? 1 : maxLevel + 2];
+    for (int level : levels.values())
+      levelStart[level + 1]++;
+    for (int l = 1; l < levelStart.length; l++)
+      levelStart[l] += levelStart[l - 1];
+    int[] next = Arrays.copyOf(levelStart, levelStart.length);
+    nodes = new HGNode[numNodes];
+    nodeIds = new IdentityHashMap<>(numNodes);
+    for (Map.Entry<HGNode, Integer> entry : levels.entrySet()) {
+      int id = next[entry.getValue()]++;
+      nodes[id] = entry.getKey();
+      nodeIds.put(entry.getKey(), id);
+    }
+
+    /* Flatten the hyperedges and their tail nodes */
+    edges = new HyperEdge[numEdges];
+    edgeHead = new int[numEdges];
+    edgeStart = new int[numNodes + 1];
+    tailStart = new int[numEdges + 1];
+    tails = new int[numTails];
+    edgeIds = new IdentityHashMap<>(numEdges);
+    useStart = new int[numNodes + 1];
+    int e = 0;
+    int t = 0;
+    for (int v = 0; v < numNodes; v++) {
+      edgeStart[v] = e;
+      for (HyperEdge edge : hyperedges(nodes[v])) {
+        edges[e] = edge;
+        edgeHead[e] = v;
+        edgeIds.put(edge, e);
+        tailStart[e] = t;
+        if (edge.getTailNodes() != null) {
+          for (HGNode tail : edge.getTailNodes()) {
+            int tailId = nodeIds.get(tail);
+            tails[t++] = tailId;
+            useStart[tailId + 1]++;
+          }
+        }
+        e++;
+      }
+    }
+    edgeStart[numNodes] = e;
+    tailStart[numEdges] = t;
+
+    /* Invert the tail lists (each occurrence of a tail node is one use) */
+    for (int v = 0; v < numNodes; v++)
+      useStart[v + 1] += useStart[v];
+    uses = new int[numTails];
+    int[] fill = Arrays.copyOf(useStart, numNodes);
+    for (e = 0; e < numEdges; e++)
+      for (t = tailStart[e]; t < tailStart[e + 1]; t++)
+        uses[fill[tails[t]]++] = e;
+  }
+
+  private static List<HyperEdge> hyperedges(HGNode node) {
+    return node.hyperedges != null ? node.hyperedges : Collections.<HyperEdge> emptyList();
+  }
+
+  public int numNodes() {
+    return nodes.length;
+  }
+
+  public int numEdges() {
+    return edges.length;
+  }
+
+  public int numLevels() {
+    return levelStart.length - 1;
+  }
+
+  /**
+   * @return the id of the goal node, or -1 if the hypergraph is empty
+   */
+  public int goal() {
+    return nodes.length - 1;
+  }
+
+  /**
+   * @param node a node of the hypergraph
+   * @return its id, or -1 if it is not part of the index
+   */
+  public int getId(HGNode node) {
+    Integer id = nodeIds.get(node);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param edge a hyperedge of the hypergraph
+   * @return its id, or -1 if it is not part of the index
+   */
+  public int getId(HyperEdge edge) {
+    Integer id = edgeIds.get(edge);
+    return id == null ? -1 : id;
+  }
+}
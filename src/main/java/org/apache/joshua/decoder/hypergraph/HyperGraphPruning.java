@@ -18,7 +18,8 @@
  */
 package org.apache.joshua.decoder.hypergraph;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.joshua.corpus.Vocabulary;
 
@@ -26,12 +27,14 @@ import org.apache.joshua.corpus.Vocabulary;
  * during the pruning process, many Item/Deductions may not be explored at all due to the early-stop
  * in pruning_deduction
  * 
+ * The pruning walks the levels of the {@link HyperGraphIndex} built by the inside-outside pass from
+ * the goal node downwards, so that a node is visited only once all the nodes that can reach it are.
+ * 
  * @author Zhifei Li, zhifei.work@gmail.com
  * @version $LastChangedDate$
  */
 public class HyperGraphPruning extends TrivialInsideOutside {
 
-  final HashMap<HGNode, Boolean> processedNodesTbl = new HashMap<>();
   double bestLogProb;// viterbi unnormalized log prob in the hypergraph
 
   boolean ViterbiPruning = false;// Viterbi or Posterior pruning
@@ -56,7 +59,6 @@ public class HyperGraphPruning extends TrivialInsideOutside {
   }
 
   public void clearState() {
-    processedNodesTbl.clear();
     super.clearState();
   }
 
@@ -80,11 +82,18 @@ public class HyperGraphPruning extends TrivialInsideOutside {
 
     numSurvivedEdges = 0;
     numSurvivedNodes = 0;
-    processedNodesTbl.clear();
-    pruningNode(hg.goalNode);
 
-    // clear up
-    processedNodesTbl.clear();
+    if (index.numNodes() > 0) {
+      // a node is reached if one of its parent hyperedges survives
+      boolean[] reached = new boolean[index.numNodes()];
+      reached[index.goal()] = true;
+      List<HyperEdge> survivors = new ArrayList<>();
+
+      for (int v = index.numNodes() - 1; v >= 0; v--) {
+        if (reached[v])
+          pruningNode(v, reached, survivors);
+      }
+    }
 
     System.out.println("Item suvived ratio: " + numSurvivedNodes * 1.0 / hg.numNodes + " =  "
         + numSurvivedNodes + "/" + hg.numNodes);
@@ -93,23 +102,17 @@ public class HyperGraphPruning extends TrivialInsideOutside {
   }
 
 
-  private void pruningNode(HGNode it) {
-
-    if (processedNodesTbl.containsKey(it)) return;
-
-    processedNodesTbl.put(it, true);
-    boolean shouldSurvive = false;
+  /*
+   * Nodes are sorted by level, so by the time we get to a node, all the hyperedges that have it as
+   * a tail node have been decided on.
+   */
+  private void pruningNode(int v, boolean[] reached, List<HyperEdge> survivors) {
+    HGNode it = index.nodes[v];
+    survivors.clear();
 
-    // ### recursive call on each deduction
-    for (int i = 0; i < it.hyperedges.size(); i++) {
-      HyperEdge dt = it.hyperedges.get(i);
-      boolean survived = pruningEdge(dt, it);// deduction-specifc operation
-      if (survived) {
-        shouldSurvive = true; // at least one deduction survive
-      } else {
-        it.hyperedges.remove(i);
-        i--;
-      }
+    for (int e = index.edgeStart[v]; e < index.edgeStart[v + 1]; e++) {
+      if (pruningEdge(e, it, reached))
+        survivors.add(index.edges[e]);
     }
     // TODO: now we simply remove the pruned deductions, but in general, we may want to update the
     // variables mainted in the item (e.g., best_deduction); this depends on the pruning method used
@@ -119,18 +122,23 @@ public class HyperGraphPruning extends TrivialInsideOutside {
      * upper-deduction must survive, then i will survive because there must be one way to reach me
      * from lower part in order for my upper-deduction survive
      */
-    if (!shouldSurvive) {
+    if (survivors.isEmpty()) {
       throw new RuntimeException("item explored but does not survive");
       // TODO: since we always keep the best_deduction, this should never be true
-    } else {
-      numSurvivedNodes++;
+    }
+
+    numSurvivedNodes++;
+    if (survivors.size() < index.edgeStart[v + 1] - index.edgeStart[v]) {
+      it.hyperedges.clear();
+      it.hyperedges.addAll(survivors);
     }
   }
 
 
   // if survive, return true
   // best-deduction is always kept
-  private boolean pruningEdge(HyperEdge dt, HGNode parent) {
+  private boolean pruningEdge(int e, HGNode parent, boolean[] reached) {
+    HyperEdge dt = index.edges[e];
 
     /**
      * TODO: theoretically, if an item is get called, then its best deduction should always be kept
@@ -140,27 +148,25 @@ public class HyperGraphPruning extends TrivialInsideOutside {
     if (dt != parent.bestHyperedge) { // best deduction should always survive if the Item is get
                                       // called
       // ### prune?
-      if (shouldPruneHyperedge(dt, parent)) {
+      if (shouldPruneHyperedge(e, dt)) {
         return false; // early stop
       }
     }
 
-    // ### still survive, recursive call all my ant-items
-    if (null != dt.getTailNodes()) {
-      // recursive call on each ant item, note: the ant_it will not be pruned
-      // as I need it
-      dt.getTailNodes().forEach(this::pruningNode);
-    }
+    // ### still survive, mark all my ant-items as reached, note: the ant_it will not be pruned
+    // as I need it
+    for (int t = index.tailStart[e]; t < index.tailStart[e + 1]; t++)
+      reached[index.tails[t]] = true;
 
     // ### if get to here, then survive; remember: if I survive, then my upper-item must survive
     numSurvivedEdges++;
     return true; // survive
   }
 
-  private boolean shouldPruneHyperedge(HyperEdge dt, HGNode parent) {
+  private boolean shouldPruneHyperedge(int e, HyperEdge dt) {
 
     // ### get merit
-    double postLogProb = getEdgeUnormalizedPosteriorLogProb(dt, parent);
+    double postLogProb = getEdgeUnormalizedPosteriorLogProb(e);
 
 
     if (dt.getRule() != null && dt.getRule().getOwner().equals(glueGrammarOwner)
@@ -0,0 +1,249 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.tm.OwnerMap;
+import org.apache.joshua.decoder.ff.tm.Rule;
+
+/**
+ * Reads the hypergraphs written by {@link HyperGraphWriter}. Opening the file only scans the
+ * segment headers; each hypergraph is decoded on request from a memory-mapped view of its segment,
+ * so any forest can be loaded without reading the ones before it.
+ * 
+ * The loaded hypergraphs have no DP states and no source sentence, but their spans, labels, rules,
+ * scores and (if they were written) hyperedge features are those of the decoder's forest, which is
+ * what k-best extraction, inside-outside and oracle extraction need. Words and rule owners are
+ * added to the Vocabulary and OwnerMap of the reading process.
+ */
+public class HyperGraphReader implements Closeable {
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+
+  private long[] offsets = new long[16];
+  private int[] lengths = new int[16];
+  private int[] sentenceIds = new int[16];
+  private int size = 0;
+
+  /**
+   * @param fileName a file written by {@link HyperGraphWriter}
+   * @throws IOException if the file cannot be read or is not a hypergraph file
+   */
+  public HyperGraphReader(String fileName) throws IOException {
+    file = new RandomAccessFile(fileName, "r");
+    channel = file.getChannel();
+
+    byte[] magic = new byte[HyperGraphWriter.MAGIC.length];
+    if (file.length() < magic.length) {
+      close();
+      throw new IOException(String.format("%s is not a hypergraph file", fileName));
+    }
+    file.readFully(magic);
+    if (!Arrays.equals(magic, HyperGraphWriter.MAGIC)) {
+      close();
+      throw new IOException(String.format("%s is not a hypergraph file", fileName));
+    }
+
+    /* Find the segments; a truncated last segment (e.g., from a killed decoder) is ignored */
+    long position = magic.length;
+    final long length = file.length();
+    ByteBuffer header = ByteBuffer.allocate(4 + 5);
+    while (position + 4 <= length) {
+      header.clear();
+      channel.read(header, position);
+      header.flip();
+      int segmentLength = header.getInt();
+      if (position + 4 + segmentLength > length)
+        break;
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, size * 2);
+        lengths = Arrays.copyOf(lengths, size * 2);
+        sentenceIds = Arrays.copyOf(sentenceIds, size * 2);
+      }
+      offsets[size] = position + 4;
+      lengths[size] = segmentLength;
+      sentenceIds[size] = readVarint(header);
+      size++;
+      position += 4 + segmentLength;
+    }
+  }
+
+  /**
+   * @return the number of hypergraphs in the file
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param k the position of a hypergraph in the file
+   * @return the id of the sentence it belongs to
+   */
+  public int getSentenceId(int k) {
+    checkIndex(k);
+    return sentenceIds[k];
+  }
+
+  /**
+   * @param k the position of a hypergraph in the file
+   * @return the hypergraph
+   * @throws IOException if the segment cannot be read
+   */
+  public HyperGraph read(int k) throws IOException {
+    return read(k, null);
+  }
+
+  /**
+   * Reads a hypergraph and the feature deltas of its hyperedges.
+   * 
+   * @param k the position of a hypergraph in the file
+   * @param features if not null, receives the features of each hyperedge, if they were written
+   * @return the hypergraph
+   * @throws IOException if the segment cannot be read
+   */
+  public HyperGraph read(int k, Map<HyperEdge, FeatureVector> features) throws IOException {
+    checkIndex(k);
+    ByteBuffer in = channel.map(MapMode.READ_ONLY, offsets[k], lengths[k]);
+
+    readVarint(in); // the sentence id
+    boolean hasFeatures = in.get() != 0;
+
+    String[] strings = new String[readVarint(in)];
+    for (int s = 0; s < strings.length; s++) {
+      byte[] utf8 = new byte[readVarint(in)];
+      in.get(utf8);
+      strings[s] = new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    Rule[] rules = new Rule[readVarint(in)];
+    for (int r = 0; r < rules.length; r++)
+      rules[r] = readRule(in, strings);
+
+    HGNode[] nodes = new HGNode[readVarint(in)];
+    int numEdges = 0;
+    for (int v = 0; v < nodes.length; v++) {
+      int i = readVarint(in);
+      int j = i + readVarint(in);
+      int lhs = Vocabulary.id(strings[readVarint(in)]);
+      float score = in.getFloat();
+
+      int numNodeEdges = readVarint(in);
+      int best = readVarint(in);
+      List<HyperEdge> edges = new ArrayList<>(numNodeEdges);
+      for (int e = 0; e < numNodeEdges; e++) {
+        int ruleId = readVarint(in);
+        Rule rule = (ruleId == 0) ? null : rules[ruleId - 1];
+        float bestDerivationScore = in.getFloat();
+        float transitionScore = in.getFloat();
+
+        int numTails = readVarint(in);
+        List<HGNode> tails = null;
+        if (numTails > 0) {
+          tails = new ArrayList<>(numTails);
+          for (int t = 0; t < numTails; t++)
+            tails.add(nodes[v - readVarint(in)]);
+        }
+        HyperEdge edge = new HyperEdge(rule, bestDerivationScore, transitionScore, tails, null);
+        edges.add(edge);
+
+        if (hasFeatures) {
+          int numFeatures = readVarint(in);
+          FeatureVector delta = (features != null) ? new FeatureVector() : null;
+          for (int f = 0; f < numFeatures; f++) {
+            String name = strings[readVarint(in)];
+            float value = in.getFloat();
+            if (delta != null) {
+              int dense = FeatureVector.DENSE_FEATURE_NAMES.indexOf(name);
+              if (dense >= 0)
+                delta.set(dense, value);
+              else
+                delta.set(name, value);
+            }
+          }
+          if (delta != null)
+            features.put(edge, delta);
+        }
+      }
+      numEdges += numNodeEdges;
+
+      HyperEdge bestEdge = (best < numNodeEdges) ? edges.get(best) : null;
+      nodes[v] = new HGNode(i, j, lhs, edges, bestEdge, null);
+      nodes[v].score = score;
+    }
+
+    HGNode goal = (nodes.length > 0) ? nodes[nodes.length - 1] : null;
+    return new HyperGraph(goal, nodes.length, numEdges, null);
+  }
+
+  private static Rule readRule(ByteBuffer in, String[] strings) {
+    int lhs = Vocabulary.id(strings[readVarint(in)]);
+    String owner = strings[readVarint(in)];
+    int arity = readVarint(in);
+
+    int[] source = new int[readVarint(in)];
+    for (int i = 0; i < source.length; i++)
+      source[i] = Vocabulary.id(strings[readVarint(in)]);
+
+    int[] target = new int[readVarint(in)];
+    for (int i = 0; i < target.length; i++) {
+      int code = readVarint(in);
+      target[i] = ((code & 1) == 1) ? -(code >>> 1) - 1 : Vocabulary.id(strings[code >>> 1]);
+    }
+
+    int alignment = readVarint(in);
+    Rule rule = new Rule(lhs, source, target, "", arity,
+        (alignment == 0) ? null : strings[alignment - 1]);
+    rule.setOwner(OwnerMap.register(owner));
+    return rule;
+  }
+
+  static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+  }
+
+  private void checkIndex(int k) {
+    if (k < 0 || k >= size)
+      throw new IndexOutOfBoundsException(String.format("hypergraph %d of %d", k, size));
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.tm.OwnerMap;
+import org.apache.joshua.decoder.ff.tm.Rule;
+
+/**
+ * Writes hypergraphs to a compact binary file, one segment per sentence, so that forest-based
+ * tools (MBR, oracle extraction, reranker training) can read them back with
+ * {@link HyperGraphReader} instead of decoding again.
+ * 
+ * The file starts with the 4-byte magic number <code>JHG1</code>, followed by segments. Each
+ * segment is a 4-byte big-endian length followed by the payload, which is self-contained:
+ * 
+ * <ul>
+ * <li>the sentence id;</li>
+ * <li>a string table holding every word, nonterminal, rule owner and feature name used in the
+ * segment, since Vocabulary ids are not stable across runs;</li>
+ * <li>a rule table, so that rules used by several hyperedges are written once;</li>
+ * <li>the nodes in topological order (see {@link HyperGraphIndex}), each with its span, label and
+ * hyperedges. A hyperedge refers to its rule, and to its tail nodes by their distance from the
+ * head node, which is positive and mostly small;</li>
+ * <li>optionally, the nonzero features each hyperedge contributes (its feature delta).</li>
+ * </ul>
+ * 
+ * All integers are written as unsigned LEB128 varints, and the scores as 4-byte floats. Segments
+ * are serialized by the calling thread and appended under a lock, so many decoding threads can
+ * share one writer; segments therefore appear in the order in which sentences finish.
+ */
+public class HyperGraphWriter implements Closeable {
+
+  static final byte[] MAGIC = "JHG1".getBytes(StandardCharsets.US_ASCII);
+
+  /* Buffered, since most segments are much smaller than a disk block */
+  private final DataOutputStream out;
+
+  /**
+   * @param fileName the file to create
+   * @throws IOException if the file cannot be created
+   */
+  public HyperGraphWriter(String fileName) throws IOException {
+    this(new FileOutputStream(fileName));
+  }
+
+  /**
+   * @param out the stream to write to, which is buffered; it is closed by {@link #close()}
+   * @throws IOException if the header cannot be written
+   */
+  public HyperGraphWriter(OutputStream out) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.write(MAGIC);
+  }
+
+  /**
+   * Appends a hypergraph to the file.
+   * 
+   * @param hg the hypergraph
+   * @param sentenceId the id of the sentence it belongs to
+   * @param model the feature functions used to compute the feature delta of each hyperedge, or
+   *          null to leave the features out
+   * @throws IOException if the segment cannot be written
+   */
+  public void write(HyperGraph hg, int sentenceId, List<FeatureFunction> model)
+      throws IOException {
+    byte[] segment = serialize(hg, sentenceId, model);
+    synchronized (this) {
+      out.writeInt(segment.length);
+      out.write(segment);
+    }
+  }
+
+  /**
+   * @param hg the hypergraph
+   * @param sentenceId the id of the sentence it belongs to
+   * @param model the feature functions to compute hyperedge features with, or null
+   * @return the segment payload
+   * @throws IOException never, since the payload is written to memory
+   */
+  static byte[] serialize(HyperGraph hg, int sentenceId, List<FeatureFunction> model)
+      throws IOException {
+    HyperGraphIndex index = new HyperGraphIndex(hg);
+    Map<String, Integer> strings = new LinkedHashMap<>();
+    Map<Rule, Integer> rules = new IdentityHashMap<>();
+    List<Rule> ruleList = new ArrayList<>();
+
+    /* The nodes and hyperedges go first, since they determine the tables */
+    ByteArrayOutputStream nodeBytes = new ByteArrayOutputStream();
+    DataOutputStream nodes = new DataOutputStream(nodeBytes);
+    writeVarint(nodes, index.numNodes());
+    for (int v = 0; v < index.numNodes(); v++) {
+      HGNode node = index.nodes[v];
+      writeVarint(nodes, node.i);
+      writeVarint(nodes, node.j - node.i);
+      writeVarint(nodes, string(strings, Vocabulary.word(node.lhs)));
+      nodes.writeFloat(node.getScore());
+
+      int numEdges = index.edgeStart[v + 1] - index.edgeStart[v];
+      writeVarint(nodes, numEdges);
+      int best = numEdges;
+      for (int e = index.edgeStart[v]; e < index.edgeStart[v + 1]; e++)
+        if (index.edges[e] == node.bestHyperedge)
+          best = e - index.edgeStart[v];
+      writeVarint(nodes, best);
+
+      for (int e = index.edgeStart[v]; e < index.edgeStart[v + 1]; e++) {
+        HyperEdge edge = index.edges[e];
+        Rule rule = edge.getRule();
+        int ruleId = 0;
+        if (rule != null) {
+          Integer id = rules.get(rule);
+          if (id == null) {
+            id = ruleList.size();
+            rules.put(rule, id);
+            ruleList.add(rule);
+          }
+          ruleId = id + 1;
+        }
+        writeVarint(nodes, ruleId);
+        nodes.writeFloat(edge.getBestDerivationScore());
+        nodes.writeFloat(edge.getTransitionLogP(false));
+
+        writeVarint(nodes, index.tailStart[e + 1] - index.tailStart[e]);
+        for (int t = index.tailStart[e]; t < index.tailStart[e + 1]; t++)
+          writeVarint(nodes, v - index.tails[t]);
+
+        if (model != null) {
+          FeatureVector delta = ComputeNodeResult.computeTransitionFeatures(model, edge, node.i,
+              node.j, hg.sentence);
+          Map<String, Float> features = delta.getMap();
+          int nonzero = 0;
+          for (float value : features.values())
+            if (value != 0.0f)
+              nonzero++;
+          writeVarint(nodes, nonzero);
+          for (Map.Entry<String, Float> feature : features.entrySet()) {
+            if (feature.getValue() != 0.0f) {
+              writeVarint(nodes, string(strings, feature.getKey()));
+              nodes.writeFloat(feature.getValue());
+            }
+          }
+        }
+      }
+    }
+
+    ByteArrayOutputStream ruleBytes = new ByteArrayOutputStream();
+    DataOutputStream ruleOut = new DataOutputStream(ruleBytes);
+    writeVarint(ruleOut, ruleList.size());
+    for (Rule rule : ruleList)
+      writeRule(ruleOut, rule, strings);
+
+    /* Now the segment, in reading order */
+    ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream(
+        nodeBytes.size() + ruleBytes.size() + 16 * strings.size() + 16);
+    DataOutputStream segment = new DataOutputStream(segmentBytes);
+    writeVarint(segment, sentenceId);
+    segment.writeBoolean(model != null);
+    writeVarint(segment, strings.size());
+    for (String s : strings.keySet()) {
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      writeVarint(segment, utf8.length);
+      segment.write(utf8);
+    }
+    ruleBytes.writeTo(segment);
+    nodeBytes.writeTo(segment);
+    segment.flush();
+    return segmentBytes.toByteArray();
+  }
+
+  private static void writeRule(DataOutputStream out, Rule rule, Map<String, Integer> strings)
+      throws IOException {
+    writeVarint(out, string(strings, Vocabulary.word(rule.getLHS())));
+    writeVarint(out, string(strings, OwnerMap.getOwner(rule.getOwner())));
+    writeVarint(out, rule.getArity());
+
+    int[] source = rule.getFrench();
+    writeVarint(out, source.length);
+    for (int id : source)
+      writeVarint(out, string(strings, Vocabulary.word(id)));
+
+    /* Target nonterminals are indices (-1, -2, ...) rather than Vocabulary ids */
+    int[] target = rule.getEnglish();
+    writeVarint(out, target.length);
+    for (int id : target)
+      writeVarint(out, (id < 0) ? 2 * (-id - 1) + 1 : 2 * string(strings, Vocabulary.word(id)));
+
+    String alignment = rule.getAlignmentString();
+    writeVarint(out, (alignment == null) ? 0 : string(strings, alignment) + 1);
+  }
+
+  private static int string(Map<String, Integer> strings, String s) {
+    Integer id = strings.get(s);
+    if (id == null) {
+      id = strings.size();
+      strings.put(s, id);
+    }
+    return id;
+  }
+
+  static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+}
@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.decoder.hypergraph;
 
+import static org.apache.joshua.util.Bits.mix;
 import static org.apache.joshua.util.FormatUtils.unescapeSpecialSymbols;
 import static org.apache.joshua.util.FormatUtils.removeSentenceMarkers;
 import static java.util.Collections.emptyList;
@@ -32,6 +33,10 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.BLEU;
@@ -42,9 +47,11 @@ import org.apache.joshua.decoder.ff.fragmentlm.Tree;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.io.DeNormalize;
+import org.apache.joshua.decoder.io.OutputFormat;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.apache.joshua.decoder.segment_file.Token;
 import org.apache.joshua.util.FormatUtils;
+import org.apache.joshua.util.LongIntHashMap;
 import org.apache.joshua.decoder.StructuredTranslation;
 import org.apache.joshua.decoder.StructuredTranslationFactory;
 
@@ -95,7 +102,7 @@ import org.apache.joshua.decoder.StructuredTranslationFactory;
  */
 public class KBestExtractor {
   private final JoshuaConfiguration joshuaConfiguration;
-  private final String outputFormat;
+  private final OutputFormat outputFormat;
   private final HashMap<HGNode, VirtualNode> virtualNodesTable = new HashMap<>();
 
   // static final String rootSym = JoshuaConfiguration.goal_symbol;
@@ -121,21 +128,51 @@ public class KBestExtractor {
   /* The feature functions */
   private final List<FeatureFunction> featureFunctions;
 
+  /* An odd multiplier for the polynomial yield hashes of DerivationState */
+  private static final long YIELD_HASH_BASE = 0x9e3779b97f4a7c15L;
+
   /* BLEU statistics of the references */
   private BLEU.References references = null;
 
+  /* Extracts the k-best lists of the nodes of a level in parallel; null to extract them lazily */
+  private ForkJoinPool pool = null;
+
+  /* Levels with fewer nodes than this are extracted on the calling thread */
+  private static final int MIN_PARALLEL_LEVEL_SIZE = 8;
+
+  public KBestExtractor(
+      Sentence sentence,
+      List<FeatureFunction> featureFunctions,
+      FeatureVector weights,
+      boolean isMonolingual,
+      JoshuaConfiguration joshuaConfiguration) {
+    this(sentence, featureFunctions, weights, isMonolingual, joshuaConfiguration.use_unique_nbest,
+        joshuaConfiguration);
+  }
+
+  /**
+   * Creates an extractor that dedups hypotheses as requested, whatever use_unique_nbest says. 
+   * 
+   * @param sentence the input sentence
+   * @param featureFunctions the feature functions
+   * @param weights the weights being used to score the forest
+   * @param isMonolingual whether to output the source side
+   * @param extractUniqueNbest whether to skip derivations with the same yield as an earlier one
+   * @param joshuaConfiguration the decoder configuration
+   */
   public KBestExtractor(
       Sentence sentence,
       List<FeatureFunction> featureFunctions,
       FeatureVector weights,
       boolean isMonolingual,
+      boolean extractUniqueNbest,
       JoshuaConfiguration joshuaConfiguration) {
 
     this.featureFunctions = featureFunctions;
 
     this.joshuaConfiguration = joshuaConfiguration;
-    this.outputFormat = this.joshuaConfiguration.outputFormat;
-    this.extractUniqueNbest = joshuaConfiguration.use_unique_nbest;
+    this.outputFormat = new OutputFormat(this.joshuaConfiguration.outputFormat);
+    this.extractUniqueNbest = extractUniqueNbest;
 
     this.weights = weights;
     this.defaultSide = (isMonolingual ? Side.SOURCE : Side.TARGET);
@@ -146,6 +183,60 @@ public class KBestExtractor {
     }
   }
 
+  /**
+   * Sets the threads that {@link #precomputeKBest(HyperGraph, int)} extracts the k-best lists of
+   * the nodes with. The pool is not shut down by the extractor.
+   * 
+   * @param pool the threads to use, or null to extract the k-best lists lazily from the goal node
+   */
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * If a pool is set, extracts the top N derivations of every node in topological order, from the
+   * leaves up, so that the nodes of a level are extracted concurrently. The k-best lists are the
+   * same as those extracted lazily; later calls to {@link #getKthDerivation(HGNode, int)} find them
+   * already computed. Without a pool, this does nothing.
+   * 
+   * @param hg the hypergraph to extract from
+   * @param topN how many derivations to extract at each node
+   */
+  public void precomputeKBest(HyperGraph hg, int topN) {
+    if (pool == null || hg == null || hg.goalNode == null)
+      return;
+
+    final HyperGraphIndex index = new HyperGraphIndex(hg);
+    /* Create all virtual nodes up front, so that the threads only read the table */
+    final VirtualNode[] virtualNodes = new VirtualNode[index.numNodes()];
+    for (int v = 0; v < index.numNodes(); v++)
+      virtualNodes[v] = getVirtualNode(index.nodes[v]);
+
+    /* One rank at a time, as the lazy extraction asks for them */
+    final IntConsumer extract = v -> {
+      for (int k = 1; k <= topN; k++)
+        if (virtualNodes[v].lazyKBestExtractOnNode(this, k) == null)
+          break;
+    };
+    for (int l = 0; l < index.numLevels(); l++) {
+      final int from = index.levelStart[l];
+      final int to = index.levelStart[l + 1];
+      if (to - from < MIN_PARALLEL_LEVEL_SIZE) {
+        for (int v = from; v < to; v++)
+          extract.accept(v);
+      } else {
+        try {
+          pool.submit(() -> IntStream.range(from, to).parallel().forEach(extract)).get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    }
+  }
+
   /**
    * Returns the kth derivation.
    * 
@@ -190,6 +281,7 @@ public class KBestExtractor {
     if (hg == null || hg.goalNode == null) {
       return emptyList();
     }
+    precomputeKBest(hg, topN);
     final List<StructuredTranslation> kbest = new ArrayList<>(topN);
     for (int k = 1; k <= topN; k++) {
       StructuredTranslation translation = getKthStructuredTranslation(hg.goalNode, k);
@@ -213,57 +305,91 @@ public class KBestExtractor {
    * @return todo
    */
   public String getKthHyp(HGNode node, int k) {
+    StringBuilder sb = new StringBuilder();
+    try {
+      if (!writeKthHyp(node, k, sb))
+        return null;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return sb.toString();
+  }
 
-    String outputString = null;
-    DerivationState derivationState = getKthDerivation(node, k);
-    if (derivationState != null) {
-      // ==== read the kbest from each hgnode and convert to output format
-      String hypothesis = maybeProjectCase(
-                            unescapeSpecialSymbols(
-                              removeSentenceMarkers(
-                                derivationState.getHypothesis())), derivationState);
-      
-      
-      /*
-       * To save space, the decoder only stores the model cost,
-       * no the individual feature values.
-       * If you want to output them, you have to replay them.
-       */
+  /**
+   * Writes the kth hypothesis in the "output-format" template directly to out, without building
+   * an intermediate string.
+   * 
+   * @param node the node to start at
+   * @param k the kth best derivation (indexed from 1)
+   * @param out where to write the hypothesis
+   * @return false if there is no kth derivation, in which case nothing was written
+   * @throws IOException if writing fails
+   */
+  public boolean writeKthHyp(HGNode node, int k, Appendable out) throws IOException {
 
-      FeatureVector features = new FeatureVector();
-      if (outputFormat.contains("%f") || outputFormat.contains("%d"))
-        features = derivationState.getFeatures();
-
-      outputString = outputFormat
-          .replace("%k", Integer.toString(k))
-          .replace("%s", hypothesis)
-          .replace("%S", DeNormalize.processSingleLine(hypothesis))
-          // TODO (kellens): Fix the recapitalization here
-          .replace("%i", Integer.toString(sentence.id()))
-          .replace("%f", joshuaConfiguration.moses ? features.mosesString() : features.toString())
-          .replace("%c", String.format("%.3f", derivationState.cost));
-
-      if (outputFormat.contains("%t")) {
-        outputString = outputString.replace("%t", derivationState.getTree());
-      }
+    final DerivationState derivationState = getKthDerivation(node, k);
+    if (derivationState == null)
+      return false;
 
-      if (outputFormat.contains("%e")) {
-        outputString = outputString.replace("%e", removeSentenceMarkers(derivationState.getHypothesis(Side.SOURCE)));
-      }
+    // ==== read the kbest from each hgnode and convert to output format
+    final String hypothesis = (outputFormat.uses('s') || outputFormat.uses('S'))
+        ? maybeProjectCase(
+            unescapeSpecialSymbols(
+              removeSentenceMarkers(
+                derivationState.getHypothesis())), derivationState)
+        : null;
 
-      /* %d causes a derivation with rules one per line to be output */
-      if (outputFormat.contains("%d")) {
-        outputString = outputString.replace("%d", derivationState.getDerivation());
-      }
-      
-      /* %a causes output of word level alignments between input and output hypothesis */
-      if (outputFormat.contains("%a")) {
-        outputString = outputString.replace("%a",  derivationState.getWordAlignment());
+    /*
+     * To save space, the decoder only stores the model cost,
+     * no the individual feature values.
+     * If you want to output them, you have to replay them.
+     */
+    final FeatureVector features = outputFormat.uses('f')
+        ? derivationState.getFeatures()
+        : null;
+
+    outputFormat.write(out, (field, o) -> {
+      switch (field) {
+      case 'k':
+        o.append(Integer.toString(k));
+        break;
+      case 's':
+        o.append(hypothesis);
+        break;
+      case 'S':
+        // TODO (kellens): Fix the recapitalization here
+        o.append(DeNormalize.processSingleLine(hypothesis));
+        break;
+      case 'i':
+        o.append(Integer.toString(sentence.id()));
+        break;
+      case 'f':
+        o.append(joshuaConfiguration.moses ? features.mosesString() : features.toString());
+        break;
+      case 'c':
+        o.append(String.format("%.3f", derivationState.cost));
+        break;
+      case 't':
+        o.append(derivationState.getTree());
+        break;
+      case 'e':
+        o.append(removeSentenceMarkers(derivationState.getHypothesis(Side.SOURCE)));
+        break;
+      case 'd':
+        /* %d causes a derivation with rules one per line to be output */
+        o.append(derivationState.getDerivation());
+        break;
+      case 'a':
+        /* %a causes output of word level alignments between input and output hypothesis */
+        o.append(derivationState.getWordAlignment());
+        break;
+      default:
+        return false;
       }
-      
-    }
+      return true;
+    });
 
-    return outputString;
+    return true;
   }
 
   // =========================== end kbestHypergraph
@@ -329,20 +455,31 @@ public class KBestExtractor {
    * @throws IOException if there is an error writing the extraction
    */
   public void lazyKBestExtractOnHG(HyperGraph hg, int topN, BufferedWriter out) throws IOException {
+    lazyKBestExtractOnHG(hg, topN, (Appendable) out);
+    out.flush();
+  }
+
+  /**
+   * Extracts the k-best hypotheses, writing each one to out as soon as it has been extracted. The
+   * output is not flushed; callers that stream it (e.g., to a socket) decide when to flush.
+   * 
+   * @param hg the hypergraph to extract from
+   * @param topN how many to extract
+   * @param out object to write to
+   * @throws IOException if there is an error writing the extraction
+   */
+  public void lazyKBestExtractOnHG(HyperGraph hg, int topN, Appendable out) throws IOException {
 
     resetState();
 
     if (null == hg.goalNode)
       return;
 
+    precomputeKBest(hg, topN);
     for (int k = 1; k <= topN; k++) {
-      String hypStr = getKthHyp(hg.goalNode, k);
-      if (null == hypStr)
+      if (!writeKthHyp(hg.goalNode, k, out))
         break;
-
-      out.write(hypStr);
-      out.write("\n");
-      out.flush();
+      out.append('\n');
     }
   }
 
@@ -378,6 +515,10 @@ public class KBestExtractor {
    * each HGNode in the underlying hypergraph. This VirtualNode maintains information about the
    * k-best derivations from that point on, retaining the derivations computed so far and a priority 
    * queue of candidates.
+   * 
+   * Parents of several nodes may extend a node's k-best list at the same time when the lists are
+   * extracted in parallel, so it is only accessed while holding the node's lock. Since a node
+   * only locks its tail nodes while holding its own lock, the locks are taken in topological order.
    */
   private class VirtualNode {
 
@@ -385,7 +526,7 @@ public class KBestExtractor {
     HGNode node = null;
 
     // sorted ArrayList of DerivationState, in the paper is: D(^) [v]
-    public final List<DerivationState> nbests = new ArrayList<>();
+    private final List<DerivationState> nbests = new ArrayList<>();
 
     // remember frontier states, best-first; in the paper, it is called cand[v]
     private PriorityQueue<DerivationState> candHeap = null;
@@ -395,8 +536,9 @@ public class KBestExtractor {
     // position (2,2) can be reached be extending (1,2) and (2,1).
     private HashSet<DerivationState> derivationTable = null;
 
-    // This records unique *strings* at each item, used for unique-nbest-string extraction.
-    private HashSet<String> uniqueStringsTable = null;
+    // This records hashes of the unique *strings* at each item, used for unique-nbest-string
+    // extraction.
+    private LongIntHashMap uniqueYieldsTable = null;
 
     public VirtualNode(HGNode it) {
       this.node = it;
@@ -410,7 +552,8 @@ public class KBestExtractor {
      * @return the k-th best (1-indexed) hypothesis, or null if there are no more.
      */
     // return: the k-th hyp or null; k is started from one
-    private DerivationState lazyKBestExtractOnNode(KBestExtractor kbestExtractor, int k) {
+    private synchronized DerivationState lazyKBestExtractOnNode(KBestExtractor kbestExtractor,
+        int k) {
       if (nbests.size() >= k) { // no need to continue
         return nbests.get(k - 1);
       }
@@ -437,13 +580,13 @@ public class KBestExtractor {
           // derivation_tbl.remove(res.get_signature());//TODO: should remove? note that two state
           // may be tied because the cost is the same
           if (extractUniqueNbest) {
-            // We pass false for extract_nbest_tree because we want; to check that the hypothesis
-            // *strings* are unique, not the trees.
-            final String res_str = derivationState.getHypothesis();
-            
-            if (!uniqueStringsTable.contains(res_str)) {
+            // We want to check that the hypothesis *strings* are unique, not the trees. Comparing
+            // hashes of the yields avoids building the string of every candidate at every node.
+            final long yield = derivationState.getYieldHash();
+
+            if (!uniqueYieldsTable.containsKey(yield)) {
               nbests.add(derivationState);
-              uniqueStringsTable.add(res_str);
+              uniqueYieldsTable.put(yield, 1);
             }
           } else {
             nbests.add(derivationState);
@@ -474,6 +617,21 @@ public class KBestExtractor {
       return derivationState;
     }
 
+    /**
+     * @param k (indexed from one)
+     * @return the k-th best derivation, which must have been extracted already
+     */
+    private synchronized DerivationState getNbest(int k) {
+      return nbests.get(k - 1);
+    }
+
+    /**
+     * @return the number of derivations extracted so far
+     */
+    private synchronized int numNbests() {
+      return nbests.size();
+    }
+
     /**
      * This function extends the current hypothesis, adding each extended item to the list of
      * candidates (assuming they have not been added before). It does this by, in turn, extending
@@ -507,13 +665,13 @@ public class KBestExtractor {
           // Make sure that next candidate exists
           virtualTailNode.lazyKBestExtractOnNode(kbestExtractor, newRanks[i]);
           // System.err.println(String.format("  newRanks[%d] = %d and tail size %d", i,
-          // newRanks[i], virtualTailNode.nbests.size()));
-          if (newRanks[i] <= virtualTailNode.nbests.size()) {
+          // newRanks[i], virtualTailNode.numNbests()));
+          if (newRanks[i] <= virtualTailNode.numNbests()) {
             // System.err.println("NODE: " + this.node);
             // System.err.println("  tail is " + virtualTailNode.node);
             float cost = previousState.getModelCost()
-                - virtualTailNode.nbests.get(previousState.ranks[i] - 1).getModelCost()
-                + virtualTailNode.nbests.get(newRanks[i] - 1).getModelCost();
+                - virtualTailNode.getNbest(previousState.ranks[i]).getModelCost()
+                + virtualTailNode.getNbest(newRanks[i]).getModelCost();
             nextState.setCost(cost);
 
             if (joshuaConfiguration.rescoreForest)
@@ -554,7 +712,7 @@ public class KBestExtractor {
        * case, we keep an list of the frontiers of derivation states extending from this node.
        */
       if (extractUniqueNbest) {
-        uniqueStringsTable = new HashSet<>();
+        uniqueYieldsTable = new LongIntHashMap();
       }
 
       /*
@@ -681,6 +839,14 @@ public class KBestExtractor {
      */
     BLEU.Stats stats = null;
 
+    /*
+     * A polynomial hash of the ids of the derivation's yield, and the base raised to the yield's
+     * length, which is needed to combine it into the yields of parent derivations. The power is
+     * odd, so 0 marks that the hash has not been computed yet.
+     */
+    private long yieldHash = 0;
+    private long yieldPower = 0;
+
     public DerivationState(HGNode pa, HyperEdge e, int[] r, float c, int pos) {
       parentNode = pa;
       edge = e;
@@ -699,7 +865,7 @@ public class KBestExtractor {
      * 
      * @return float representing {@link org.apache.joshua.decoder.BLEU} score
      */
-    public float computeBLEU() {
+    public synchronized float computeBLEU() {
       if (stats == null) {
         float percentage = 1.0f * (parentNode.j - parentNode.i) / (sentence.length());
         // System.err.println(String.format("computeBLEU: (%d - %d) / %d = %f", parentNode.j,
@@ -777,7 +943,7 @@ public class KBestExtractor {
       int hash = edgePos;
       if (ranks != null) {
         for (int i = 0; i < ranks.length; i++)
-          hash = hash * 53 + i;
+          hash = hash * 53 + ranks[i];
       }
 
       return hash;
@@ -846,6 +1012,59 @@ public class KBestExtractor {
       return visit(new DerivationExtractor()).toString();
     }
 
+    /**
+     * Returns a 64-bit hash of the words of the hypothesis, such that two derivations with the
+     * same {@link #getHypothesis()} have the same hash. On the target side, it is composed from the
+     * hashes of the tail derivations and the rule's words, without rendering any strings.
+     * 
+     * @return a hash of the hypothesis
+     */
+    public synchronized long getYieldHash() {
+      if (yieldPower == 0) {
+        if (defaultSide == Side.SOURCE)
+          computeStringHash(getHypothesis());
+        else
+          computeYieldHash();
+      }
+      return yieldHash;
+    }
+
+    private void computeYieldHash() {
+      final Rule rule = edge.getRule();
+      if (rule == null) {
+        final DerivationState child = getChildDerivationState(edge, 0);
+        yieldHash = child.getYieldHash();
+        yieldPower = child.yieldPower;
+        return;
+      }
+
+      long hash = 0;
+      long power = 1;
+      for (int word : rule.getEnglish()) {
+        if (FormatUtils.isNonterminal(word)) {
+          // Target-side nonterminals are -1, -2, ..., indexing the tail nodes
+          final DerivationState child = getChildDerivationState(edge, -(word + 1));
+          // Computes the child's power, if it isn't known yet
+          final long childHash = child.getYieldHash();
+          hash = hash * child.yieldPower + childHash;
+          power *= child.yieldPower;
+        } else {
+          hash = hash * YIELD_HASH_BASE + mix(word);
+          power *= YIELD_HASH_BASE;
+        }
+      }
+      yieldHash = hash;
+      yieldPower = power;
+    }
+
+    private void computeStringHash(String hypothesis) {
+      long hash = 0;
+      for (int i = 0; i < hypothesis.length(); i++)
+        hash = hash * YIELD_HASH_BASE + hypothesis.charAt(i);
+      yieldHash = hash;
+      yieldPower = 1;
+    }
+
     /**
      * Helper function for navigating the hierarchical list of DerivationState objects. This
      * function looks up the VirtualNode corresponding to the HGNode pointed to by the edge's
@@ -858,7 +1077,7 @@ public class KBestExtractor {
     public DerivationState getChildDerivationState(HyperEdge edge, int tailNodeIndex) {
       HGNode child = edge.getTailNodes().get(tailNodeIndex);
       VirtualNode virtualChild = getVirtualNode(child);
-      return virtualChild.nbests.get(ranks[tailNodeIndex] - 1);
+      return virtualChild.getNbest(ranks[tailNodeIndex]);
     }
 
   } // end of Class DerivationState
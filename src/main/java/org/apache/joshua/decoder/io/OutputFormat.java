@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled "output-format" template. The template is parsed once into literal text and field
+ * codes (%s, %f, %c, ...), and is then written directly to an {@link Appendable} for each
+ * hypothesis, instead of running a chain of {@link String#replace} calls over the format string.
+ * 
+ * Supported fields are %k (rank), %s (output string), %S (denormalized output string), %i
+ * (sentence number), %f (feature values), %c (model score), %t (tree), %e (source string), %d
+ * (derivation) and %a (word alignment). What a field expands to is up to the {@link FieldWriter};
+ * fields it does not handle, and any other <code>%</code> sequences, are copied through as they
+ * are.
+ */
+public class OutputFormat {
+
+  private static final String FIELDS = "ksSifcteda";
+
+  /**
+   * Writes the value of a field of the template.
+   */
+  public interface FieldWriter {
+    /**
+     * @param field the field code, e.g., 's' for %s
+     * @param out where to write the value
+     * @return false if the field is not available, in which case it is copied through literally
+     * @throws IOException if writing fails
+     */
+    boolean write(char field, Appendable out) throws IOException;
+  }
+
+  private final String format;
+
+  /* literals[i] precedes fields[i]; the last literal follows the last field */
+  private final String[] literals;
+  private final char[] fields;
+
+  /**
+   * @param format an output-format string, e.g., "%i ||| %s ||| %f ||| %c"
+   */
+  public OutputFormat(String format) {
+    this.format = format;
+
+    List<String> literals = new ArrayList<>();
+    StringBuilder fields = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < format.length() - 1; i++) {
+      if (format.charAt(i) == '%' && FIELDS.indexOf(format.charAt(i + 1)) != -1) {
+        literals.add(format.substring(start, i));
+        fields.append(format.charAt(i + 1));
+        start = i + 2;
+        i++;
+      }
+    }
+    literals.add(format.substring(start));
+
+    this.literals = literals.toArray(new String[literals.size()]);
+    this.fields = fields.toString().toCharArray();
+  }
+
+  /**
+   * @param field a field code, e.g., 'f'
+   * @return whether the template contains the field
+   */
+  public boolean uses(char field) {
+    for (char f : fields)
+      if (f == field)
+        return true;
+    return false;
+  }
+
+  /**
+   * Writes the template, expanding each field with the writer.
+   * 
+   * @param out where to write
+   * @param writer expands the fields
+   * @throws IOException if writing fails
+   */
+  public void write(Appendable out, FieldWriter writer) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      out.append(literals[i]);
+      if (!writer.write(fields[i], out))
+        out.append('%').append(fields[i]);
+    }
+    out.append(literals[fields.length]);
+  }
+
+  /**
+   * Convenience function that expands the template into a string.
+   * 
+   * @param writer expands the fields
+   * @return the expanded template
+   */
+  public String format(FieldWriter writer) {
+    StringBuilder sb = new StringBuilder(format.length() + 64);
+    try {
+      write(sb, writer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    return format;
+  }
+}
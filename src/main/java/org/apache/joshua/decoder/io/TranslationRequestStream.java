@@ -57,6 +57,9 @@ public class TranslationRequestStream {
   /* Whether the request has been killed by a broken client connection. */
   private volatile boolean isShutDown = false;
 
+  /* The deadline of every sentence in the request, in ms since the epoch (0 means none) */
+  private volatile long deadline = 0;
+
   public TranslationRequestStream(BufferedReader reader, JoshuaConfiguration joshuaConfiguration) {
     this.joshuaConfiguration = joshuaConfiguration;
     
@@ -132,6 +135,16 @@ public class TranslationRequestStream {
     return sentenceNo + 1;
   }
 
+  /**
+   * Sets a deadline for the whole request, which all of its sentences share (see
+   * {@link Sentence#setDeadline(long)}). Time spent waiting for a decoder thread counts against it.
+   * 
+   * @param deadline the time in ms since the epoch, or 0 for no deadline
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
   /*
    * Returns the next sentence item, then sets it to null, so that hasNext() will know to produce a
    * new one.
@@ -147,6 +160,7 @@ public class TranslationRequestStream {
       if (nextSentence != null) {
         sentenceNo++;
         nextSentence.id = sentenceNo;
+        nextSentence.setDeadline(deadline);
       }
     } catch (IOException e) {
       this.shutdown();
@@ -268,9 +268,7 @@ public class Candidate implements Comparable<Candidate> {
    * @return the bit vector of this hypothesis
    */
   public Coverage getCoverage() {
-    Coverage cov = new Coverage(getHypothesis().getCoverage());
-    cov.set(getSpan());
-    return cov;
+    return getHypothesis().getCoverage().with(getSpan());
   }
 
   /**
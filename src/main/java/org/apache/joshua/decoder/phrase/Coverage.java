@@ -18,37 +18,60 @@
  */
 package org.apache.joshua.decoder.phrase;
 
+import java.util.Arrays;
 import java.util.BitSet;
 
 import org.apache.joshua.corpus.Span;
 
 /**
  * Represents a coverage vector. The vector is relative to a hypothesis. {firstZero} denotes the
- * first uncovered word of the sentence, and {bits} contains the coverage vector of all the words
- * after it, with the first zero removed. 
+ * first uncovered word of the sentence, and the bits contain the coverage vector of the words
+ * from there on, so that bit i refers to word firstZero + i (and bit 0 is always clear).
+ * 
+ * Coverage vectors are immutable. The bits are held in two longs, which suffices for sentences
+ * of up to 128 words; bits beyond that spill over into an array. Testing and extending a
+ * coverage vector is therefore plain bit arithmetic that (except for the new vector returned by
+ * {@link #with(int, int)}) allocates nothing.
  */
 
-public class Coverage {
+public final class Coverage {
 
   // The index of the first uncovered word
-  private int firstZero;
+  private final int firstZero;
 
-  // Bits with the first zero removed.                                                             
-  // We also assume anything beyond this is zero due to the reordering window.                     
-  // Lowest bits correspond to next word.    
-  private BitSet bits;
+  // Bits 0..63 and 64..127, relative to firstZero. Lowest bits correspond to next word.
+  private final long low;
+  private final long high;
+
+  // Bits from 128 on, with trailing zero words trimmed; null if there are none
+  private final long[] overflow;
 
   // Default bit vector length
   private static final int INITIAL_LENGTH = 10;
 
   public Coverage() {
-    firstZero = 0;
-    bits = new BitSet(INITIAL_LENGTH);
+    this(0);
   }
 
   public Coverage(int firstZero) {
+    this(firstZero, 0L, 0L, null);
+  }
+
+  private Coverage(int firstZero, long low, long high, long[] overflow) {
     this.firstZero = firstZero;
-    bits = new BitSet(INITIAL_LENGTH);
+    this.low = low;
+    this.high = high;
+    this.overflow = overflow;
+  }
+
+  private static Coverage fromWords(int firstZero, long[] words) {
+    int last = words.length - 1;
+    while (last >= 2 && words[last] == 0L)
+      last--;
+    return new Coverage(firstZero,
+        words.length > 0 ? words[0] : 0L,
+        words.length > 1 ? words[1] : 0L,
+        last >= 2 ? Arrays.copyOfRange(words, 2, last + 1) : null);
   }
 
   /**
@@ -59,62 +82,75 @@ public class Coverage {
     StringBuilder sb = new StringBuilder();
     sb.append(String.format("%d ", firstZero));
 
-    for (int i = 0; i < Math.max(INITIAL_LENGTH, bits.length()); i++) { // only display first 10 bits
-      sb.append(bits.get(i) ? "x" : ".");
+    for (int i = 0; i < Math.max(INITIAL_LENGTH, length()); i++) { // only display first 10 bits
+      sb.append(get(i) ? "x" : ".");
     }
 
     return sb.toString();
   }
 
   /**
-   * Initialize a coverage vector from another Coverage vector, creating a separate object.
-   * 
-   * @param other an existing coverage vector from which to create a new coverage vector
-   */
-  public Coverage(Coverage other) {
-    this.firstZero = other.firstZero;
-    this.bits = (BitSet) other.bits.clone();
-  }
-
-  /**
-   * Turns on all bits from position start to position (end - 1), that is, in the range [start .. end).
-   * This is done relative to the current coverage vector, of course, which may not start at 0.
+   * Returns a coverage vector with all bits from position start to position (end - 1) turned on,
+   * that is, in the range [start .. end). This is done relative to the current coverage vector, of
+   * course, which may not start at 0. The current coverage vector is not changed.
    * 
    * @param begin bits at start position
    * @param end bits at end position (end - 1)
+   * @return the extended coverage vector
    */
-  public void set(int begin, int end) {
+  public Coverage with(int begin, int end) {
     assert compatible(begin, end);
 
-    //    StringBuffer sb = new StringBuffer();
-    //    sb.append(String.format("SET(%d,%d) %s", begin, end, this));
-
-    if (begin == firstZero) {
-      // A concatenation. 
-      firstZero = end;
-      bits = bits.get(end - begin, Math.max(end - begin, bits.length()));
-      int firstClear = bits.nextClearBit(0);
-      if (firstClear != 0) {
-        // We might have exactly covered a gap, in which case we need to adjust shift
-        // firstZero and the bits until we reach the new end
-        firstZero += firstClear;
-        bits = bits.get(firstClear,  bits.length());
-      }
-    } else {
-      // Set the bits relative to the currenS
-      bits.or(pattern(begin, end));
+    final int from = begin - firstZero;
+    final int to = end - firstZero;
+
+    if (overflow == null && to <= 128) {
+      long lo = low | mask(from, to, 0);
+      long hi = high | mask(from, to, 64);
+
+      /*
+       * If the span starts at the first zero, this is a concatenation: the new first zero is the
+       * first clear bit, since we might have exactly covered a gap.
+       */
+      int shift = (lo == -1L) ? 64 + Long.numberOfTrailingZeros(~hi) : Long.numberOfTrailingZeros(~lo);
+      if (shift == 0)
+        return new Coverage(firstZero, lo, hi, null);
+      if (shift < 64)
+        return new Coverage(firstZero + shift, (lo >>> shift) | (hi << (64 - shift)), hi >>> shift, null);
+      return new Coverage(firstZero + shift, shift < 128 ? hi >>> (shift - 64) : 0L, 0L, null);
     }
 
-    //    sb.append(String.format(" -> %s", this));
-    //    System.err.println(sb);
+    long[] words = new long[Math.max(numWords(), ((to - 1) >>> 6) + 1)];
+    for (int w = 0; w < words.length; w++)
+      words[w] = word(w) | mask(from, to, w << 6);
+
+    int shift = 0;
+    while (shift < words.length << 6 && (words[shift >>> 6] & (1L << shift)) != 0)
+      shift++;
+    return fromWords(firstZero + shift, shiftRight(words, shift));
   }
 
   /**
    * Convenience function.
    * @param span todo
+   * @return the extended coverage vector
    */
-  public final void set(Span span) {
-    set(span.start, span.end);
+  public final Coverage with(Span span) {
+    return with(span.start, span.end);
+  }
+
+  private static long[] shiftRight(long[] words, int shift) {
+    if (shift == 0)
+      return words;
+    final int wordShift = shift >>> 6;
+    final int bitShift = shift & 63;
+    long[] shifted = new long[words.length];
+    for (int w = 0; w + wordShift < words.length; w++) {
+      shifted[w] = words[w + wordShift] >>> bitShift;
+      if (bitShift != 0 && w + wordShift + 1 < words.length)
+        shifted[w] |= words[w + wordShift + 1] << (64 - bitShift);
+    }
+    return shifted;
   }
 
   /**
@@ -128,9 +164,13 @@ public class Coverage {
    */
   public boolean compatible(int begin, int end) {
     if (begin >= firstZero) {
-      BitSet pattern = new BitSet();
-      pattern.set(begin - firstZero, end - firstZero);
-      return ! bits.intersects(pattern);
+      final int from = begin - firstZero;
+      final int to = end - firstZero;
+      final int last = Math.min((to - 1) >>> 6, numWords() - 1);
+      for (int w = from >>> 6; w <= last; w++)
+        if ((word(w) & mask(from, to, w << 6)) != 0)
+          return false;
+      return true;
     }
     return false;
   }
@@ -158,11 +198,16 @@ public class Coverage {
    * @return todo
    */
   public int leftOpening(int begin) {
-    for (int i = begin - firstZero; i > 0; --i) {
-      if (bits.get(i)) {
-        assert compatible(i + firstZero + 1, begin);
-        assert !compatible(i + firstZero, begin);
-        return i + firstZero + 1;
+    final int from = begin - firstZero;
+    if (from > 0) {
+      for (int w = Math.min(from >>> 6, numWords() - 1); w >= 0; w--) {
+        long bits = word(w) & mask(1, from + 1, w << 6);
+        if (bits != 0) {
+          int i = (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+          assert compatible(i + firstZero + 1, begin);
+          assert !compatible(i + firstZero, begin);
+          return i + firstZero + 1;
+        }
       }
     }
 
@@ -185,11 +230,10 @@ public class Coverage {
    * @return todo
    */
   public int rightOpening(int end, int sentenceLength) {
-    for (int i = end - firstZero; i < Math.min(64, sentenceLength - firstZero); i++) {
-      if (bits.get(i)) {
-        return i + firstZero;
-      }
-    }
+    // Only the first 64 bits are searched; anything beyond is outside the reordering window
+    long bits = low & mask(end - firstZero, Math.min(64, sentenceLength - firstZero), 0);
+    if (bits != 0)
+      return Long.numberOfTrailingZeros(bits) + firstZero;
     return sentenceLength;
   }
 
@@ -202,7 +246,6 @@ public class Coverage {
    * @return a bit vector (relative) with positions [begin..end) on
    */
   public BitSet pattern(int begin, int end) {
-    //    System.err.println(String.format("pattern(%d,%d) %d %s %s", begin, end, firstZero, begin >= firstZero, toString()));
     assert begin >= firstZero;
     BitSet pattern = new BitSet(INITIAL_LENGTH);
     pattern.set(begin - firstZero, end - firstZero);
@@ -210,19 +253,65 @@ public class Coverage {
   }
 
   /**
-   * Returns the underlying coverage bits.
+   * Returns a copy of the underlying coverage bits.
    * 
    * @return {@link java.util.BitSet} vector of bits
    */
   public BitSet getCoverage() {
-    return bits;
+    long[] words = new long[numWords()];
+    for (int w = 0; w < words.length; w++)
+      words[w] = word(w);
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * Returns whether bit i (relative to the first zero) is set.
+   * 
+   * @param i the relative position
+   * @return true if position firstZero + i is covered
+   */
+  public boolean get(int i) {
+    return (word(i >>> 6) & (1L << i)) != 0;
+  }
+
+  // The index of the highest set bit plus one, as for BitSet
+  private int length() {
+    for (int w = numWords() - 1; w >= 0; w--)
+      if (word(w) != 0)
+        return (w << 6) + 64 - Long.numberOfLeadingZeros(word(w));
+    return 0;
+  }
+
+  private int numWords() {
+    return (overflow == null) ? 2 : 2 + overflow.length;
+  }
+
+  private long word(int w) {
+    switch (w) {
+    case 0:
+      return low;
+    case 1:
+      return high;
+    default:
+      return (overflow != null && w - 2 < overflow.length) ? overflow[w - 2] : 0L;
+    }
+  }
+
+  // The bits of [from, to) that fall into the word starting at bit base, relative to base
+  private static long mask(int from, int to, int base) {
+    final int lo = Math.max(from - base, 0);
+    final int hi = Math.min(to - base, 64);
+    if (lo >= hi)
+      return 0L;
+    return (-1L >>> (64 - (hi - lo))) << lo;
   }
 
   @Override
   public boolean equals(Object obj) {
     if (obj instanceof Coverage) {
       Coverage other = (Coverage) obj;
-      return getCoverage().equals(other.getCoverage()) && firstZero() == other.firstZero();
+      return firstZero == other.firstZero && low == other.low && high == other.high
+          && Arrays.equals(overflow, other.overflow);
     }
 
     return false;
@@ -230,6 +319,11 @@ public class Coverage {
 
   @Override
   public int hashCode() {
-    return getCoverage().hashCode() * firstZero();
+    long hash = firstZero;
+    hash = hash * 0x9e3779b97f4a7c15L + low;
+    hash = hash * 0x9e3779b97f4a7c15L + high;
+    if (overflow != null)
+      hash = hash * 0x9e3779b97f4a7c15L + Arrays.hashCode(overflow);
+    return (int) (hash ^ (hash >>> 32));
   }
 }
@@ -18,6 +18,8 @@
  */
 package org.apache.joshua.decoder.phrase;
 
+import static org.apache.joshua.util.Bits.mix;
+
 import java.util.List;
 
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
@@ -42,6 +44,9 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   // The hypothesis' coverage vector
   private final Coverage coverage;
 
+  // The hash of the recombination signature (coverage, last source index, and DP states)
+  private final long hash;
+
   public static Rule BEGIN_RULE = new HieroFormatReader().parseLine("[GOAL] ||| <s> ||| <s> |||   ||| 0-0");
   public static Rule END_RULE   = new HieroFormatReader().parseLine("[GOAL] ||| </s> ||| </s> |||   ||| 0-0");
   public static Rule INORDER_RULE  = new HieroFormatReader().parseLine("[GOAL] ||| [GOAL,1] [X,2] ||| [GOAL,1] [X,2] |||   ||| 0-0 1-1");
@@ -60,6 +65,7 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
     super(0, 1, BEGIN_RULE.getLHS(), states,
         new HyperEdge(BEGIN_RULE, 0.0f, 0.0f, null, null), futureCost);
     this.coverage = new Coverage(1);
+    this.hash = computeHash();
   }
 
   /**
@@ -74,6 +80,7 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
             cand.computeResult().getTransitionCost(),
             cand.getTailNodes(), null), cand.score());
     this.coverage = cand.getCoverage();
+    this.hash = computeHash();
   }
 
   
@@ -81,6 +88,7 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   public Hypothesis(List<DPState> states, float score, Hypothesis previous, int source_end, Rule target) {
     super(-1, source_end, -1, null, null, score);
     this.coverage = previous.coverage;
+    this.hash = computeHash();
   }
 
   public Coverage getCoverage() {
@@ -101,14 +109,17 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
     return j;
   }
 
+  private long computeHash() {
+    long h = mix(31L * getLastSourceIndex() + 19L * getCoverage().hashCode());
+    if (null != dpStates)
+      for (DPState dps: dpStates)
+        h = mix(h * 57 + dps.longHash());
+    return h;
+  }
+
   @Override
   public int hashCode() {
-    int hash = 0;
-    hash = 31 * getLastSourceIndex() + 19 * getCoverage().hashCode();
-    if (null != dpStates && dpStates.size() > 0)
-      for (DPState dps: dpStates)
-        hash *= 57 + dps.hashCode();
-    return hash;
+    return (int) (hash ^ (hash >>> 32));
   }
 
   /**
@@ -121,6 +132,9 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
     if (obj instanceof Hypothesis) {
       Hypothesis other = (Hypothesis) obj;
 
+      if (hash != other.hash)
+        return false;
+
       if (getLastSourceIndex() != other.getLastSourceIndex() || ! getCoverage().equals(other.getCoverage()))
         return false;
       
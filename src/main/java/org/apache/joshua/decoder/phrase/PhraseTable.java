@@ -31,6 +31,7 @@ import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.ff.tm.OwnerId;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.ff.tm.RuleCollection;
+import org.apache.joshua.decoder.ff.tm.TerminalIndex;
 import org.apache.joshua.decoder.ff.tm.Trie;
 import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar;
@@ -153,6 +154,11 @@ public class PhraseTable implements Grammar {
     return backend.getTrieRoot();
   }
 
+  @Override
+  public TerminalIndex getTerminalIndex() {
+    return backend.getTerminalIndex();
+  }
+
   @Override
   public void sortGrammar(List<FeatureFunction> models) {
     backend.sortGrammar(models);    
@@ -176,7 +176,17 @@ public class Stack extends ArrayList<Hypothesis> {
    * candidate.
    */
   public void search() {
-    int to_pop = config.pop_limit;
+    search(config.pop_limit);
+  }
+
+  /**
+   * Runs cube pruning over the candidates with the given pop limit.
+   * 
+   * @param popLimit the maximum number of candidates to pop
+   * @return the number of candidates popped
+   */
+  public int search(int popLimit) {
+    int to_pop = popLimit;
     
     if (LOG.isDebugEnabled()) {
       LOG.debug("Stack::search(): pop: {} size: {}", to_pop, candidates.size());
@@ -195,6 +205,7 @@ public class Stack extends ArrayList<Hypothesis> {
           }
       }
     }
+    return popLimit - to_pop;
   }
 
   /**
@@ -39,10 +39,16 @@ import static org.apache.joshua.decoder.ff.tm.OwnerMap.UNKNOWN_OWNER;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.SearchBudget;
 import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.hypergraph.HGNode;
@@ -56,6 +62,9 @@ public class Stacks {
 
   private static final Logger LOG = LoggerFactory.getLogger(Stacks.class);
 
+  // Stacks with fewer seeds than this are seeded on the decoding thread
+  private static final int MIN_PARALLEL_SEEDS = 16;
+
   // The list of stacks, grouped according to number of source words covered
   private List<Stack> stacks;
 
@@ -70,6 +79,9 @@ public class Stacks {
 
   /* Contains all the phrase tables */
   private final PhraseChart chart;
+
+  /* The threads that score the seeds of each stack, shared by all sentences; null for one thread */
+  private final ForkJoinPool pool;
   
   /**
    * Entry point. Initialize everything. Create pass-through (OOV) phrase table and glue phrase
@@ -82,8 +94,23 @@ public class Stacks {
    */
   public Stacks(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars, 
       JoshuaConfiguration config) {
+    this(sentence, featureFunctions, grammars, config, null);
+  }
+
+  /**
+   * Creates stacks whose seeds are scored on the given threads.
+   * 
+   * @param sentence input to {@link org.apache.joshua.lattice.Lattice}
+   * @param featureFunctions {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param grammars an array of {@link org.apache.joshua.decoder.ff.tm.Grammar}'s
+   * @param config a populated {@link org.apache.joshua.decoder.JoshuaConfiguration}
+   * @param pool the decoder's stack-threads pool, or null to score the seeds on the calling thread
+   */
+  public Stacks(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars, 
+      JoshuaConfiguration config, ForkJoinPool pool) {
 
     this.sentence = sentence;
+    this.pool = pool;
     this.featureFunctions = featureFunctions;
     this.config = config;
     
@@ -100,8 +127,14 @@ public class Stacks {
     phraseTables[phraseTables.length - 2] = new PhraseTable(UNKNOWN_OWNER, config);
     phraseTables[phraseTables.length - 2].addRule(Hypothesis.END_RULE);
     
-    phraseTables[phraseTables.length - 1] = new PhraseTable("oov", config);
-    AbstractGrammar.addOOVRules(phraseTables[phraseTables.length - 1], sentence.getLattice(), featureFunctions, config.true_oovs_only);
+    /* Sentences decoded in a batch share the OOV rules of all the batch's words */
+    if (sentence.getOOVGrammar() instanceof PhraseTable) {
+      phraseTables[phraseTables.length - 1] = (PhraseTable) sentence.getOOVGrammar();
+    } else {
+      phraseTables[phraseTables.length - 1] = new PhraseTable("oov", config);
+      AbstractGrammar.addOOVRules(phraseTables[phraseTables.length - 1], sentence.getLattice(), featureFunctions,
+          grammars, config.true_oovs_only);
+    }
     
     this.chart = new PhraseChart(phraseTables, featureFunctions, sentence, config.num_translation_options);
   }
@@ -129,11 +162,28 @@ public class Stacks {
     firstStack.add(new Hypothesis(result.getDPStates(), future.Full()));
     stacks.add(firstStack);
     
+    /* Every stack is a step of the search */
+    SearchBudget budget = (sentence.getSearchBudget() != null) ? sentence.getSearchBudget()
+        : SearchBudget.start(sentence.getDeadline(), config);
+    budget.setSteps(sentence.length() - 1);
+
+    ForkJoinPool pool = null;
+    if (this.pool != null) {
+      if (isThreadSafe(featureFunctions))
+        pool = this.pool;
+      else
+        LOG.warn("Input {}: scoring stack seeds sequentially, since KenLM state minimization "
+            + "keeps a per-sentence state pool", sentence.id());
+    }
+
     // Decode with increasing numbers of source words. 
     for (int source_words = 2; source_words <= sentence.length(); ++source_words) {
       Stack targetStack = new Stack(sentence, config);
       stacks.add(targetStack);
 
+      // The seed candidates of the target stack, in the order they are added to it
+      List<Supplier<Candidate>> seeds = new ArrayList<>();
+
       // Iterate over stacks to continue from.
       for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
           phrase_length++) {
@@ -142,7 +192,7 @@ public class Stacks {
 
         LOG.debug("WORDS {} MAX {} (STACK {} phrase_length {})", source_words,
             chart.MaxSourcePhraseLength(), from_stack, phrase_length);
-        
+      
         /* Each from stack groups together lots of different coverage vectors that all cover the
          * same number of words. We have the number of covered words from from_stack, and the length
          * of the phrases we are going to add from (source_words - from_stack). We now iterate over
@@ -152,10 +202,10 @@ public class Stacks {
          */
         for (Coverage coverage: tailStack.getCoverages()) {
           ArrayList<Hypothesis> hypotheses = tailStack.get(coverage); 
-          
+        
           // the index of the starting point of the first possible phrase
           int begin = coverage.firstZero();
-          
+        
           // the absolute position of the ending spot of the last possible phrase
           int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
           int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
@@ -179,23 +229,30 @@ public class Stacks {
 
             LOG.debug("Applying {} target phrases over [{}, {}]",
                 phrases.size(), begin, begin + phrase_length);
-            
+          
             // TODO: could also compute some number of features here (e.g., non-LM ones)
             // float score_delta = context.GetScorer().transition(ant, phrases, begin, begin + phrase_length);
-            
+          
             // Future costs: remove span to be filled.
             float future_delta = future.Change(coverage, begin, begin + phrase_length);
-            
+          
             /* This associates with each span a set of hypotheses that can be extended by
              * phrases from that span. The hypotheses are wrapped in HypoState objects, which
              * augment the hypothesis score with a future cost.
              */
-            Candidate cand = new Candidate(featureFunctions, sentence, hypotheses, phrases, future_delta, new int[] {0, 0});
-            targetStack.addCandidate(cand);
+            seeds.add(() -> new Candidate(featureFunctions, sentence, hypotheses, phrases,
+                future_delta, new int[] {0, 0}));
           }
         }
       }
 
+      /* Constructing a candidate scores it with all of the feature functions, which is the
+       * expensive part of seeding and independent across seeds. The candidates are added to the
+       * stack in their original order, so the result does not depend on the number of threads.
+       */
+      for (Candidate cand : createCandidates(seeds, pool))
+        targetStack.addCandidate(cand);
+
       /* At this point, every vertex contains a list of all existing hypotheses that the target
        * phrases in that vertex could extend. Now we need to create the search object, which
        * implements cube pruning. There are up to O(n^2) cubes, n the size of the current stack,
@@ -203,10 +260,10 @@ public class Stacks {
        * the target phrases over the span, and one representing all of these incoming hypotheses.
        * We seed the chart with the best item in each cube, and then repeatedly pop and extend.
        */
-      
+    
 //      System.err.println(String.format("\nBuilding cube-pruning chart for %d words", source_words));
 
-      targetStack.search();
+      budget.popped(targetStack.search(budget.nextPopLimit()));
     }
     
     LOG.info("Input {}: Search took {} seconds", sentence.id(),
@@ -215,6 +272,44 @@ public class Stacks {
     return createGoalNode();
   }
     
+  /**
+   * Runs the seed constructors, in parallel on the pool if there is one and enough seeds.
+   * 
+   * @param seeds constructors of the seed candidates
+   * @param pool the thread pool, or null
+   * @return the candidates, in the order of the seeds
+   */
+  private static Candidate[] createCandidates(List<Supplier<Candidate>> seeds, ForkJoinPool pool) {
+    final Candidate[] candidates = new Candidate[seeds.size()];
+    if (pool == null || seeds.size() < MIN_PARALLEL_SEEDS) {
+      for (int i = 0; i < candidates.length; i++)
+        candidates[i] = seeds.get(i).get();
+    } else {
+      try {
+        pool.submit(() -> IntStream.range(0, candidates.length).parallel()
+            .forEach(i -> candidates[i] = seeds.get(i).get())).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * KenLM's state-minimizing language model queries through a state pool that belongs to the
+   * sentence and cannot be shared between threads. All other feature functions are already
+   * shared by the parallel decoders.
+   */
+  private static boolean isThreadSafe(List<FeatureFunction> featureFunctions) {
+    for (FeatureFunction feature : featureFunctions)
+      if (feature instanceof StateMinimizingLanguageModel)
+        return false;
+    return true;
+  }
+
   /**
    * Enforces reordering constraints. Our version of Moses' ReorderingConstraint::Check() and
    * SearchCubePruning::CheckDistortion(). 
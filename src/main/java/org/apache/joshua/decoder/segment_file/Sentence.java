@@ -22,7 +22,6 @@ import static org.apache.joshua.util.FormatUtils.addSentenceMarkers;
 
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -32,7 +31,11 @@ import java.util.regex.Pattern;
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.LanguageModelStateManager;
+import org.apache.joshua.decoder.SearchBudget;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.state_maintenance.DPStatePool;
 import org.apache.joshua.decoder.ff.tm.Grammar;
+import org.apache.joshua.decoder.ff.tm.TerminalIndex;
 import org.apache.joshua.lattice.Arc;
 import org.apache.joshua.lattice.Lattice;
 import org.apache.joshua.lattice.Node;
@@ -80,6 +83,21 @@ public class Sentence {
 
   private LanguageModelStateManager stateManager = new LanguageModelStateManager();
 
+  /* Interns the DP states of this sentence's hypotheses; null unless intern-dp-states is set */
+  private DPStatePool dpStatePool = null;
+
+  /* The weights this sentence is decoded with; null means the feature functions' own weights */
+  private FeatureVector weights = null;
+
+  /* When the translation is due, in ms since the epoch; 0 means no deadline */
+  private long deadline = 0;
+
+  /* Tracks the search effort on this sentence; set when decoding starts */
+  private SearchBudget searchBudget = null;
+
+  /* OOV rules shared by the sentences of a batch; null means the chart adds its own */
+  private Grammar oovGrammar = null;
+
   /**
    * Constructor. Receives a string representing the input sentence. This string may be a
    * string-encoded lattice or a plain text string for decoding.
@@ -93,6 +111,8 @@ public class Sentence {
     inputString = Regex.spaces.replaceAll(inputString, " ").trim();
     
     config = joshuaConfiguration;
+    if (config != null && config.intern_dp_states)
+      dpStatePool = new DPStatePool();
     
     this.constraints = new LinkedList<>();
 
@@ -180,22 +200,21 @@ public class Sentence {
   public void segmentOOVs(Grammar[] grammars) {
     Lattice<Token> oldLattice = this.getLattice();
 
-    /* Build a list of terminals across all grammars */
-    HashSet<Integer> vocabulary = new HashSet<>();
-    for (Grammar grammar : grammars) {
-      Iterator<Integer> iterator = grammar.getTrieRoot().getTerminalExtensionIterator();
-      while (iterator.hasNext())
-        vocabulary.add(iterator.next());
-    }
-
     List<Node<Token>> oldNodes = oldLattice.getNodes();
 
+    /* Look up all single-word nodes in the grammars' terminal indexes at once */
+    int[] words = new int[oldNodes.size()];
+    for (int nodeid = oldNodes.size() - 3; nodeid >= 1; nodeid -= 1)
+      if (oldNodes.get(nodeid).getOutgoingArcs().size() == 1)
+        words[nodeid] = oldNodes.get(nodeid).getOutgoingArcs().get(0).getLabel().getWord();
+    boolean[] known = TerminalIndex.known(grammars, words);
+
     /* Find all the subwords that appear in the vocabulary, and create the lattice */
     for (int nodeid = oldNodes.size() - 3; nodeid >= 1; nodeid -= 1) {
       if (oldNodes.get(nodeid).getOutgoingArcs().size() == 1) {
         Arc<Token> arc = oldNodes.get(nodeid).getOutgoingArcs().get(0);
         String word = Vocabulary.word(arc.getLabel().getWord());
-        if (!vocabulary.contains(arc.getLabel())) {
+        if (!known[nodeid]) {
           // System.err.println(String.format("REPL: '%s'", word));
           List<Arc<Token>> savedArcs = oldNodes.get(nodeid).getOutgoingArcs();
 
@@ -211,7 +230,7 @@ public class Sentence {
               int j = i + width;
               if (width != chars.length) {
                 Token token = new Token(word.substring(i, j), config);
-                if (vocabulary.contains(id)) {
+                if (TerminalIndex.known(grammars, token.getWord())) {
                   nodes.get(i).addArc(nodes.get(j), 0.0f, token);
                   wordChart.set(i, j, true);
                   //                    System.err.println(String.format("  FOUND '%s' at (%d,%d)", word.substring(i, j),
@@ -451,7 +470,69 @@ public class Sentence {
     return getLattice().getNode(i);
   }
 
+  /**
+   * Returns the weight snapshot this sentence is decoded with. This is set by the
+   * {@link org.apache.joshua.decoder.DecoderTask} when decoding starts and must not be modified
+   * afterwards, since concurrent decoder threads may share it.
+   *
+   * @return the weights, or null if the feature functions' own weights should be used
+   */
+  public FeatureVector getWeights() {
+    return weights;
+  }
+
+  public void setWeights(FeatureVector weights) {
+    this.weights = weights;
+  }
+
   public LanguageModelStateManager getStateManager() {
     return stateManager;
   }
+
+  /**
+   * @return the pool of DP states of this sentence, or null if states are not interned
+   */
+  public DPStatePool getDPStatePool() {
+    return dpStatePool;
+  }
+
+  /**
+   * @return when the translation is due, in ms since the epoch, or 0 if there is no deadline
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Sets a deadline for the translation of this sentence. The search adapts its effort to finish
+   * by then, see {@link SearchBudget}.
+   * 
+   * @param deadline the time in ms since the epoch, or 0 for no deadline
+   */
+  public void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return the search budget of this sentence, or null if decoding has not started
+   */
+  public SearchBudget getSearchBudget() {
+    return searchBudget;
+  }
+
+  public void setSearchBudget(SearchBudget searchBudget) {
+    this.searchBudget = searchBudget;
+  }
+
+  /**
+   * @return a grammar with OOV rules for (at least) the words of this sentence, built once for the
+   *         batch it was decoded in; or null if the chart should add the OOV rules itself
+   */
+  public Grammar getOOVGrammar() {
+    return oovGrammar;
+  }
+
+  public void setOOVGrammar(Grammar oovGrammar) {
+    this.oovGrammar = oovGrammar;
+  }
 }
@@ -18,12 +18,14 @@
  */
 package org.apache.joshua.metrics;
 
+import org.apache.joshua.util.LongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public class BLEU extends EvaluationMetric {
 
@@ -35,7 +37,9 @@ public class BLEU extends EvaluationMetric {
   // 1: closest, 2: shortest, 3: average
   // protected HashMap[][] maxNgramCounts;
 
-  protected HashMap<String, Integer>[] maxNgramCounts;
+  // maxNgramCounts[i] maps hashed n-grams (see BLEUStatsEngine) to their clipping counts
+  protected LongIntHashMap[] maxNgramCounts;
+  protected BLEUStatsEngine statsEngine;
   protected int[][] refWordCount;
   protected double[] weights;
 
@@ -108,38 +112,15 @@ public class BLEU extends EvaluationMetric {
    * <code>maxNgramCounts</code>), which are used for clipping n-gram counts.
    */
   protected void set_maxNgramCounts() {
-    @SuppressWarnings("unchecked")
-    HashMap<String, Integer>[] temp_HMA = new HashMap[numSentences];
-    maxNgramCounts = temp_HMA;
-
-    String gram;
-    int oldCount, nextCount;
+    maxNgramCounts = new LongIntHashMap[numSentences];
 
     for (int i = 0; i < numSentences; ++i) {
-      maxNgramCounts[i] = getNgramCountsAll(refSentences[i][0]);
-      // initialize to ngramCounts[n] of the first reference translation...
-
-      // ...and update as necessary from the other reference translations
-      for (int r = 1; r < refsPerSen; ++r) {
-        HashMap<String, Integer> nextNgramCounts = getNgramCountsAll(refSentences[i][r]);
-        for (Map.Entry<String, Integer> entry : nextNgramCounts.entrySet()) { 
-          gram = entry.getKey();
-          nextCount = entry.getValue();
-
-          if (maxNgramCounts[i].containsKey(gram)) { // update if necessary
-            oldCount = maxNgramCounts[i].get(gram);
-            if (nextCount > oldCount) {
-              maxNgramCounts[i].put(gram, nextCount);
-            }
-          } else { // add it
-            maxNgramCounts[i].put(gram, nextCount);
-          }
-
-        }
-
-      } // for (r)
-
-    } // for (i)
+      List<String> refs = new ArrayList<>(refsPerSen);
+      for (int r = 0; r < refsPerSen; ++r) {
+        refs.add(refSentences[i][r]);
+      }
+      maxNgramCounts[i] = statsEngine.referenceCounts(refs);
+    }
 
     // For efficiency, calculate the reference lenghts, which will be used in effLength...
 
@@ -160,21 +141,32 @@ public class BLEU extends EvaluationMetric {
   public int[] suffStats(String cand_str, int i) {
     int[] stats = new int[suffStatsCount];
 
-    // int wordCount = words.length;
-    // for (int j = 0; j < wordCount; ++j) { words[j] = words[j].intern(); }
+    long[] words = cand_str.equals("") ? new long[0] : BLEUStatsEngine.tokenCodes(cand_str);
+    set_prec_suffStats(stats, words, i);
+    stats[suffStatsCount - 2] = words.length;
+    stats[suffStatsCount - 1] = effLength(words.length, i);
 
-    if (!cand_str.equals("")) {
-      String[] words = cand_str.split("\\s+");
-      set_prec_suffStats(stats, words, i);
-      stats[suffStatsCount - 2] = words.length;
-      stats[suffStatsCount - 1] = effLength(words.length, i);
-    } else {
-      String[] words = new String[0];
-      set_prec_suffStats(stats, words, i);
-      stats[suffStatsCount - 2] = 0;
-      stats[suffStatsCount - 1] = effLength(0, i);
+    return stats;
+  }
+
+  /**
+   * Computes sufficient statistics for a batch of candidates, spreading the candidates across the
+   * available cores. The statistics of each candidate only depend on the (read-only) reference
+   * tables, so subclasses get this for free as long as their {@link #suffStats(String, int)} has no
+   * side effects.
+   */
+  @Override
+  public int[][] suffStats(String[] cand_strings, int[] cand_indices) {
+    int candCount = cand_strings.length;
+    if (cand_indices.length != candCount) {
+      System.out.println("Array lengths mismatch in suffStats(String[],int[]); returning null.");
+      return null;
     }
 
+    int[][] stats = new int[candCount][];
+    IntStream.range(0, candCount).parallel()
+        .forEach(d -> stats[d] = suffStats(cand_strings[d], cand_indices[d]));
+
     return stats;
   }
 
@@ -186,34 +178,22 @@ public class BLEU extends EvaluationMetric {
    * @param i todo
    */
   public void set_prec_suffStats(int[] stats, String[] words, int i) {
-    HashMap<String, Integer>[] candCountsArray = getNgramCountsArray(words);
-
-    for (int n = 1; n <= getMaxGramLength(); ++n) {
-
-      int correctGramCount = 0;
-      String gram;
-      int candGramCount, maxRefGramCount, clippedCount;
-
-      for (String s : (candCountsArray[n].keySet())) {
-        // for each n-gram type in the candidate
-        gram = s;
-        candGramCount = candCountsArray[n].get(gram);
-        // if (maxNgramCounts[i][n].containsKey(gram)) {
-        // maxRefGramCount = maxNgramCounts[i][n].get(gram);
-        if (maxNgramCounts[i].containsKey(gram)) {
-          maxRefGramCount = maxNgramCounts[i].get(gram);
-        } else {
-          maxRefGramCount = 0;
-        }
-
-        clippedCount = Math.min(candGramCount, maxRefGramCount);
-        correctGramCount += clippedCount;
-      }
-
-      stats[2 * (n - 1)] = correctGramCount;
-      stats[2 * (n - 1) + 1] = Math.max(words.length - (n - 1), 0); // total gram count
+    long[] codes = new long[words.length];
+    for (int j = 0; j < words.length; j++) {
+      codes[j] = BLEUStatsEngine.tokenCode(words[j]);
+    }
+    set_prec_suffStats(stats, codes, i);
+  }
 
-    } // for (n)
+  /**
+   * Computes the precision sufficient statistics, clipping counts.
+   * 
+   * @param stats int[] representing statistics on a hypothesis.
+   * @param words token codes of the hypothesis (see {@link BLEUStatsEngine#tokenCodes(String)})
+   * @param i the index of the sentence
+   */
+  public void set_prec_suffStats(int[] stats, long[] words, int i) {
+    statsEngine.precisionStats(words, maxNgramCounts[i], stats, 0);
   }
 
   public int effLength(int candLength, int i) {
@@ -554,6 +534,7 @@ public class BLEU extends EvaluationMetric {
    */
   public void setMaxGramLength(int maxGramLength) {
     this.maxGramLength = maxGramLength;
+    this.statsEngine = new BLEUStatsEngine(maxGramLength);
   }
 
   /**
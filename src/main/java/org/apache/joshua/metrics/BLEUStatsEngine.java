@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.metrics;
+
+import static org.apache.joshua.util.Bits.mix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.joshua.util.LongIntHashMap;
+
+/**
+ * Computes BLEU n-gram sufficient statistics over hashed n-grams.
+ *
+ * Sentences are represented as arrays of 64-bit token codes: either a hash of the token string
+ * ({@link #tokenCodes(String)}) or a {@link org.apache.joshua.corpus.Vocabulary} id widened to a
+ * long. N-grams are identified by a rolling 64-bit hash over those codes, so neither references
+ * nor candidates ever build n-gram strings. Reference clipping counts are computed once (see
+ * {@link #referenceCounts(long[][])}) and candidate statistics are then computed against them
+ * with a primitive, per-thread scratch table.
+ *
+ * Token strings are hashed rather than interned in the Vocabulary because the tuners run the
+ * decoder in-process, and the decoder clears the Vocabulary between runs.
+ *
+ * Instances are immutable and safe to share across threads.
+ */
+public class BLEUStatsEngine {
+
+  private static final long TOKEN_SEED = 0xcbf29ce484222325L;
+  private static final long TOKEN_PRIME = 0x100000001b3L;
+  private static final long NGRAM_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+  private static final ThreadLocal<LongIntHashMap> SCRATCH =
+      ThreadLocal.withInitial(() -> new LongIntHashMap(256));
+
+  private final int maxOrder;
+
+  /**
+   * @param maxOrder the highest n-gram order to collect statistics for
+   */
+  public BLEUStatsEngine(int maxOrder) {
+    this.maxOrder = maxOrder;
+  }
+
+  public int getMaxOrder() {
+    return maxOrder;
+  }
+
+  /**
+   * Returns the 64-bit code of a single token.
+   *
+   * @param token the token string
+   * @return a hash of the token
+   */
+  public static long tokenCode(CharSequence token) {
+    return tokenCode(token, 0, token.length());
+  }
+
+  private static long tokenCode(CharSequence s, int from, int to) {
+    long h = TOKEN_SEED;
+    for (int i = from; i < to; i++) {
+      h ^= s.charAt(i);
+      h *= TOKEN_PRIME;
+    }
+    return mix(h);
+  }
+
+  /**
+   * Tokenizes a sentence and returns the codes of its tokens. Tokenization is exactly that of
+   * <code>sentence.split("\\s+")</code>, including the empty leading token produced by leading
+   * whitespace, so statistics agree with the string-based implementations.
+   *
+   * @param sentence a whitespace-delimited sentence
+   * @return the token codes, in order
+   */
+  public static long[] tokenCodes(String sentence) {
+    final int length = sentence.length();
+    if (length == 0)
+      return new long[] { tokenCode(sentence) };
+
+    long[] codes = new long[8];
+    int count = 0;
+    int start = 0;
+    int i = 0;
+    while (i < length) {
+      if (isSpace(sentence.charAt(i))) {
+        // Only the first token can be empty, the regex is greedy
+        if (i > start || count == 0) {
+          if (count == codes.length)
+            codes = Arrays.copyOf(codes, count * 2);
+          codes[count++] = tokenCode(sentence, start, i);
+        }
+        while (i < length && isSpace(sentence.charAt(i)))
+          i++;
+        start = i;
+      } else {
+        i++;
+      }
+    }
+    if (start < length) {
+      if (count == codes.length)
+        codes = Arrays.copyOf(codes, count + 1);
+      codes[count++] = tokenCode(sentence, start, length);
+    } else if (count == 1 && start > 0 && isSpace(sentence.charAt(0))) {
+      // An all-whitespace string: split() drops the trailing (and only) empty token
+      count = 0;
+    }
+    return Arrays.copyOf(codes, count);
+  }
+
+  /**
+   * @param ids Vocabulary ids
+   * @return the ids as token codes
+   */
+  public static long[] tokenCodes(int[] ids) {
+    long[] codes = new long[ids.length];
+    for (int i = 0; i < ids.length; i++)
+      codes[i] = ids[i];
+    return codes;
+  }
+
+  /**
+   * @param ids Vocabulary ids
+   * @return the ids as token codes
+   */
+  public static long[] tokenCodes(List<Integer> ids) {
+    long[] codes = new long[ids.size()];
+    for (int i = 0; i < codes.length; i++)
+      codes[i] = ids.get(i);
+    return codes;
+  }
+
+  /**
+   * Whether {@link #tokenCodes(String)} returns no tokens for a sentence, i.e., whether it is made
+   * of whitespace only. Unlike the empty string, which has one empty token.
+   *
+   * @param sentence a whitespace-delimited sentence
+   * @return true if the sentence has no tokens
+   */
+  public static boolean hasNoTokens(String sentence) {
+    if (sentence.isEmpty())
+      return false;
+    for (int i = 0; i < sentence.length(); i++)
+      if (!isSpace(sentence.charAt(i)))
+        return false;
+    return true;
+  }
+
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Extends the key of an n-gram by one token. The key of a unigram is
+   * <code>extend(0, token)</code>.
+   *
+   * @param key the key of the n-gram so far
+   * @param token the code of the next token
+   * @return the key of the (n+1)-gram
+   */
+  public static long extend(long key, long token) {
+    return mix(key * NGRAM_MULTIPLIER + token + 1);
+  }
+
+  /**
+   * Computes the key of the n-gram codes[from, to).
+   *
+   * @param codes token codes
+   * @param from first position (inclusive)
+   * @param to last position (exclusive)
+   * @return the n-gram key
+   */
+  public static long ngramKey(long[] codes, int from, int to) {
+    long key = 0;
+    for (int i = from; i < to; i++)
+      key = extend(key, codes[i]);
+    return key;
+  }
+
+  /**
+   * Counts all n-grams of order 1..maxOrder in a sentence.
+   *
+   * @param codes the token codes of the sentence
+   * @return a table from n-gram key to count
+   */
+  public LongIntHashMap ngramCounts(long[] codes) {
+    LongIntHashMap counts = new LongIntHashMap(codes.length * maxOrder);
+    for (int start = 0; start < codes.length; start++) {
+      long key = 0;
+      for (int end = start; end < codes.length && end - start < maxOrder; end++) {
+        key = extend(key, codes[end]);
+        counts.addTo(key, 1);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Computes the clipping counts for a set of references: the maximum count of every n-gram over
+   * all references.
+   *
+   * @param references the token codes of each reference
+   * @return a table from n-gram key to its maximum reference count
+   */
+  public LongIntHashMap referenceCounts(long[][] references) {
+    if (references.length == 1)
+      return ngramCounts(references[0]);
+    LongIntHashMap max = new LongIntHashMap();
+    for (long[] reference : references)
+      max.putAllMax(ngramCounts(reference));
+    return max;
+  }
+
+  /**
+   * Convenience function for {@link #referenceCounts(long[][])} over reference strings.
+   *
+   * @param references reference sentences
+   * @return a table from n-gram key to its maximum reference count
+   */
+  public LongIntHashMap referenceCounts(List<String> references) {
+    List<long[]> codes = new ArrayList<>(references.size());
+    for (String reference : references)
+      codes.add(tokenCodes(reference));
+    return referenceCounts(codes.toArray(new long[0][]));
+  }
+
+  /**
+   * Fills in the clipped n-gram precision statistics of a candidate, in the layout used by
+   * {@link BLEU}: for each order n, <code>stats[offset + 2(n-1)]</code> holds the clipped match
+   * count and <code>stats[offset + 2(n-1) + 1]</code> the number of candidate n-grams.
+   *
+   * @param candidate the token codes of the candidate
+   * @param referenceCounts clipping counts from {@link #referenceCounts(long[][])}
+   * @param stats the array to fill in
+   * @param offset where the precision statistics start in stats
+   */
+  public void precisionStats(long[] candidate, LongIntHashMap referenceCounts, int[] stats,
+      int offset) {
+    LongIntHashMap seen = SCRATCH.get();
+    seen.clear();
+
+    for (int n = 1; n <= maxOrder; n++) {
+      stats[offset + 2 * (n - 1)] = 0;
+      stats[offset + 2 * (n - 1) + 1] = Math.max(candidate.length - (n - 1), 0);
+    }
+
+    for (int start = 0; start < candidate.length; start++) {
+      long key = 0;
+      for (int n = 1; n <= maxOrder && start + n <= candidate.length; n++) {
+        key = extend(key, candidate[start + n - 1]);
+        int refCount = referenceCounts.get(key, 0);
+        /*
+         * The k-th occurrence of an n-gram is a clipped match iff k <= its reference count, which
+         * sums to min(candCount, refCount) without a second pass over the candidate table.
+         */
+        if (refCount > 0 && seen.addTo(key, 1) <= refCount)
+          stats[offset + 2 * (n - 1)]++;
+      }
+    }
+  }
+}
@@ -38,7 +38,7 @@ public class BLEU_SBP extends BLEU {
     int[] stats = new int[suffStatsCount];
     stats[0] = 1;
 
-    String[] words = cand_str.split("\\s+");
+    long[] words = BLEUStatsEngine.tokenCodes(cand_str);
 
     // int wordCount = words.length;
     // for (int j = 0; j < wordCount; ++j) { words[j] = words[j].intern(); }
@@ -18,10 +18,11 @@
  */
 package org.apache.joshua.metrics;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.joshua.util.Algorithms;
+import org.apache.joshua.util.LongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,37 +64,16 @@ public class MinimumChangeBLEU extends BLEU {
 
 
   protected void set_maxNgramCounts() {
-    @SuppressWarnings("unchecked")
-    HashMap<String, Integer>[] temp_HMA = new HashMap[numSentences];
-    maxNgramCounts = temp_HMA;
-
-    String gram;
-    int oldCount, nextCount;
+    maxNgramCounts = new LongIntHashMap[numSentences];
 
     for (int i = 0; i < numSentences; ++i) {
-      // update counts as necessary from the reference translations
+      List<String> refs = new ArrayList<>(refsPerSen);
       for (int r = 0; r < refsPerSen; ++r) {
         // skip source reference
         if (r == this.sourceReferenceIndex) continue;
-        if (maxNgramCounts[i] == null) {
-          maxNgramCounts[i] = getNgramCountsAll(refSentences[i][r]);
-        } else {
-          HashMap<String, Integer> nextNgramCounts = getNgramCountsAll(refSentences[i][r]);
-          for (Map.Entry<String, Integer> entry : nextNgramCounts.entrySet()) {
-            gram = entry.getKey();
-            nextCount = entry.getValue();
-
-            if (maxNgramCounts[i].containsKey(gram)) {
-              oldCount = maxNgramCounts[i].get(gram);
-              if (nextCount > oldCount) {
-                maxNgramCounts[i].put(gram, nextCount);
-              }
-            } else { // add it
-              maxNgramCounts[i].put(gram, nextCount);
-            }
-          }
-        }
-      } // for (r)
+        refs.add(refSentences[i][r]);
+      }
+      maxNgramCounts[i] = statsEngine.referenceCounts(refs);
     } // for (i)
 
     // for efficiency, calculate the reference lenghts, which will be used
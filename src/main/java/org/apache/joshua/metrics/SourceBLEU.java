@@ -18,7 +18,9 @@
  */
 package org.apache.joshua.metrics;
 
-import java.util.HashMap;
+import java.util.Collections;
+
+import org.apache.joshua.util.LongIntHashMap;
 
 public class SourceBLEU extends BLEU {
   // We assume that the source for the paraphrasing run is
@@ -67,25 +69,24 @@ public class SourceBLEU extends BLEU {
   }
 
   protected void set_maxNgramCounts() {
-    @SuppressWarnings("unchecked")
-    HashMap<String, Integer>[] temp_HMA = new HashMap[numSentences];
-    maxNgramCounts = temp_HMA;
+    maxNgramCounts = new LongIntHashMap[numSentences];
     sourceWordCount = new int[numSentences];
 
     for (int i = 0; i < numSentences; ++i) {
       sourceWordCount[i] = wordCount(refSentences[i][sourceReferenceIndex]);
-      maxNgramCounts[i] = getNgramCountsAll(refSentences[i][sourceReferenceIndex]);
+      maxNgramCounts[i] = statsEngine.referenceCounts(
+          Collections.singletonList(refSentences[i][sourceReferenceIndex]));
     }
   }
 
   public int[] suffStats(String cand_str, int i) {
     int[] stats = new int[suffStatsCount];
 
-    String[] candidate_words;
+    long[] candidate_words;
     if (!cand_str.equals(""))
-      candidate_words = cand_str.split("\\s+");
+      candidate_words = BLEUStatsEngine.tokenCodes(cand_str);
     else
-      candidate_words = new String[0];
+      candidate_words = new long[0];
 
     set_prec_suffStats(stats, candidate_words, i);
     if (this.useBrevityPenalty)
@@ -136,7 +136,7 @@ public class OracleExtractionHG extends SplitHg {
     if (orc_extract_nbest) {
       System.out.println("oracle extraction from nbest list");
 
-      kbest_extractor = new KBestExtractor(null, null, Decoder.weights, false, joshuaConfiguration);
+      kbest_extractor = new KBestExtractor(null, null, Decoder.getWeights(), false, joshuaConfiguration);
     }
 
     BufferedWriter orc_out = FileUtility.getWriteFileStream(f_orc_out);
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fronts the HTTP server while the decoder loads its models, so that the port can be opened
+ * before loading finishes. <code>GET /ready</code> answers 200 ("ready") once the decoder is
+ * loaded and 503 ("loading") before. Translation requests are answered with a 503 until then, and
+ * passed on to the decoder's handler afterwards.
+ */
+public class ReadinessHandler implements HttpHandler {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReadinessHandler.class);
+
+  /* The path of the readiness check */
+  public static final String READY_PATH = "/ready";
+
+  /* Handles the translation requests once the decoder is loaded; null before */
+  private volatile HttpHandler handler = null;
+
+  /**
+   * Starts passing requests on to the decoder.
+   * 
+   * @param handler the handler of translation requests, e.g., a {@link ServerThread}
+   */
+  public void setReady(HttpHandler handler) {
+    this.handler = handler;
+    LOG.info("Ready to accept translation requests");
+  }
+
+  /**
+   * @return true once the decoder is loaded
+   */
+  public boolean isReady() {
+    return handler != null;
+  }
+
+  @Override
+  public void handle(HttpExchange client) throws IOException {
+    HttpHandler target = handler;
+    if (READY_PATH.equals(client.getRequestURI().getPath()))
+      respond(client, (target != null) ? 200 : 503, (target != null) ? "ready\n" : "loading\n");
+    else if (target == null)
+      respond(client, 503, "loading\n");
+    else
+      target.handle(client);
+  }
+
+  private static void respond(HttpExchange client, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+    client.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = client.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
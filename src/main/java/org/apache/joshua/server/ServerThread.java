@@ -31,6 +31,8 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -39,6 +41,8 @@ import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.Translation;
 import org.apache.joshua.decoder.TranslationResponseStream;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.lm.CachingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.ff.tm.Trie;
 import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
@@ -138,15 +142,21 @@ public class ServerThread extends Thread implements HttpHandler {
 
     private HttpExchange client = null;
     private OutputStream out = null;
+    private final int status;
     
     public HttpWriter(HttpExchange client) {
+      this(client, 200);
+    }
+
+    public HttpWriter(HttpExchange client, int status) {
       this.client = client;
+      this.status = status;
       client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
     }
     
     @Override
     public void write(byte[] response) throws IOException {
-      client.sendResponseHeaders(200, response.length);
+      client.sendResponseHeaders(status, response.length);
       out = client.getResponseBody();
       out.write(response);
       out.close();
@@ -170,21 +180,46 @@ public class ServerThread extends Thread implements HttpHandler {
    * 
    * handle() will use q = {a, b} and meta = {d}
    * 
+   * A "weights" key ("?q=a&amp;weights=tm_pt_0 0.5 lm_0 1.2") decodes the request with a copy of
+   * the decoder weights that has the listed values changed, without affecting other requests.
+   * 
+   * Malformed "weights" or "budget" values are answered with a 400 (Bad Request) error.
+   * 
+   * A "budget" key ("?q=a&amp;budget=500") gives the request a deadline that many milliseconds
+   * from now; the search effort on its sentences is reduced as needed to meet it.
+   * 
    * @param client the client connection
    */
   @Override
   public synchronized void handle(HttpExchange client) throws IOException {
 
+    long startTime = System.currentTimeMillis();
+
     HashMap<String, ArrayList<String>> params = queryToMap(client.getRequestURI().getRawQuery());
     ArrayList<String> queryList = params.get("q");
     ArrayList<String> metaList = params.get("meta");
     String meta = (metaList != null && ! metaList.isEmpty()) ? metaList.get(metaList.size() - 1) : null;
+    ArrayList<String> weightsList = params.get("weights");
+    ArrayList<String> budgetList = params.get("budget");
+    FeatureVector weights = null;
+    long budget = 0;
+    try {
+      if (weightsList != null && ! weightsList.isEmpty())
+        weights = Decoder.copyWeights(parseWeights(weightsList.get(weightsList.size() - 1)));
+      if (budgetList != null && ! budgetList.isEmpty())
+        budget = parseBudget(budgetList.get(budgetList.size() - 1));
+    } catch (IllegalArgumentException e) {
+      sendBadRequest(client, e.getMessage());
+      return;
+    }
     
     /* Join together multiple sentence queries as distinct sentences. */
     BufferedReader reader = new BufferedReader(new StringReader(String.join("\n", queryList)));
     TranslationRequestStream request = new TranslationRequestStream(reader, joshuaConfiguration);
+    if (budget > 0)
+      request.setDeadline(startTime + budget);
     
-    TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
+    TranslationResponseStream translationResponseStream = decoder.decodeAll(request, weights);
     JSONMessage message = new JSONMessage();
     if (meta != null && ! meta.isEmpty())
       handleMetadata(meta, message);
@@ -204,6 +239,64 @@ public class ServerThread extends Thread implements HttpHandler {
     reader.close();
   }
   
+  /**
+   * Answers a request with malformed parameters with a 400 (Bad Request) error.
+   * 
+   * @param client the client connection
+   * @param error what is wrong with the request
+   * @throws IOException if the response can't be sent
+   */
+  private void sendBadRequest(HttpExchange client, String error) throws IOException {
+    LOG.warn("Bad request: {}", error);
+    OutputStream out = new HttpWriter(client, 400);
+    out.write(String.format("Bad request: %s\n", error).getBytes(FILE_ENCODING));
+    out.close();
+  }
+
+  /**
+   * Parses a list of feature names and values, e.g., "tm_pt_0 0.5 lm_0 1.2".
+   * 
+   * @param args alternating feature names and values
+   * @return the values, in order
+   * @throws IllegalArgumentException if a name has no value or a value is not a number
+   */
+  private Map<String, Float> parseWeights(String args) {
+    String[] argTokens = args.trim().split("\\s+");
+    if (argTokens.length % 2 != 0)
+      throw new IllegalArgumentException(String.format(
+          "weights '%s' must alternate feature names and values", args));
+
+    Map<String, Float> weights = new LinkedHashMap<>();
+    for (int i = 0; i < argTokens.length; i += 2) {
+      try {
+        weights.put(argTokens[i], Float.parseFloat(argTokens[i + 1]));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(String.format(
+            "weight '%s' of feature %s is not a number", argTokens[i + 1], argTokens[i]));
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Parses the time budget of a request.
+   * 
+   * @param arg the budget in milliseconds
+   * @return the budget
+   * @throws IllegalArgumentException if the budget is not a positive number
+   */
+  private long parseBudget(String arg) {
+    long budget;
+    try {
+      budget = Long.parseLong(arg.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format("budget '%s' is not a number", arg));
+    }
+    if (budget <= 0)
+      throw new IllegalArgumentException(String.format("budget %d must be positive", budget));
+    return budget;
+  }
+
   /**
    * Processes metadata commands received in the HTTP request. Some commands result in sending data back.
    *
@@ -220,27 +313,41 @@ public class ServerThread extends Thread implements HttpHandler {
     switch (type) {
     case "get_weight":
       String weight = tokens[1];
-      LOG.info("WEIGHT: %s = %.3f", weight, Decoder.weights.getWeight(weight));
+      LOG.info("WEIGHT: {} = {}", weight, Decoder.getWeights().getWeight(weight));
 
       break;
     case "set_weights": {
-      // Change a decoder weight
-      String[] argTokens = args.split("\\s+");
-      for (int i = 0; i < argTokens.length; i += 2) {
-        String feature = argTokens[i];
-        String newValue = argTokens[i + 1];
-        float old_weight = Decoder.weights.getWeight(feature);
-        Decoder.weights.set(feature, Float.parseFloat(newValue));
-        LOG.info("set_weights: {} {} -> {}", feature, old_weight,
-            Decoder.weights.getWeight(feature));
+      // Change decoder weights by publishing a new snapshot; sentences already being decoded
+      // keep the weights they started with
+      FeatureVector oldWeights = Decoder.getWeights();
+      Map<String, Float> changes;
+      try {
+        changes = parseWeights(args);
+      } catch (IllegalArgumentException e) {
+        LOG.warn("* INVALID WEIGHTS: {}", e.getMessage());
+        message.addMetaData("error " + e.getMessage());
+        break;
       }
+      FeatureVector newWeights = Decoder.updateWeights(changes);
+      for (String feature : changes.keySet())
+        LOG.info("set_weights: {} {} -> {}", feature, oldWeights.getWeight(feature),
+            newWeights.getWeight(feature));
 
-      message.addMetaData("weights " + Decoder.weights.toString());
+      message.addMetaData("weights " + newWeights.toString());
 
       break;
     }
     case "get_weights": {
-      message.addMetaData("weights " + Decoder.weights.toString());
+      message.addMetaData("weights " + Decoder.getWeights().toString());
+
+      break;
+    }
+    case "get_cache_stats": {
+      message.addMetaData("cache " + (decoder.getTranslationCache() != null
+          ? decoder.getTranslationCache().toString() : "disabled"));
+      for (Map.Entry<String, CachingLanguageModel> cache : decoder.getLanguageModelCaches()
+          .entrySet())
+        message.addMetaData("lm_cache " + cache.getKey() + " " + cache.getValue());
 
       break;
     }
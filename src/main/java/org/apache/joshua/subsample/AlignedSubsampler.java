@@ -42,6 +42,11 @@ public class AlignedSubsampler extends Subsampler {
     super(testFiles, maxN, targetCount);
   }
 
+  public AlignedSubsampler(String[] testFiles, int maxN, int targetCount, int threads)
+      throws IOException {
+    super(testFiles, maxN, targetCount, threads);
+  }
+
 
   /**
    * @param filelist list of source files to subsample from
@@ -93,9 +98,9 @@ public class AlignedSubsampler extends Subsampler {
 
       public void runSubsampler(String[] testFiles, int maxN, int targetCount, float ratio)
           throws IOException {
-        new AlignedSubsampler(testFiles, maxN, targetCount).subsample(ot.getValue(), ratio,
-            of.getValue(), oe.getValue(), oa.getValue(), ofpath.getValue(), oepath.getValue(),
-            oapath.getValue(), ooutput.getValue());
+        new AlignedSubsampler(testFiles, maxN, targetCount, threads).subsample(value(ot), ratio,
+            value(of), value(oe), value(oa), value(ofpath), value(oepath), value(oapath),
+            value(ooutput));
       }
 
     }.runMain(args);
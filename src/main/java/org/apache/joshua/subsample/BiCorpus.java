@@ -19,9 +19,11 @@
 package org.apache.joshua.subsample;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -68,12 +70,8 @@ public class BiCorpus implements Iterable<PhrasePair> {
     this.nativeFileName = nativeFileName;
     this.alignmentFileName = alignmentFileName;
 
-    // Check for fileLengthMismatchException
-    // Of course, that will be checked for in each iteration
-    //
-    // We write it this way to avoid warnings from the foreach style loop
-    for (PhrasePair phrasePair : this) {
-    }
+    // File lengths are checked while iterating (and by the Subsampler's scan), rather than by an
+    // extra pass here, which would add every word to the Vocabulary
   }
 
 
@@ -96,11 +94,14 @@ public class BiCorpus implements Iterable<PhrasePair> {
     PhraseReader closureRE;
     BufferedReader closureRA;
     try {
-      closureRF = new PhraseReader(new FileReader(this.foreignFileName), (byte) 1);
-      closureRE = new PhraseReader(new FileReader(this.nativeFileName), (byte) 0);
+      // The corpus is read as UTF-8, like the Subsampler scans it and writes its output
+      closureRF = new PhraseReader(new InputStreamReader(
+          new FileInputStream(this.foreignFileName), StandardCharsets.UTF_8), (byte) 1);
+      closureRE = new PhraseReader(new InputStreamReader(
+          new FileInputStream(this.nativeFileName), StandardCharsets.UTF_8), (byte) 0);
       closureRA =
-          (null == this.alignmentFileName ? null : new BufferedReader(new FileReader(
-              this.alignmentFileName)));
+          (null == this.alignmentFileName ? null : new BufferedReader(new InputStreamReader(
+              new FileInputStream(this.alignmentFileName), StandardCharsets.UTF_8)));
     } catch (FileNotFoundException e) {
       throw new RuntimeException("File not found", e);
     }
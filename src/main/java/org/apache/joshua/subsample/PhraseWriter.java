@@ -59,6 +59,21 @@ final public class PhraseWriter {
     if (null != this.wa) this.wa.write(pp.getAlignment().toString());
   }
 
+  /**
+   * Writes a sentence pair that is already in its output form, e.g., without going through the
+   * {@link org.apache.joshua.corpus.Vocabulary}.
+   *
+   * @param f the foreign sentence
+   * @param e the native sentence
+   * @param alignment the alignment, which is ignored if there is no alignment writer
+   * @throws IOException if writing fails
+   */
+  public void write(String f, String e, String alignment) throws IOException {
+    this.wf.write(f);
+    this.we.write(e);
+    if (null != this.wa) this.wa.write(alignment);
+  }
+
   public void newLine() throws IOException {
     this.wf.newLine();
     this.we.newLine();
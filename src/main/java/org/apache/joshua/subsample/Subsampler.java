@@ -20,17 +20,28 @@ package org.apache.joshua.subsample;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.apache.joshua.corpus.BasicPhrase;
-import org.apache.joshua.corpus.Phrase;
+import org.apache.joshua.metrics.BLEUStatsEngine;
+import org.apache.joshua.util.LongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +49,16 @@ import org.slf4j.LoggerFactory;
  * A class for subsampling a large (F,E)-parallel sentence-aligned corpus to generate a smaller
  * corpus whose N-grams are relevant to some seed corpus. The idea of subsampling owes to Kishore
  * Papineni.
+ * <p>
+ * Sentence pairs are selected greedily, shortest length bin first: a pair is selected if one of
+ * its F n-grams occurs in the test set and has been selected fewer than <code>targetCount</code>
+ * times so far. N-grams are identified by rolling 64-bit hashes of their token codes (see
+ * {@link BLEUStatsEngine}), which index a primitive table of counts. Each length bin is scanned in
+ * chunks of sentence pairs, which are tokenized and matched against the test n-grams on separate
+ * threads; the counts are then updated chunk by chunk in corpus order, so the selection does not
+ * depend on the number of threads. The selected pairs are kept from the chunks they were read in,
+ * and written out in corpus order once all bins have been scanned, so the corpus is not read again
+ * and its words are never added to the {@link org.apache.joshua.corpus.Vocabulary}.
  * 
  * @author UMD (Jimmy Lin, Chris Dyer, et al.)
  * @author wren ng thornton wren@users.sourceforge.net
@@ -47,40 +68,66 @@ public class Subsampler {
 
   private static final Logger LOG = LoggerFactory.getLogger(Subsampler.class);
 
-  protected Map<Phrase, Integer> ngramCounts;
+  /* Maps the hash of each test set n-gram to its index in ngramCounts */
+  protected final LongIntHashMap ngramIndex;
+  protected int[] ngramCounts;
   protected final int maxN;
   protected final int targetCount;
   protected final int maxSubsample = 1500000;
+  protected final int threads;
 
   protected static final int MAX_SENTENCE_LENGTH = 100;
   protected static final int MIN_RATIO_LENGTH = 10;
 
+  /* The number of sentence pairs scanned by a thread at a time */
+  private static final int CHUNK_SIZE = 10000;
+
 
   public Subsampler(String[] testFiles, int maxN, int targetCount) throws IOException {
+    this(testFiles, maxN, targetCount, 1);
+  }
+
+  /**
+   * @param testFiles the test sets (what to sample for)
+   * @param maxN the highest order of n-grams to sample for
+   * @param targetCount the number of times each test n-gram should be covered
+   * @param threads the number of threads that scan the training data
+   * @throws IOException if a test set cannot be read
+   */
+  public Subsampler(String[] testFiles, int maxN, int targetCount, int threads)
+      throws IOException {
     this.maxN = maxN;
     this.targetCount = targetCount;
-    this.ngramCounts = loadNgrams(testFiles);
+    this.threads = threads;
+    this.ngramIndex = new LongIntHashMap();
+    loadNgrams(testFiles);
   }
 
-  private HashMap<Phrase, Integer> loadNgrams(String[] files) throws IOException {
-    HashMap<Phrase, Integer> map = new HashMap<>();
+  private void loadNgrams(String[] files) throws IOException {
     for (String fn : files) {
       LOG.debug("Loading test set from {}", fn);
 
-      Phrase phrase;
+      String line;
       int lineCount = 0;
-      try (PhraseReader reader = new PhraseReader(new FileReader(fn), (byte) 1)) {
-        while ((phrase = reader.readPhrase()) != null) {
+      try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(new FileInputStream(fn), StandardCharsets.UTF_8))) {
+        while ((line = reader.readLine()) != null) {
           lineCount++;
-          List<Phrase> ngrams = phrase.getSubPhrases(this.maxN);
-          for (Phrase ngram : ngrams)
-            map.put(ngram, 0);
+          long[] tokens = BLEUStatsEngine.tokenCodes(line);
+          for (int start = 0; start < tokens.length; start++) {
+            long key = 0;
+            for (int end = start; end < tokens.length && end - start < maxN; end++) {
+              key = BLEUStatsEngine.extend(key, tokens[end]);
+              if (!ngramIndex.containsKey(key))
+                ngramIndex.put(key, ngramIndex.size());
+            }
+          }
         }
       }
       LOG.debug("Processed {} lines in {}", lineCount, fn);
     }
-    LOG.debug("Test set: {} ngrams", map.size());
-    return map;
+    this.ngramCounts = new int[ngramIndex.size()];
+    LOG.debug("Test set: {} ngrams", ngramIndex.size());
   }
 
 
@@ -116,24 +163,14 @@ public class Subsampler {
    */
   protected void subsample(String filelist, float targetFtoERatio, PhraseWriter out,
       BiCorpusFactory bcFactory) throws IOException {
+    ExecutorService executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
     try {
       // Read filenames into a list
       List<String> files = new ArrayList<>();
-      {
-        FileReader fr = null;
-        BufferedReader br = null;
-        try {
-          fr = new FileReader(filelist);
-          br = new BufferedReader(fr);
-          String file;
-          while ((file = br.readLine()) != null) {
-            files.add(file);
-          }
-        } finally {
-          // Maybe redundant, but UMD's FixBugs says to
-          // close br (and close is idempotent anyways)
-          if (null != fr) fr.close();
-          if (null != br) br.close();
+      try (BufferedReader br = new BufferedReader(new FileReader(filelist))) {
+        String file;
+        while ((file = br.readLine()) != null) {
+          files.add(file);
         }
       }
 
@@ -142,10 +179,14 @@ public class Subsampler {
       // earlier in the list
       for (String f : files) {
         LOG.info("Loading training data: {}", f);
+        long startTime = System.currentTimeMillis();
 
         BiCorpus bc = bcFactory.fromFiles(f);
 
-        HashMap<PhrasePair, PhrasePair> set = new HashMap<>();
+        // The line numbers of the selected sentence pairs, and their lines
+        BitSet selected = new BitSet();
+        Map<Integer, String[]> pairs = new HashMap<>();
+        long scanned = 0;
 
         int binsize = 10; // BUG: Magic-Number
         int max_k = MAX_SENTENCE_LENGTH / binsize;
@@ -154,84 +195,201 @@ public class Subsampler {
         // towards short sentences
         for (int k = 0; k < max_k; k++) {
           LOG.debug(" [{}, {}]", (k * binsize + 1), ((k + 1) * binsize));
-          this.subsample(set, bc, k * binsize + 1, (k + 1) * binsize, targetFtoERatio);
+          scanned += this.subsample(selected, pairs, bc, k * binsize + 1, (k + 1) * binsize,
+              targetFtoERatio, executor);
 
-          if (set.size() + totalSubsampled > maxSubsample) break;
+          if (selected.cardinality() + totalSubsampled > maxSubsample) break;
         }
 
         float ff = 0.0f;
         float ef = 0.0f;
-        for (PhrasePair pp : set.keySet()) {
-          // Get pp.ratioFtoE() for all pp
-          ff += pp.getF().size();
-          ef += pp.getE().size();
+        for (int line = selected.nextSetBit(0); line >= 0; line = selected.nextSetBit(line + 1)) {
+          String[] pair = pairs.get(line);
+          // The words as BiCorpus splits them, which PhraseWriter writes separated by one space
+          String[] fWords = pair[0].split("\\s+");
+          String[] eWords = pair[1].split("\\s+");
+          ff += fWords.length;
+          ef += eWords.length;
 
-          out.write(set.get(pp));
+          out.write(String.join(" ", fWords), String.join(" ", eWords), (pair[2] == null) ? null
+              : new Alignment((short) fWords.length, (short) eWords.length, pair[2]).toString());
           out.newLine();
         }
         out.flush();
 
-        totalSubsampled += set.size();
-        LOG.info("current={} [total={}] currentRatio={}", set.size(), totalSubsampled, (ff / ef));
-
-        // TODO: is this gc actually dubious? Or
-        // does profiling show it helps? We only
-        // do it once per file, so it's not a
-        // performance blackhole.
-        System.gc();
+        totalSubsampled += selected.cardinality();
+        LOG.info("current={} [total={}] currentRatio={}", selected.cardinality(), totalSubsampled,
+            (ff / ef));
+        float seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0f;
+        LOG.info("Scanned {} sentence pairs in {} seconds ({} pairs/second, {} threads)", scanned,
+            seconds, (int) (scanned / seconds), threads);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
     } finally {
+      if (executor != null)
+        executor.shutdownNow();
       out.close();
     }
   }
 
   /**
-   * The worker function for subsampling.
+   * The worker function for subsampling. Reads the corpus in chunks, which are matched against
+   * the test n-grams on the executor, and updates the n-gram counts in corpus order.
    * 
-   * @param set The set to put selected sentences into
+   * @param selected The line numbers of the selected sentence pairs
+   * @param pairs receives the lines (F, E and alignment) of each newly selected sentence pair
    * @param bc The sentence-aligned corpus to read from
    * @param minLength The minimum F sentence length
    * @param maxLength The maximum F sentence length
    * @param targetFtoERatio The desired ratio of F length to E length
+   * @param executor scans the chunks, or null to scan them on this thread
+   * @return the number of sentence pairs read
+   */
+  private int subsample(BitSet selected, Map<Integer, String[]> pairs, BiCorpus bc,
+      int minLength, int maxLength, float targetFtoERatio, ExecutorService executor)
+      throws IOException, InterruptedException, ExecutionException {
+    Deque<Future<Chunk>> pending = new ArrayDeque<>();
+    int line = 0;
+    try (BufferedReader rf = newReader(bc.foreignFileName);
+        BufferedReader re = newReader(bc.nativeFileName);
+        BufferedReader ra = (bc.alignmentFileName == null) ? null
+            : newReader(bc.alignmentFileName)) {
+      while (true) {
+        final Chunk chunk = new Chunk(ra != null);
+        String f;
+        while (chunk.fs.size() < CHUNK_SIZE && (f = rf.readLine()) != null) {
+          String e = re.readLine();
+          if (e == null)
+            throw new RuntimeException("Mismatched file lengths!");
+          chunk.fs.add(f);
+          chunk.es.add(e);
+          if (ra != null) {
+            // Like BiCorpus, the alignments skip the pairs with an empty side
+            String a = null;
+            if (!BLEUStatsEngine.hasNoTokens(f) && !BLEUStatsEngine.hasNoTokens(e)
+                && (a = ra.readLine()) == null)
+              throw new RuntimeException("Mismatched file lengths!");
+            chunk.as.add(a);
+          }
+        }
+        if (chunk.fs.isEmpty())
+          break;
+
+        if (executor == null) {
+          line = select(selected, pairs, line, match(chunk, minLength, maxLength, targetFtoERatio));
+        } else {
+          pending.add(executor.submit(() -> match(chunk, minLength, maxLength, targetFtoERatio)));
+          /* Bound the number of chunks in memory */
+          while (pending.size() > 2 * threads)
+            line = select(selected, pairs, line, pending.removeFirst().get());
+        }
+      }
+      while (!pending.isEmpty())
+        line = select(selected, pairs, line, pending.removeFirst().get());
+    }
+    return line;
+  }
+
+  /* A chunk of sentence pairs, and the test n-grams of each pair once it has been matched */
+  private static final class Chunk {
+    final List<String> fs = new ArrayList<>(CHUNK_SIZE);
+    final List<String> es = new ArrayList<>(CHUNK_SIZE);
+    final List<String> as;
+    int[][] matches = null;
+
+    Chunk(boolean aligned) {
+      as = aligned ? new ArrayList<>(CHUNK_SIZE) : null;
+    }
+  }
+
+  private static BufferedReader newReader(String fileName) throws IOException {
+    return new BufferedReader(
+        new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Selects the sentence pairs of a chunk that cover a test n-gram fewer than targetCount times.
+   * 
+   * @param selected the line numbers of the selected sentence pairs
+   * @param pairs receives the lines of each selected sentence pair
+   * @param line the line number of the first sentence pair of the chunk
+   * @param chunk the sentence pairs, matched by {@link #match(Chunk, int, int, float)}
+   * @return the line number of the first sentence pair of the next chunk
    */
-  private void subsample(HashMap<PhrasePair, PhrasePair> set, BiCorpus bc, int minLength,
-      int maxLength, float targetFtoERatio) {
-    for (PhrasePair pp : bc) {
-      PhrasePair lowercase_pp =
-          new PhrasePair(new BasicPhrase((byte) 1, pp.getF().toString().toLowerCase()),
-              new BasicPhrase((byte) 1, pp.getE().toString().toLowerCase()), pp.getAlignment());
+  private int select(BitSet selected, Map<Integer, String[]> pairs, int line, Chunk chunk) {
+    for (int i = 0; i < chunk.matches.length; i++, line++) {
+      int[] ngrams = chunk.matches[i];
+      if (ngrams != null) {
+        boolean useSentence = false;
+        for (int ngram : ngrams) {
+          if (ngramCounts[ngram] < targetCount) {
+            useSentence = true;
+            ngramCounts[ngram]++;
+          }
+        }
+        if (useSentence) {
+          selected.set(line);
+          pairs.put(line, new String[] { chunk.fs.get(i), chunk.es.get(i),
+              (chunk.as == null) ? null : chunk.as.get(i) });
+        }
+      }
+    }
+    return line;
+  }
+
+  /**
+   * Finds the test n-grams in a chunk of sentence pairs. This is safe to run concurrently, since
+   * it only reads the n-gram index.
+   * 
+   * @return the chunk, whose matches hold for each sentence pair the indices of the test n-grams
+   *         among its F n-grams (with repetitions), or null if the pair is outside the length bin,
+   *         has an empty side, or has no test n-grams
+   */
+  private Chunk match(Chunk chunk, int minLength, int maxLength, float targetFtoERatio) {
+    int[][] matches = new int[chunk.fs.size()][];
+    int[] ngrams = new int[64];
+    for (int i = 0; i < matches.length; i++) {
+      long[] f = BLEUStatsEngine.tokenCodes(chunk.fs.get(i));
+      long[] e = BLEUStatsEngine.tokenCodes(chunk.es.get(i));
 
       {
-        int eLength = pp.getE().size();
+        int eLength = e.length;
         if (eLength == 0 || eLength > MAX_SENTENCE_LENGTH) continue;
       }
 
-      int fLength = pp.getF().size();
+      int fLength = f.length;
       if (fLength == 0 || fLength < minLength || fLength > maxLength
           || fLength > MAX_SENTENCE_LENGTH) continue;
       if (fLength > 10 && targetFtoERatio != 0.0f) {
-        float ratio = pp.ratioFtoE();
+        float ratio = ((float) fLength) / ((float) e.length);
         if (fLength >= MIN_RATIO_LENGTH
             && (ratio > 1.3f * targetFtoERatio || ratio * 1.3f < targetFtoERatio)) continue;
       }
-      if (set.containsKey(lowercase_pp)) continue;
-
-      // at this point, length checks out and the sentence hasn't
-      // been selected yet
-
-      List<Phrase> ngrams = pp.getF().getSubPhrases(this.maxN);
-      boolean useSentence = false;
-      for (Phrase ng : ngrams) {
-        Integer count = this.ngramCounts.get(ng);
-        if (count == null) continue;
-        if (count < targetCount) {
-          useSentence = true;
-          count++;
-          this.ngramCounts.put(ng, count);
+
+      // at this point, length checks out
+
+      int count = 0;
+      for (int start = 0; start < fLength; start++) {
+        long key = 0;
+        for (int end = start; end < fLength && end - start < maxN; end++) {
+          key = BLEUStatsEngine.extend(key, f[end]);
+          int ngram = ngramIndex.get(key, -1);
+          // The test set contains every prefix of its n-grams
+          if (ngram < 0) break;
+          if (count == ngrams.length)
+            ngrams = Arrays.copyOf(ngrams, count * 2);
+          ngrams[count++] = ngram;
         }
       }
-      if (useSentence) set.put(lowercase_pp, pp);
+      if (count > 0)
+        matches[i] = Arrays.copyOf(ngrams, count);
     }
+    chunk.matches = matches;
+    return chunk;
   }
 
 
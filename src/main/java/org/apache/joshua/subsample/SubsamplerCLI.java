@@ -20,6 +20,7 @@ package org.apache.joshua.subsample;
 
 import java.io.IOException;
 
+import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
@@ -77,6 +78,17 @@ public class SubsamplerCLI {
   protected final Option oratio = OptionBuilder.withArgName("ratio").hasArg()
       .withDescription("Target F/E ratio").create("ratio");
 
+  // TODO hasArg is a static method. It should be accessed as OptionBuilder.hasArg()
+  protected final Option othreads = OptionBuilder.withArgName("threads").hasArg()
+      .withDescription("Number of threads that scan the training data (default: number of processors)")
+      .create("threads");
+
+  /** The parsed command line. The parser fills in copies of the Options, not the Options above. */
+  protected CommandLine commandLine;
+
+  /** The number of threads that scan the training data */
+  protected int threads = Runtime.getRuntime().availableProcessors();
+
   /**
    * Return all Options. The HelpFormatter will print them in sorted order, so it doesn't matter
    * when we add them. Subclasses should override this method by adding more options.
@@ -84,7 +96,24 @@ public class SubsamplerCLI {
    */
   public Options getCliOptions() {
     return new Options().addOption(ot).addOption(otest).addOption(of).addOption(oe)
-        .addOption(ofpath).addOption(oepath).addOption(oratio).addOption(ooutput);
+        .addOption(ofpath).addOption(oepath).addOption(oratio).addOption(ooutput)
+        .addOption(othreads);
+  }
+
+  /**
+   * @param option one of the Options
+   * @return the value of the option on the command line, or null if it is absent
+   */
+  protected String value(Option option) {
+    return commandLine.getOptionValue(option.getOpt());
+  }
+
+  /**
+   * @param option one of the Options
+   * @return the values of the option on the command line, or null if it is absent
+   */
+  protected String[] values(Option option) {
+    return commandLine.getOptionValues(option.getOpt());
   }
 
   /**
@@ -107,8 +136,8 @@ public class SubsamplerCLI {
    */
   public void runSubsampler(String[] testFiles, int maxN, int targetCount, float ratio)
       throws IOException {
-    new Subsampler(testFiles, maxN, targetCount).subsample(ot.getValue(), ratio, of.getValue(),
-        oe.getValue(), ofpath.getValue(), oepath.getValue(), ooutput.getValue());
+    new Subsampler(testFiles, maxN, targetCount, threads).subsample(value(ot), ratio, value(of),
+        value(oe), value(ofpath), value(oepath), value(ooutput));
   }
 
   /**
@@ -119,7 +148,7 @@ public class SubsamplerCLI {
   public void runMain(String[] args) {
     Options o = this.getCliOptions();
     try {
-      new GnuParser().parse(o, args);
+      commandLine = new GnuParser().parse(o, args);
     } catch (ParseException pe) {
       // The message from pe is ugly, so we omit it.
       System.err.println("Error parsing command line");
@@ -129,10 +158,13 @@ public class SubsamplerCLI {
 
     try {
       float ratio = 0.8f;
-      if (this.oratio.getValue() != null) {
-        ratio = Float.parseFloat(this.oratio.getValue());
+      if (value(this.oratio) != null) {
+        ratio = Float.parseFloat(value(this.oratio));
+      }
+      if (value(this.othreads) != null) {
+        threads = Integer.parseInt(value(this.othreads));
       }
-      this.runSubsampler(this.otest.getValues(), 12, 20, ratio);
+      this.runSubsampler(values(this.otest), 12, 20, ratio);
     } catch (Exception e) {
       e.printStackTrace();
       System.exit(1);
@@ -18,20 +18,52 @@
  */
 package org.apache.joshua.tools;
 
+import static org.apache.joshua.util.Bits.mix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.joshua.util.LongIntHashMap;
 import org.apache.joshua.util.io.LineReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Filters a grammar to the rules whose source sides can match a test set. The "fast" filter keeps
+ * a rule if each run of terminals on its source side is an n-gram of the test set; the "exact"
+ * filter also requires the whole source side, with its nonterminals, to match a test sentence; the
+ * "loose" filter only requires the terminals to occur in order in a test sentence.
+ * 
+ * The test set n-grams of the fast filter are stored as 64-bit fingerprints of the UTF-8 bytes of
+ * their words. Grammars are filtered by {@link #filterGrammar(InputStream, OutputStream, int)},
+ * which reads them as chunks of whole lines, filters the chunks on separate threads without
+ * decoding them into strings (in fast mode), and writes the kept rules in their original order. In
+ * parallel compatibility mode, they are filtered one line at a time instead.
+ */
 public class TestSetFilter {
 
   private static final Logger LOG = LoggerFactory.getLogger(TestSetFilter.class);
@@ -47,6 +79,14 @@ public class TestSetFilter {
   public boolean verbose = false;
   public boolean parallel = false;
 
+  // statistics of filterGrammar()
+  public int rulesIn = 0;
+  public int rulesOut = 0;
+  public long bytesIn = 0;
+
+  /* The size of the chunks of grammar filtered by a thread */
+  private int chunkSize = 4 << 20;
+
   private static final String DELIMITER = "|||";
   private static final String DELIMITER_REGEX = " \\|\\|\\| ";
   public static final String DELIM = String.format(" %s ", DELIMITER);
@@ -97,7 +137,18 @@ public class TestSetFilter {
     RULE_LENGTH = value;
   }
 
-  private void loadTestSentences(String filename) throws IOException {
+  public void setChunkSize(int bytes) {
+    chunkSize = bytes;
+  }
+
+  /**
+   * Adds the sentences of a test set to the filter. {@link #setFilter(String)} must have been
+   * called first.
+   * 
+   * @param filename the test set, one sentence per line
+   * @throws IOException if the file cannot be read
+   */
+  public void loadTestSentences(String filename) throws IOException {
     int count = 0;
 
     try {
@@ -130,6 +181,223 @@ public class TestSetFilter {
     return acceptedLastSourceSide;
   }
 
+  /**
+   * Copies the rules of a grammar that the filter permits, in their original order. The grammar
+   * is read in chunks of whole lines, which are filtered on separate threads. Like the line-based
+   * filter, a rule is a line with at least four fields, whose source side is the second field if
+   * the line starts with a nonterminal and the first field otherwise. The statistics are added to
+   * {@link #rulesIn}, {@link #rulesOut}, {@link #bytesIn} and {@link #cached}.
+   * 
+   * In parallel compatibility mode, the filter is one stage of a pipeline that expects an output
+   * line for each rule as soon as the rule has been read. The grammar is then read, filtered and
+   * flushed one line at a time on the calling thread, and every dropped rule is replaced by an
+   * empty line.
+   * 
+   * @param in the grammar
+   * @param out receives the kept rules, each followed by a newline
+   * @param threads the number of filtering threads
+   * @throws IOException if the grammar cannot be read or the rules cannot be written
+   */
+  public void filterGrammar(InputStream in, OutputStream out, int threads) throws IOException {
+    if (parallel) {
+      filterGrammarByLine(in, out);
+      return;
+    }
+
+    ExecutorService executor = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+    Deque<Future<FilteredChunk>> pending = new ArrayDeque<>();
+    try {
+      byte[] chunk = new byte[chunkSize];
+      int length = 0;
+      boolean eof = false;
+      while (!eof || length > 0) {
+        while (length < chunk.length && !eof) {
+          int read = in.read(chunk, length, chunk.length - length);
+          if (read < 0)
+            eof = true;
+          else {
+            length += read;
+            bytesIn += read;
+          }
+        }
+
+        /* Filter the complete lines, and carry the last partial line over to the next chunk */
+        int end = eof ? length : lastIndexOf(chunk, length, (byte) '\n') + 1;
+        if (end == 0) {
+          // a line longer than the chunk
+          chunk = Arrays.copyOf(chunk, chunk.length * 2);
+          continue;
+        }
+        final byte[] lines = chunk;
+        final int linesEnd = end;
+        chunk = new byte[Math.max(chunkSize, length - end)];
+        System.arraycopy(lines, end, chunk, 0, length - end);
+        length -= end;
+
+        if (executor == null) {
+          write(filterChunk(lines, linesEnd), out);
+        } else {
+          pending.add(executor.submit(() -> filterChunk(lines, linesEnd)));
+          /* Bound the number of chunks in memory */
+          while (pending.size() > 2 * threads)
+            write(pending.removeFirst().get(), out);
+        }
+      }
+      while (!pending.isEmpty())
+        write(pending.removeFirst().get(), out);
+      out.flush();
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (executor != null)
+        executor.shutdownNow();
+    }
+  }
+
+  /* Filters the rules one at a time, flushing the output line of each before the next is read */
+  private void filterGrammarByLine(InputStream in, OutputStream out) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    for (String rule = reader.readLine(); rule != null; rule = reader.readLine()) {
+      rulesIn++;
+      // in characters, which is close enough for the throughput
+      bytesIn += rule.length() + 1;
+
+      String[] parts = P_DELIM.split(rule);
+      if (parts.length >= 4) {
+        // the source is the second field for thrax grammars, first field for phrasal ones
+        String source = rule.startsWith("[") ? parts[1].trim() : parts[0].trim();
+        if (inTestSet(source)) {
+          out.write(rule.getBytes(StandardCharsets.UTF_8));
+          rulesOut++;
+        }
+        out.write('\n');
+        out.flush();
+      }
+    }
+    out.flush();
+  }
+
+  private static int lastIndexOf(byte[] bytes, int length, byte b) {
+    for (int i = length - 1; i >= 0; i--)
+      if (bytes[i] == b)
+        return i;
+    return -1;
+  }
+
+  private void write(FilteredChunk chunk, OutputStream out) throws IOException {
+    chunk.rules.writeTo(out);
+    rulesIn += chunk.rulesIn;
+    rulesOut += chunk.rulesOut;
+    cached += chunk.cached;
+  }
+
+  /* The kept rules of a chunk of grammar, and its statistics */
+  private static class FilteredChunk {
+    final ByteArrayOutputStream rules = new ByteArrayOutputStream();
+    int rulesIn = 0;
+    int rulesOut = 0;
+    int cached = 0;
+  }
+
+  /**
+   * Filters the lines in bytes[0, end), which ends with a complete line. Consecutive rules with
+   * the same source side are only checked once, like in {@link #inTestSet(String)}.
+   */
+  private FilteredChunk filterChunk(byte[] bytes, int end) {
+    final FilteredChunk chunk = new FilteredChunk();
+    final byte[] delimiter = DELIM.getBytes(StandardCharsets.US_ASCII);
+    final int[] fields = new int[4];
+
+    int lastFrom = -1, lastTo = -1;
+    boolean lastAccepted = false;
+
+    for (int start = 0; start < end;) {
+      int newline = start;
+      while (newline < end && bytes[newline] != '\n')
+        newline++;
+      int next = newline + 1;
+      // strip the carriage return of CRLF line ends, as BufferedReader.readLine() does
+      if (newline > start && bytes[newline - 1] == '\r')
+        newline--;
+
+      chunk.rulesIn++;
+
+      /*
+       * Find the start of the first four fields, as Pattern.split() does: delimiters do not
+       * overlap, and trailing empty fields are not counted
+       */
+      int numFields = 1;
+      int lastNonEmpty = 0;
+      int fieldStart = start;
+      fields[0] = start;
+      for (int i = start; i + delimiter.length <= newline;) {
+        if (matches(bytes, i, delimiter)) {
+          if (i > fieldStart)
+            lastNonEmpty = numFields;
+          i += delimiter.length;
+          fieldStart = i;
+          if (numFields < fields.length)
+            fields[numFields] = i;
+          numFields++;
+        } else {
+          i++;
+        }
+      }
+      if (newline > fieldStart)
+        lastNonEmpty = numFields;
+
+      if (lastNonEmpty >= 4) {
+        // the source is the second field for thrax grammars, first field for phrasal ones
+        int field = (bytes[start] == '[') ? 1 : 0;
+        int from = fields[field];
+        int to = fields[field + 1] - delimiter.length;
+        while (from < to && (bytes[from] & 0xff) <= ' ')
+          from++;
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ')
+          to--;
+
+        boolean accepted;
+        if (lastFrom >= 0 && rangeEquals(bytes, lastFrom, lastTo, from, to)) {
+          accepted = lastAccepted;
+          chunk.cached++;
+        } else {
+          accepted = filter.permits(bytes, from, to);
+          lastFrom = from;
+          lastTo = to;
+          lastAccepted = accepted;
+        }
+
+        if (accepted) {
+          chunk.rules.write(bytes, start, newline - start);
+          chunk.rules.write('\n');
+          chunk.rulesOut++;
+        }
+      }
+      start = next;
+    }
+    return chunk;
+  }
+
+  private static boolean matches(byte[] bytes, int i, byte[] pattern) {
+    for (int k = 0; k < pattern.length; k++)
+      if (bytes[i + k] != pattern[k])
+        return false;
+    return true;
+  }
+
+  private static boolean rangeEquals(byte[] bytes, int from1, int to1, int from2, int to2) {
+    if (to1 - from1 != to2 - from2)
+      return false;
+    for (int i = 0; i < to1 - from1; i++)
+      if (bytes[from1 + i] != bytes[from2 + i])
+        return false;
+    return true;
+  }
+
   /**
    * Determines whether a rule is an abstract rule. An abstract rule is one that has no terminals on
    * its source side.
@@ -152,13 +420,17 @@ public class TestSetFilter {
 
     /* Returns true if the filter permits the specified source side */
     boolean permits(String sourceSide);
+
+    /* Returns true if the filter permits the source side in the UTF-8 bytes line[from, to) */
+    boolean permits(byte[] line, int from, int to);
   }
 
   private class FastFilter implements Filter {
-    private Set<String> ngrams = null;
+    /* The fingerprints of the test set n-grams */
+    private final LongIntHashMap ngrams;
 
     public FastFilter() {
-      ngrams = new HashSet<>();
+      ngrams = new LongIntHashMap();
     }
 
     @Override
@@ -166,31 +438,107 @@ public class TestSetFilter {
       for (String chunk : source.split(NT_REGEX)) {
         chunk = chunk.trim();
         /* Important: you need to make sure the string isn't empty. */
-        if (!chunk.equals("") && !ngrams.contains(chunk))
+        if (!chunk.equals("") && !ngrams.containsKey(fingerprint(chunk.split("\\s+"))))
           return false;
       }
       return true;
     }
 
+    /**
+     * Scans the words of the source side, splitting at nonterminals. Words that contain a bracket
+     * without being a nonterminal are left to the regular expressions of {@link #permits(String)}.
+     */
+    @Override
+    public boolean permits(byte[] line, int from, int to) {
+      long key = 0;
+      int order = 0;
+      int i = from;
+      while (i < to) {
+        while (i < to && isSpace(line[i]))
+          i++;
+        if (i == to)
+          break;
+        int start = i;
+        boolean bracket = false;
+        while (i < to && !isSpace(line[i])) {
+          bracket |= line[i] == '[';
+          i++;
+        }
+
+        if (isNonterminal(line, start, i)) {
+          if (order > 0 && !ngrams.containsKey(key))
+            return false;
+          key = 0;
+          order = 0;
+        } else if (bracket) {
+          return permits(new String(line, from, to - from, StandardCharsets.UTF_8));
+        } else {
+          key = extend(key, wordCode(line, start, i));
+          /* Longer n-grams were never added */
+          if (++order > RULE_LENGTH)
+            return false;
+        }
+      }
+      return order == 0 || ngrams.containsKey(key);
+    }
+
     @Override
     public void addSentence(String sentence) {
       String[] tokens = sentence.trim().split("\\s+");
+      long[] codes = new long[tokens.length];
+      for (int i = 0; i < tokens.length; i++)
+        codes[i] = wordCode(tokens[i]);
       int maxOrder = RULE_LENGTH < tokens.length ? RULE_LENGTH : tokens.length;
-      for (int order = 1; order <= maxOrder; order++) {
-        for (int start = 0; start < tokens.length - order + 1; start++)
-          ngrams.add(createNGram(tokens, start, order));
+      for (int start = 0; start < tokens.length; start++) {
+        long key = 0;
+        for (int order = 1; order <= maxOrder && start + order <= tokens.length; order++) {
+          key = extend(key, codes[start + order - 1]);
+          ngrams.put(key, 1);
+        }
       }
     }
 
-    private String createNGram(String[] tokens, int start, int order) {
-      if (order < 1 || start + order > tokens.length) {
-        return "";
-      }
-      String result = tokens[start];
-      for (int i = 1; i < order; i++)
-        result += " " + tokens[start + i];
-      return result;
+    private long fingerprint(String[] tokens) {
+      long key = 0;
+      for (String token : tokens)
+        key = extend(key, wordCode(token));
+      return key;
+    }
+  }
+
+  /* A word as a whole nonterminal such as [X,1], which NT_REGEX would match */
+  private static boolean isNonterminal(byte[] line, int from, int to) {
+    if (to - from < 3 || line[from] != '[' || line[to - 1] != ']')
+      return false;
+    for (int i = from + 1; i < to - 1; i++)
+      if (line[i] == ']')
+        return false;
+    return true;
+  }
+
+  /* The characters matched by \s */
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+  }
+
+  private static long wordCode(String word) {
+    byte[] utf8 = word.getBytes(StandardCharsets.UTF_8);
+    return wordCode(utf8, 0, utf8.length);
+  }
+
+  /* FNV-1a over the UTF-8 bytes of a word */
+  private static long wordCode(byte[] bytes, int from, int to) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = from; i < to; i++) {
+      h ^= bytes[i] & 0xff;
+      h *= 0x100000001b3L;
     }
+    return mix(h);
+  }
+
+  /* The fingerprint of an n-gram extended by one word; that of a unigram is extend(0, word) */
+  private static long extend(long key, long word) {
+    return mix(key * 0x9e3779b97f4a7c15L + word + 1);
   }
 
   private class LooseFilter implements Filter {
@@ -216,6 +564,11 @@ public class TestSetFilter {
       return isAbstract(source);
     }
 
+    @Override
+    public boolean permits(byte[] line, int from, int to) {
+      return permits(new String(line, from, to - from, StandardCharsets.UTF_8));
+    }
+
     protected Pattern getPattern(String source) {
       String pattern = source;
       pattern = pattern.replaceAll(String.format("\\s*%s\\s*", NT_REGEX), ".+");
@@ -266,6 +619,11 @@ public class TestSetFilter {
       return false;
     }
 
+    @Override
+    public boolean permits(byte[] line, int from, int to) {
+      return permits(new String(line, from, to - from, StandardCharsets.UTF_8));
+    }
+
     protected Pattern getPattern(String source) {
       String pattern = Pattern.quote(source);
       pattern = pattern.replaceAll(NT_REGEX, "\\\\E.+\\\\Q");
@@ -314,10 +672,12 @@ public class TestSetFilter {
       System.err.println("    -e    exact mode (slower)");
       System.err.println("    -l    loose mode");
       System.err.println("    -n    max n-gram to compare to (default 12)");
+      System.err.println("    -t    number of filtering threads (default: number of processors; ignored with -p)");
       return;
     }
 
     String grammarFile = null;
+    int threads = Runtime.getRuntime().availableProcessors();
 
     TestSetFilter filter = new TestSetFilter();
 
@@ -345,45 +705,41 @@ public class TestSetFilter {
         filter.setRuleLength(Integer.parseInt(argv[i + 1]));
         i++;
         continue;
+      case "-t":
+        threads = Integer.parseInt(argv[++i]);
+        continue;
       }
 
       filter.loadTestSentences(argv[i]);
     }
 
-    int rulesIn = 0;
-    int rulesOut = 0;
     if (filter.verbose) {
       System.err.println(String.format("Filtering rules with the %s filter...", filter.getFilterName()));
 //      System.err.println("Using at max " + filter.RULE_LENGTH + " n-grams...");
     }
-    try(LineReader reader = (grammarFile != null)
-        ? new LineReader(grammarFile, filter.verbose)
-        : new LineReader(System.in)) {
-      for (String rule: reader) {
-        rulesIn++;
-
-        String[] parts = P_DELIM.split(rule);
-        if (parts.length >= 4) {
-          // the source is the second field for thrax grammars, first field for phrasal ones
-          String source = rule.startsWith("[") ? parts[1].trim() : parts[0].trim();
-          if (filter.inTestSet(source)) {
-            System.out.println(rule);
-            if (filter.parallel)
-              System.out.flush();
-            rulesOut++;
-          } else if (filter.parallel) {
-            System.out.println("");
-            System.out.flush();
-          }
-        }
-      }
-      if (filter.verbose) {
-        System.err.println("[INFO] Total rules read: " + rulesIn);
-        System.err.println("[INFO] Rules kept: " + rulesOut);
-        System.err.println("[INFO] Rules dropped: " + (rulesIn - rulesOut));
-        System.err.println("[INFO] cached queries: " + filter.cached);
-      }
-
+    long startTime = System.currentTimeMillis();
+    try (InputStream in = openGrammar(grammarFile)) {
+      filter.filterGrammar(in, System.out, threads);
+    }
+    if (filter.verbose) {
+      double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+      System.err.println("[INFO] Total rules read: " + filter.rulesIn);
+      System.err.println("[INFO] Rules kept: " + filter.rulesOut);
+      System.err.println("[INFO] Rules dropped: " + (filter.rulesIn - filter.rulesOut));
+      System.err.println("[INFO] cached queries: " + filter.cached);
+      LOG.info(String.format("Filtered %.1f MB in %.1f seconds (%.1f MB/s) with %d threads",
+          filter.bytesIn / 1e6, seconds, filter.bytesIn / 1e6 / seconds, threads));
     }
   }
+
+  /* Opens a grammar file, which may be compressed, or STDIN if the file is null */
+  private static InputStream openGrammar(String grammarFile) throws IOException {
+    if (grammarFile == null)
+      return new FileInputStream(FileDescriptor.in);
+    InputStream in = new BufferedInputStream(new FileInputStream(grammarFile), 1 << 16);
+    in.mark(2);
+    boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+    in.reset();
+    return gzipped ? new GZIPInputStream(in, 1 << 16) : in;
+  }
 }
@@ -125,4 +125,20 @@ public class Bits {
     return (int) l;
 
   }
+
+  /**
+   * The finalizer of MurmurHash3, which spreads the bits of a key over the whole long. It is a
+   * bijection, so distinct keys keep distinct hash values.
+   * 
+   * @param h the key to mix
+   * @return the mixed key
+   */
+  public static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
 }
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from primitive <code>long</code> keys to primitive <code>int</code>
+ * values. It avoids the boxing and per-entry allocation of <code>HashMap&lt;Long, Integer&gt;</code>
+ * and is meant for hot loops that count hashed n-grams or similar fingerprints.
+ *
+ * Keys are expected to be well-mixed already (e.g., the output of a 64-bit hash function); the map
+ * uses linear probing over a power-of-two table. The key 0 is stored out of band. Entries cannot be
+ * removed individually, only all at once with {@link #clear()}.
+ *
+ * This class is not thread-safe for writers. Concurrent reads of a map that is no longer modified
+ * are safe.
+ */
+public class LongIntHashMap {
+
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private int[] values;
+  private int mask;
+  private int size;
+  private int resizeAt;
+
+  private boolean hasZeroKey = false;
+  private int zeroValue;
+
+  public LongIntHashMap() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize the number of entries the map should hold without resizing
+   */
+  public LongIntHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    resizeAt = (int) (capacity * LOAD_FACTOR);
+  }
+
+  private int slot(long key) {
+    return (int) (key ^ (key >>> 32)) & mask;
+  }
+
+  /**
+   * @param key the key to look up
+   * @param defaultValue returned if the key is not present
+   * @return the value stored under key, or defaultValue
+   */
+  public int get(long key, int defaultValue) {
+    if (key == 0)
+      return hasZeroKey ? zeroValue : defaultValue;
+    int i = slot(key);
+    while (keys[i] != 0) {
+      if (keys[i] == key)
+        return values[i];
+      i = (i + 1) & mask;
+    }
+    return defaultValue;
+  }
+
+  public boolean containsKey(long key) {
+    if (key == 0)
+      return hasZeroKey;
+    int i = slot(key);
+    while (keys[i] != 0) {
+      if (keys[i] == key)
+        return true;
+      i = (i + 1) & mask;
+    }
+    return false;
+  }
+
+  public void put(long key, int value) {
+    if (key == 0) {
+      if (!hasZeroKey)
+        size++;
+      hasZeroKey = true;
+      zeroValue = value;
+      return;
+    }
+    int i = findOrInsert(key);
+    values[i] = value;
+  }
+
+  /**
+   * Adds delta to the value stored under key (absent keys count as 0).
+   *
+   * @param key the key to increment
+   * @param delta the amount to add
+   * @return the new value
+   */
+  public int addTo(long key, int delta) {
+    if (key == 0) {
+      if (!hasZeroKey) {
+        size++;
+        hasZeroKey = true;
+        zeroValue = 0;
+      }
+      return zeroValue += delta;
+    }
+    int i = findOrInsert(key);
+    return values[i] += delta;
+  }
+
+  /**
+   * Stores value under key if the key is absent or its current value is smaller.
+   *
+   * @param key the key to update
+   * @param value the candidate maximum
+   */
+  public void putMax(long key, int value) {
+    if (key == 0) {
+      if (!hasZeroKey) {
+        size++;
+        hasZeroKey = true;
+        zeroValue = value;
+      } else if (value > zeroValue) {
+        zeroValue = value;
+      }
+      return;
+    }
+    int before = size;
+    int i = findOrInsert(key);
+    if (size != before || value > values[i])
+      values[i] = value;
+  }
+
+  /**
+   * Merges another map into this one, keeping the maximum value for each key. This is the
+   * operation used to build clipping counts from multiple references.
+   *
+   * @param other the map to merge in
+   */
+  public void putAllMax(LongIntHashMap other) {
+    if (other.hasZeroKey)
+      putMax(0, other.zeroValue);
+    for (int i = 0; i < other.keys.length; i++)
+      if (other.keys[i] != 0)
+        putMax(other.keys[i], other.values[i]);
+  }
+
+  private int findOrInsert(long key) {
+    int i = slot(key);
+    while (keys[i] != 0) {
+      if (keys[i] == key)
+        return i;
+      i = (i + 1) & mask;
+    }
+    if (size >= resizeAt) {
+      rehash(keys.length << 1);
+      return findOrInsert(key);
+    }
+    keys[i] = key;
+    values[i] = 0;
+    size++;
+    return i;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(capacity);
+    for (int j = 0; j < oldKeys.length; j++) {
+      long key = oldKeys[j];
+      if (key != 0) {
+        int i = slot(key);
+        while (keys[i] != 0)
+          i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Removes all entries, keeping the allocated table.
+   */
+  public void clear() {
+    if (size == 0)
+      return;
+    Arrays.fill(keys, 0L);
+    hasZeroKey = false;
+    size = 0;
+  }
+}
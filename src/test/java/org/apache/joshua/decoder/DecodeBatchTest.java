@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.apache.joshua.decoder.cky.TestUtil.loadStringsFromFile;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that decoding sentences as a batch gives the same translations as decoding them one at a
+ * time.
+ */
+public class DecodeBatchTest {
+
+  private static final String HIERO_CONFIG = "src/test/resources/bn-en/hiero/joshua-berkeleylm.config";
+  private static final String HIERO_INPUT = "src/test/resources/bn-en/hiero/input.bn";
+  private static final String PHRASE_CONFIG = "src/test/resources/phrase_decoder/config";
+  private static final List<String> PHRASE_INPUT = Arrays.asList(
+      "una estrategia republicana para obstaculizar la reelección de Obama",
+      "la estrategia de Obama",
+      "",
+      "una palabrota republicana");
+
+  @Test
+  public void givenBnEnInput_whenDecodingBatch_thenTranslationsAreUnchanged() throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(HIERO_CONFIG);
+    compare(config, loadStringsFromFile(HIERO_INPUT).subList(0, 20));
+  }
+
+  @Test
+  public void givenPhraseInput_whenDecodingBatch_thenTranslationsAreUnchanged() throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(PHRASE_CONFIG);
+    config.features.removeIf(feature -> feature.startsWith("StateMinimizingLanguageModel"));
+    compare(config, PHRASE_INPUT);
+  }
+
+  private void compare(JoshuaConfiguration config, List<String> input) {
+    config.num_parallel_decoders = 2;
+    Decoder decoder = new Decoder(config, "");
+    try {
+      List<Sentence> sentences = sentences(input, config);
+      List<Translation> batch = decoder.decodeBatch(sentences);
+
+      assertEquals(batch.size(), input.size());
+      assertNotNull(sentences.get(0).getOOVGrammar());
+      List<Sentence> single = sentences(input, config);
+      for (int i = 0; i < input.size(); i++) {
+        assertEquals(batch.get(i).id(), i);
+        assertEquals(batch.get(i).toString(), decoder.decode(single.get(i)).toString());
+      }
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+
+  private static List<Sentence> sentences(List<String> input, JoshuaConfiguration config) {
+    List<Sentence> sentences = new ArrayList<>(input.size());
+    for (int i = 0; i < input.size(); i++)
+      sentences.add(new Sentence(input.get(i), i, config));
+    return sentences;
+  }
+}
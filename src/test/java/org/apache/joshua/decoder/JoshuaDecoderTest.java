@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import org.apache.joshua.server.ReadinessHandler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class JoshuaDecoderTest {
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  private static int status(int port) throws IOException {
+    URL url = new URL("http", "localhost", port, ReadinessHandler.READY_PATH);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  @Test
+  public void givenLoadingFails_whenServing_thenServerIsStopped() throws IOException {
+    ReadinessHandler readiness = new ReadinessHandler();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", readiness);
+    server.start();
+    int port = server.getAddress().getPort();
+    assertEquals(status(port), 503);
+
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.features.add("NoSuchFeature");
+    try {
+      JoshuaDecoder.loadDecoder(config, "", server);
+      fail("Loading a decoder with an unknown feature should fail");
+    } catch (RuntimeException e) {
+      // expected
+    }
+
+    assertFalse(readiness.isReady());
+    try {
+      status(port);
+      fail("The server should have been stopped");
+    } catch (ConnectException e) {
+      // expected
+    }
+  }
+}
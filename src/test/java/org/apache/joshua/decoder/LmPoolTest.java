@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static org.apache.joshua.util.Constants.LONG_SIZE_IN_BYTES;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LmPoolTest {
+
+  private LmPool pool;
+
+  @BeforeMethod
+  public void setUp() {
+    ByteBuffer ngramBuffer = ByteBuffer.allocateDirect(4 * LONG_SIZE_IN_BYTES).order(LITTLE_ENDIAN);
+    // No native pool behind it
+    pool = new LmPool(0, null, ngramBuffer) {
+      @Override
+      public synchronized void close() {
+      }
+    };
+  }
+
+  @Test
+  public void givenRules_whenWritingBatch_thenResultSlotsPrecedeRules() {
+    List<long[]> rules = Arrays.asList(new long[] { 5, -1 }, new long[] { 7 });
+
+    LongBuffer batch = pool.writeRulesToBatchBuffer(rules).asLongBuffer();
+
+    long[] expected = { 0, 0, 2, 5, -1, 1, 7 };
+    long[] actual = new long[expected.length];
+    batch.get(actual);
+    assertEquals(actual, expected);
+    assertEquals(pool.writeRulesToBatchBuffer(rules).order(), LITTLE_ENDIAN);
+  }
+
+  @Test
+  public void givenResultsInBatch_whenReading_thenResultsAreReturned() {
+    List<long[]> rules = Arrays.asList(new long[] { 5 }, new long[] { 7 });
+    ByteBuffer batch = pool.writeRulesToBatchBuffer(rules);
+    batch.putLong(0, 42L);
+    batch.putLong(LONG_SIZE_IN_BYTES, 43L);
+
+    long[] results = new long[2];
+    pool.readResultsFromBatchBuffer(results);
+
+    assertEquals(results, new long[] { 42L, 43L });
+  }
+
+  @Test
+  public void givenPrefetchedRules_whenFinding_thenRulesAreFoundInOrder() {
+    List<long[]> rules = Arrays.asList(new long[] { 1 }, new long[] { 2 }, new long[] { 1 });
+    pool.setPrefetched(rules, new long[] { 10, 20, 30 });
+
+    assertEquals(pool.findPrefetched(new long[] { 2 }), 1);
+    assertEquals(pool.findPrefetched(new long[] { 1 }), 2);
+    assertEquals(pool.getPrefetchedResult(2), 30);
+    assertEquals(pool.findPrefetched(new long[] { 2 }), -1);
+
+    pool.clearPrefetched();
+    assertEquals(pool.findPrefetched(new long[] { 1 }), -1);
+  }
+}
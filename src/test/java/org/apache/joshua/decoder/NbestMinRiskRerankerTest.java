@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class NbestMinRiskRerankerTest {
+
+  private static final List<String> HYPS = Arrays.asList(
+      "the cat sat on the mat",
+      "a cat sat on the mat",
+      "the cat sat on a mat",
+      "the dog sat on the mat",
+      "mat the on sat cat the");
+
+  /* The MBR hypothesis according to the string-based implementation */
+  private static int stringBasedMBR(List<String> hyps, List<Double> logProbs, double scale) {
+    List<Double> probs = new ArrayList<>(logProbs);
+    NbestMinRiskReranker.computeNormalizedProbs(probs, scale);
+    int best = 0;
+    double bestGain = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < hyps.size(); i++) {
+      double gain = NbestMinRiskReranker.computeExpectedGain(hyps.get(i), hyps, probs);
+      if (gain > bestGain) {
+        bestGain = gain;
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  @Test
+  public void givenNbest_whenReranking_thenSameChoiceAsStringBleu() {
+    // the Viterbi hypothesis is an outlier, the consensus is the first one
+    List<Double> scores = Arrays.asList(-2.0, -2.1, -2.2, -2.3, -1.5);
+    NbestMinRiskReranker reranker = new NbestMinRiskReranker(false, 1.0);
+
+    int best = reranker.rerank(HYPS, scores);
+
+    assertEquals(best, stringBasedMBR(HYPS, scores, 1.0));
+    assertEquals(best, 0);
+  }
+
+  @Test
+  public void givenLongNbest_whenReranking_thenSameChoiceAsStringBleu() {
+    // enough hypotheses for the gains to be computed in parallel
+    Random random = new Random(17);
+    String[] words = { "a", "b", "c", "d", "e", "f" };
+    List<String> hyps = new ArrayList<>();
+    List<Double> scores = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      StringBuilder hyp = new StringBuilder(words[random.nextInt(words.length)]);
+      for (int j = random.nextInt(8); j >= 0; j--)
+        hyp.append(' ').append(words[random.nextInt(words.length)]);
+      hyps.add(hyp.toString());
+      scores.add(-random.nextDouble() * 5);
+    }
+
+    assertEquals(new NbestMinRiskReranker(false, 0.5).rerank(hyps, scores),
+        stringBasedMBR(hyps, scores, 0.5));
+  }
+
+  @Test
+  public void givenNbest_whenRerankingWithLinearGain_thenConsensusWins() {
+    List<Double> scores = Arrays.asList(-2.0, -2.1, -2.2, -2.3, -1.5);
+    NbestMinRiskReranker reranker = new NbestMinRiskReranker(false, 1.0, true);
+
+    assertEquals(reranker.rerank(HYPS, scores), 0);
+  }
+
+  @Test
+  public void givenNbestLines_whenProcessingSentence_thenReturnsHypothesis() {
+    List<String> nbest = new ArrayList<>();
+    List<Double> scores = Arrays.asList(-2.0, -2.1, -2.2, -2.3, -1.5);
+    for (int i = 0; i < HYPS.size(); i++)
+      nbest.add("3 ||| " + HYPS.get(i) + " ||| tm_pt_0=1 ||| " + scores.get(i));
+
+    assertEquals(new NbestMinRiskReranker(false, 1.0).processOneSent(nbest, 3), HYPS.get(0));
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.io.CharStreams;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+public class SearchBudgetTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/config";
+  private static final String LM = "src/test/resources/phrase_decoder/lm.1.gz";
+  private static final String INPUT = "una estrategia republicana para obstaculizar la reelección de Obama";
+
+  @Test
+  public void givenNoDeadline_whenSearching_thenPopLimitIsUnchanged() {
+    SearchBudget budget = new SearchBudget(100, System.currentTimeMillis(), 0);
+    budget.setSteps(3);
+    for (int step = 0; step < 3; step++) {
+      assertEquals(budget.nextPopLimit(), 100);
+      budget.popped(100);
+    }
+    assertEquals(budget.getSteps(), 3);
+    assertEquals(budget.getPops(), 300);
+    assertEquals(budget.getReducedSteps(), 0);
+    assertFalse(budget.isOverdue());
+  }
+
+  @Test
+  public void givenSlowSearch_whenSearching_thenPopLimitIsLowered() {
+    long now = System.currentTimeMillis();
+    // 1000 pops took 10 seconds, and there is one second left for the remaining steps
+    SearchBudget budget = new SearchBudget(100, now - 10000, now + 1000);
+    budget.setSteps(11);
+    budget.nextPopLimit();
+    budget.popped(1000);
+
+    int limit = budget.nextPopLimit();
+    assertTrue(limit >= 1 && limit <= 10, "limit " + limit);
+    assertEquals(budget.getReducedSteps(), 1);
+    assertEquals(budget.getLowestPopLimit(), limit);
+    assertFalse(budget.isOverdue());
+  }
+
+  @Test
+  public void givenPassedDeadline_whenSearching_thenPopLimitIsOne() {
+    long now = System.currentTimeMillis();
+    SearchBudget budget = new SearchBudget(0, now - 1000, now - 1);
+    assertEquals(budget.nextPopLimit(), 1);
+    assertTrue(budget.isOverdue());
+  }
+
+  @Test
+  public void givenPassedDeadline_whenPhraseDecoding_thenTranslationIsComplete() throws Exception {
+    File lm = File.createTempFile("phrase-lm", ".gz");
+    try {
+      // BerkeleyLM needs the -inf log probabilities spelled out
+      try (Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(LM)),
+          StandardCharsets.UTF_8);
+          Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(lm)),
+              StandardCharsets.UTF_8)) {
+        out.write(CharStreams.toString(in).replace("-inf", "-99"));
+      }
+
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.readConfigFile(CONFIG);
+      config.features.removeIf(feature -> feature.startsWith("StateMinimizingLanguageModel"));
+      config.features.add("LanguageModel -lm_type berkeleylm -lm_order 3 -lm_file " + lm);
+
+      Decoder decoder = new Decoder(config, "");
+      try {
+        Translation unlimited = decoder.decode(new Sentence(INPUT, 0, config));
+        assertFalse(unlimited.getSearchBudget().isOverdue());
+        assertEquals(unlimited.getSearchBudget().getReducedSteps(), 0);
+
+        Sentence sentence = new Sentence(INPUT, 1, config);
+        sentence.setDeadline(1);
+        Translation greedy = decoder.decode(sentence);
+        SearchBudget budget = greedy.getSearchBudget();
+        assertTrue(budget.isOverdue());
+        assertEquals(budget.getLowestPopLimit(), 1);
+        assertTrue(budget.getPops() < unlimited.getSearchBudget().getPops());
+        // Every source word is still translated
+        assertFalse(greedy.toString().trim().isEmpty());
+      } finally {
+        decoder.cleanUp();
+      }
+    } finally {
+      lm.delete();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the decoder's translation cache with the toy grammar of the structured translation tests.
+ */
+public class TranslationCacheTest {
+
+  private static final String INPUT = "A K B1 U Z1 Z2 B2 C";
+  private static final String EXPECTED_TRANSLATION = "a b n1 u z c1 k1 k2 k3 n1 n2 n3 c2";
+
+  private JoshuaConfiguration joshuaConfig = null;
+  private Decoder decoder = null;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.search_algorithm = "cky";
+    joshuaConfig.mark_oovs = false;
+    joshuaConfig.pop_limit = 100;
+    joshuaConfig.use_unique_nbest = false;
+    joshuaConfig.include_align_index = false;
+    joshuaConfig.topN = 0;
+    joshuaConfig.tms.add("thrax -owner pt -maxspan 20 -path src/test/resources/wa_grammar");
+    joshuaConfig.tms.add("thrax -owner glue -maxspan -1 -path src/test/resources/grammar.glue");
+    joshuaConfig.goal_symbol = "[GOAL]";
+    joshuaConfig.default_non_terminal = "[X]";
+    joshuaConfig.features.add("OOVPenalty");
+    joshuaConfig.weights.add("tm_pt_0 1");
+    joshuaConfig.weights.add("tm_pt_1 1");
+    joshuaConfig.weights.add("tm_pt_2 1");
+    joshuaConfig.weights.add("tm_pt_3 1");
+    joshuaConfig.weights.add("tm_pt_4 1");
+    joshuaConfig.weights.add("tm_pt_5 1");
+    joshuaConfig.weights.add("tm_glue_0 1");
+    joshuaConfig.weights.add("OOVPenalty 1");
+    joshuaConfig.translation_cache_size = 10;
+    decoder = new Decoder(joshuaConfig, "");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    decoder.cleanUp();
+    decoder = null;
+  }
+
+  private Translation decode(String input, int id) {
+    return decoder.decode(new Sentence(input, id, joshuaConfig));
+  }
+
+  @Test
+  public void givenRepeatedInput_whenStructuredOutput_thenCachedWithNewId() {
+    joshuaConfig.use_structured_output = true;
+
+    final Translation first = decode(INPUT, 0);
+    final Translation second = decode(INPUT, 1);
+
+    assertEquals(second.toString(), EXPECTED_TRANSLATION);
+    assertEquals(second.id(), 1);
+    assertEquals(second.getStructuredTranslations().get(0).getSentenceId(), 1);
+    assertEquals(second.getStructuredTranslations().get(0).getTranslationScore(),
+        first.getStructuredTranslations().get(0).getTranslationScore());
+    assertEquals(decoder.getTranslationCache().getStats().hitCount(), 1);
+    assertEquals(decoder.getTranslationCache().size(), 1);
+  }
+
+  @Test
+  public void givenRepeatedInput_whenOutputContainsId_thenOnlySameIdIsCached() {
+    joshuaConfig.use_structured_output = false;
+    joshuaConfig.outputFormat = "%i ||| %s";
+
+    decode(INPUT, 0);
+    final Translation other = decode(INPUT, 1);
+    final Translation retry = decode(INPUT, 1);
+
+    assertEquals(other.toString().trim(), "1 ||| " + EXPECTED_TRANSLATION);
+    assertEquals(retry.toString(), other.toString());
+    assertEquals(decoder.getTranslationCache().getStats().hitCount(), 1);
+  }
+
+  @Test
+  public void givenCachedInput_whenWeightsOrOutputChange_thenDecodedAgain() {
+    joshuaConfig.use_structured_output = true;
+
+    final float score = decode(INPUT, 0).getStructuredTranslations().get(0).getTranslationScore();
+    Decoder.updateWeights(Collections.singletonMap("tm_glue_0", 3.0f));
+    final float newScore = decode(INPUT, 0).getStructuredTranslations().get(0).getTranslationScore();
+    joshuaConfig.topN = 1;
+    decode(INPUT, 0);
+
+    assertEquals(newScore, score + 2.0f, 0.00001);
+    assertEquals(decoder.getTranslationCache().getStats().hitCount(), 0);
+    assertEquals(decoder.getTranslationCache().getStats().missCount(), 3);
+  }
+
+  @Test
+  public void givenCachedInput_whenSearchOptionsChange_thenDecodedAgain() {
+    joshuaConfig.use_structured_output = true;
+
+    decode(INPUT, 0);
+    joshuaConfig.num_translation_options = 10;
+    decode(INPUT, 0);
+    joshuaConfig.filter_grammar = true;
+    final Translation filtered = decode(INPUT, 0);
+
+    assertEquals(filtered.toString(), EXPECTED_TRANSLATION);
+    assertEquals(decoder.getTranslationCache().getStats().hitCount(), 0);
+    assertEquals(decoder.getTranslationCache().getStats().missCount(), 3);
+  }
+
+  @Test
+  public void givenNoCacheSize_thenCacheDisabled() throws Exception {
+    tearDown();
+    joshuaConfig.translation_cache_size = 0;
+    decoder = new Decoder(joshuaConfig, "");
+
+    assertNull(decoder.getTranslationCache());
+    assertNotNull(decode(INPUT, 0));
+  }
+}
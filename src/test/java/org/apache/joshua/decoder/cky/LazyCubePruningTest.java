@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.cky;
+
+import static org.apache.joshua.decoder.cky.TestUtil.decodeList;
+import static org.apache.joshua.decoder.cky.TestUtil.loadStringsFromFile;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.testng.annotations.Test;
+
+/**
+ * Compares lazy cube pruning with exact scoring at the same pop limit, by the model scores of the
+ * 1-best translations.
+ */
+public class LazyCubePruningTest {
+
+  private static final String CONFIG = "src/test/resources/bn-en/hiero/joshua-berkeleylm.config";
+  private static final String INPUT = "src/test/resources/bn-en/hiero/input.bn";
+  private static final int SENTENCES = 20;
+
+  @Test
+  public void givenBnEnInput_whenDecodingLazily_thenModelScoresAreClose() throws Exception {
+    compare(true);
+  }
+
+  @Test
+  public void givenBnEnInput_whenDecodingLazilyWithoutDotChart_thenModelScoresAreClose()
+      throws Exception {
+    compare(false);
+  }
+
+  private void compare(boolean useDotChart) throws Exception {
+    List<String> input = loadStringsFromFile(INPUT).subList(0, SENTENCES);
+    float[] exact = scores(decode(input, useDotChart, false));
+    float[] lazy = scores(decode(input, useDotChart, true));
+
+    float exactTotal = 0, lazyTotal = 0;
+    for (int i = 0; i < SENTENCES; i++) {
+      exactTotal += exact[i];
+      lazyTotal += lazy[i];
+    }
+    // Lazy scoring may make search errors, but few and small ones
+    assertTrue(Math.abs(exactTotal - lazyTotal) / SENTENCES < 0.5f,
+        String.format("exact %.3f lazy %.3f", exactTotal, lazyTotal));
+  }
+
+  private List<String> decode(List<String> input, boolean useDotChart, boolean lazy)
+      throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(CONFIG);
+    config.use_dot_chart = useDotChart;
+    config.lazy_cube_pruning = lazy;
+    config.topN = 0;
+    config.outputFormat = "%c";
+    Decoder decoder = new Decoder(config, "");
+    try {
+      List<String> output = decodeList(input, decoder, config);
+      assertEquals(output.size(), input.size());
+      return output;
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+
+  private static float[] scores(List<String> output) {
+    float[] scores = new float[output.size()];
+    for (int i = 0; i < scores.length; i++)
+      scores[i] = Float.parseFloat(output.get(i).trim());
+    return scores;
+  }
+}
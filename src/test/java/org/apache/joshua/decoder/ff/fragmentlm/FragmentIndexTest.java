@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.fragmentlm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class FragmentIndexTest {
+
+  private static final String[] FRAGMENTS = {
+      "(S NP (VP (VBD \"said\") SBAR) (. \".\"))",
+      "(S NP VP (. \".\"))",
+      "(S NP VP .)",
+      "(S (NP (DT \"the\") NN) VP .)",
+      "(VP (VBD \"said\") SBAR)",
+      "(VP VBD SBAR)",
+      "(VP VBD (SBAR IN S))",
+      "(NP (DT \"the\") (NN \"man\"))",
+      "(NP DT NN)",
+      "(NP DT NN)",
+  };
+
+  private static final String[] TREES = {
+      "(S (NP (DT \"the\") (NN \"man\")) (VP (VBD \"said\") (SBAR (IN \"that\") S)) (. \".\"))",
+      "(S (NP (DT \"the\") (NN \"man\")) (VP (VBD \"said\") SBAR) .)",
+      "(S NP VP)",
+      "(VP (VBD \"said\") (SBAR IN S))",
+      "(NP (DT \"a\") (NN \"man\"))",
+      "(NP DT NN JJ)",
+  };
+
+  @Test
+  public void givenFragments_whenMatching_thenSameAsRecursiveMatch() {
+    List<Tree> fragments = new ArrayList<>();
+    FragmentIndex index = new FragmentIndex();
+    for (String fragment : FRAGMENTS) {
+      Tree tree = Tree.fromString(fragment);
+      assertEquals(index.add(tree, tree.escapedString()), fragments.size());
+      fragments.add(tree);
+    }
+    assertEquals(index.size(), FRAGMENTS.length);
+
+    for (String input : TREES) {
+      for (Tree tree : Tree.fromString(input).subTreeList()) {
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 0; id < fragments.size(); id++)
+          if (rootMatch(fragments.get(id), tree))
+            expected.add(id);
+
+        List<Integer> found = new ArrayList<>();
+        index.match(tree, found::add);
+        Collections.sort(found);
+        assertEquals(found, expected, tree.toString());
+      }
+    }
+  }
+
+  @Test
+  public void givenMatch_whenFiring_thenNameIsEscapedFragment() {
+    FragmentIndex index = new FragmentIndex();
+    Tree fragment = Tree.fromString("(NP DT (NN \"man\"))");
+    int id = index.add(fragment, fragment.escapedString());
+
+    List<Integer> found = new ArrayList<>();
+    index.match(Tree.fromString("(NP (DT \"the\") (NN \"man\"))"), found::add);
+    assertEquals(found, Collections.singletonList(id));
+    assertEquals(index.getName(id), "(NP_DT_(NN_\"man\"))");
+  }
+
+  /* The previous implementation: same depth-one rule at the root, then a recursive match */
+  private static boolean rootMatch(Tree fragment, Tree tree) {
+    if (fragment.getRule() == null ? tree.getRule() != null : !fragment.getRule().equals(tree.getRule()))
+      return false;
+    return match(fragment, tree);
+  }
+
+  private static boolean match(Tree fragment, Tree tree) {
+    if (fragment.getLabel() != tree.getLabel())
+      return false;
+    List<Tree> fkids = fragment.getChildren();
+    if (fkids.size() > 0) {
+      List<Tree> tkids = tree.getChildren();
+      if (fkids.size() != tkids.size())
+        return false;
+      for (int i = 0; i < fkids.size(); i++)
+        if (!match(fkids.get(i), tkids.get(i)))
+          return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.testng.Assert.assertEquals;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CachingLanguageModelTest {
+
+  /* A 3-gram LM whose probabilities depend on the words, and which counts its queries */
+  private static class CountingLM extends DefaultNGramLanguageModel {
+    int queries = 0;
+
+    CountingLM() {
+      super(3);
+    }
+
+    @Override
+    protected float ngramLogProbability_helper(int[] ngram, int order) {
+      queries++;
+      float prob = -1.0f;
+      for (int i = 0; i < ngram.length; i++)
+        prob -= (i + 1) * ngram[i] / 100.0f;
+      return prob;
+    }
+
+    @Override
+    public boolean isOov(int id) {
+      return false;
+    }
+  }
+
+  private CountingLM backend;
+  private CachingLanguageModel cache;
+
+  @BeforeMethod
+  public void setUp() {
+    backend = new CountingLM();
+    cache = new CachingLanguageModel(backend, 1024, false);
+  }
+
+  @Test
+  public void givenRepeatedNgram_thenBackendQueriedOnce() {
+    int[] ngram = { 4, 5, 6 };
+    float prob = cache.ngramLogProbability(ngram, 3);
+    assertEquals(cache.ngramLogProbability(new int[] { 4, 5, 6 }, 3), prob, 0.0f);
+    assertEquals(cache.ngramLogProbability(new int[] { 4, 5 }, 3),
+        backend.ngramLogProbability(new int[] { 4, 5 }, 3), 0.0f);
+    assertEquals(backend.queries, 3);
+  }
+
+  @Test
+  public void givenBatch_thenOnlyMissesQueriedAndResultsInOrder() {
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    int[] ngrams = { 1, 2, 3, 2, 3, 4, 1, 2, 3, 3, 4, 5 };
+    float[] probs = new float[4];
+    cache.ngramLogProbabilities(ngrams, 3, 4, probs);
+
+    assertEquals(backend.queries, 3);
+    for (int i = 0; i < 4; i++) {
+      int[] ngram = { ngrams[3 * i], ngrams[3 * i + 1], ngrams[3 * i + 2] };
+      assertEquals(probs[i], backend.ngramLogProbability(ngram, 3), 0.0f);
+    }
+  }
+
+  @Test
+  public void givenSentenceQueries_thenCachedByStartIndex() {
+    int[] sentence = Vocabulary.addAll("w x y z");
+    float full = cache.sentenceLogProbability(sentence, 3, 1);
+    float skipped = cache.sentenceLogProbability(sentence, 3, 2);
+    assertEquals(full, backend.sentenceLogProbability(sentence, 3, 1), 0.0f);
+    assertEquals(skipped, backend.sentenceLogProbability(sentence, 3, 2), 0.0f);
+
+    backend.queries = 0;
+    cache.sentenceLogProbability(sentence, 3, 1);
+    assertEquals(backend.queries, 0);
+  }
+
+  @Test
+  public void givenQueries_thenStatsCountedWithoutEndingSentence() {
+    cache.beginSentence("first");
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    cache.ngramLogProbabilities(new int[] { 1, 2, 3, 2, 3, 4 }, 3, 2, new float[2]);
+    assertEquals(cache.getHits(), 2);
+    assertEquals(cache.getMisses(), 2);
+    assertEquals(cache.getHitRate(), 0.5);
+  }
+
+  @Test
+  public void givenNewSentence_thenTableOptionallyReset() {
+    cache = new CachingLanguageModel(backend, 1024, true);
+    String first = "first";
+    cache.beginSentence(first);
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    cache.beginSentence(first);
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    assertEquals(backend.queries, 1);
+
+    cache.beginSentence("second");
+    cache.ngramLogProbability(new int[] { 1, 2, 3 }, 3);
+    assertEquals(backend.queries, 2);
+  }
+}
@@ -93,4 +93,23 @@ public class LanguageModelFFTest {
     float cost = ff.estimateFutureCost(null, currentState, null);
     assertEquals(cost, score * WEIGHT, 0.0f);
   }
+
+  @Test
+  public void givenLmCache_whenEstimateFutureCost_thenSameResult() {
+    FeatureVector weights = new FeatureVector();
+    weights.set("lm_1", WEIGHT);
+    String[] args = {"-lm_type", "berkeleylm", "-lm_order", "2", "-lm_file", "./src/test/resources/lm/berkeley/lm"};
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.lm_cache_size = 16;
+    LanguageModelFF cachingFF = new LanguageModelFF(weights, args, config);
+
+    int startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+    int[] left = {startSymbolId, 3};
+    NgramDPState currentState = new NgramDPState(left, new int[left.length]);
+
+    assertThat(cachingFF.getLM(), instanceOf(CachingLanguageModel.class));
+    float cost = ff.estimateFutureCost(null, currentState, null);
+    assertEquals(cachingFF.estimateFutureCost(null, currentState, null), cost, 0.0f);
+    assertEquals(cachingFF.estimateFutureCost(null, currentState, null), cost, 0.0f);
+  }
 }
@@ -105,6 +105,26 @@ public class LMGrammarBerkeleyTest {
     assertEquals(translation, EXPECTED_OUTPUT);
   }
 
+  @Test
+  public void givenLoadingThreads_whenDecoder_thenSameFeaturesAsSequentialLoading() {
+    final String sequential = decodeWithTwoLms(1);
+    decoder.cleanUp();
+    final String parallel = decodeWithTwoLms(2);
+
+    assertEquals(parallel, sequential);
+    assertEquals(parallel, "tm_glue_0=2.000 lm_0=-7.153 lm_1=-7.153\n");
+  }
+
+  private String decodeWithTwoLms(int loadingThreads) {
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.processCommandLineOptions(OPTIONS);
+    joshuaConfig.loading_threads = loadingThreads;
+    joshuaConfig.features.add("LanguageModel -lm_type berkeleylm -lm_order 2 -lm_file " + lmFile);
+    joshuaConfig.features.add("LanguageModel -lm_type berkeleylm -lm_order 2 -lm_file " + lmFileBin);
+    decoder = new Decoder(joshuaConfig, null);
+    return decode(INPUT).toString();
+  }
+
   private Translation decode(String input) {
     final Sentence sentence = new Sentence(input, 0, joshuaConfig);
     return decoder.decode(sentence);
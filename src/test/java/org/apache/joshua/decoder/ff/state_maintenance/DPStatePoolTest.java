@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.state_maintenance;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.io.CharStreams;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+public class DPStatePoolTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/config";
+  private static final String LM = "src/test/resources/phrase_decoder/lm.1.gz";
+  private static final String INPUT = "una estrategia republicana para obstaculizar la reelección de Obama";
+
+  @Test
+  public void givenEqualStates_whenComparing_thenHashesAreEqual() {
+    NgramDPState state = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+    NgramDPState same = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+    NgramDPState swapped = new NgramDPState(new int[] { 5, 6 }, new int[] { 3, 4 });
+    NgramDPState shorter = new NgramDPState(new int[] { 4 }, new int[] { 6 });
+
+    assertTrue(same.equals(state));
+    assertEquals(same.longHash(), state.longHash());
+    assertEquals(same.hashCode(), state.hashCode());
+    assertFalse(swapped.equals(state));
+    assertNotEquals(swapped.longHash(), state.longHash());
+    assertFalse(shorter.equals(state));
+
+    assertEquals(new KenLMState(42).longHash(), 42);
+    assertEquals(new KenLMState(42), new KenLMState(42));
+  }
+
+  @Test
+  public void givenPool_whenInterning_thenEqualStatesShareOneObject() {
+    DPStatePool pool = new DPStatePool();
+    NgramDPState state = new NgramDPState(new int[] { 3 }, new int[] { 5 });
+
+    assertTrue(pool.intern(state) == state);
+    assertTrue(pool.intern(new NgramDPState(new int[] { 3 }, new int[] { 5 })) == state);
+    assertSame(pool.intern(new KenLMState(3)), pool.intern(new KenLMState(3)));
+    assertNull(pool.intern(null));
+    assertEquals(pool.size(), 2);
+
+    pool.clear();
+    assertEquals(pool.size(), 0);
+  }
+
+  @Test
+  public void givenInterning_whenPhraseDecoding_thenOutputIsUnchanged() throws Exception {
+    File lm = File.createTempFile("phrase-lm", ".gz");
+    try {
+      // BerkeleyLM needs the -inf log probabilities spelled out
+      try (Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(LM)),
+          StandardCharsets.UTF_8);
+          Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(lm)),
+              StandardCharsets.UTF_8)) {
+        out.write(CharStreams.toString(in).replace("-inf", "-99"));
+      }
+
+      final String plain = decode(lm, false);
+      assertEquals(decode(lm, true), plain);
+      assertEquals(plain.split("\n").length, 10);
+    } finally {
+      lm.delete();
+    }
+  }
+
+  private String decode(File lm, boolean intern) throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(CONFIG);
+    config.features.removeIf(feature -> feature.startsWith("StateMinimizingLanguageModel"));
+    config.features.add("LanguageModel -lm_type berkeleylm -lm_order 3 -lm_file " + lm);
+    config.topN = 10;
+    config.intern_dp_states = intern;
+
+    Decoder decoder = new Decoder(config, "");
+    try {
+      Sentence sentence = new Sentence(INPUT, 0, config);
+      String output = decoder.decode(sentence).toString();
+      if (intern)
+        assertEquals(sentence.getDPStatePool().size(), 0);
+      return output;
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+}
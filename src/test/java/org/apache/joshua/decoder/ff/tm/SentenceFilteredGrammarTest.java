@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
+import org.apache.joshua.tools.TestSetFilter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SentenceFilteredGrammarTest {
+
+  private MemoryBasedBatchGrammar grammar;
+
+  @BeforeMethod
+  public void setUp() {
+    Vocabulary.clear();
+    grammar = new MemoryBasedBatchGrammar("test", new JoshuaConfiguration(), 20);
+    addRule("a b");
+    addRule("a c d");
+    addRule("[X] c");
+    addRule("[X] e f");
+    addRule("g [X] h");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+  }
+
+  private void addRule(String source) {
+    int[] ids = Vocabulary.addAll(source);
+    int arity = 0;
+    for (int id : ids)
+      if (id < 0)
+        arity++;
+    grammar.addRule(new Rule(Vocabulary.id("[X]"), ids, new int[] { Vocabulary.id("x") }, "", arity));
+  }
+
+  private static int id(String word) {
+    return Vocabulary.id(word);
+  }
+
+  @Test
+  public void givenSentence_whenMatching_thenOnlyCompletablePathsRemain() {
+    Grammar filtered = new SentenceFilteredGrammar(grammar, Vocabulary.addAll("a b c e g"));
+    Trie root = filtered.getTrieRoot();
+
+    // "a b" is complete; "a c" needs "d", which the sentence lacks
+    Trie a = root.match(id("a"));
+    assertNotNull(a);
+    assertTrue(a.match(id("b")).hasRules());
+    assertNull(a.match(id("c")));
+    assertNull(a.match(id("d")));
+
+    // "[X] c" is complete; "[X] e" needs "f"
+    Trie x = root.match(id("[X]"));
+    assertNotNull(x);
+    assertTrue(x.match(id("c")).hasRules());
+    assertNull(x.match(id("e")));
+
+    // "g [X] h" needs "h"
+    assertNull(root.match(id("g")));
+    assertNull(root.match(id("b")));
+
+    assertEquals(children(a.getTerminalExtensionIterator()), Collections.singleton(id("b")));
+    assertEquals(children(x.getTerminalExtensionIterator()), Collections.singleton(id("c")));
+    assertEquals(children(root.getNonterminalExtensionIterator()), Collections.singleton(id("[X]")));
+    assertEquals(root.getChildren().keySet(), new HashSet<>(Arrays.asList(id("a"), id("[X]"))));
+    assertFalse(a.match(id("b")).hasExtensions());
+
+    // The underlying grammar is unchanged
+    assertNotNull(grammar.getTrieRoot().match(id("g")));
+  }
+
+  @Test
+  public void givenTestSet_whenLoadingTextGrammar_thenUnmatchedRulesAreDropped() throws Exception {
+    File testSet = File.createTempFile("test-set", ".txt");
+    try {
+      Files.write(testSet.toPath(), "A K B1 B2 C\n".getBytes(StandardCharsets.UTF_8));
+      TestSetFilter filter = new TestSetFilter();
+      filter.setFilter("fast");
+      filter.loadTestSentences(testSet.getPath());
+
+      MemoryBasedBatchGrammar loaded = new MemoryBasedBatchGrammar("thrax",
+          "src/test/resources/wa_grammar", "pt", "[X]", 20, new JoshuaConfiguration(), filter);
+
+      // "U Z1 Z2" does not occur in the test set
+      assertEquals(loaded.getNumRules(), 2);
+      assertNull(loaded.getTrieRoot().match(id("U")));
+      assertNotNull(loaded.getTrieRoot().match(id("K")));
+    } finally {
+      testSet.delete();
+    }
+  }
+
+  private static Set<Integer> children(Iterator<Integer> ids) {
+    Set<Integer> set = new HashSet<>();
+    ids.forEachRemaining(set::add);
+    return set;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TerminalIndexTest {
+
+  private MemoryBasedBatchGrammar grammar;
+
+  @BeforeMethod
+  public void setUp() {
+    Vocabulary.clear();
+    grammar = new MemoryBasedBatchGrammar("test", new JoshuaConfiguration(), 20);
+    addRule("a b");
+    addRule("[X] c");
+    addRule("d [X] e");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Vocabulary.clear();
+  }
+
+  private void addRule(String source) {
+    int[] ids = Vocabulary.addAll(source);
+    int arity = 0;
+    for (int id : ids)
+      if (id < 0)
+        arity++;
+    grammar.addRule(new Rule(Vocabulary.id("[X]"), ids, new int[] { Vocabulary.id("x") }, "", arity));
+  }
+
+  @Test
+  public void givenGrammar_whenIndexing_thenContainsLeadingTerminals() {
+    TerminalIndex index = grammar.getTerminalIndex();
+
+    assertEquals(index.size(), 3);
+    assertTrue(index.contains(Vocabulary.id("a")));
+    assertTrue(index.contains(Vocabulary.id("c")));
+    assertTrue(index.contains(Vocabulary.id("d")));
+    assertFalse(index.contains(Vocabulary.id("b")));
+    assertFalse(index.contains(Vocabulary.id("e")));
+    assertFalse(index.contains(Vocabulary.id("[X]")));
+    assertFalse(index.contains(Vocabulary.id("unseen")));
+  }
+
+  @Test
+  public void givenSentence_whenMarkingKnownWords_thenMatchesContains() {
+    int[] ids = Vocabulary.addAll("a b c unseen d");
+
+    boolean[] known = TerminalIndex.known(new Grammar[] { grammar }, ids);
+
+    for (int i = 0; i < ids.length; i++)
+      assertEquals(known[i], grammar.getTerminalIndex().contains(ids[i]));
+    assertEquals(known, new boolean[] { true, false, true, false, true });
+  }
+
+  @Test
+  public void givenIndexedGrammar_whenAddingRule_thenIndexIsUpdated() {
+    int f = Vocabulary.id("f");
+    assertFalse(grammar.getTerminalIndex().contains(f));
+
+    addRule("f");
+
+    assertTrue(grammar.getTerminalIndex().contains(f));
+    assertTrue(TerminalIndex.known(new Grammar[] { grammar }, f));
+  }
+}
@@ -0,0 +1,306 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.suffix_array;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.Translation;
+import org.apache.joshua.decoder.ff.tm.Grammar;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.tm.Trie;
+import org.apache.joshua.decoder.phrase.PhraseTable;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+public class SuffixArrayGrammarTest {
+
+  private static final String[] WORDS = { "a", "b", "c", "d", "e" };
+
+  @Test
+  public void givenRandomCorpus_whenFindingPhrases_thenSameOccurrencesAsScanning() throws IOException {
+    Random random = new Random(7);
+    List<String[]> sentences = new ArrayList<>();
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    for (int s = 0; s < 200; s++) {
+      String[] sentence = randomSentence(random, 1 + random.nextInt(8));
+      sentences.add(sentence);
+      builder.addSentence(String.join(" ", sentence), "x", "");
+    }
+    File file = write(builder);
+
+    try (SuffixArray index = new SuffixArray(file.getPath())) {
+      Map<String, Integer> ids = new HashMap<>();
+      for (int id = 1; id < index.getVocabularySize(); id++)
+        ids.put(index.getWord(id), id);
+      assertEquals(index.getNumSentences(), 200);
+
+      for (int trial = 0; trial < 200; trial++) {
+        String[] phrase = randomSentence(random, 1 + random.nextInt(4));
+        int[] phraseIds = new int[phrase.length];
+        for (int i = 0; i < phrase.length; i++)
+          phraseIds[i] = ids.get(phrase[i]);
+
+        int expected = 0;
+        for (String[] sentence : sentences)
+          for (int i = 0; i + phrase.length <= sentence.length; i++)
+            if (startsWith(sentence, i, phrase))
+              expected++;
+
+        long range = index.find(phraseIds);
+        assertEquals(SuffixArray.to(range) - SuffixArray.from(range), expected);
+        for (int k = SuffixArray.from(range); k < SuffixArray.to(range); k++) {
+          int position = index.getSuffix(k);
+          int sentence = index.getSentence(position);
+          int start = position - index.getSourceStart(sentence);
+          assertTrue(startsWith(sentences.get(sentence), start, phrase));
+        }
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenAlignedCorpus_whenLookingUpWords_thenRelativeFrequencies() throws IOException {
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    builder.addSentence("a b", "x y", "0-0 1-1");
+    builder.addSentence("a c", "x z", "0-0");
+    File file = write(builder);
+
+    try (SuffixArray index = new SuffixArray(file.getPath())) {
+      Map<String, Integer> ids = new HashMap<>();
+      for (int id = 1; id < index.getVocabularySize(); id++)
+        ids.put(index.getWord(id), id);
+
+      assertEquals(index.getTargetGivenSource(ids.get("a"), ids.get("x")), 1.0f);
+      assertEquals(index.getSourceGivenTarget(ids.get("a"), ids.get("x")), 1.0f);
+      assertEquals(index.getTargetGivenSource(ids.get("c"), SuffixArray.NULL), 1.0f);
+      assertEquals(index.getSourceGivenTarget(SuffixArray.NULL, ids.get("z")), 1.0f);
+      assertEquals(index.getTargetGivenSource(ids.get("a"), ids.get("y")), 0.0f);
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenSentence_whenExtractingRules_thenPhrasesAndGappedRules() throws IOException {
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    builder.addSentence("a b c", "A B C", "0-0 1-1 2-2");
+    builder.addSentence("a d c", "A D C", "0-0 1-1 2-2");
+    builder.addSentence("a b", "B A", "0-1 1-0");
+    File file = write(builder);
+
+    try {
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.search_algorithm = "cky";
+      SuffixArrayGrammar grammar = new SuffixArrayGrammar(file.getPath(), "pt", 10, config);
+      Grammar rules = grammar.getSentenceGrammar(new Sentence("a b c", 0, config),
+          new ArrayList<>());
+
+      Trie ab = rules.getTrieRoot().match(Vocabulary.id("a")).match(Vocabulary.id("b"));
+      assertEquals(targets(ab), set("A B ||| -0.6931 ||| 0-0 1-1", "B A ||| -0.6931 ||| 0-1 1-0"));
+
+      Trie aXc = rules.getTrieRoot().match(Vocabulary.id("a")).match(Vocabulary.id("[X]"))
+          .match(Vocabulary.id("c"));
+      assertEquals(targets(aXc), set("A [X,1] C ||| 0.0000 ||| 0-0 2-2"));
+
+      // "d" does not occur in the sentence
+      assertNull(rules.getTrieRoot().match(Vocabulary.id("a")).match(Vocabulary.id("d")));
+      assertEquals(grammar.getNumDenseFeatures(), SuffixArrayGrammar.NUM_DENSE_FEATURES);
+      assertTrue(grammar.getTerminalIndex().contains(Vocabulary.id("d")));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenStackDecoding_whenExtractingRules_thenPhraseTableWithoutGaps() throws IOException {
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    builder.addSentence("a b c", "A B C", "0-0 1-1 2-2");
+    File file = write(builder);
+
+    try {
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.search_algorithm = "stack";
+      SuffixArrayGrammar grammar = new SuffixArrayGrammar(file.getPath(), "pt", 10, config);
+      Grammar rules = grammar.getSentenceGrammar(new Sentence("a b c", 0, config),
+          new ArrayList<>());
+
+      assertTrue(rules instanceof PhraseTable);
+      PhraseTable phrases = (PhraseTable) rules;
+      assertNotNull(phrases.getPhrases(new int[] { Vocabulary.id("a"), Vocabulary.id("b") }));
+      assertNull(rules.getTrieRoot().match(Vocabulary.id("a")).match(Vocabulary.id("[X]")));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenCachedPattern_whenExtractingRulesAgain_thenRulesAreNotShared() throws IOException {
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    builder.addSentence("a b", "A B", "0-0 1-1");
+    File file = write(builder);
+
+    try {
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.search_algorithm = "cky";
+      SuffixArrayGrammar grammar = new SuffixArrayGrammar(file.getPath(), "pt", 10, config);
+      Rule first = grammar.getSentenceGrammar(new Sentence("a b", 0, config), new ArrayList<>())
+          .getTrieRoot().match(Vocabulary.id("a")).getRuleCollection().getRules().get(0);
+      Rule second = grammar.getSentenceGrammar(new Sentence("a c", 1, config), new ArrayList<>())
+          .getTrieRoot().match(Vocabulary.id("a")).getRuleCollection().getRules().get(0);
+
+      // The second sentence's grammar sorts its own copy of the cached rule
+      assertTrue(first != second);
+      assertEquals(second.textFormat(), first.textFormat());
+      grammar.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenThreads_whenExtractingRules_thenSameRulesAsSequential() throws IOException {
+    Random random = new Random(11);
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    for (int s = 0; s < 300; s++) {
+      int length = 1 + random.nextInt(8);
+      String[] sentence = randomSentence(random, length);
+      StringBuilder alignment = new StringBuilder();
+      for (int i = 0; i < length; i++)
+        if (random.nextInt(4) > 0)
+          alignment.append(i).append('-').append(length - 1 - i).append(' ');
+      builder.addSentence(String.join(" ", sentence), String.join(" ", sentence).toUpperCase(),
+          alignment.toString());
+    }
+    File file = write(builder);
+
+    try {
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.search_algorithm = "cky";
+      config.suffix_array_sample_size = 20;
+      SuffixArrayGrammar sequential = new SuffixArrayGrammar(file.getPath(), "pt", 10, config);
+      config.suffix_array_threads = 4;
+      SuffixArrayGrammar parallel = new SuffixArrayGrammar(file.getPath(), "pt", 10, config);
+
+      for (int trial = 0; trial < 5; trial++) {
+        Sentence sentence = new Sentence(String.join(" ", randomSentence(random, 12)), trial,
+            config);
+        TreeSet<String> expected = allRules(
+            sequential.getSentenceGrammar(sentence, new ArrayList<>()).getTrieRoot());
+        assertTrue(expected.size() > 0);
+        assertEquals(allRules(parallel.getSentenceGrammar(sentence, new ArrayList<>())
+            .getTrieRoot()), expected);
+      }
+      parallel.close();
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void givenSuffixArrayTm_whenDecoding_thenTranslatesWithExtractedRules() throws IOException {
+    SuffixArrayBuilder builder = new SuffixArrayBuilder();
+    builder.addSentence("a b c", "A B C", "0-0 1-1 2-2");
+    builder.addSentence("c d", "D C", "0-1 1-0");
+    File file = write(builder);
+
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.search_algorithm = "cky";
+    config.topN = 0;
+    config.outputFormat = "%s";
+    config.tms.add("suffix-array -owner pt -maxspan 10 -path " + file.getPath());
+    config.features.add("OOVPenalty");
+    config.weights.add("tm_pt_0 1");
+    config.weights.add("tm_pt_1 1");
+    config.weights.add("tm_pt_2 1");
+    config.weights.add("tm_glue_0 -1");
+    config.weights.add("OOVPenalty 1");
+    Decoder decoder = new Decoder(config, "");
+    try {
+      Translation translation = decoder.decode(new Sentence("c d", 0, config));
+      assertEquals(translation.toString().trim(), "D C");
+    } finally {
+      decoder.cleanUp();
+      file.delete();
+    }
+  }
+
+  private static String[] randomSentence(Random random, int length) {
+    String[] sentence = new String[length];
+    for (int i = 0; i < length; i++)
+      sentence[i] = WORDS[random.nextInt(WORDS.length)];
+    return sentence;
+  }
+
+  private static boolean startsWith(String[] sentence, int start, String[] phrase) {
+    for (int i = 0; i < phrase.length; i++)
+      if (start + i >= sentence.length || !sentence[start + i].equals(phrase[i]))
+        return false;
+    return true;
+  }
+
+  private static File write(SuffixArrayBuilder builder) throws IOException {
+    File file = File.createTempFile("suffix-array", ".sa");
+    builder.write(file.getPath());
+    return file;
+  }
+
+  private static TreeSet<String> set(String... strings) {
+    TreeSet<String> set = new TreeSet<>();
+    for (String s : strings)
+      set.add(s);
+    return set;
+  }
+
+  /* The target side, p(e | f) feature and alignment of each rule of a trie node */
+  private static TreeSet<String> targets(Trie node) {
+    TreeSet<String> targets = new TreeSet<>();
+    for (Rule rule : node.getRuleCollection().getRules())
+      targets.add(String.format("%s ||| %.4f ||| %s", rule.getEnglishWords(),
+          rule.getDenseFeature(0), rule.getAlignmentString()));
+    return targets;
+  }
+
+  private static TreeSet<String> allRules(Trie node) {
+    TreeSet<String> rules = new TreeSet<>();
+    if (node.hasRules())
+      for (Rule rule : node.getRuleCollection().getRules())
+        rules.add(rule.textFormat());
+    if (node.hasExtensions())
+      for (Trie child : node.getExtensions())
+        rules.addAll(allRules(child));
+    return rules;
+  }
+}
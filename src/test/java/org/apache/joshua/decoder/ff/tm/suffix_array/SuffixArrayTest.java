@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm.suffix_array;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.testng.annotations.Test;
+
+public class SuffixArrayTest {
+
+  @Test
+  public void givenSmallChunks_whenReadingSection_thenValuesAreReadAcrossChunks()
+      throws IOException {
+    File file = File.createTempFile("section", ".bin");
+    file.deleteOnExit();
+    /* Three header bytes, so that the section does not start on a chunk boundary */
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+      out.write(new byte[3]);
+      for (int i = 0; i < 25; i++)
+        out.writeInt(i * 1000 - 7);
+      for (int i = 0; i < 9; i++)
+        out.writeLong(((long) i << 40) | i);
+      for (int i = 0; i < 9; i++)
+        out.writeFloat(i / 4.0f);
+    }
+
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      SuffixArray.Section ints = new SuffixArray.Section(in.getChannel(), 3, 4 * 25, 16);
+      for (int i = 0; i < 25; i++)
+        assertEquals(ints.getInt(i), i * 1000 - 7);
+
+      SuffixArray.Section longs = new SuffixArray.Section(in.getChannel(), 3 + 4 * 25, 8 * 9, 16);
+      for (int i = 0; i < 9; i++)
+        assertEquals(longs.getLong(i), ((long) i << 40) | i);
+
+      SuffixArray.Section floats = new SuffixArray.Section(in.getChannel(), 3 + 4 * 25 + 8 * 9,
+          4 * 9, 8);
+      for (int i = 0; i < 9; i++)
+        assertEquals(floats.getFloat(i), i / 4.0f);
+    }
+  }
+}
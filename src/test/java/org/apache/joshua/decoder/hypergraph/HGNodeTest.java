@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
+import org.testng.annotations.Test;
+
+public class HGNodeTest {
+
+  private static List<DPState> state(int left, int right) {
+    return Collections.singletonList(new NgramDPState(new int[] { left }, new int[] { right }));
+  }
+
+  private static HGNode node(int i, int j, int lhs, List<DPState> states, float score) {
+    return new HGNode(i, j, lhs, states, new HyperEdge(null, score, score, null, null), score);
+  }
+
+  @Test
+  public void givenSameStates_whenComparingSignatures_thenEqual() {
+    HGNode one = node(0, 2, -1, state(5, 6), -1.0f);
+    HGNode two = node(0, 2, -1, state(5, 6), -3.0f);
+
+    assertEquals(one.signatureHash(), two.signatureHash());
+    assertTrue(one.sameSignature(two));
+    assertEquals(one.signature(), two.signature());
+    assertEquals(one.signature().hashCode(), two.signature().hashCode());
+  }
+
+  @Test
+  public void givenDifferentStatesOrLabels_whenComparingSignatures_thenDifferent() {
+    HGNode node = node(0, 2, -1, state(5, 6), -1.0f);
+
+    for (HGNode other : new HGNode[] { node(0, 2, -1, state(5, 7), -1.0f),
+        node(0, 2, -2, state(5, 6), -1.0f), node(1, 2, -1, state(5, 6), -1.0f),
+        node(0, 2, -1, null, -1.0f) }) {
+      assertNotEquals(node.signatureHash(), other.signatureHash());
+      assertFalse(node.sameSignature(other));
+      assertNotEquals(node.signature(), other.signature());
+    }
+  }
+}
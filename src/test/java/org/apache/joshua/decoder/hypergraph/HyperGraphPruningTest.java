@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class HyperGraphPruningTest {
+
+  private HGNode leaf;
+  private HGNode word;
+  private HGNode node;
+  private HGNode goal;
+  private HyperEdge best;
+  private HyperEdge worse;
+  private HyperGraph hg;
+
+  /*
+   * goal -> (node, word), node -> (leaf) twice with different scores, leaf -> (), word -> ()
+   */
+  @BeforeMethod
+  public void setUp() {
+    HyperEdge leafEdge = new HyperEdge(null, -1.0f, -1.0f, null, null);
+    leaf = new HGNode(0, 1, 1, new ArrayList<>(Collections.singletonList(leafEdge)), leafEdge, null);
+
+    best = new HyperEdge(null, -2.0f, -1.0f, Collections.singletonList(leaf), null);
+    worse = new HyperEdge(null, -6.0f, -5.0f, Collections.singletonList(leaf), null);
+    node = new HGNode(0, 1, 2, new ArrayList<>(Arrays.asList(best, worse)), best, null);
+
+    HyperEdge wordEdge = new HyperEdge(null, -1.0f, -1.0f, null, null);
+    word = new HGNode(1, 2, 1, new ArrayList<>(Collections.singletonList(wordEdge)), wordEdge, null);
+
+    HyperEdge goalEdge = new HyperEdge(null, -3.5f, -0.5f, Arrays.asList(node, word), null);
+    goal = new HGNode(0, 1, 3, new ArrayList<>(Collections.singletonList(goalEdge)), goalEdge, null);
+
+    hg = new HyperGraph(goal, 4, 5, null);
+  }
+
+  @Test
+  public void givenHyperGraph_whenIndexing_thenNodesAreSortedByLevel() {
+    HyperGraphIndex index = new HyperGraphIndex(hg);
+
+    assertEquals(index.numNodes(), 4);
+    assertEquals(index.numEdges(), 5);
+    assertEquals(index.numLevels(), 3);
+    assertSame(index.nodes[index.goal()], goal);
+    assertEquals(index.getId(node), 2);
+    int leafId = index.getId(leaf);
+    assertEquals(index.levelStart[1], 2);
+    // leaf is a tail of both hyperedges of node
+    assertEquals(index.useStart[leafId + 1] - index.useStart[leafId], 2);
+  }
+
+  @Test
+  public void givenHyperGraph_whenInsideOutside_thenPosteriorsAreNormalized() {
+    TrivialInsideOutside insideOutside = new TrivialInsideOutside();
+    insideOutside.runInsideOutside(hg, 0, 1, 1.0);
+
+    double z = Math.log(Math.exp(-2.0) + Math.exp(-6.0)) - 1.0 - 0.5;
+    assertEquals(insideOutside.getLogNormalizationConstant(), z, 1e-6);
+    assertEquals(insideOutside.getNodePosteriorProb(goal), 1.0, 1e-6);
+    assertEquals(insideOutside.getNodePosteriorProb(leaf), 1.0, 1e-6);
+    assertEquals(insideOutside.getNodePosteriorProb(word), 1.0, 1e-6);
+    assertEquals(insideOutside.getEdgePosteriorProb(best, node)
+        + insideOutside.getEdgePosteriorProb(worse, node), 1.0, 1e-6);
+    assertEquals(insideOutside.getEdgePosteriorProb(worse, node),
+        Math.exp(-6.0) / (Math.exp(-2.0) + Math.exp(-6.0)), 1e-6);
+
+    TrivialInsideOutside parallel = new TrivialInsideOutside();
+    parallel.setNumThreads(4);
+    parallel.runInsideOutside(hg, 0, 1, 1.0);
+    assertEquals(parallel.getLogNormalizationConstant(), z, 1e-6);
+  }
+
+  @Test
+  public void givenThreshold_whenPruning_thenWorseHyperedgeIsRemoved() {
+    // the worse hyperedge is 4 below the Viterbi derivation
+    new HyperGraphPruning(true, -3.0, -3.0).pruningHG(hg);
+
+    assertEquals(node.hyperedges, Collections.singletonList(best));
+    assertEquals(goal.hyperedges.size(), 1);
+  }
+
+  @Test
+  public void givenLooseThreshold_whenPruning_thenAllHyperedgesSurvive() {
+    new HyperGraphPruning(true, -5.0, -5.0).pruningHG(hg);
+
+    assertEquals(node.hyperedges, Arrays.asList(best, worse));
+  }
+}
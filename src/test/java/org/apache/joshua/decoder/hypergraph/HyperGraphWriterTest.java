@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import static org.apache.joshua.decoder.hypergraph.ViterbiExtractor.getViterbiString;
+import static org.apache.joshua.decoder.hypergraph.ViterbiExtractor.getViterbiWordAlignments;
+import static org.apache.joshua.util.FormatUtils.removeSentenceMarkers;
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Decodes with the toy grammar of the StructuredTranslationTest, writing the hypergraphs to a file,
+ * and checks that the forests read back yield the decoder's output.
+ */
+public class HyperGraphWriterTest {
+
+  private static final String INPUT = "A K B1 U Z1 Z2 B2 C";
+  private static final String EXPECTED_TRANSLATION = "a b n1 u z c1 k1 k2 k3 n1 n2 n3 c2";
+  private static final String EXPECTED_WORD_ALIGNMENT_STRING = "0-0 2-1 6-1 3-3 4-4 5-4 7-5 1-6 1-7 1-8 7-12";
+
+  private File file;
+  private JoshuaConfiguration joshuaConfig;
+  private Decoder decoder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("hypergraphs", ".bin");
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.search_algorithm = "cky";
+    joshuaConfig.topN = 0;
+    joshuaConfig.outputFormat = "%s";
+    joshuaConfig.tms.add("thrax -owner pt -maxspan 20 -path src/test/resources/wa_grammar");
+    joshuaConfig.tms.add("thrax -owner glue -maxspan -1 -path src/test/resources/grammar.glue");
+    joshuaConfig.goal_symbol = "[GOAL]";
+    joshuaConfig.default_non_terminal = "[X]";
+    joshuaConfig.features.add("OOVPenalty");
+    for (int i = 0; i < 6; i++)
+      joshuaConfig.weights.add("tm_pt_" + i + " 1");
+    joshuaConfig.weights.add("tm_glue_0 1");
+    joshuaConfig.weights.add("OOVPenalty 1");
+    joshuaConfig.hypergraph_file = file.getPath();
+    decoder = new Decoder(joshuaConfig, "");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (decoder != null)
+      decoder.cleanUp();
+    file.delete();
+  }
+
+  /* Returns the translation of the second sentence */
+  private String decodeAndClose() {
+    decoder.decode(new Sentence(INPUT, 7, joshuaConfig));
+    String translation = decoder.decode(new Sentence("A K", 8, joshuaConfig)).toString().trim();
+    decoder.cleanUp();
+    decoder = null;
+    return translation;
+  }
+
+  @Test
+  public void givenHyperGraphFile_whenReading_thenViterbiDerivationIsUnchanged() throws Exception {
+    String secondTranslation = decodeAndClose();
+
+    try (HyperGraphReader reader = new HyperGraphReader(file.getPath())) {
+      assertEquals(reader.size(), 2);
+      assertEquals(reader.getSentenceId(0), 7);
+      assertEquals(reader.getSentenceId(1), 8);
+
+      // segments can be read in any order
+      HyperGraph second = reader.read(1);
+      HyperGraph first = reader.read(0);
+
+      assertEquals(removeSentenceMarkers(getViterbiString(first)), EXPECTED_TRANSLATION);
+      assertEquals(getViterbiWordAlignments(first), EXPECTED_WORD_ALIGNMENT_STRING);
+      assertEquals(first.bestScore(), -17.0f, 1e-4);
+      assertEquals(removeSentenceMarkers(getViterbiString(second)), secondTranslation);
+    }
+  }
+
+  @Test
+  public void givenHyperGraphFile_whenReadingFeatures_thenViterbiFeaturesAddUp() throws Exception {
+    decodeAndClose();
+
+    try (HyperGraphReader reader = new HyperGraphReader(file.getPath())) {
+      Map<HyperEdge, FeatureVector> features = new IdentityHashMap<>();
+      HyperGraph hg = reader.read(0, features);
+
+      FeatureVector total = new FeatureVector();
+      addViterbiFeatures(hg.goalNode, features, total);
+      assertEquals(total.getWeight("tm_glue_0"), 1.0f, 1e-4);
+      assertEquals(total.getWeight("tm_pt_0"), -3.0f, 1e-4);
+      assertEquals(total.getWeight("OOV"), 7.0f, 1e-4);
+    }
+  }
+
+  private static void addViterbiFeatures(HGNode node, Map<HyperEdge, FeatureVector> features,
+      FeatureVector total) {
+    total.add(features.get(node.bestHyperedge));
+    if (node.bestHyperedge.getTailNodes() != null)
+      for (HGNode tail : node.bestHyperedge.getTailNodes())
+        addViterbiFeatures(tail, features, total);
+  }
+
+  @Test
+  public void givenTruncatedFile_whenReading_thenLastSegmentIsIgnored() throws Exception {
+    decodeAndClose();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(raf.length() - 3);
+    }
+    try (HyperGraphReader reader = new HyperGraphReader(file.getPath())) {
+      assertEquals(reader.size(), 1);
+      assertEquals(removeSentenceMarkers(getViterbiString(reader.read(0))), EXPECTED_TRANSLATION);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class KBestExtractorTest {
+
+  private JoshuaConfiguration config;
+  private HyperGraph hg;
+
+  private HGNode goal;
+
+  /*
+   * goal -> [X1 X2] (left, right), left -> "a" | "a" | "b", right -> "c"
+   */
+  @BeforeMethod
+  public void setUp() {
+    config = new JoshuaConfiguration();
+    config.outputFormat = "%s";
+    config.use_unique_nbest = true;
+
+    int x = Vocabulary.id("[X]");
+    HyperEdge a = new HyperEdge(phrase(x, "a"), -1.0f, -1.0f, null, null);
+    HyperEdge otherA = new HyperEdge(phrase(x, "a"), -1.5f, -1.5f, null, null);
+    HyperEdge b = new HyperEdge(phrase(x, "b"), -2.0f, -2.0f, null, null);
+    HGNode left = new HGNode(0, 1, x, new ArrayList<>(Arrays.asList(a, otherA, b)), a, null);
+
+    HyperEdge c = new HyperEdge(phrase(x, "c"), -1.0f, -1.0f, null, null);
+    HGNode right = new HGNode(1, 2, x, new ArrayList<>(Collections.singletonList(c)), c, null);
+
+    Rule glue = new Rule(x, new int[] { x, x }, new int[] { -1, -2 }, "", 2);
+    HyperEdge goalEdge = new HyperEdge(glue, -2.0f, 0.0f, Arrays.asList(left, right), null);
+    goal = new HGNode(0, 2, x, new ArrayList<>(Collections.singletonList(goalEdge)),
+        goalEdge, null);
+
+    hg = new HyperGraph(goal, 4, 5, null);
+  }
+
+  private static Rule phrase(int lhs, String word) {
+    return new Rule(lhs, new int[] { Vocabulary.id(word) }, new int[] { Vocabulary.id(word) }, "", 0);
+  }
+
+  private KBestExtractor extractor(boolean unique) {
+    return new KBestExtractor(new Sentence("a c", 0, config), new ArrayList<FeatureFunction>(),
+        new FeatureVector(), false, unique, config);
+  }
+
+  @Test
+  public void givenUncomputedTailYields_whenHashing_thenHashesFollowStrings() {
+    // Without dedup, the yields of the tail derivations are first hashed from the goal's
+    KBestExtractor extractor = extractor(false);
+    long first = extractor.getKthDerivation(goal, 1).getYieldHash();
+    long second = extractor.getKthDerivation(goal, 2).getYieldHash();
+    long third = extractor.getKthDerivation(goal, 3).getYieldHash();
+
+    assertEquals(extractor.getKthDerivation(goal, 3).getHypothesis(), "b c");
+    assertEquals(second, first);
+    assertNotEquals(third, first);
+  }
+
+  @Test
+  public void givenRepeatedStrings_whenUniqueNbest_thenDistinctStringsAreKept() throws Exception {
+    StringBuilder out = new StringBuilder();
+    extractor(true).lazyKBestExtractOnHG(hg, 5, out);
+
+    assertEquals(out.toString(), "a c\nb c\n");
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.hypergraph;
+
+import static org.apache.joshua.decoder.cky.TestUtil.loadStringsFromFile;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that extracting the k-best lists bottom-up on several threads gives the same k-best
+ * lists as extracting them lazily on one thread.
+ */
+public class ParallelKBestExtractionTest {
+
+  private static final String CONFIG = "src/test/resources/bn-en/hiero/joshua-berkeleylm.config";
+  private static final String INPUT = "src/test/resources/bn-en/hiero/input.bn";
+
+  @Test
+  public void givenUniqueNbest_whenExtractingOnThreads_thenKBestIsUnchanged() throws Exception {
+    compare(true);
+  }
+
+  @Test
+  public void givenNonUniqueNbest_whenExtractingOnThreads_thenKBestIsUnchanged() throws Exception {
+    compare(false);
+  }
+
+  private void compare(boolean uniqueNbest) throws Exception {
+    List<String> input = loadStringsFromFile(INPUT).subList(0, 5);
+    assertEquals(decode(input, 4, uniqueNbest), decode(input, 1, uniqueNbest));
+  }
+
+  private static List<String> decode(List<String> input, int kbestThreads, boolean uniqueNbest)
+      throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(CONFIG);
+    config.topN = 100;
+    config.use_unique_nbest = uniqueNbest;
+    config.outputFormat = "%i ||| %s ||| %f ||| %c";
+    config.kbest_threads = kbestThreads;
+    Decoder decoder = new Decoder(config, "");
+    try {
+      List<String> output = new ArrayList<>(input.size());
+      for (int i = 0; i < input.size(); i++)
+        output.add(decoder.decode(new Sentence(input.get(i), i, config)).toString());
+      return output;
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.io;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class OutputFormatTest {
+
+  private static final OutputFormat.FieldWriter WRITER = (field, out) -> {
+    switch (field) {
+    case 'i':
+      out.append("7");
+      return true;
+    case 's':
+      out.append("a b");
+      return true;
+    case 'c':
+      out.append("-1.500");
+      return true;
+    default:
+      return false;
+    }
+  };
+
+  @Test
+  public void givenDefaultFormat_whenFormatting_thenSameAsReplace() {
+    String format = "%i ||| %s ||| %f ||| %c";
+    String expected = format.replace("%i", "7").replace("%s", "a b").replace("%c", "-1.500");
+
+    assertEquals(new OutputFormat(format).format(WRITER), expected);
+  }
+
+  @Test
+  public void givenUnknownAndUnhandledFields_whenFormatting_thenCopiedLiterally() {
+    assertEquals(new OutputFormat("100% %x %s %k %").format(WRITER), "100% %x a b %k %");
+    assertEquals(new OutputFormat("").format(WRITER), "");
+    assertEquals(new OutputFormat("%s%s").format(WRITER), "a ba b");
+  }
+
+  @Test
+  public void givenFormat_whenQueryingFields_thenOnlyFieldsAreReported() {
+    OutputFormat format = new OutputFormat("%s ||| 100%f");
+
+    assertTrue(format.uses('s'));
+    assertTrue(format.uses('f'));
+    assertFalse(format.uses('c'));
+    assertEquals(format.toString(), "%s ||| 100%f");
+  }
+}
@@ -21,6 +21,7 @@ package org.apache.joshua.decoder.phrase;
 import org.testng.annotations.Test;
 
 import java.util.BitSet;
+import java.util.Random;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -31,10 +32,10 @@ public class CoverageTest {
   @Test
   public void testSet() {
     Coverage cov = new Coverage();
-    cov.set(1,2);
-    cov.set(3,4);
-    cov.set(2,3);
-    cov.set(0,1);
+    cov = cov.with(1,2);
+    cov = cov.with(3,4);
+    cov = cov.with(2,3);
+    cov = cov.with(0,1);
 
     assertFalse(cov.compatible(0, 1));
     assertFalse(cov.compatible(0, 5));
@@ -46,8 +47,8 @@ public class CoverageTest {
   @Test
   public void testPattern() {
     Coverage cov = new Coverage();
-    cov.set(5,6);
-    cov.set(0,4);
+    cov = cov.with(5,6);
+    cov = cov.with(0,4);
     BitSet bits = cov.pattern(4, 5);
     BitSet answerBits = new BitSet();
     answerBits.set(0);
@@ -55,19 +56,19 @@ public class CoverageTest {
   }
   
   @Test
-  public void testCopyConstructor() {
+  public void testImmutable() {
     Coverage a = new Coverage();
-    a.set(2,3);
-    Coverage b = new Coverage(a);
-    b.set(4,5);
+    a = a.with(2,3);
+    Coverage b = a.with(4,5);
     
     assertFalse(a.toString().equals(b.toString()));
+    assertTrue(a.compatible(4, 5));
   }
   
   @Test
   public void testCompatible() {
     Coverage a = new Coverage();
-    a.set(10, 14);
+    a = a.with(10, 14);
     
     assertTrue(a.compatible(14, 16));
     assertTrue(a.compatible(6, 10));
@@ -79,7 +80,7 @@ public class CoverageTest {
     assertFalse(a.compatible(9, 14));
     assertFalse(a.compatible(10, 15));
     
-    a.set(0,9);
+    a = a.with(0,9);
     
     for (int width = 1; width <= 3; width++) {
       for (int i = 0; i < 20; i++) {
@@ -97,23 +98,23 @@ public class CoverageTest {
   @Test
   public void testFirstZero() {
     Coverage cov = new Coverage();
-    cov.set(2, 5);
+    cov = cov.with(2, 5);
     assertEquals(cov.firstZero(), 0);
-    cov.set(8,10);
+    cov = cov.with(8,10);
     assertEquals(cov.firstZero(), 0);
-    cov.set(0, 2);
+    cov = cov.with(0, 2);
     assertEquals(cov.firstZero(), 5);
-    cov.set(5, 7);
+    cov = cov.with(5, 7);
     assertEquals(cov.firstZero(), 7);
-    cov.set(7,8);
+    cov = cov.with(7,8);
     assertEquals(cov.firstZero(), 10);
   }
    
   @Test
   public void testOpenings() {
     Coverage cov = new Coverage();
-    cov.set(0, 2);
-    cov.set(8, 10);
+    cov = cov.with(0, 2);
+    cov = cov.with(8, 10);
     
     for (int i = 2; i < 7; i++) {
       assertEquals(cov.leftOpening(i), 2);
@@ -125,18 +126,62 @@ public class CoverageTest {
   @Test
   public void testEquals() {
     Coverage cov = new Coverage();
-    cov.set(9, 11);
+    cov = cov.with(9, 11);
     Coverage cov2 = new Coverage();
-    cov2.set(9,10);
-    cov2.set(10,11);
+    cov2 = cov2.with(9,10);
+    cov2 = cov2.with(10,11);
     assertEquals(cov, cov2);
   }
   
   @Test
   public void testToString() {
     Coverage cov = new Coverage();
-    cov.set(0, 40);
-    cov.set(44, 49);
+    cov = cov.with(0, 40);
+    cov = cov.with(44, 49);
     assertEquals(cov.toString(), "40 ....xxxxx.");
   }
+
+  @Test
+  public void testLongSentences() {
+    Random random = new Random(17);
+    for (int length : new int[] { 60, 128, 130, 300 }) {
+      for (int trial = 0; trial < 50; trial++) {
+        boolean[] covered = new boolean[length];
+        Coverage cov = new Coverage();
+        for (int step = 0; step < 4 * length; step++) {
+          int begin = random.nextInt(length);
+          int end = Math.min(length, begin + 1 + random.nextInt(4));
+          boolean compatible = true;
+          for (int i = begin; i < end; i++)
+            compatible &= !covered[i];
+          compatible &= begin >= firstZero(covered);
+          assertEquals(cov.compatible(begin, end), compatible);
+          if (compatible) {
+            cov = cov.with(begin, end);
+            for (int i = begin; i < end; i++)
+              covered[i] = true;
+            assertEquals(cov.firstZero(), firstZero(covered));
+            for (int i = cov.firstZero(); i < length; i++)
+              assertEquals(cov.get(i - cov.firstZero()), covered[i]);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEqualsAcrossRepresentations() {
+    Coverage a = new Coverage().with(200, 201).with(200 - 64, 200 - 63);
+    Coverage b = new Coverage().with(200 - 64, 200 - 63).with(200, 201);
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(a.getCoverage().cardinality(), 2);
+  }
+
+  private static int firstZero(boolean[] covered) {
+    int i = 0;
+    while (i < covered.length && covered[i])
+      i++;
+    return i;
+  }
 }
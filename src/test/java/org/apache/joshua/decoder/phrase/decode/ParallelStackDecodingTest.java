@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase.decode;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.io.CharStreams;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that scoring stack seeds on several threads does not change the phrase-based k-best
+ * output. The KenLM model of the phrase decoding test is replaced by BerkeleyLM, which can be
+ * queried from several threads (and which needs the -inf log probabilities spelled out).
+ */
+public class ParallelStackDecodingTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/config";
+  private static final String LM = "src/test/resources/phrase_decoder/lm.1.gz";
+  private static final String INPUT = "una estrategia republicana para obstaculizar la reelección de Obama"
+      + " y una estrategia para la reelección de Obama";
+
+  @Test
+  public void givenStackThreads_whenPhraseDecoding_thenOutputIsSameAsSequential() throws Exception {
+    File lm = File.createTempFile("phrase-lm", ".gz");
+    try {
+      try (Reader in = new InputStreamReader(new GZIPInputStream(new FileInputStream(LM)),
+          StandardCharsets.UTF_8);
+          Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(lm)),
+              StandardCharsets.UTF_8)) {
+        out.write(CharStreams.toString(in).replace("-inf", "-99"));
+      }
+
+      final String sequential = decode(lm, 1);
+      assertEquals(decode(lm, 4), sequential);
+      assertEquals(sequential.split("\n").length, 20);
+    } finally {
+      lm.delete();
+    }
+  }
+
+  private String decode(File lm, int threads) throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.readConfigFile(CONFIG);
+    config.features.removeIf(feature -> feature.startsWith("StateMinimizingLanguageModel"));
+    config.features.add("LanguageModel -lm_type berkeleylm -lm_order 3 -lm_file " + lm);
+    config.topN = 20;
+    config.pop_limit = 100;
+    config.stack_threads = threads;
+
+    Decoder decoder = new Decoder(config, "");
+    try {
+      return decoder.decode(new Sentence(INPUT, 0, config)).toString();
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ReadinessHandlerTest {
+
+  private HttpServer server;
+  private ReadinessHandler readiness;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    readiness = new ReadinessHandler();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", readiness);
+    server.start();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private int status(String path) throws IOException {
+    URL url = new URL("http", "localhost", server.getAddress().getPort(), path);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  @Test
+  public void givenLoading_thenNotReadyAndRequestsAreRefused() throws IOException {
+    assertFalse(readiness.isReady());
+    assertEquals(status(ReadinessHandler.READY_PATH), 503);
+    assertEquals(status("/?q=a"), 503);
+  }
+
+  @Test
+  public void givenLoaded_thenReadyAndRequestsArePassedOn() throws IOException {
+    readiness.setReady(client -> {
+      byte[] body = "translated".getBytes();
+      client.sendResponseHeaders(200, body.length);
+      try (OutputStream out = client.getResponseBody()) {
+        out.write(body);
+      }
+    });
+
+    assertTrue(readiness.isReady());
+    assertEquals(status(ReadinessHandler.READY_PATH), 200);
+    assertEquals(status("/?q=a"), 200);
+  }
+}
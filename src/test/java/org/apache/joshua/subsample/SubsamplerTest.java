@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.subsample;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SubsamplerTest {
+
+  private File dir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("subsampler").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    for (File file : dir.listFiles())
+      file.delete();
+    dir.delete();
+  }
+
+  private String write(String name, List<String> lines) throws IOException {
+    File file = new File(dir, name);
+    Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    return file.getPath();
+  }
+
+  private List<String> read(String name) throws IOException {
+    return Files.readAllLines(new File(dir, name).toPath(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void givenTargetCount_whenSubsampling_thenPairsCoveringNewNgramsAreSelected()
+      throws IOException {
+    String test = write("test.f", Arrays.asList("a b c", "g h i j k l"));
+    write("train.f", Arrays.asList(
+        "g h i j k l m n o p q", // in the second length bin
+        "a b",
+        "a b",      // a, b and "a b" are covered already
+        "b c d",
+        "  ",       // skipped, like the BiCorpus does
+        "d e",      // no test n-grams
+        "a b c"));
+    write("train.e", Arrays.asList("G H I J K L M N O P Q", "A B", "A B 2", "B C D", "X", "D E",
+        "A B C"));
+    String list = write("list", Arrays.asList("train"));
+
+    new Subsampler(new String[] { test }, 12, 1).subsample(list, 0.0f, "f", "e",
+        dir.getPath(), dir.getPath(), new File(dir, "out").getPath());
+
+    // The output is in corpus order
+    assertEquals(read("out.f"), Arrays.asList("g h i j k l m n o p q", "a b", "b c d", "a b c"));
+    assertEquals(read("out.e"), Arrays.asList("G H I J K L M N O P Q", "A B", "B C D", "A B C"));
+  }
+
+  @Test
+  public void givenPairWithEmptySide_whenSubsamplingAlignedCorpus_thenAlignmentsStayInStep()
+      throws IOException {
+    String test = write("test.f", Arrays.asList("a b c"));
+    write("train.f", Arrays.asList("a  b", " ", "b c"));
+    write("train.e", Arrays.asList("A B", "X", "B C"));
+    // Like the BiCorpus, the pair with an empty side has no alignment line
+    write("train.a", Arrays.asList("1-1 0-0", "0-1 1-0"));
+    String list = write("list", Arrays.asList("train"));
+
+    new AlignedSubsampler(new String[] { test }, 2, 2, 1).subsample(list, 0.0f, "f", "e", "a",
+        dir.getPath(), dir.getPath(), dir.getPath(), new File(dir, "out").getPath());
+
+    assertEquals(read("out.f"), Arrays.asList("a b", "b c"));
+    assertEquals(read("out.e"), Arrays.asList("A B", "B C"));
+    assertEquals(read("out.a"),
+        Arrays.asList(new Alignment((short) 2, (short) 2, "0-0 1-1").toString(),
+            new Alignment((short) 2, (short) 2, "0-1 1-0").toString()));
+  }
+
+  @Test
+  public void givenThreads_whenSubsamplingAlignedCorpus_thenSameSelection() throws IOException {
+    String test = write("test.f", Arrays.asList("w1 w2 w3 w4", "w5 w6 w7 w8 w9"));
+    List<String> fs = new ArrayList<>(), es = new ArrayList<>(), as = new ArrayList<>();
+    for (int i = 0; i < 25000; i++) {
+      int length = 1 + (i * 7) % 23;
+      StringBuilder f = new StringBuilder("w" + (i % 11));
+      StringBuilder a = new StringBuilder("0-0");
+      for (int j = 1; j < length; j++) {
+        f.append(" w").append((i * 31 + j * 17) % 11);
+        a.append(' ').append(j).append('-').append(j);
+      }
+      fs.add(f.toString());
+      es.add(f.toString().toUpperCase());
+      as.add(a.toString());
+    }
+    write("train.f", fs);
+    write("train.e", es);
+    write("train.a", as);
+    String list = write("list", Arrays.asList("train"));
+
+    List<List<String>> outputs = new ArrayList<>();
+    for (int threads : new int[] { 1, 4 }) {
+      String output = new File(dir, "out" + threads).getPath();
+      new AlignedSubsampler(new String[] { test }, 4, 3, threads).subsample(list, 1.0f, "f", "e",
+          "a", dir.getPath(), dir.getPath(), dir.getPath(), output);
+      List<String> selected = new ArrayList<>(read("out" + threads + ".f"));
+      selected.addAll(read("out" + threads + ".a"));
+      outputs.add(selected);
+    }
+    assertEquals(outputs.get(1), outputs.get(0));
+    assertEquals(outputs.get(0).size() % 2, 0);
+    assertFalse(outputs.get(0).isEmpty());
+  }
+}
@@ -26,6 +26,8 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
+
 import static org.apache.joshua.corpus.Vocabulary.registerLanguageModel;
 import static org.apache.joshua.corpus.Vocabulary.unregisterLanguageModels;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -109,6 +111,53 @@ public class KenLmTest {
     assertThat(result.prob, is(-3.7906885f));
   }
 
+  @Test
+  public void givenKenLm_whenQueryingInBatch_thenSameAsSingleQueries() {
+    // GIVEN
+    KenLmTestUtil.Guard(() -> kenLm = new KenLM(LANGUAGE_MODEL_PATH));
+
+    registerLanguageModel(kenLm);
+    int[] first = Vocabulary.addAll("Wayne Gretzky");
+    int[] second = Vocabulary.addAll("Gretzky Wayne");
+    int[] ngrams = { first[0], first[1], second[0], second[1] };
+
+    // WHEN
+    float[] probs = new float[2];
+    kenLm.ngramLogProbabilities(ngrams, 2, 2, probs);
+
+    // THEN
+    assertEquals(kenLm.prob(first.clone()), probs[0], Float.MIN_VALUE);
+    assertEquals(kenLm.prob(second.clone()), probs[1], Float.MIN_VALUE);
+  }
+
+  @Test
+  public void givenKenLm_whenScoringRulesInBatch_thenSameAsSingleRules() {
+    // GIVEN
+    KenLmTestUtil.Guard(() -> kenLm = new KenLM(LANGUAGE_MODEL_PATH));
+
+    registerLanguageModel(kenLm);
+    long[] first = { Vocabulary.id("Wayne"), Vocabulary.id("Gretzky") };
+    long[] second = { Vocabulary.id("Gretzky") };
+    long[] third = { Vocabulary.id("Gretzky"), Vocabulary.id("Wayne"), Vocabulary.id("Gretzky") };
+
+    // WHEN
+    long[] batched;
+    long[] single = new long[3];
+    try (LmPool pool = kenLm.createLMPool()) {
+      batched = kenLm.probRules(Arrays.asList(first, second, third), pool);
+      single[0] = kenLm.probRulePacked(first, pool);
+      single[1] = kenLm.probRulePacked(second, pool);
+      single[2] = kenLm.probRulePacked(third, pool);
+    }
+
+    // THEN
+    for (int k = 0; k < 3; k++) {
+      assertEquals(KenLM.unpackState(single[k]), KenLM.unpackState(batched[k]));
+      assertEquals(KenLM.unpackProb(single[k]), KenLM.unpackProb(batched[k]), Float.MIN_VALUE);
+    }
+    assertEquals(-3.7906885f, KenLM.unpackProb(batched[0]), Float.MIN_VALUE);
+  }
+
   @Test
   public void givenKenLm_whenIsKnownWord_thenReturnValuesAreCorrect() {
     KenLmTestUtil.Guard(() -> kenLm = new KenLM(LANGUAGE_MODEL_PATH));
@@ -20,16 +20,21 @@ package org.apache.joshua.system;
 
 import static java.util.Arrays.asList;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.NbestMinRiskReranker;
 import org.apache.joshua.decoder.StructuredTranslation;
 import org.apache.joshua.decoder.Translation;
+import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
@@ -215,6 +220,94 @@ public class StructuredTranslationTest {
 
   }
 
+  @Test
+  public void givenInput_whenUniqueKBest_thenDistinctStringsInKBestOrder() {
+    // GIVEN
+    joshuaConfig.use_structured_output = false;
+    joshuaConfig.outputFormat = "%s";
+    joshuaConfig.topN = 100;
+
+    // WHEN
+    final List<String> kbest = asList(decode(INPUT).toString().split("\n"));
+    joshuaConfig.use_unique_nbest = true;
+    final List<String> uniqueKbest = asList(decode(INPUT).toString().split("\n"));
+
+    // THEN
+    assertEquals(uniqueKbest, new ArrayList<>(new LinkedHashSet<>(kbest)));
+    assertEquals(uniqueKbest.get(0), EXPECTED_TRANSLATION);
+  }
+
+  @Test
+  public void givenMBR_whenRegularOutputFormat_thenMBRHypothesisFromKBest() {
+    // GIVEN
+    joshuaConfig.use_structured_output = false;
+    joshuaConfig.use_unique_nbest = true;
+    joshuaConfig.outputFormat = "%s ||| %c";
+    joshuaConfig.topN = 8;
+    final List<String> kbest = asList(decode(INPUT).toString().split("\n"));
+
+    // WHEN
+    joshuaConfig.topN = 0;
+    joshuaConfig.mbr_size = 8;
+    final String translation = decode(INPUT).toString();
+
+    // THEN
+    final List<String> hyps = new ArrayList<>();
+    final List<Double> scores = new ArrayList<>();
+    for (String line : kbest) {
+      String[] fields = line.split(" \\|\\|\\| ");
+      hyps.add(fields[0]);
+      scores.add(Double.parseDouble(fields[1]));
+    }
+    final int best = new NbestMinRiskReranker(false, 1.0).rerank(hyps, scores);
+    assertEquals(translation, kbest.get(best) + "\n");
+  }
+
+  @Test
+  public void givenMBR_whenNonUniqueNbest_thenMBRHypothesisFromUniqueKBest() {
+    // GIVEN
+    joshuaConfig.use_structured_output = false;
+    joshuaConfig.use_unique_nbest = true;
+    joshuaConfig.outputFormat = "%s ||| %c";
+    joshuaConfig.topN = 8;
+    final List<String> kbest = asList(decode(INPUT).toString().split("\n"));
+
+    // WHEN
+    joshuaConfig.use_unique_nbest = false;
+    joshuaConfig.topN = 0;
+    joshuaConfig.mbr_size = 8;
+    // A flat posterior, so that repeated hypotheses would outweigh the others
+    joshuaConfig.mbr_scale = 0.0001f;
+    final String translation = decode(INPUT).toString();
+
+    // THEN
+    final List<String> hyps = new ArrayList<>();
+    final List<Double> scores = new ArrayList<>();
+    for (String line : kbest) {
+      String[] fields = line.split(" \\|\\|\\| ");
+      hyps.add(fields[0]);
+      scores.add(Double.parseDouble(fields[1]));
+    }
+    final int best = new NbestMinRiskReranker(false, 0.0001).rerank(hyps, scores);
+    assertEquals(translation, kbest.get(best) + "\n");
+  }
+
+  @Test
+  public void givenFilterGrammar_whenRegularOutputFormat_thenSameKBest() {
+    // GIVEN
+    joshuaConfig.use_structured_output = false;
+    joshuaConfig.outputFormat = "%s ||| %f ||| %c";
+    joshuaConfig.topN = 8;
+    final String unfiltered = decode(INPUT).toString();
+
+    // WHEN
+    joshuaConfig.filter_grammar = true;
+    final String filtered = decode(INPUT).toString();
+
+    // THEN
+    assertEquals(filtered, unfiltered);
+  }
+
   @Test
   public void givenEmptyInput_whenStructuredOutputFormat_thenEmptyOutput() {
     // GIVEN
@@ -256,6 +349,50 @@ public class StructuredTranslationTest {
     assertTrue(wordAlignment.contains(asList(0)));
   }
 
+  @Test
+  public void givenInput_whenDecodingWithOwnWeights_thenSharedWeightsUnchanged() {
+    // GIVEN
+    joshuaConfig.use_structured_output = true;
+    final Map<String, Float> doubled = new HashMap<>();
+    for (String pair : joshuaConfig.weights) {
+      final String[] tokens = pair.split("\\s+");
+      doubled.put(tokens[0], 2 * Float.parseFloat(tokens[1]));
+    }
+    final FeatureVector sharedWeights = Decoder.getWeights();
+
+    // WHEN
+    final Translation translation = decoder.decode(new Sentence(INPUT, 0, joshuaConfig),
+        Decoder.copyWeights(doubled));
+
+    // THEN
+    assertEquals(2 * EXPECTED_SCORE,
+        translation.getStructuredTranslations().get(0).getTranslationScore(), 0.00001);
+    assertSame(sharedWeights, Decoder.getWeights());
+    assertEquals(EXPECTED_SCORE,
+        decode(INPUT).getStructuredTranslations().get(0).getTranslationScore(), 0.00001);
+  }
+
+  @Test
+  public void givenInput_whenWeightsUpdated_thenNewSnapshotIsUsed() {
+    // GIVEN
+    joshuaConfig.use_structured_output = true;
+    final FeatureVector oldWeights = Decoder.getWeights();
+    final long oldVersion = Decoder.getWeightsVersion();
+    final Map<String, Float> changes = new HashMap<>();
+    changes.put("tm_glue_0", 3.0f);
+
+    // WHEN
+    final FeatureVector newWeights = Decoder.updateWeights(changes);
+
+    // THEN
+    assertSame(newWeights, Decoder.getWeights());
+    assertEquals(oldVersion + 1, Decoder.getWeightsVersion());
+    assertEquals(1.0f, oldWeights.getWeight("tm_glue_0"), 0.00001);
+    assertEquals(3.0f, newWeights.getWeight("tm_glue_0"), 0.00001);
+    assertEquals(EXPECTED_SCORE + 2.0,
+        decode(INPUT).getStructuredTranslations().get(0).getTranslationScore(), 0.00001);
+  }
+
   @Test
   public void givenEmptyInput_whenRegularOutputFormat_thenNewlineOutput() {
     // GIVEN
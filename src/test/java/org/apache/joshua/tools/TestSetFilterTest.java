@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.tools;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.joshua.util.io.LineReader;
+import org.testng.annotations.Test;
+
+public class TestSetFilterTest {
+
+  private static final String DIR = "src/test/resources/thrax/filtering/";
+
+  private static TestSetFilter newFilter(String mode, String testSet) throws IOException {
+    TestSetFilter filter = new TestSetFilter();
+    filter.setFilter(mode);
+    filter.loadTestSentences(testSet);
+    return filter;
+  }
+
+  /* The rules kept by filtering line by line with inTestSet() */
+  private static String filterLines(TestSetFilter filter, String grammar) throws IOException {
+    StringBuilder kept = new StringBuilder();
+    try (LineReader reader = new LineReader(grammar)) {
+      for (String rule : reader) {
+        String[] parts = TestSetFilter.P_DELIM.split(rule);
+        if (parts.length >= 4) {
+          String source = rule.startsWith("[") ? parts[1].trim() : parts[0].trim();
+          if (filter.inTestSet(source))
+            kept.append(rule).append('\n');
+        }
+      }
+    }
+    return kept.toString();
+  }
+
+  private static String filterGrammar(TestSetFilter filter, InputStream in, int threads)
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    filter.filterGrammar(in, out, threads);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void givenGrammar_whenFilteringInChunks_thenSameRulesAsLineByLine() throws IOException {
+    final String grammar = DIR + "grammar.filtered.gz";
+    final String testSet = DIR + "dev.hi-en.hi.1";
+    for (String mode : new String[] { "fast", "exact", "loose" }) {
+      String expected = filterLines(newFilter(mode, testSet), grammar);
+      for (int threads : new int[] { 1, 4 }) {
+        TestSetFilter filter = newFilter(mode, testSet);
+        filter.setChunkSize(1000);
+        try (InputStream in = new GZIPInputStream(new FileInputStream(grammar))) {
+          assertEquals(filterGrammar(filter, in, threads), expected, mode + " " + threads);
+        }
+        assertEquals(filter.rulesIn, 8336);
+        if (mode.equals("fast"))
+          assertEquals(filter.rulesOut, 1087);
+      }
+    }
+  }
+
+  @Test
+  public void givenParallelMode_whenFiltering_thenDroppedRulesAreBlankLines() throws IOException {
+    File testSet = File.createTempFile("test-set", ".txt");
+    try {
+      Files.write(testSet.toPath(), "a b c\n".getBytes(StandardCharsets.UTF_8));
+      TestSetFilter filter = newFilter("fast", testSet.getPath());
+      filter.setParallel(true);
+      filter.setChunkSize(16);
+
+      String grammar = "[X] ||| a b ||| x ||| 1\r\n"
+          + "[X] ||| b d ||| y ||| 1\n"
+          + "[X] ||| [X,1] c ||| z [X,1] ||| 1\n"
+          + "c ||| w ||| 1 ||| 0-0";
+      String filtered = filterGrammar(filter,
+          new ByteArrayInputStream(grammar.getBytes(StandardCharsets.UTF_8)), 2);
+
+      assertEquals(filtered, "[X] ||| a b ||| x ||| 1\n\n[X] ||| [X,1] c ||| z [X,1] ||| 1\n"
+          + "c ||| w ||| 1 ||| 0-0\n");
+      assertEquals(filter.rulesIn, 4);
+      assertEquals(filter.rulesOut, 3);
+    } finally {
+      testSet.delete();
+    }
+  }
+
+  @Test
+  public void givenParallelMode_whenFiltering_thenEachRuleIsWrittenBeforeTheNextIsRead()
+      throws IOException {
+    File testSet = File.createTempFile("test-set", ".txt");
+    try {
+      Files.write(testSet.toPath(), "a b c\n".getBytes(StandardCharsets.UTF_8));
+      TestSetFilter filter = newFilter("fast", testSet.getPath());
+      filter.setParallel(true);
+
+      final String[] rules = { "[X] ||| a b ||| x ||| 1\n", "[X] ||| b d ||| y ||| 1\n" };
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final List<Integer> written = new ArrayList<>();
+      /* Serves one rule per read, noting how much output there is before each further read */
+      InputStream in = new InputStream() {
+        int next = 0;
+
+        @Override
+        public int read() throws IOException {
+          throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          if (next > 0)
+            written.add(out.size());
+          if (next == rules.length)
+            return -1;
+          byte[] rule = rules[next++].getBytes(StandardCharsets.UTF_8);
+          System.arraycopy(rule, 0, b, off, rule.length);
+          return rule.length;
+        }
+      };
+      filter.filterGrammar(in, out, 4);
+
+      assertEquals(written.get(0).intValue(), rules[0].length());
+      assertEquals(written.get(written.size() - 1).intValue(), rules[0].length() + 1);
+    } finally {
+      testSet.delete();
+    }
+  }
+
+  @Test
+  public void givenNonAsciiAndBracketWords_whenFilteringBytes_thenSameAsStrings() throws IOException {
+    File testSet = File.createTempFile("test-set", ".txt");
+    try {
+      Files.write(testSet.toPath(), "über [a] straße ]b[ c\n".getBytes(StandardCharsets.UTF_8));
+      TestSetFilter filter = newFilter("fast", testSet.getPath());
+
+      List<String> sources = new ArrayList<>();
+      for (String source : new String[] { "über", "über [a]", "straße ]b[", "[X,1] straße",
+          "über [X,1] ]b[ c", "[a] [X,1]", "über straße", "]b[ [X,1] d", "[X,1] [X,2]" })
+        sources.add(source);
+
+      StringBuilder grammar = new StringBuilder();
+      StringBuilder expected = new StringBuilder();
+      for (String source : sources) {
+        String rule = "[X] ||| " + source + " ||| t ||| 1";
+        grammar.append(rule).append('\n');
+        if (newFilter("fast", testSet.getPath()).inTestSet(source))
+          expected.append(rule).append('\n');
+      }
+
+      assertEquals(filterGrammar(filter,
+          new ByteArrayInputStream(grammar.toString().getBytes(StandardCharsets.UTF_8)), 1),
+          expected.toString());
+      // all but "über straße" and "]b[ [X,1] d"
+      assertEquals(filter.rulesOut, 7);
+    } finally {
+      testSet.delete();
+    }
+  }
+}
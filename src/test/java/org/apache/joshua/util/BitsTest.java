@@ -184,4 +184,13 @@ public class BitsTest {
 			}
 		}
 	}
+
+	@Test
+	public void mixMatchesMurmurHash3Finalizer() {
+
+		Assert.assertEquals(Bits.mix(0L), 0L);
+		// fmix64(1) from the reference implementation
+		Assert.assertEquals(Bits.mix(1L), 0xb456bcfc34c2cb2cL);
+		Assert.assertNotEquals(Bits.mix(1L), Bits.mix(2L));
+	}
 }
@@ -20,9 +20,12 @@ package org.apache.joshua.zmert;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import org.apache.joshua.metrics.BLEU;
+import org.apache.joshua.metrics.BLEUStatsEngine;
 import org.apache.joshua.metrics.EvaluationMetric;
 import org.testng.Assert;
 import org.testng.annotations.Parameters;
@@ -114,6 +117,54 @@ public class BLEUTest {
     }
   }
 
+  @Test
+  public void tokenCodesMatchRegexSplit() {
+    String[] sentences = { "", " ", "a", " a", "a ", "  a \t b  ", "a b c", "x\ny" };
+    for (String sentence : sentences) {
+      String[] words = sentence.split("\\s+");
+      long[] codes = BLEUStatsEngine.tokenCodes(sentence);
+      Assert.assertEquals(codes.length, words.length, "'" + sentence + "'");
+      for (int i = 0; i < words.length; i++)
+        Assert.assertEquals(codes[i], BLEUStatsEngine.tokenCode(words[i]));
+    }
+  }
+
+  @Test
+  public void batchedStatsMatchStringCounts() {
+    String[][] refSentences = {
+        { "the cat sat on the mat", "there is a cat on the mat" },
+        { "a b a b a b", "a a a" } };
+    String[] candidates = { "the the the cat on the mat", "a b a b c a a", "", "the cat" };
+    int[] indices = { 0, 1, 1, 0 };
+
+    EvaluationMetric.set_numSentences(2);
+    EvaluationMetric.set_refsPerSen(2);
+    EvaluationMetric.set_refSentences(refSentences);
+
+    BLEU bleu = new BLEU();
+    int[][] stats = bleu.suffStats(candidates, indices);
+
+    for (int d = 0; d < candidates.length; d++) {
+      HashMap<String, Integer> maxRef = bleu.getNgramCountsAll(refSentences[indices[d]][0]);
+      for (Map.Entry<String, Integer> entry : bleu.getNgramCountsAll(
+          refSentences[indices[d]][1]).entrySet())
+        maxRef.merge(entry.getKey(), entry.getValue(), Math::max);
+
+      HashMap<String, Integer>[] cand = bleu.getNgramCountsArray(candidates[d]);
+      for (int n = 1; n <= 4; n++) {
+        int expected = 0;
+        for (Map.Entry<String, Integer> entry : cand[n].entrySet())
+          expected += Math.min(entry.getValue(), maxRef.getOrDefault(entry.getKey(), 0));
+        Assert.assertEquals(stats[d][2 * (n - 1)], expected, candidates[d] + " order " + n);
+      }
+    }
+
+    // "the the the cat on the mat": clipped unigrams are the(2) cat on mat
+    Assert.assertEquals(stats[0][0], 5);
+    Assert.assertEquals(stats[0][1], 7);
+    Assert.assertEquals(stats[2][8], 0);
+  }
+
   @Parameters({"referenceFile","testFile"})
   @Test(enabled=false)
   public void fileTest(String referenceFile, String testFile) throws FileNotFoundException {